@@ -0,0 +1,93 @@
+package it.polito.ezshop.data;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Append-only log of the changes made to the open sales, one tab separated record per line. Every record is
+// flushed to the operating system before the change is applied in memory, so the open sales survive a crash
+// of the process (not of the machine: the journal is not synced, that would cost a commit per scan again).
+// Callers serialize access.
+class CartJournal {
+    private final File file;
+    private Writer out;
+    private int records;
+
+    CartJournal(File file) {
+        this.file = file;
+    }
+
+    List<String[]> read() throws IOException {
+        List<String[]> list = new ArrayList<>();
+        if(!file.exists())
+            return list;
+        try(BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = in.readLine()) != null) {
+                // a record cut by a crash is the last one, it was never applied
+                if(!line.isEmpty())
+                    list.add(line.split("\t"));
+            }
+        }
+        return list;
+    }
+
+    void append(Object... fields) throws IOException {
+        append(Collections.singletonList(fields));
+    }
+
+    // several records with a single flush
+    void append(List<Object[]> batch) throws IOException {
+        if(out == null)
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        for(Object[] fields : batch)
+            write(out, fields);
+        out.flush();
+        records += batch.size();
+    }
+
+    // replaces the journal with the given records, written to a new file that is then moved over the old one
+    void rewrite(List<Object[]> snapshot) throws IOException {
+        close();
+        File tmp = new File(file.getPath() + ".tmp");
+        try(Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for(Object[] fields : snapshot)
+                write(w, fields);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = snapshot.size();
+    }
+
+    // records in the journal
+    int getRecords() {
+        return records;
+    }
+
+    void close() throws IOException {
+        if(out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private static void write(Writer w, Object[] fields) throws IOException {
+        for(int i = 0; i < fields.length; i++) {
+            if(i > 0)
+                w.write('\t');
+            w.write(String.valueOf(fields[i]));
+        }
+        w.write('\n');
+    }
+}
@@ -0,0 +1,349 @@
+package it.polito.ezshop.data;
+
+import org.sqlite.SQLiteConfig;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Pool of SQLite connections opened in WAL mode. A thread leases one connection for the whole
+// duration of an operation (nested acquire() calls on the same thread share it); when the outermost
+// operation releases it, the cached statements it used are reset and any other statement opened
+// through the lease is closed, so that no read snapshot outlives the operation, and the connection
+// goes back to the idle queue. prepareStatement(sql) on a leased connection is served by the
+// per-connection StatementCache.
+// Operations that write lease the connection with begin(): the whole operation, nested calls
+// included, runs in one BEGIN IMMEDIATE transaction that is committed once, when the outermost
+// operation releases the connection, or rolled back if setRollbackOnly() was called.
+public class ConnectionPool {
+    private static final int DEFAULT_SIZE = 8;
+    private static final int BUSY_TIMEOUT_MS = 5000;
+    private static final long ACQUIRE_TIMEOUT_MS = 10000;
+
+    private final String url;
+    private final SQLiteConfig config;
+    private final int maxSize;
+    private final BlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<>();
+    private final StatementStats statementStats = new StatementStats();
+    private final AtomicInteger opened = new AtomicInteger();
+    private final LongAdder commits = new LongAdder();
+    private volatile boolean unitOfWork = true;
+    private final List<Runnable> rollbackListeners = new CopyOnWriteArrayList<>();
+    private final List<Runnable> commitListeners = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Lease> lease = new ThreadLocal<>();
+
+    public ConnectionPool(String url) {
+        this(url, Integer.getInteger("ezshop.pool.size", DEFAULT_SIZE));
+    }
+
+    public ConnectionPool(String url, int maxSize) {
+        if(maxSize <= 0)
+            throw new IllegalArgumentException("Invalid pool size");
+        this.url = url;
+        this.maxSize = maxSize;
+        this.config = new SQLiteConfig();
+        // WAL lets readers work on a snapshot while a single writer appends to the log
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        config.setBusyTimeout(BUSY_TIMEOUT_MS);
+    }
+
+    public Connection acquire() {
+        Lease current = lease.get();
+        if(current != null) {
+            current.depth++;
+            return current.view;
+        }
+        return lease().view;
+    }
+
+    public Connection begin() {
+        Lease current = lease.get();
+        if(current != null)
+            current.depth++;
+        else
+            current = lease();
+
+        if(unitOfWork && !current.pooled.statements.inTransaction()) {
+            try {
+                current.pooled.begin.executeUpdate();
+            } catch (SQLException e) {
+                release();
+                throw new IllegalStateException("Cannot start a transaction", e);
+            }
+            current.pooled.statements.setInTransaction(true);
+        }
+        return current.view;
+    }
+
+    // whether the calling thread is inside a transaction that will end with a commit or a rollback
+    public boolean inUnitOfWork() {
+        Lease current = lease.get();
+        return current != null && current.pooled.statements.inTransaction();
+    }
+
+    // whether the unit of work of the calling thread has executed any write so far
+    public boolean hasWritten() {
+        Lease current = lease.get();
+        return current != null && current.pooled.statements.inTransaction() && current.pooled.statements.isWritten();
+    }
+
+    // the unit of work of the calling thread will be rolled back instead of committed
+    public void setRollbackOnly() {
+        Lease current = lease.get();
+        if(current != null)
+            current.rollbackOnly = true;
+    }
+
+    private Lease lease() {
+        Lease current;
+        PooledConnection pooled;
+        try {
+            pooled = take();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Database connection unavailable", e);
+        }
+        current = new Lease(pooled);
+        lease.set(current);
+        return current;
+    }
+
+    public void release() {
+        Lease current = lease.get();
+        if(current == null)
+            throw new IllegalStateException("No connection leased by this thread");
+        if(--current.depth > 0)
+            return;
+
+        lease.remove();
+        current.closeStatements();
+        try {
+            if(current.pooled.statements.inTransaction())
+                finish(current);
+        } finally {
+            idle.offer(current.pooled);
+        }
+    }
+
+    private void finish(Lease current) {
+        PooledConnection pooled = current.pooled;
+        boolean written = pooled.statements.isWritten();
+        pooled.statements.setInTransaction(false);
+        if(current.rollbackOnly) {
+            rollback(pooled);
+            return;
+        }
+
+        try {
+            pooled.commit.executeUpdate();
+            // a transaction that only read has nothing to make durable
+            if(written)
+                commits.increment();
+        } catch (SQLException e) {
+            rollback(pooled);
+            throw new IllegalStateException("Commit failed, the operation has been rolled back", e);
+        }
+        for(Runnable listener : commitListeners)
+            listener.run();
+    }
+
+    // the listeners run before the ROLLBACK, while the transaction still holds the database lock, so that no
+    // other writer can start from what they are about to drop
+    private void rollback(PooledConnection pooled) {
+        try {
+            for(Runnable listener : rollbackListeners)
+                listener.run();
+        } finally {
+            try {
+                pooled.rollback.executeUpdate();
+            } catch (SQLException ignored) {
+
+            }
+        }
+    }
+
+    // called when a unit of work is rolled back, e.g. to drop caches written through during the operation
+    public void addRollbackListener(Runnable listener) {
+        rollbackListeners.add(listener);
+    }
+
+    // called on the committing thread once a unit of work is durable, e.g. to evict again what readers may have
+    // cached from the snapshot before the commit
+    public void addCommitListener(Runnable listener) {
+        commitListeners.add(listener);
+    }
+
+    // COMMITs of transactions that wrote plus the writes executed in autocommit mode (each one is committed on its own)
+    public long getCommitCount() {
+        return commits.sum() + statementStats.getAutoCommits();
+    }
+
+    // with the unit of work disabled begin() behaves like acquire() and every write is autocommitted
+    void setUnitOfWork(boolean unitOfWork) {
+        this.unitOfWork = unitOfWork;
+    }
+
+    public int getOpenedConnections() {
+        return opened.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public StatementStats getStatementStats() {
+        return statementStats;
+    }
+
+    public void close() {
+        PooledConnection c;
+        while((c = idle.poll()) != null) {
+            c.close();
+            opened.decrementAndGet();
+        }
+    }
+
+    private PooledConnection take() throws SQLException {
+        PooledConnection c = idle.poll();
+        if(c != null)
+            return c;
+
+        // open a new physical connection if the pool is not full yet, otherwise wait for one
+        int n = opened.get();
+        while(n < maxSize) {
+            if(opened.compareAndSet(n, n + 1)) {
+                try {
+                    return new PooledConnection(config.createConnection(url), statementStats);
+                } catch (SQLException e) {
+                    opened.decrementAndGet();
+                    throw e;
+                }
+            }
+            n = opened.get();
+        }
+
+        try {
+            c = idle.poll(ACQUIRE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection");
+        }
+        if(c == null)
+            throw new SQLException("Timeout while waiting for a connection");
+        return c;
+    }
+
+    private static final class PooledConnection {
+        private final Connection physical;
+        private final StatementCache statements;
+        private final PreparedStatement begin;
+        private final PreparedStatement commit;
+        private final PreparedStatement rollback;
+
+        private PooledConnection(Connection physical, StatementStats stats) throws SQLException {
+            this.physical = physical;
+            this.statements = new StatementCache(physical, stats);
+            this.begin = physical.prepareStatement("BEGIN IMMEDIATE");
+            this.commit = physical.prepareStatement("COMMIT");
+            this.rollback = physical.prepareStatement("ROLLBACK");
+        }
+
+        private void close() {
+            statements.close();
+            try {
+                begin.close();
+                commit.close();
+                rollback.close();
+            } catch (SQLException ignored) {
+
+            }
+            try {
+                physical.close();
+            } catch (SQLException ignored) {
+
+            }
+        }
+    }
+
+    private static final class Lease {
+        private final PooledConnection pooled;
+        private final Connection physical;
+        private final Connection view;
+        private final List<Statement> statements = new ArrayList<>();
+        private int depth = 1;
+        private boolean rollbackOnly;
+
+        private Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+            this.physical = pooled.physical;
+            this.view = (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    new LeaseHandler(this));
+        }
+
+        private void closeStatements() {
+            pooled.statements.release();
+            for(Statement st : statements) {
+                try {
+                    st.close();
+                } catch (SQLException ignored) {
+
+                }
+            }
+            statements.clear();
+        }
+    }
+
+    // serves prepareStatement(sql) from the statement cache, tracks the other statements created through
+    // the lease and keeps callers from closing the pooled connection
+    private static final class LeaseHandler implements InvocationHandler {
+        private final Lease lease;
+
+        private LeaseHandler(Lease lease) {
+            this.lease = lease;
+        }
+
+        @Override
+        public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    return null;
+                case "isClosed":
+                    return lease.physical.isClosed();
+                case "prepareStatement":
+                    if(args.length == 1)
+                        return lease.pooled.statements.prepare((String) args[0]);
+                    break;
+                case "unwrap":
+                    if(((Class<?>) args[0]).isInstance(lease.physical))
+                        return lease.physical;
+                    break;
+                default:
+                    break;
+            }
+
+            Object result;
+            try {
+                result = method.invoke(lease.physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if(result instanceof Statement)
+                lease.statements.add((Statement) result);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package it.polito.ezshop.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Inverted index over the product descriptions, by every substring of one to three characters, kept by the
+// ProductCatalog under its monitor. A text of three characters or more is looked up by intersecting the sorted
+// id lists of its trigrams, then every candidate is checked for the whole text, so the result is exactly what
+// description LIKE '%text%' returns: case folded for ASCII letters only, as SQLite does. A shorter text is a gram
+// itself: its id list is the result. Only the empty text, that every description contains, is not looked up.
+public class DescriptionIndex {
+    private static final int GRAM = 3;
+
+    // folded description by product id, ids being dense
+    private String[] descriptions = new String[16];
+    private int size;
+    private final Map<Long, Postings> postings = new HashMap<>();
+
+    // ids in ascending order, appended most of the time since productType assigns them increasing
+    private static final class Postings {
+        private int[] ids = new int[2];
+        private int size;
+
+        void add(int id) {
+            int at = size > 0 && ids[size - 1] < id ? size : Arrays.binarySearch(ids, 0, size, id);
+            if(at < size && at >= 0 && ids[at] == id)
+                return;
+            if(at < 0)
+                at = -at - 1;
+            if(size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if(at < 0)
+                return;
+            System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+            size--;
+        }
+
+        // position of the first id not below the given one, searching from a position known to be before it
+        int seek(int id, int from) {
+            int step = 1;
+            int to = from;
+            while(to < size && ids[to] < id) {
+                from = to + 1;
+                to += step;
+                step <<= 1;
+            }
+            int at = Arrays.binarySearch(ids, from, Math.min(to + 1, size), id);
+            return at < 0 ? -at - 1 : at;
+        }
+    }
+
+    void put(int id, String description) {
+        remove(id);
+        String folded = fold(description == null ? "" : description);
+        if(id >= descriptions.length)
+            descriptions = Arrays.copyOf(descriptions, Math.max(id + 1, descriptions.length * 2));
+        descriptions[id] = folded;
+        size++;
+        for(long gram : indexed(folded))
+            postings.computeIfAbsent(gram, k -> new Postings()).add(id);
+    }
+
+    void remove(int id) {
+        if(id < 0 || id >= descriptions.length || descriptions[id] == null)
+            return;
+        String folded = descriptions[id];
+        descriptions[id] = null;
+        size--;
+        for(long gram : indexed(folded)) {
+            Postings p = postings.get(gram);
+            if(p == null)
+                continue;
+            p.remove(id);
+            if(p.size == 0)
+                postings.remove(gram);
+        }
+    }
+
+    void clear() {
+        descriptions = new String[16];
+        size = 0;
+        postings.clear();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // distinct grams indexed, of one to three characters
+    public int getGrams() {
+        return postings.size();
+    }
+
+    // ids of the products whose description contains the text, ascending
+    List<Integer> matches(String text) {
+        int[] ids = matching(fold(text));
+        Arrays.sort(ids);
+        List<Integer> result = new ArrayList<>(ids.length);
+        for(int id : ids)
+            result.add(id);
+        return result;
+    }
+
+    // ids of the best matches, at most limit of them: descriptions starting with the text first, then those
+    // with the text at the start of a word, then anywhere; shorter descriptions, closer to the text, first
+    List<Integer> search(String text, int limit) {
+        String folded = fold(text);
+        int[] ids = matching(folded);
+        // rank, length and id of every match in one long, in the order they sort
+        long[] keys = new long[ids.length];
+        for(int i = 0; i < ids.length; i++) {
+            String description = descriptions[ids[i]];
+            keys[i] = (long) rank(description, folded) << 48 | (long) Math.min(description.length(), 0xFFFF) << 32 | ids[i];
+        }
+        Arrays.sort(keys);
+        List<Integer> result = new ArrayList<>();
+        for(int i = 0; i < keys.length && i < limit; i++)
+            result.add((int) keys[i]);
+        return result;
+    }
+
+    private int[] matching(String folded) {
+        int[] found = new int[16];
+        int count = 0;
+        if(folded.isEmpty()) {
+            for(int id = 0; id < descriptions.length; id++) {
+                if(descriptions[id] == null)
+                    continue;
+                if(count == found.length)
+                    found = Arrays.copyOf(found, count * 2);
+                found[count++] = id;
+            }
+            return Arrays.copyOf(found, count);
+        }
+        long[] grams = grams(folded);
+        Postings[] lists = new Postings[grams.length];
+        for(int i = 0; i < grams.length; i++) {
+            lists[i] = postings.get(grams[i]);
+            if(lists[i] == null)
+                return new int[0];
+        }
+        // walk the shortest list, moving a cursor forward in each of the others
+        Arrays.sort(lists, Comparator.comparingInt(p -> p.size));
+        Postings shortest = lists[0];
+        int[] cursors = new int[lists.length];
+        candidates:
+        for(int i = 0; i < shortest.size; i++) {
+            int id = shortest.ids[i];
+            for(int j = 1; j < lists.length; j++) {
+                cursors[j] = lists[j].seek(id, cursors[j]);
+                if(cursors[j] == lists[j].size)
+                    break candidates;
+                if(lists[j].ids[cursors[j]] != id)
+                    continue candidates;
+            }
+            // every trigram is there, not necessarily in this order
+            if(folded.length() > GRAM && !descriptions[id].contains(folded))
+                continue;
+            if(count == found.length)
+                found = Arrays.copyOf(found, count * 2);
+            found[count++] = id;
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private static int rank(String description, String folded) {
+        int at = description.indexOf(folded);
+        if(at == 0)
+            return 0;
+        while(at > 0) {
+            if(!Character.isLetterOrDigit(description.charAt(at - 1)))
+                return 1;
+            at = description.indexOf(folded, at + 1);
+        }
+        return 2;
+    }
+
+    // the grams looked up for a folded text: its distinct trigrams, or the text itself when shorter
+    private static long[] grams(String folded) {
+        if(folded.length() < GRAM)
+            return new long[]{gram(folded, 0, folded.length())};
+        long[] grams = new long[folded.length() - GRAM + 1];
+        for(int i = 0; i < grams.length; i++)
+            grams[i] = gram(folded, i, GRAM);
+        return distinct(grams);
+    }
+
+    // the distinct grams a folded description is indexed by, of every length up to three
+    private static long[] indexed(String folded) {
+        int length = folded.length();
+        long[] grams = new long[Math.max(3 * length - 3, length)];
+        int count = 0;
+        for(int n = 1; n <= GRAM; n++)
+            for(int i = 0; i + n <= length; i++)
+                grams[count++] = gram(folded, i, n);
+        return distinct(Arrays.copyOf(grams, count));
+    }
+
+    // up to three chars packed in a long, with their count on top so that grams of different lengths differ
+    private static long gram(String folded, int at, int length) {
+        long gram = length;
+        for(int i = at; i < at + length; i++)
+            gram = gram << 16 | folded.charAt(i);
+        return gram;
+    }
+
+    private static long[] distinct(long[] grams) {
+        Arrays.sort(grams);
+        int distinct = 0;
+        for(int i = 0; i < grams.length; i++)
+            if(i == 0 || grams[i] != grams[distinct - 1])
+                grams[distinct++] = grams[i];
+        return Arrays.copyOf(grams, distinct);
+    }
+
+    // LIKE is case insensitive for the ASCII letters only
+    static String fold(String text) {
+        char[] chars = text.toCharArray();
+        for(int i = 0; i < chars.length; i++)
+            if(chars[i] >= 'A' && chars[i] <= 'Z')
+                chars[i] += 'a' - 'A';
+        return new String(chars);
+    }
+}
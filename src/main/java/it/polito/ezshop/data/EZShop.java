@@ -1,505 +1,645 @@
 package it.polito.ezshop.data;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.*;
 
 import it.polito.ezshop.exceptions.*;
 
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.time.*;
 
+import it.polito.ezshop.data.Session.Permission;
+
 import static it.polito.ezshop.data.MyProductType.validateProductCode;
 
 public class EZShop implements EZShopInterface{
-    private static Connection conn;
-    private User loggedUser;
-
-    private List<ProductType> inventory = new ArrayList<>();
-    private List<Customer> customerList = new ArrayList<>();
-    //private List<BalanceOperation> balanceOperationList = new ArrayList<>();
-    private List<User> userList = new ArrayList<>();
-    private List<Order> orderList = new ArrayList<>();
-    private boolean isOrderListUpdated = false;
-    //private boolean isBalanceOperationUpdated = false;
-    private boolean isCustomerListUpdated = false;
-    private boolean isUserListUpdated = false;
-    private boolean isInventoryUpdated = false;
+    private static ConnectionPool pool;
+    private static ProductCatalog catalog;
+    private static RfidIndex rfids;
+    private static SaleCarts carts;
+    private static IdAllocator ids;
+    private static TicketCache tickets;
+    private static Listing<ProductType> productTypes;
+    private static Listing<Order> orders;
+    private static Listing<Customer> customers;
+    private static Listing<User> users;
+    // the till's logged user, replaced as a whole on login and logout
+    private final AtomicReference<Session> session = new AtomicReference<>();
+
+    // listings read page by page or streamed
+    private static final String PRODUCT_TYPES = "SELECT id, productCode, description, pricePerUnit, quantity, notes, position FROM productType";
+    private static final String ORDERS = "SELECT id, productCode, pricePerUnit, quantity, status FROM 'order'";
+    private static final String CUSTOMERS = "SELECT C.id AS id, customerName, loyaltyCardId, points FROM customer AS C LEFT JOIN loyaltyCard ON loyaltyCard.cardId=C.loyaltyCardId";
+    private static final String USERS = "SELECT id, password, role, username FROM user";
+    static final int MAX_PAGE = 1000;
+    private static final int FETCH_SIZE = 256;
 
     public EZShop()  {
-        // open db connection
-        try {
-            // db parameters
-            String url = "jdbc:sqlite:ezshop_db.sqlite";
-            // create a connection to the database
-            if(conn==null)
+        // open db connection pool (shared by every EZShop instance of the process)
+        synchronized (EZShop.class) {
+            if(pool == null)
             {
-                conn = DriverManager.getConnection(url);
+                // db parameters
+                String db = System.getProperty("ezshop.db", "ezshop_db.sqlite");
+                String url = "jdbc:sqlite:" + db;
+                ConnectionPool newPool = new ConnectionPool(url);
+                // check that the database can be opened and bring its schema up to date before accepting requests
+                try {
+                    Connection conn = newPool.begin();
+                    try {
+                        new SchemaMigrator().migrate(conn);
+                    } catch (SQLException e) {
+                        newPool.setRollbackOnly();
+                        throw new IllegalStateException("Database migration failed", e);
+                    } finally {
+                        newPool.release();
+                    }
+                } catch (IllegalStateException e) {
+                    System.out.println("Database connection fail. Aborting...");
+                    System.exit(-1);
+                }
+                pool = newPool;
+                catalog = new ProductCatalog(pool);
+                rfids = new RfidIndex(pool);
+                try {
+                    rfids.load();
+                } catch (SQLException e) {
+                    // loaded again on the first RFID lookup
+                }
+                ids = new IdAllocator(pool);
+                tickets = new TicketCache(pool);
+                productTypes = new Listing<>(pool, PRODUCT_TYPES, "id", EZShop::productType, ProductType::getId, EZShop::available);
+                orders = new Listing<>(pool, ORDERS, "id", EZShop::order, Order::getOrderId, EZShop::copy);
+                customers = new Listing<>(pool, CUSTOMERS, "C.id", EZShop::customer, Customer::getId, EZShop::copy);
+                users = new Listing<>(pool, USERS, "id", EZShop::user, User::getId, EZShop::copy);
+                carts = new SaleCarts(catalog, rfids, new CartJournal(new File(db + "-carts")));
+                try {
+                    recoverOpenSales();
+                } catch (SQLException | IOException e) {
+                    // the sales stay open in the database, the carts are not
+                    carts.recoveryFailed(e);
+                }
                 System.out.println("Connection to SQLite has been established.");
             }
-
-        } catch (SQLException e) {
-            System.out.println("Database connection fail. Aborting...");
-            System.exit(-1);
         }
     }
 
+    // another till on the same database, already logged in with the given session
+    public EZShop(Session session) {
+        this();
+        this.session.set(session);
+    }
+
+    // how many times each SQL statement has been prepared, reused and executed, and how long it took
+    public StatementStats getStatementStats() {
+        return pool.getStatementStats();
+    }
+
+    // in-memory product catalog behind getProductTypeByBarCode, with its hit/miss counters
+    public ProductCatalog getProductCatalog() {
+        return catalog;
+    }
+
+    // in-memory index of the RFID ranges, with the sold state of every tagged item
+    public RfidIndex getRfidIndex() {
+        return rfids;
+    }
+
+    // the open sale transactions, with their lines and running totals
+    public SaleCarts getSaleCarts() {
+        return carts;
+    }
+
+    // ids of new sale and return transactions, reserved in blocks
+    public IdAllocator getIdAllocator() {
+        return ids;
+    }
+
+    // tickets of the ended sales, with their hit rate
+    public TicketCache getTicketCache() {
+        return tickets;
+    }
+
+    // the listings behind getAllProductTypes, getAllOrders, getAllCustomers and getAllUsers, patched by the writers
+    public Listing<ProductType> getProductTypeListing() {
+        return productTypes;
+    }
+
+    public Listing<Order> getOrderListing() {
+        return orders;
+    }
+
+    public Listing<Customer> getCustomerListing() {
+        return customers;
+    }
+
+    public Listing<User> getUserListing() {
+        return users;
+    }
+
+    // transactions committed so far, explicit or implicit
+    public long getCommitCount() {
+        return pool.getCommitCount();
+    }
+
+    // benchmarks only: with false every statement is committed on its own, as before the unit of work
+    void setUnitOfWork(boolean enabled) {
+        pool.setUnitOfWork(enabled);
+    }
+
+    // the logged user of this till and their permissions, null if nobody is logged in
+    public Session getSession() {
+        return session.get();
+    }
+
+    // checks the permission against the session once, a concurrent logout does not change the running operation
+    private Session authorize(Permission permission) throws UnauthorizedException {
+        Session current = session.get();
+        if(current == null || !current.has(permission))
+            throw new UnauthorizedException();
+        return current;
+    }
+
+    // undoes every write of the running operation when it releases the connection
+    private static <T> T rollback(T result) {
+        pool.setRollbackOnly();
+        return result;
+    }
+
     @Override
     public void reset() {
-        this.isOrderListUpdated = false;
-        //this.isBalanceOperationUpdated = false;
-        this.isCustomerListUpdated = false;
-        this.isUserListUpdated = false;
-        this.isInventoryUpdated = false;
-
-        // logout current user
-        this.loggedUser = null;
-        
+        Connection conn = pool.begin();
         try {
-            // empty all tables
-            String sql = "DELETE FROM balanceOperation WHERE true";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.executeUpdate();
-            sql = "DELETE FROM saleTransaction WHERE true";
-            st = conn.prepareStatement(sql);
-            st.executeUpdate();
-            sql = "DELETE FROM returnTransaction WHERE true";
-            st = conn.prepareStatement(sql);
-            st.executeUpdate();
-            sql = "DELETE FROM 'order' WHERE true";
-            st = conn.prepareStatement(sql);
-            st.executeUpdate();
-            sql = "DELETE FROM productType WHERE true";
-            st = conn.prepareStatement(sql);
-            st.executeUpdate();
-            sql = "DELETE FROM productEntry WHERE true";
-            st = conn.prepareStatement(sql);
-            st.executeUpdate();
-            sql = "DELETE FROM user WHERE true";
-            st = conn.prepareStatement(sql);
-            st.executeUpdate();
-            sql = "DELETE FROM customer WHERE true";
-            st = conn.prepareStatement(sql);
-            st.executeUpdate();
-            sql = "DELETE FROM loyaltyCard WHERE true";
-            st = conn.prepareStatement(sql);
-            st.executeUpdate();
-            sql = "DELETE FROM creditCard WHERE true";
-            st = conn.prepareStatement(sql);
-            st.executeUpdate();
-            sql = "DELETE FROM product WHERE true";
-            st = conn.prepareStatement(sql);
-            st.executeUpdate();
-
-            sql = "UPDATE sqlite_sequence SET seq=0 WHERE name!='returnTransaction'";
-            st = conn.prepareStatement(sql);
-            st.executeUpdate();
-
-            sql = "UPDATE sqlite_sequence SET seq=1 WHERE name='returnTransaction'";
-            st = conn.prepareStatement(sql);
-            st.executeUpdate();
-
-            // commit&close connection
-            conn.commit();
-            conn.close();
-
-        } catch (SQLException ignored) {
+            // logout current user
+            session.set(null);
+        
+            try {
+                // empty all tables
+                String sql = "DELETE FROM balanceOperation WHERE true";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.executeUpdate();
+                sql = "DELETE FROM saleTransaction WHERE true";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+                sql = "DELETE FROM returnTransaction WHERE true";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+                sql = "DELETE FROM 'order' WHERE true";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+                sql = "DELETE FROM productType WHERE true";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+                sql = "DELETE FROM productEntry WHERE true";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+                sql = "DELETE FROM user WHERE true";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+                sql = "DELETE FROM customer WHERE true";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+                sql = "DELETE FROM loyaltyCard WHERE true";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+                sql = "DELETE FROM creditCard WHERE true";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+                sql = "DELETE FROM product WHERE true";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+                sql = "DELETE FROM productRange WHERE true";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+
+                // the delete triggers have already brought it back to zero, exactly since the amounts are whole
+                // cents: set again for a total that was not written through the operations
+                sql = "UPDATE balance SET total=0 WHERE id=1";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+
+                sql = "UPDATE sqlite_sequence SET seq=0 WHERE name!='returnTransaction'";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+
+                sql = "UPDATE sqlite_sequence SET seq=1 WHERE name='returnTransaction'";
+                st = conn.prepareStatement(sql);
+                st.executeUpdate();
+
+            } catch (SQLException ignored) {
             
+            }
+            carts.clear();
+            catalog.invalidate();
+            rfids.invalidate();
+            tickets.invalidateAll();
+            productTypes.invalidate();
+            orders.invalidate();
+            customers.invalidate();
+            users.invalidate();
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public Integer createUser(String username, String password, String role) throws InvalidUsernameException, InvalidPasswordException, InvalidRoleException {
-        // username not null, not empty
-        if(username == null || username.equals(""))
-            throw new InvalidUsernameException("Invalid Username");
+        Connection conn = pool.begin();
+        try {
+            // username not null, not empty
+            if(username == null || username.equals(""))
+                throw new InvalidUsernameException("Invalid Username");
 
-        // password not null, not empty
-        if(password == null || password.equals("")){
-            throw new InvalidPasswordException("Invalid Password");
-        }
+            // password not null, not empty
+            if(password == null || password.equals("")){
+                throw new InvalidPasswordException("Invalid Password");
+            }
 
-        // role not null, not empty, not Administrator&&ShopManager&&Cashier
-        if(role == null || role.isEmpty() || (!role.equals("Administrator") && !role.equals("ShopManager") && !role.equals("Cashier"))){
-            throw new InvalidRoleException("Invalid Role");
-        }
+            // role not null, not empty, not Administrator&&ShopManager&&Cashier
+            if(role == null || role.isEmpty() || (!role.equals("Administrator") && !role.equals("ShopManager") && !role.equals("Cashier"))){
+                throw new InvalidRoleException("Invalid Role");
+            }
 
-        // insert the new user
-        try {
-            String sql = "INSERT INTO user(username, password, role) VALUES (?, ?, ?)";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setString(1, username);
-            st.setString(2, password);
-            st.setString(3, role);
-            int updatedRows = st.executeUpdate();
+            // insert the new user
+            try {
+                String sql = "INSERT INTO user(username, password, role) VALUES (?, ?, ?)";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setString(1, username);
+                st.setString(2, password);
+                st.setString(3, role);
+                int updatedRows = st.executeUpdate();
 
-            if(updatedRows == 0){
+                if(updatedRows == 0){
+                    return -1;
+                }
+                int id = st.getGeneratedKeys().getInt(1);
+                users.put(new MyUser(id, username, password, role));
+                return id;
+            } catch (SQLException e) {
                 return -1;
             }
-            isUserListUpdated = false;
-            return st.getGeneratedKeys().getInt(1);
-        } catch (SQLException e) {
-            return -1;
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public boolean deleteUser(Integer id) throws InvalidUserIdException, UnauthorizedException {
-        // check role of the user (only administrator)
-        if(loggedUser == null || !loggedUser.getRole().equals("Administrator")) {
-            throw new UnauthorizedException("Unauthorized");
-        }
+        Connection conn = pool.begin();
+        try {
+            // check role of the user (only administrator)
+            authorize(Permission.ADMINISTER);
 
-        // id not null, not <= 0
-        if(id == null || id <= 0) {
-            throw new InvalidUserIdException("Invalid User id");
-        }
+            // id not null, not <= 0
+            if(id == null || id <= 0) {
+                throw new InvalidUserIdException("Invalid User id");
+            }
 
-        // delete user using id
-        try {
-            String sql="DELETE FROM user WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1, id);
-            int deletedRows = st.executeUpdate();
-            //conn.commit();
+            // delete user using id
+            try {
+                String sql="DELETE FROM user WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1, id);
+                int deletedRows = st.executeUpdate();
+                //conn.commit();
 
-            if(deletedRows == 0)
-                return false;
+                if(deletedRows == 0)
+                    return false;
 
-            isUserListUpdated = false;
-            //st.close();
-            return true;
-        } catch (SQLException e) {
-            return false;
+                users.remove(id);
+                //st.close();
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public List<User> getAllUsers() throws UnauthorizedException {
         // check role of the user (only administrator)
-        if (loggedUser==null || !loggedUser.getRole().equals("Administrator")) {
-            throw new UnauthorizedException();
+        authorize(Permission.ADMINISTER);
+
+        try {
+            return users.getAll();
+        } catch (SQLException e) {
+            // problems with db connection
+            return new ArrayList<>();
         }
+    }
+
+    @Override
+    public User getUser(Integer id) throws InvalidUserIdException, UnauthorizedException {
+        Connection conn = pool.acquire();
+        try {
+            // check role of the user (only administrator)
+            authorize(Permission.ADMINISTER);
 
-        // if cached userList is not updated, download from db
-        if(!isUserListUpdated) {
-            List<User> list = new ArrayList<>();
+            // id not null, not <= 0
+            if (id == null || id <= 0) {
+                throw new InvalidUserIdException();
+            }
+
+            User user;
             try {
-                String sql = "SELECT id, password, role, username FROM user";
+                String sql = "SELECT id, password, role, username FROM user WHERE id=?";
                 PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1, id);
                 ResultSet rs = st.executeQuery();
 
-                while (rs.next()) {
-                    list.add(new MyUser(rs.getInt("id"),
+                if(!rs.next())
+                    // no product with the given code
+                    return null;
+
+                user = new MyUser(rs.getInt("id"),
                             rs.getString("username"),
                             rs.getString("password"),
                             rs.getString("role")
-                    ));
-                }
-                userList = list;
-                isUserListUpdated = true;
-                return userList;
+                );
+                return user;
             } catch (SQLException e) {
-                // list empty if there are problems with db
-                return list;
+                return null;
             }
+        } finally {
+            pool.release();
         }
-        else
-            return userList;
     }
 
     @Override
-    public User getUser(Integer id) throws InvalidUserIdException, UnauthorizedException {
-        // check role of the user (only administrator)
-        if (loggedUser == null || !loggedUser.getRole().equals("Administrator")) {
-            throw new UnauthorizedException();
-        }
-
-        // id not null, not <= 0
-        if (id == null || id <= 0) {
-            throw new InvalidUserIdException();
-        }
-
-        User user;
+    public boolean updateUserRights(Integer id, String role) throws InvalidUserIdException, InvalidRoleException, UnauthorizedException {
+        Connection conn = pool.begin();
         try {
-            String sql = "SELECT id, password, role, username FROM user WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1, id);
-            ResultSet rs = st.executeQuery();
+            // check role of the user (only administrator)
+            authorize(Permission.ADMINISTER);
 
-            if(!rs.next())
-                // no product with the given code
-                return null;
-
-            user = new MyUser(rs.getInt("id"),
-                        rs.getString("username"),
-                        rs.getString("password"),
-                        rs.getString("role")
-            );
-            return user;
-        } catch (SQLException e) {
-            return null;
-        }
-    }
+            // id not null, not <= 0
+            if (id == null || id <= 0) {
+                throw new InvalidUserIdException();
+            }
 
-    @Override
-    public boolean updateUserRights(Integer id, String role) throws InvalidUserIdException, InvalidRoleException, UnauthorizedException {
-        // check role of the user (only administrator)
-        if(loggedUser == null || !loggedUser.getRole().equals("Administrator")) {
-            throw new UnauthorizedException();
-        }
+            // role is Administrator||ShopManager||Cashier
+            if (role == null || !role.equals("Administrator") && !role.equals("ShopManager") && !role.equals("Cashier")) {
+                throw new InvalidRoleException();
+            }
 
-        // id not null, not <= 0
-        if (id == null || id <= 0) {
-            throw new InvalidUserIdException();
-        }
+            try {
+                String sql = "UPDATE user SET role=? WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setString(1, role);
+                st.setInt(2, id);
+                int updatedRows = st.executeUpdate();
 
-        // role is Administrator||ShopManager||Cashier
-        if (role == null || !role.equals("Administrator") && !role.equals("ShopManager") && !role.equals("Cashier")) {
-            throw new InvalidRoleException();
-        }
+                if(updatedRows == 0)
+                    return false;
 
-        try {
-            String sql = "UPDATE user SET role=? WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setString(1, role);
-            st.setInt(2, id);
-            int updatedRows = st.executeUpdate();
+                users.refresh(conn, id);
+                return true;
+            } catch (SQLException e) {
 
-            if(updatedRows == 0)
                 return false;
-
-            isUserListUpdated = false;
-            return true;
-        } catch (SQLException e) {
-
-            return false;
+            }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public User login(String username, String password) throws InvalidUsernameException, InvalidPasswordException {
-        // there is already a logged user
-        if(loggedUser != null)
-            return null;
-        // username not null, not empty
-        if(username == null || username.isEmpty())
-            throw new InvalidUsernameException();
-        // password not null, not empty
-        if(password == null || password.isEmpty())
-            throw new InvalidPasswordException();
-
+        Connection conn = pool.acquire();
         try {
-            String sql = "SELECT id, password, role, username FROM user WHERE username=? AND password=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setString(1, username);
-            st.setString(2, password);
-            ResultSet rs = st.executeQuery();
-
-            if(!rs.next())
+            // there is already a logged user
+            if(session.get() != null)
                 return null;
+            // username not null, not empty
+            if(username == null || username.isEmpty())
+                throw new InvalidUsernameException();
+            // password not null, not empty
+            if(password == null || password.isEmpty())
+                throw new InvalidPasswordException();
 
-            User user = new MyUser(rs.getInt("id"),
-                    rs.getString("username"),
-                    rs.getString("password"),
-                    rs.getString("role")
-            );
+            try {
+                String sql = "SELECT id, password, role, username FROM user WHERE username=? AND password=?";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setString(1, username);
+                st.setString(2, password);
+                ResultSet rs = st.executeQuery();
 
-            loggedUser = user;
-            return user;
+                if(!rs.next())
+                    return null;
 
-        } catch (SQLException e) {
-            return null;
+                User user = new MyUser(rs.getInt("id"),
+                        rs.getString("username"),
+                        rs.getString("password"),
+                        rs.getString("role")
+                );
+
+                // a concurrent login on the same till wins only once
+                if(!session.compareAndSet(null, Session.of(user)))
+                    return null;
+                return user;
+
+            } catch (SQLException e) {
+                return null;
+            }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public boolean logout() {
-        if (loggedUser != null) {
-            loggedUser = null;
-            return true;
-        }
-        else
-            return false;
+        return session.getAndSet(null) != null;
     }
 
     @Override
     public Integer createProductType(String description, String productCode, double pricePerUnit, String note) throws InvalidProductDescriptionException, InvalidProductCodeException, InvalidPricePerUnitException, UnauthorizedException {
-        // check role of the user (only administrator and shopManager)
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && (!loggedUser.getRole().equals("ShopManager"))))
-            throw new UnauthorizedException();
+        Connection conn = pool.begin();
+        try {
+            // check role of the user (only administrator and shopManager)
+            authorize(Permission.MANAGE_SHOP);
 
-        // productCode not null, not empty
-        if(productCode == null || productCode.equals(""))
-            throw new InvalidProductCodeException("Invalid Product Code");
+            // productCode not null, not empty
+            if(productCode == null || productCode.equals(""))
+                throw new InvalidProductCodeException("Invalid Product Code");
 
-        // check if productCode is valid
-        if(!validateProductCode(productCode)) {
-            throw new InvalidProductCodeException();
-        }
+            // check if productCode is valid
+            if(!validateProductCode(productCode)) {
+                throw new InvalidProductCodeException();
+            }
 
-        // description not null, not empty
-        if(description == null || description.equals("")){
-            throw new InvalidProductDescriptionException("Invalid Product Description");
-        }
+            // description not null, not empty
+            if(description == null || description.equals("")){
+                throw new InvalidProductDescriptionException("Invalid Product Description");
+            }
 
-        // pricePerUnit not <= 0
-        if(pricePerUnit <= 0){
-            throw new InvalidPricePerUnitException("Invalid Price Per unit");
-        }
+            // pricePerUnit not <= 0, nor below half a cent, stored as 0
+            if(Money.cents(pricePerUnit) <= 0){
+                throw new InvalidPricePerUnitException("Invalid Price Per unit");
+            }
 
-        // if note is null an empty string should be saved
-        if(note == null)
-            note = "";
+            // if note is null an empty string should be saved
+            if(note == null)
+                note = "";
 
-        // insert the new productType
-        try {
-            String sql="INSERT INTO productType(productCode, description, pricePerUnit, quantity, notes) VALUES (?, ?, ?, ?, ?)";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setString(1, productCode);
-            st.setString(2, description);
-            st.setDouble(3, pricePerUnit);
-            st.setInt(4, 0);
-            st.setString(5, note);
+            // insert the new productType
+            try {
+                String sql="INSERT INTO productType(productCode, description, pricePerUnit, quantity, notes) VALUES (?, ?, ?, ?, ?)";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setString(1, productCode);
+                st.setString(2, description);
+                st.setLong(3, Money.cents(pricePerUnit));
+                st.setInt(4, 0);
+                st.setString(5, note);
 
-            int updatedRows = st.executeUpdate();
-            //conn.commit();
+                int updatedRows = st.executeUpdate();
+                //conn.commit();
 
-            if(updatedRows == 0)
-                return -1;
+                if(updatedRows == 0)
+                    return -1;
             
-            // get Id generated in the db from row inserted
-            isInventoryUpdated = false;
-            return st.getGeneratedKeys().getInt(1);
-        } catch (SQLException e) {
-            // product already present or db problem
-            return -1;
+                // get Id generated in the db from row inserted
+                int id = st.getGeneratedKeys().getInt(1);
+                MyProductType product = MyProductType.ofCents(id, productCode, description, Money.cents(pricePerUnit), 0, note, null);
+                // the catalog changes its products in place, the listing replaces its entries: one copy each
+                catalog.put(product);
+                productTypes.put(withQuantity(product, 0));
+                return id;
+            } catch (SQLException e) {
+                // product already present or db problem
+                return -1;
+            }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public boolean updateProduct(Integer id, String newDescription, String newCode, double newPrice, String newNote) throws InvalidProductIdException, InvalidProductDescriptionException, InvalidProductCodeException, InvalidPricePerUnitException, UnauthorizedException {
-        // check role of the user (only administrator and shopManager)
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && (!loggedUser.getRole().equals("ShopManager"))))
-           throw new UnauthorizedException();
+        Connection conn = pool.begin();
+        try {
+            // check role of the user (only administrator and shopManager)
+            authorize(Permission.MANAGE_SHOP);
 
-        // check id of the product (not <=0)
-        if(id == null || id <= 0)
-            throw new InvalidProductIdException("Invalid Product Id");
+            // check id of the product (not <=0)
+            if(id == null || id <= 0)
+                throw new InvalidProductIdException("Invalid Product Id");
 
-        // description not null, not empty
-        if(newDescription == null || newDescription.equals("")){
-            throw new InvalidProductDescriptionException();
-        }
+            // description not null, not empty
+            if(newDescription == null || newDescription.equals("")){
+                throw new InvalidProductDescriptionException();
+            }
 
-        // pricePerUnit not <=0
-        if(newPrice <= 0){
-            throw new InvalidPricePerUnitException();
-        }
+            // pricePerUnit not <=0, nor below half a cent, stored as 0
+            if(Money.cents(newPrice) <= 0){
+                throw new InvalidPricePerUnitException();
+            }
 
-        // barCode not null, not empty
-        if(newCode == null || newCode.equals(""))
-            throw  new InvalidProductCodeException();
+            // barCode not null, not empty
+            if(newCode == null || newCode.equals(""))
+                throw  new InvalidProductCodeException();
 
-        // if note is null an empty string should be saved
-        if(newNote == null)
-            newNote = "";
+            // if note is null an empty string should be saved
+            if(newNote == null)
+                newNote = "";
 
-        // check if newCode is valid
-        if(!validateProductCode(newCode)) {
-            throw new InvalidProductCodeException();
-        }
+            // check if newCode is valid
+            if(!validateProductCode(newCode)) {
+                throw new InvalidProductCodeException();
+            }
 
-        try {
-            String sql = "UPDATE productType SET productCode=?, description=?, pricePerUnit=?, notes=? WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setString(1, newCode);
-            st.setString(2, newDescription);
-            st.setDouble(3, newPrice);
-            st.setString(4, newNote);
-            st.setInt(5, id);
-            int updatedRows = st.executeUpdate();
+            try {
+                String sql = "UPDATE productType SET productCode=?, description=?, pricePerUnit=?, notes=? WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setString(1, newCode);
+                st.setString(2, newDescription);
+                st.setLong(3, Money.cents(newPrice));
+                st.setString(4, newNote);
+                st.setInt(5, id);
+                int updatedRows = st.executeUpdate();
 
-            if(updatedRows == 0)
-                // no product with the given id
-                return false;
+                if(updatedRows == 0)
+                    // no product with the given id
+                    return false;
 
-            isInventoryUpdated = false;
-            return true;
-        } catch (SQLException e) {
-            // another product already has the new barcode provided or db problem
-            return false;
+                catalog.update(id, newCode, newDescription, Money.cents(newPrice), newNote);
+                productTypes.refresh(conn, id);
+                // tickets show the description and the price of their products
+                tickets.invalidateAll();
+                return true;
+            } catch (SQLException e) {
+                // another product already has the new barcode provided or db problem
+                return false;
+            }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public boolean deleteProductType(Integer id) throws InvalidProductIdException, UnauthorizedException {
-        // check role of the user (only administrator and shopManager)
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && (!loggedUser.getRole().equals("ShopManager"))))
-            throw new UnauthorizedException();
+        Connection conn = pool.begin();
+        try {
+            // check role of the user (only administrator and shopManager)
+            authorize(Permission.MANAGE_SHOP);
 
-        // check id of the product (not <=0)
-        if(id == null || id <= 0)
-            throw new InvalidProductIdException();
+            // check id of the product (not <=0)
+            if(id == null || id <= 0)
+                throw new InvalidProductIdException();
 
-        try {
-            String sql="DELETE FROM ProductType WHERE id=?" ;
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,id);
-            int deletedRows = st.executeUpdate();
+            try {
+                String sql="DELETE FROM ProductType WHERE id=?" ;
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1,id);
+                int deletedRows = st.executeUpdate();
 
-            if(deletedRows == 0)
-                // no product deleted
+                if(deletedRows == 0)
+                    // no product deleted
+                    return false;
+
+                catalog.remove(id);
+                productTypes.remove(id);
+                tickets.invalidateAll();
+                return true;
+            } catch (SQLException e) {
+                // db problem
                 return false;
+            }
+        } finally {
+            pool.release();
+        }
+    }
 
-            isInventoryUpdated = false;
-            return true;
+    @Override
+    public List<ProductType> getAllProductTypes() throws UnauthorizedException {
+        // check role of the user (only administrator, cashier and shopManager)
+        authorize(Permission.CHECKOUT);
+
+        try {
+            return productTypes.getAll();
         } catch (SQLException e) {
-            // db problem
-            return false;
+            // problems with db connection
+            return new ArrayList<>();
         }
     }
 
     @Override
-    public List<ProductType> getAllProductTypes() throws UnauthorizedException {
+    public ProductType getProductTypeByBarCode(String barCode) throws InvalidProductCodeException, UnauthorizedException {
         // check role of the user (only administrator, cashier and shopManager)
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && (!loggedUser.getRole().equals("ShopManager") && (!loggedUser.getRole().equals("Cashier")))))
-            throw new UnauthorizedException();
-
-        if(!isInventoryUpdated) {
-            List<ProductType> list = new ArrayList<>();
-            try {
-                String sql = "SELECT id, productCode, description, pricePerUnit, quantity, notes, position FROM productType";
-                PreparedStatement st = conn.prepareStatement(sql);
-                ResultSet rs = st.executeQuery();
-                while (rs.next()) {
-                    list.add(new MyProductType(
-                            rs.getInt("id"),
-                            rs.getString("productCode"),
-                            rs.getString("description"),
-                            rs.getDouble("pricePerUnit"),
-                            rs.getInt("quantity"),
-                            rs.getString("notes"),
-                            rs.getString("position")
-                    ));
-                }
-                inventory = list;
-                isInventoryUpdated = true;
-                return inventory;
-            } catch (SQLException e) {
-                // db problem
-                return list;
-            }
-        }
-        else
-            return inventory;
-    }
-
-    @Override
-    public ProductType getProductTypeByBarCode(String barCode) throws InvalidProductCodeException, UnauthorizedException {
-        // check role of the user (only administrator, cashier and shopManager)
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && (!loggedUser.getRole().equals("ShopManager"))))
-            throw new UnauthorizedException();
+        authorize(Permission.MANAGE_SHOP);
 
         // barCode not null, not empty
         if(barCode == null || barCode.equals(""))
@@ -510,698 +650,888 @@ public class EZShop implements EZShopInterface{
             throw new InvalidProductCodeException();
         }
 
-        ProductType product;
         try {
-            String sql = "SELECT id, productCode, description, pricePerUnit, quantity, notes, position FROM productType WHERE productCode=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setString(1, barCode);
-            ResultSet rs = st.executeQuery();
-
-            if(!rs.next())
-                // no product with the given code
-                return null;
-
-            product = new MyProductType(
-                    rs.getInt("id"),
-                    rs.getString("productCode"),
-                    rs.getString("description"),
-                    rs.getDouble("pricePerUnit"),
-                    rs.getInt("quantity"),
-                    rs.getString("notes"),
-                    rs.getString("position")
-            );
-            return product;
+            // served by the catalog, the database is read only to load it
+            return catalog.getByBarCode(barCode);
         } catch (SQLException e) {
             // problems with db connection
             return null;
         }
     }
 
-    @Override
-    public List<ProductType> getProductTypesByDescription(String description) throws UnauthorizedException {
-        // check role of the user (only administrator, cashier and shopManager)
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && (!loggedUser.getRole().equals("ShopManager"))))
-            throw new UnauthorizedException();
-
-        // null should be considered as the empty string
-        if(description == null)
-           description = "";
-        
-        List<ProductType> list = new ArrayList<>();
+    // at most limit products whose description contains the text, those starting with it first, for the lookup
+    // box of the back office
+    public List<ProductType> searchProductTypes(String text, int limit) throws UnauthorizedException {
+        authorize(Permission.MANAGE_SHOP);
+        if(text == null)
+            text = "";
         try {
-            String sql = "SELECT id, productCode, description, pricePerUnit, quantity, notes, position FROM ProductType WHERE description LIKE ?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setString(1, '%' + description + '%');
-            ResultSet rs = st.executeQuery();
-
-            while (rs.next()){
-                list.add(new MyProductType(
-                        rs.getInt("id"),
-                        rs.getString("productCode"),
-                        rs.getString("description"),
-                        rs.getDouble("pricePerUnit"),
-                        rs.getInt("quantity"),
-                        rs.getString("notes"),
-                        rs.getString("position")
-                        )
-                );
-            }
+            return catalog.search(text, limit);
+        } catch (SQLException e) {
+            // problems with db connection
+            return new ArrayList<>();
+        }
+    }
 
-            return list;
+    // at most limit products whose barcode or description starts with the prefix, for the search box: it is
+    // called on every keystroke and gets the barcode and description only
+    public List<ProductSuggestion> suggestProductTypes(String prefix, int limit) throws UnauthorizedException {
+        authorize(Permission.MANAGE_SHOP);
+        try {
+            return catalog.suggest(prefix, limit);
         } catch (SQLException e) {
             // problems with db connection
-            return list;
+            return new ArrayList<>();
         }
     }
 
     @Override
-    public boolean updateQuantity(Integer productId, int toBeAdded) throws InvalidProductIdException, UnauthorizedException {
-        // check role of the user (only administrator, cashier and shopManager)
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && (!loggedUser.getRole().equals("ShopManager"))))
-            throw new UnauthorizedException();
+    public List<ProductType> getProductTypesByDescription(String description) throws UnauthorizedException {
+        Connection conn = pool.acquire();
+        try {
+            // check role of the user (only administrator, cashier and shopManager)
+            authorize(Permission.MANAGE_SHOP);
 
-        // check id of the product (not <=0)
-        if(productId == null || productId <= 0)
-            throw new InvalidProductIdException();
+            // null should be considered as the empty string
+            if(description == null)
+               description = "";
+        
+            List<ProductType> list = new ArrayList<>();
+            try {
+                // the wildcards of LIKE are not known to the index
+                if(description.indexOf('%') < 0 && description.indexOf('_') < 0)
+                    return catalog.getByDescription(description);
 
-        try {
-            String sql="UPDATE productType SET quantity=quantity+? WHERE id=? AND position IS NOT NULL";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,toBeAdded);
-            st.setInt(2,productId);
-            int updatedRows = st.executeUpdate();
+                String sql = "SELECT id, productCode, description, pricePerUnit, quantity, notes, position FROM ProductType WHERE description LIKE ?";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setString(1, '%' + description + '%');
+                ResultSet rs = st.executeQuery();
 
-            if(updatedRows == 0)
-                // quantity would be negative or productType has not an assigned location
-                return false;
+                while (rs.next()){
+                    list.add(MyProductType.ofCents(
+                            rs.getInt("id"),
+                            rs.getString("productCode"),
+                            rs.getString("description"),
+                            rs.getLong("pricePerUnit"),
+                            rs.getInt("quantity"),
+                            rs.getString("notes"),
+                            rs.getString("position")
+                            )
+                    );
+                }
 
-            isInventoryUpdated = false;
-            return true;
-        } catch (SQLException e) {
-            // db problem
-            return false;
+                return list;
+            } catch (SQLException e) {
+                // problems with db connection
+                return list;
+            }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
-    public boolean updatePosition(Integer productId, String newPos) throws InvalidProductIdException, InvalidLocationException, UnauthorizedException {
-        // if newPos is null, position should be empty
-        if(newPos == null){
-            newPos = "";
-        }
-
+    public boolean updateQuantity(Integer productId, int toBeAdded) throws InvalidProductIdException, UnauthorizedException {
         // check role of the user (only administrator, cashier and shopManager)
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && (!loggedUser.getRole().equals("ShopManager"))))
-            throw new UnauthorizedException();
+        authorize(Permission.MANAGE_SHOP);
 
         // check id of the product (not <=0)
         if(productId == null || productId <= 0)
             throw new InvalidProductIdException();
 
-        // check position format (number-string-number)
-        if(!newPos.equals("") && !newPos.matches("[0-9]+-[a-zA-Z]+-[0-9]+")){
-            throw new InvalidLocationException("Invalid Location");
-        }
+        return changeQuantity(productId, toBeAdded);
+    }
 
+    // privileged path for the sales and returns that put units back on the shelf
+    private boolean changeQuantity(int productId, int toBeAdded) {
+        Connection conn = pool.begin();
         try {
-            String sql="UPDATE productType SET position=? WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql);
+            try {
+                // loaded before the UPDATE, so that it does not read the new quantity and add it again
+                boolean cached = catalog.getById(productId) != null;
 
-            st.setString(1,newPos);
-            st.setInt(2,productId);
-            int updatedRows = st.executeUpdate();
+                String sql="UPDATE productType SET quantity=quantity+? WHERE id=? AND position IS NOT NULL";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1,toBeAdded);
+                st.setInt(2,productId);
+                int updatedRows = st.executeUpdate();
 
-            if(updatedRows == 0)
-                // productId not exist
-                return false;
+                if(updatedRows == 0)
+                    // quantity would be negative or productType has not an assigned location
+                    return rollback(false);
 
-            isInventoryUpdated = false;
-            return true;
-        } catch (SQLException e) {
-            // db problem or position not unique
-            return false;
+                // the units reserved by the open sales cannot be taken away
+                if(cached && !catalog.addQuantity(productId, toBeAdded))
+                    return rollback(false);
+                productTypes.patch(productId, p -> withQuantity(p, toBeAdded));
+                return true;
+            } catch (SQLException e) {
+                // db problem
+                return rollback(false);
+            }
+        } finally {
+            pool.release();
         }
     }
 
+    // the listing entry is replaced, lists already handed out keep the old one
+    private static ProductType withQuantity(ProductType p, int toBeAdded) {
+        return MyProductType.ofCents(p.getId(), p.getBarCode(), p.getProductDescription(), ((MyProductType) p).getPriceCents(),
+                p.getQuantity() + toBeAdded, p.getNote(), p.getLocation());
+    }
+
     @Override
-    public Integer issueOrder(String productCode, int quantity, double pricePerUnit) throws InvalidProductCodeException, InvalidQuantityException, InvalidPricePerUnitException, UnauthorizedException {
-        // check role of the user (only administrator, cashier and shopManager)
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && (!loggedUser.getRole().equals("ShopManager"))))
-            throw new UnauthorizedException();
+    public boolean updatePosition(Integer productId, String newPos) throws InvalidProductIdException, InvalidLocationException, UnauthorizedException {
+        Connection conn = pool.begin();
+        try {
+            // if newPos is null, position should be empty
+            if(newPos == null){
+                newPos = "";
+            }
 
-        //check quantity is not <=0
-        if(quantity <= 0)
-            throw new InvalidQuantityException("Invalid Quantity");
+            // check role of the user (only administrator, cashier and shopManager)
+            authorize(Permission.MANAGE_SHOP);
 
-        //check pricePerUnit is not <=0
-        if(pricePerUnit <= 0)
-            throw new InvalidPricePerUnitException();
+            // check id of the product (not <=0)
+            if(productId == null || productId <= 0)
+                throw new InvalidProductIdException();
 
-        //check if the product exist and if barcode is valid
-        ProductType product = this.getProductTypeByBarCode(productCode);
-        if(product == null)
-            return -1;
+            // check position format (number-string-number)
+            if(!newPos.equals("") && !newPos.matches("[0-9]+-[a-zA-Z]+-[0-9]+")){
+                throw new InvalidLocationException("Invalid Location");
+            }
 
-        // insert the new productType
-        try {
-            String sql = "INSERT INTO 'order'(productCode, pricePerUnit, quantity, status) VALUES (?, ?, ?, ?)";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setString(1, productCode);
-            st.setDouble(2, pricePerUnit);
-            st.setInt(3, quantity);
-            st.setString(4,"ISSUED");
-            int updatedRows = st.executeUpdate();
+            try {
+                String sql="UPDATE productType SET position=? WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql);
 
-            if(updatedRows == 0)
-                // cannot update order
-                return -1;
+                st.setString(1,newPos);
+                st.setInt(2,productId);
+                int updatedRows = st.executeUpdate();
 
-            isOrderListUpdated = false;
-            // new id of the order created
-            return st.getGeneratedKeys().getInt(1);
-        } catch (SQLException e) {
-            // db problem
-            return -1;
+                if(updatedRows == 0)
+                    // productId not exist
+                    return false;
+
+                catalog.setPosition(productId, newPos);
+                productTypes.refresh(conn, productId);
+                return true;
+            } catch (SQLException e) {
+                // db problem or position not unique
+                return false;
+            }
+        } finally {
+            pool.release();
         }
     }
 
-    // issue order + pay order
     @Override
-    public Integer payOrderFor(String productCode, int quantity, double pricePerUnit) throws InvalidProductCodeException, InvalidQuantityException, InvalidPricePerUnitException, UnauthorizedException {
-        // check role of the user (only administrator and shopManager)
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && (!loggedUser.getRole().equals("ShopManager"))))
-            throw new UnauthorizedException();
+    public Integer issueOrder(String productCode, int quantity, double pricePerUnit) throws InvalidProductCodeException, InvalidQuantityException, InvalidPricePerUnitException, UnauthorizedException {
+        Connection conn = pool.begin();
+        try {
+            // check role of the user (only administrator, cashier and shopManager)
+            authorize(Permission.MANAGE_SHOP);
 
-        //check quantity is not <=0
-        if(quantity <= 0)
-            throw new InvalidQuantityException();
+            //check quantity is not <=0
+            if(quantity <= 0)
+                throw new InvalidQuantityException("Invalid Quantity");
 
-        //check pricePerUnit is not <=0
-        if(pricePerUnit <= 0)
-            throw new InvalidPricePerUnitException();
+            //check pricePerUnit is not <=0, nor below half a cent, stored as 0
+            if(Money.cents(pricePerUnit) <= 0)
+                throw new InvalidPricePerUnitException();
 
-        //check if the product exist
-        ProductType product = this.getProductTypeByBarCode(productCode);
-        if(product == null)
-            return -1;
+            //check if the product exist and if barcode is valid
+            ProductType product = this.getProductTypeByBarCode(productCode);
+            if(product == null)
+                return -1;
 
-        // check balance and THEN record payed order if enough money
-        if(recordBalanceUpdate(-pricePerUnit*quantity)) {
+            // insert the new productType
             try {
                 String sql = "INSERT INTO 'order'(productCode, pricePerUnit, quantity, status) VALUES (?, ?, ?, ?)";
                 PreparedStatement st = conn.prepareStatement(sql);
                 st.setString(1, productCode);
-                st.setDouble(2, pricePerUnit);
+                st.setLong(2, Money.cents(pricePerUnit));
                 st.setInt(3, quantity);
-                st.setString(4, "PAYED");
+                st.setString(4,"ISSUED");
                 int updatedRows = st.executeUpdate();
 
-                if (updatedRows == 0)
+                if(updatedRows == 0)
+                    // cannot update order
                     return -1;
 
-                // record the order on the balance
-                isOrderListUpdated = false;
-                return st.getGeneratedKeys().getInt(1);
+                // new id of the order created
+                int id = st.getGeneratedKeys().getInt(1);
+                orders.put(MyOrder.ofCents(id, productCode, Money.cents(pricePerUnit), quantity, "ISSUED"));
+                return id;
             } catch (SQLException e) {
+                // db problem
                 return -1;
             }
+        } finally {
+            pool.release();
         }
-        else
-            return -1;
     }
 
+    // issue order + pay order
     @Override
-    public boolean payOrder(Integer orderId) throws InvalidOrderIdException, UnauthorizedException {
-        // check role of the user (only administrator, cashier and shopManager)
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && (!loggedUser.getRole().equals("ShopManager"))))
-            throw new UnauthorizedException();
+    public Integer payOrderFor(String productCode, int quantity, double pricePerUnit) throws InvalidProductCodeException, InvalidQuantityException, InvalidPricePerUnitException, UnauthorizedException {
+        Connection conn = pool.begin();
+        try {
+            // check role of the user (only administrator and shopManager)
+            authorize(Permission.MANAGE_SHOP);
 
-        // orderId not null, not <=0
-        if(orderId == null || orderId <= 0) {
-            throw new InvalidOrderIdException("Invalid order Id");
-        }
+            //check quantity is not <=0
+            if(quantity <= 0)
+                throw new InvalidQuantityException();
 
-        //String actualStatus;
-        double toBeAdded;
-        try {
-            String sql = "SELECT quantity, pricePerUnit FROM 'order' WHERE id=? AND status='ISSUED'" ;
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1, orderId);
-            ResultSet rs = st.executeQuery();
+            //check pricePerUnit is not <=0, nor below half a cent, stored as 0
+            if(Money.cents(pricePerUnit) <= 0)
+                throw new InvalidPricePerUnitException();
 
-            if(!rs.next())
-                // no orderId found
-                return false;
+            //check if the product exist
+            ProductType product = this.getProductTypeByBarCode(productCode);
+            if(product == null)
+                return -1;
 
-            //actualStatus = rs.getString("status");
-            toBeAdded = -rs.getDouble("pricePerUnit") * rs.getInt("quantity");
-        } catch (SQLException e) {
-            return false;
+            // check balance and THEN record payed order if enough money
+            if(recordBalance(-Money.times(Money.cents(pricePerUnit), quantity))) {
+                try {
+                    String sql = "INSERT INTO 'order'(productCode, pricePerUnit, quantity, status) VALUES (?, ?, ?, ?)";
+                    PreparedStatement st = conn.prepareStatement(sql);
+                    st.setString(1, productCode);
+                    st.setLong(2, Money.cents(pricePerUnit));
+                    st.setInt(3, quantity);
+                    st.setString(4, "PAYED");
+                    int updatedRows = st.executeUpdate();
+
+                    if (updatedRows == 0)
+                        return rollback(-1);
+
+                    // record the order on the balance
+                    int id = st.getGeneratedKeys().getInt(1);
+                    orders.put(MyOrder.ofCents(id, productCode, Money.cents(pricePerUnit), quantity, "PAYED"));
+                    return id;
+                } catch (SQLException e) {
+                    return rollback(-1);
+                }
+            }
+            else
+                return -1;
+        } finally {
+            pool.release();
         }
+    }
+
+    @Override
+    public boolean payOrder(Integer orderId) throws InvalidOrderIdException, UnauthorizedException {
+        Connection conn = pool.begin();
+        try {
+            // check role of the user (only administrator, cashier and shopManager)
+            authorize(Permission.MANAGE_SHOP);
 
-//        if(actualStatus.equals("PAYED"))
-//            // order not in ISSUED state
-//            return false;
+            // orderId not null, not <=0
+            if(orderId == null || orderId <= 0) {
+                throw new InvalidOrderIdException("Invalid order Id");
+            }
 
-        // check balance and THEN record payed order if enough money
-        //String oldRole=loggedUser.getRole();
-        //loggedUser.setRole("Administrator");
-        if(recordBalanceUpdate(toBeAdded)) {
-            // change status to PAYED
+            //String actualStatus;
+            long toBeAdded;
             try {
-                String sql = "UPDATE 'order' SET status=? WHERE id=?";
+                String sql = "SELECT quantity, pricePerUnit FROM 'order' WHERE id=? AND status='ISSUED'" ;
                 PreparedStatement st = conn.prepareStatement(sql);
-                st.setString(1, "PAYED");
-                st.setInt(2, orderId);
-                int updatedRows = st.executeUpdate();
+                st.setInt(1, orderId);
+                ResultSet rs = st.executeQuery();
 
-                if (updatedRows == 0)
+                if(!rs.next())
+                    // no orderId found
                     return false;
 
-                isOrderListUpdated = false;
-                //loggedUser.setRole(oldRole);
-                return true;
+                //actualStatus = rs.getString("status");
+                toBeAdded = -Money.times(rs.getLong("pricePerUnit"), rs.getInt("quantity"));
             } catch (SQLException e) {
+                return false;
+            }
+
+    //        if(actualStatus.equals("PAYED"))
+    //            // order not in ISSUED state
+    //            return false;
+
+            // check balance and THEN record payed order if enough money
+            //String oldRole=loggedUser.getRole();
+            //loggedUser.setRole("Administrator");
+            if(recordBalance(toBeAdded)) {
+                // change status to PAYED
+                try {
+                    String sql = "UPDATE 'order' SET status=? WHERE id=?";
+                    PreparedStatement st = conn.prepareStatement(sql);
+                    st.setString(1, "PAYED");
+                    st.setInt(2, orderId);
+                    int updatedRows = st.executeUpdate();
+
+                    if (updatedRows == 0)
+                        return rollback(false);
+
+                    orders.refresh(conn, orderId);
+                    //loggedUser.setRole(oldRole);
+                    return true;
+                } catch (SQLException e) {
+                    //loggedUser.setRole(oldRole);
+                    return rollback(false);
+                }
+            }
+            else {
                 //loggedUser.setRole(oldRole);
                 return false;
             }
-        }
-        else {
-            //loggedUser.setRole(oldRole);
-            return false;
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public boolean recordOrderArrival(Integer orderId) throws InvalidOrderIdException, UnauthorizedException, InvalidLocationException {
-        // check role of the user (only administrator, cashier and shopManager)
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && (!loggedUser.getRole().equals("ShopManager"))))
-            throw new UnauthorizedException();
+        Connection conn = pool.begin();
+        try {
+            // check role of the user (only administrator, cashier and shopManager)
+            authorize(Permission.MANAGE_SHOP);
 
-        // orderId not null, not <=0
-        if(orderId == null || orderId <= 0){
-            throw new InvalidOrderIdException();
-        }
+            // orderId not null, not <=0
+            if(orderId == null || orderId <= 0){
+                throw new InvalidOrderIdException();
+            }
 
-        int quantity;
-        String productCode;
-        ProductType product;
-        //String actualStatus;
-        try {
-            String sql = "SELECT quantity, productCode FROM 'order' WHERE id=? AND status='PAYED'";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1, orderId);
-            ResultSet rs = st.executeQuery();
+            int quantity;
+            String productCode;
+            ProductType product;
+            //String actualStatus;
+            try {
+                String sql = "SELECT quantity, productCode FROM 'order' WHERE id=? AND status='PAYED'";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1, orderId);
+                ResultSet rs = st.executeQuery();
 
-            if(!rs.next())
-                // no orderId found
-                return false;
+                if(!rs.next())
+                    // no orderId found
+                    return false;
 
-            quantity = rs.getInt("quantity");
-            productCode = rs.getString("productCode");
-            //actualStatus = rs.getString("status");
-            product = this.getProductTypeByBarCode(productCode);
-        } catch (Exception e) {
-            return false;
-        }
+                quantity = rs.getInt("quantity");
+                productCode = rs.getString("productCode");
+                //actualStatus = rs.getString("status");
+                product = this.getProductTypeByBarCode(productCode);
+            } catch (Exception e) {
+                return false;
+            }
 
-        if(product.getLocation() == null || product.getLocation().equals("")){
-            throw new InvalidLocationException();
-        }
-//        if(actualStatus.equals("COMPLETED"))
-//            return false;
+            if(product.getLocation() == null || product.getLocation().equals("")){
+                throw new InvalidLocationException();
+            }
+    //        if(actualStatus.equals("COMPLETED"))
+    //            return false;
 
-        // update product quantity
-        try {
-            this.updateQuantity(product.getId(), quantity);
-            isInventoryUpdated = false;
-        } catch(Exception e){
-            return false;
-        }
+            // update product quantity
+            try {
+                // a failed update has already marked the unit of work to be rolled back
+                if(!this.updateQuantity(product.getId(), quantity))
+                    return rollback(false);
+            } catch(Exception e){
+                return rollback(false);
+            }
 
-        // set order status to COMPLETED
-        try {
-            String sql="UPDATE 'order' SET status=? WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setString(1,"COMPLETED");
-            st.setInt(2,orderId);
-            int updatedRows = st.executeUpdate();
+            // set order status to COMPLETED
+            try {
+                String sql="UPDATE 'order' SET status=? WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setString(1,"COMPLETED");
+                st.setInt(2,orderId);
+                int updatedRows = st.executeUpdate();
 
-            if(updatedRows == 0)
-                return false;
+                if(updatedRows == 0)
+                    return rollback(false);
 
-            isOrderListUpdated = false;
-            return true;
-        } catch (SQLException e) {
-            return false;
+                orders.refresh(conn, orderId);
+                return true;
+            } catch (SQLException e) {
+                return rollback(false);
+            }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public boolean recordOrderArrivalRFID(Integer orderId, String RFIDfrom) throws InvalidOrderIdException, UnauthorizedException, InvalidLocationException, InvalidRFIDException {
-        // check role of the user (only administrator, cashier and shopManager)
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && (!loggedUser.getRole().equals("ShopManager"))))
-            throw new UnauthorizedException();
+        Connection conn = pool.begin();
+        try {
+            // check role of the user (only administrator, cashier and shopManager)
+            authorize(Permission.MANAGE_SHOP);
 
-        // orderId not null, not <=0
-        if(orderId == null || orderId <= 0){
-            throw new InvalidOrderIdException();
-        }
+            // orderId not null, not <=0
+            if(orderId == null || orderId <= 0){
+                throw new InvalidOrderIdException();
+            }
 
-        if(RFIDfrom== null || RFIDfrom.length()!=12 || !RFIDfrom.matches("^[0-9]{12}$"))
-        {
-            throw new InvalidRFIDException();
-        }
+            if(RFIDfrom== null || RFIDfrom.length()!=12 || !RFIDfrom.matches("^[0-9]{12}$"))
+            {
+                throw new InvalidRFIDException();
+            }
 
-        int quantity;
-        String productCode;
-        ProductType product;
-        //String actualStatus;
-        try {
-            String sql = "SELECT quantity, productCode FROM 'order' WHERE id=? AND status='PAYED'";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1, orderId);
-            ResultSet rs = st.executeQuery();
+            int quantity;
+            String productCode;
+            ProductType product;
+            //String actualStatus;
+            try {
+                String sql = "SELECT quantity, productCode FROM 'order' WHERE id=? AND status='PAYED'";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1, orderId);
+                ResultSet rs = st.executeQuery();
 
-            if(!rs.next())
-                // no orderId found
-                return false;
+                if(!rs.next())
+                    // no orderId found
+                    return false;
 
-            quantity = rs.getInt("quantity");
-            productCode = rs.getString("productCode");
+                quantity = rs.getInt("quantity");
+                productCode = rs.getString("productCode");
 
-            //actualStatus = rs.getString("status");
-            product = this.getProductTypeByBarCode(productCode);
-        } catch (Exception e) {
-            return false;
-        }
+                //actualStatus = rs.getString("status");
+                product = this.getProductTypeByBarCode(productCode);
+            } catch (Exception e) {
+                return false;
+            }
 
-        String sql2;
-        for(int i=0;i<quantity;i++){
-            try {
-                sql2 = "SELECT * FROM product WHERE RFID=?";
-                PreparedStatement st2 = conn.prepareStatement(sql2);
-                st2.setString(1, String.format("%1$12d", Integer.parseInt(RFIDfrom) + i).replace(' ', '0'));
+            // the order takes the tags from RFIDfrom to RFIDfrom+quantity-1, all of them must fit in 12 digits
+            long first = RfidIndex.parse(RFIDfrom);
+            long last = first + quantity - 1;
+            if(last > RfidIndex.MAX_RFID)
+                throw new InvalidRFIDException();
 
-                ResultSet rs2 = st2.executeQuery();
-                if(rs2.isBeforeFirst()){
+            // one interval lookup in memory covers the whole range
+            try {
+                if(rfids.overlaps(first, last))
                     throw new InvalidRFIDException();
-                }
-
             }catch(SQLException e){
                 e.printStackTrace();
                 return false;
             }
-        }
 
-        if(product.getLocation() == null || product.getLocation().equals("")){
-            throw new InvalidLocationException();
-        }
+            if(product.getLocation() == null || product.getLocation().equals("")){
+                throw new InvalidLocationException();
+            }
 
-        try {
-            this.updateQuantity(product.getId(), quantity);
-            isInventoryUpdated = false;
-        } catch(Exception e){
-            return false;
-        }
+            try {
+                // a failed update has already marked the unit of work to be rolled back
+                if(!this.updateQuantity(product.getId(), quantity))
+                    return rollback(false);
+            } catch(Exception e){
+                return rollback(false);
+            }
 
-        // set order status to COMPLETED
-        try {
-            String sql="UPDATE 'order' SET status=? WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setString(1,"COMPLETED");
-            st.setInt(2,orderId);
-            int updatedRows = st.executeUpdate();
+            // set order status to COMPLETED
+            try {
+                String sql="UPDATE 'order' SET status=? WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setString(1,"COMPLETED");
+                st.setInt(2,orderId);
+                int updatedRows = st.executeUpdate();
 
-            if(updatedRows == 0)
-                return false;
+                if(updatedRows == 0)
+                    return rollback(false);
 
-            isOrderListUpdated = false;
+                orders.refresh(conn, orderId);
 
-        } catch (SQLException e) {
-            return false;
-        }
+            } catch (SQLException e) {
+                return rollback(false);
+            }
 
-        //RFID UPDATE
-        String sql3;
-        for(int i=0;i<quantity;i++){
+            //RFID UPDATE, the whole order is one range, none of its items sold
             try {
-                sql3 = "INSERT INTO product(RFID,barcode) VALUES (?,?)";
+                String sql3 = "INSERT INTO productRange(first, length, barcode) VALUES (?,?,?)";
                 PreparedStatement st3 = conn.prepareStatement(sql3);
-                st3.setString(1, String.format("%1$12d", Integer.parseInt(RFIDfrom) + i).replace(' ', '0'));
-                st3.setString(2, productCode);
+                st3.setLong(1, first);
+                st3.setInt(2, quantity);
+                st3.setString(3, productCode);
                 st3.executeUpdate();
             }catch(SQLException e){
                 e.printStackTrace();
-                return false;
+                return rollback(false);
             }
-        }
+            rfids.add(first, quantity, productCode);
         
-        return true;
+            return true;
 
+        } finally {
+            pool.release();
+        }
     }
 
     @Override
     public List<Order> getAllOrders() throws UnauthorizedException {
         // check role of the user (only administrator, cashier and shopManager)
-        if(loggedUser==null || (!loggedUser.getRole().equals("Administrator")&&(!loggedUser.getRole().equals("ShopManager"))))
-            throw new UnauthorizedException();
-
-        if(!isOrderListUpdated)
-        {
-            List<Order> orders= new ArrayList<>();
-            try {
-                String sql="SELECT id, productCode, pricePerUnit, quantity, status FROM 'order'";
-                PreparedStatement st = conn.prepareStatement(sql);
-                ResultSet rs = st.executeQuery();
+        authorize(Permission.MANAGE_SHOP);
 
-                while(rs.next()){
-                    orders.add( new MyOrder(
-                            rs.getInt("id"),
-                            rs.getString("productCode"),
-                            rs.getDouble("pricePerUnit"),
-                            rs.getInt("quantity"),
-                            rs.getString("status")));
-                }
-                orderList = orders;
-                isOrderListUpdated = true;
-
-            } catch (SQLException e) {
-                return orders;
-            }
+        try {
+            return orders.getAll();
+        } catch (SQLException e) {
+            // problems with db connection
+            return new ArrayList<>();
         }
-        return this.orderList;
     }
 
     @Override
     public Integer defineCustomer(String customerName) throws InvalidCustomerNameException, UnauthorizedException {
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        else if (customerName == null || customerName.isEmpty())
-            throw new InvalidCustomerNameException();
-        else
-        {
-            try {
-                // N.B. customerName must be unique
-                String sql = "INSERT INTO customer(customerName, loyaltyCardId) VALUES (?, ?)";
-                PreparedStatement st = conn.prepareStatement(sql);
-                st.setString(1,customerName);
-                st.setString(2,"");
-                if(st.executeUpdate()>0) {
-                    this.isCustomerListUpdated = false;
-                    return st.getGeneratedKeys().getInt(1);
-                }
-                else
+        Connection conn = pool.begin();
+        try {
+            authorize(Permission.CHECKOUT);
+            if (customerName == null || customerName.isEmpty())
+                throw new InvalidCustomerNameException();
+            else
+            {
+                try {
+                    // N.B. customerName must be unique
+                    String sql = "INSERT INTO customer(customerName, loyaltyCardId) VALUES (?, ?)";
+                    PreparedStatement st = conn.prepareStatement(sql);
+                    st.setString(1,customerName);
+                    st.setString(2,"");
+                    if(st.executeUpdate()>0) {
+                        int id = st.getGeneratedKeys().getInt(1);
+                        customers.refresh(conn, id);
+                        return id;
+                    }
+                    else
+                        return -1;
+                } catch (SQLException e) {
                     return -1;
-            } catch (SQLException e) {
-                return -1;
+                }
             }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public boolean modifyCustomer(Integer id, String newCustomerName, String newCustomerCard) throws InvalidCustomerNameException, InvalidCustomerCardException, InvalidCustomerIdException, UnauthorizedException {
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        else if (newCustomerName == null || newCustomerName.isEmpty())
-            throw new InvalidCustomerNameException("Invalid Customer Name");
-        else if ( id == null || id <= 0) {
-            throw new InvalidCustomerIdException("Invalid Customer Id");
-        }
-        else {
-            try{
-                // update only customername
-                if(newCustomerCard == null)
-                {
-                    String sql = "UPDATE customer SET customerName=? WHERE id=?";
-                    PreparedStatement st = conn.prepareStatement(sql);
-                    st.setString(1,newCustomerName);
-                    st.setInt(2,id);
-                    if(st.executeUpdate()>0)
-                    {
-                        this.isCustomerListUpdated = false;
-                        return true;
-                    }
-                }
-                // delete customercard from customer
-                else if(newCustomerCard.isEmpty())
-                {
-                    String sql = "UPDATE customer SET loyaltyCardId=?, customerName=? WHERE id=?";
-                    PreparedStatement st = conn.prepareStatement(sql);
-                    st.setString(1,"");
-                    st.setString(2,newCustomerName);
-                    st.setInt(3,id);
-                    if(st.executeUpdate()>0)
+        Connection conn = pool.begin();
+        try {
+            authorize(Permission.CHECKOUT);
+            if (newCustomerName == null || newCustomerName.isEmpty())
+                throw new InvalidCustomerNameException("Invalid Customer Name");
+            else if ( id == null || id <= 0) {
+                throw new InvalidCustomerIdException("Invalid Customer Id");
+            }
+            else {
+                try{
+                    // update only customername
+                    if(newCustomerCard == null)
                     {
-                        this.isCustomerListUpdated = false;
-                        return true;
-                    }
-                    
-                }
-                // update customercard
-                else {
-                    //if (newCustomerCard.length()!=10 || !newCustomerCard.matches("[0-9]+") ) {
-                    if (!newCustomerCard.matches("^[0-9]{10}$") ) {
-                        throw new InvalidCustomerCardException("Invalid Customer Card");
+                        String sql = "UPDATE customer SET customerName=? WHERE id=?";
+                        PreparedStatement st = conn.prepareStatement(sql);
+                        st.setString(1,newCustomerName);
+                        st.setInt(2,id);
+                        if(st.executeUpdate()>0)
+                        {
+                            customers.refresh(conn, id);
+                            return true;
+                        }
                     }
-                    String sql1 = "SELECT id FROM customer WHERE loyaltyCardId=?";
-                    PreparedStatement st1 = conn.prepareStatement(sql1);
-                    st1.setString(1, newCustomerCard);
-                    ResultSet rs1 = st1.executeQuery();
-                    //conn.commit();
-                    //ResultSet rs1 = st1.getResultSet();
-                    if(!rs1.next())
+                    // delete customercard from customer
+                    else if(newCustomerCard.isEmpty())
                     {
                         String sql = "UPDATE customer SET loyaltyCardId=?, customerName=? WHERE id=?";
                         PreparedStatement st = conn.prepareStatement(sql);
-                        st.setString(1, newCustomerCard);
-                        st.setString(2, newCustomerName);
-                        st.setInt(3, id);
+                        st.setString(1,"");
+                        st.setString(2,newCustomerName);
+                        st.setInt(3,id);
                         if(st.executeUpdate()>0)
                         {
-                            this.isCustomerListUpdated = false;
+                            customers.refresh(conn, id);
                             return true;
                         }
+                    
+                    }
+                    // update customercard
+                    else {
+                        //if (newCustomerCard.length()!=10 || !newCustomerCard.matches("[0-9]+") ) {
+                        if (!newCustomerCard.matches("^[0-9]{10}$") ) {
+                            throw new InvalidCustomerCardException("Invalid Customer Card");
+                        }
+                        String sql1 = "SELECT id FROM customer WHERE loyaltyCardId=?";
+                        PreparedStatement st1 = conn.prepareStatement(sql1);
+                        st1.setString(1, newCustomerCard);
+                        ResultSet rs1 = st1.executeQuery();
+                        //conn.commit();
+                        //ResultSet rs1 = st1.getResultSet();
+                        if(!rs1.next())
+                        {
+                            String sql = "UPDATE customer SET loyaltyCardId=?, customerName=? WHERE id=?";
+                            PreparedStatement st = conn.prepareStatement(sql);
+                            st.setString(1, newCustomerCard);
+                            st.setString(2, newCustomerName);
+                            st.setInt(3, id);
+                            if(st.executeUpdate()>0)
+                            {
+                                customers.refresh(conn, id);
+                                return true;
+                            }
+                        }
                     }
+                    return false;
+                } catch (SQLException e){
+                    return false;
                 }
-                return false;
-            } catch (SQLException e){
-                return false;
             }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public boolean deleteCustomer(Integer id) throws InvalidCustomerIdException, UnauthorizedException {
-        this.isCustomerListUpdated = false;
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        else if ( id== null || id<=0) {
-            throw new InvalidCustomerIdException();
-        }
-        else {
-            try {
-                String sql = "DELETE FROM customer WHERE id=?";
-                PreparedStatement st = conn.prepareStatement(sql);
-                st.setInt(1,id);
-                if(st.executeUpdate() == 0)
-                    return false;
-
-                isCustomerListUpdated = false;
-                return true;
+        Connection conn = pool.begin();
+        try {
+            authorize(Permission.CHECKOUT);
+            if ( id== null || id<=0) {
+                throw new InvalidCustomerIdException();
             }
-            catch (SQLException e)
-            {
-                return false;
+            else {
+                try {
+                    String sql = "DELETE FROM customer WHERE id=?";
+                    PreparedStatement st = conn.prepareStatement(sql);
+                    st.setInt(1,id);
+                    if(st.executeUpdate() == 0)
+                        return false;
+
+                    customers.remove(id);
+                    return true;
+                }
+                catch (SQLException e)
+                {
+                    return false;
+                }
             }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public Customer getCustomer(Integer id) throws InvalidCustomerIdException, UnauthorizedException {
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        else if ( id == null || id <= 0) {
-            throw new InvalidCustomerIdException();
-        }
-        else {
-            try {
-                //String sql = "SELECT * FROM customer AS C WHERE C.id=?";
-                String sql = "SELECT C.id AS id, C.customerName as customerName , C.loyaltyCardId as loyaltyCardId, points FROM customer AS C LEFT JOIN loyaltyCard ON C.loyaltyCardId=loyaltyCard.cardId WHERE C.id=?";
-                PreparedStatement st = conn.prepareStatement(sql);
-                st.setInt(1,id);
-                ResultSet rs = st.executeQuery();
+        Connection conn = pool.acquire();
+        try {
+            authorize(Permission.CHECKOUT);
+            if ( id == null || id <= 0) {
+                throw new InvalidCustomerIdException();
+            }
+            else {
+                try {
+                    //String sql = "SELECT * FROM customer AS C WHERE C.id=?";
+                    String sql = "SELECT C.id AS id, C.customerName as customerName , C.loyaltyCardId as loyaltyCardId, points FROM customer AS C LEFT JOIN loyaltyCard ON C.loyaltyCardId=loyaltyCard.cardId WHERE C.id=?";
+                    PreparedStatement st = conn.prepareStatement(sql);
+                    st.setInt(1,id);
+                    ResultSet rs = st.executeQuery();
 
-                if(!rs.next())
-                    return null;
+                    if(!rs.next())
+                        return null;
 
-                return new MyCustomer(
-                        rs.getInt("id"),
-                        rs.getString("customerName"),
-                        rs.getString("loyaltyCardId"),
-                        rs.getInt("points")
-                );
+                    return new MyCustomer(
+                            rs.getInt("id"),
+                            rs.getString("customerName"),
+                            rs.getString("loyaltyCardId"),
+                            rs.getInt("points")
+                    );
 
-//                Customer cust = new it.polito.ezshop.model.Customer(
-//                                rs.getInt("id"),
-//                                rs.getString("customerName"),
-//                                "",
-//                                0);
-//
-//                if(rs.getString(3)==null || rs.getString(3).isEmpty())
-//                    return cust;
-//                String loyaltyCardTmp = rs.getString("loyaltyCardId");
-//                cust.setCustomerCard(loyaltyCardTmp);
-//                String sql2 = "SELECT * FROM LoyaltyCard L WHERE id=?";
-//                PreparedStatement st2 = conn.prepareStatement(sql2);
-//                st2.setString(1,loyaltyCardTmp);
-//                ResultSet rs2 = st2.executeQuery();
-//
-//                if(!rs.isBeforeFirst())
-//                    return cust;
-//
-//                cust.setPoints(rs2.getInt("points"));
-
-                //return cust;
-            } catch (SQLException e) {
-                return null;
+    //                Customer cust = new it.polito.ezshop.model.Customer(
+    //                                rs.getInt("id"),
+    //                                rs.getString("customerName"),
+    //                                "",
+    //                                0);
+    //
+    //                if(rs.getString(3)==null || rs.getString(3).isEmpty())
+    //                    return cust;
+    //                String loyaltyCardTmp = rs.getString("loyaltyCardId");
+    //                cust.setCustomerCard(loyaltyCardTmp);
+    //                String sql2 = "SELECT * FROM LoyaltyCard L WHERE id=?";
+    //                PreparedStatement st2 = conn.prepareStatement(sql2);
+    //                st2.setString(1,loyaltyCardTmp);
+    //                ResultSet rs2 = st2.executeQuery();
+    //
+    //                if(!rs.isBeforeFirst())
+    //                    return cust;
+    //
+    //                cust.setPoints(rs2.getInt("points"));
+
+                    //return cust;
+                } catch (SQLException e) {
+                    return null;
+                }
             }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public List<Customer> getAllCustomers() throws UnauthorizedException {
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        if(!this.isCustomerListUpdated) {
-            List<Customer> customers = new ArrayList<>();
-            try {
-                String sql = "SELECT C.id AS id, customerName, loyaltyCardId, points FROM customer AS C LEFT JOIN loyaltyCard ON loyaltyCard.cardId=C.loyaltyCardId";
-                PreparedStatement st = conn.prepareStatement(sql);
-                ResultSet rs = st.executeQuery();
+        authorize(Permission.CHECKOUT);
 
-                while(rs.next()){
-                    customers.add(new MyCustomer(
-                            rs.getInt("id"),
-                            rs.getString("customerName"),
-                            rs.getString("loyaltyCardId"),
-                            rs.getInt("points")
-                    ));
-                }
-                customerList = customers;
-                this.isCustomerListUpdated=true;
-            } catch (SQLException e) {
-                return customers;
+        try {
+            return customers.getAll();
+        } catch (SQLException e) {
+            // problems with db connection
+            return new ArrayList<>();
+        }
+    }
+
+    // one page of at most limit customers after the given token (null for the first page), by id
+    public Page<Customer> getCustomersPage(Integer after, int limit) throws UnauthorizedException {
+        authorize(Permission.CHECKOUT);
+        return page(CUSTOMERS + " WHERE C.id > ? ORDER BY C.id LIMIT ?", after, limit, EZShop::customer, Customer::getId);
+    }
+
+    // every customer to the consumer, in id order, one row in memory at a time; false if the read was cut short
+    public boolean forEachCustomer(Consumer<? super Customer> action) throws UnauthorizedException {
+        authorize(Permission.CHECKOUT);
+        return stream(CUSTOMERS + " ORDER BY C.id", EZShop::customer, action);
+    }
+
+    // one page of at most limit product types after the given token (null for the first page), by id
+    public Page<ProductType> getProductTypesPage(Integer after, int limit) throws UnauthorizedException {
+        authorize(Permission.CHECKOUT);
+        return page(PRODUCT_TYPES + " WHERE id > ? ORDER BY id LIMIT ?", after, limit, rs -> available(productType(rs)), ProductType::getId);
+    }
+
+    // every product type to the consumer, in id order, one row in memory at a time; false if the read was cut short
+    public boolean forEachProductType(Consumer<? super ProductType> action) throws UnauthorizedException {
+        authorize(Permission.CHECKOUT);
+        return stream(PRODUCT_TYPES + " ORDER BY id", rs -> available(productType(rs)), action);
+    }
+
+    // one page of at most limit orders after the given token (null for the first page), by id
+    public Page<Order> getOrdersPage(Integer after, int limit) throws UnauthorizedException {
+        authorize(Permission.MANAGE_SHOP);
+        return page(ORDERS + " WHERE id > ? ORDER BY id LIMIT ?", after, limit, EZShop::order, Order::getOrderId);
+    }
+
+    // every order to the consumer, in id order, one row in memory at a time; false if the read was cut short
+    public boolean forEachOrder(Consumer<? super Order> action) throws UnauthorizedException {
+        authorize(Permission.MANAGE_SHOP);
+        return stream(ORDERS + " ORDER BY id", EZShop::order, action);
+    }
+
+    // one page of at most limit users after the given token (null for the first page), by id
+    public Page<User> getUsersPage(Integer after, int limit) throws UnauthorizedException {
+        authorize(Permission.ADMINISTER);
+        return page(USERS + " WHERE id > ? ORDER BY id LIMIT ?", after, limit, EZShop::user, User::getId);
+    }
+
+    // every user to the consumer, in id order, one row in memory at a time; false if the read was cut short
+    public boolean forEachUser(Consumer<? super User> action) throws UnauthorizedException {
+        authorize(Permission.ADMINISTER);
+        return stream(USERS + " ORDER BY id", EZShop::user, action);
+    }
+
+    // keyset page: one row more than the limit tells whether there is a next page
+    private static <T> Page<T> page(String sql, Integer after, int limit, Listing.RowReader<T> reader, Listing.IdOf<T> id) {
+        List<T> items = new ArrayList<>();
+        if(limit <= 0)
+            return new Page<>(items, null);
+        limit = Math.min(limit, MAX_PAGE);
+        Connection conn = pool.acquire();
+        try {
+            PreparedStatement st = conn.prepareStatement(sql);
+            st.setInt(1, after == null ? 0 : after);
+            st.setInt(2, limit + 1);
+            ResultSet rs = st.executeQuery();
+            while(rs.next())
+                items.add(reader.read(rs));
+        } catch (SQLException e) {
+            // problems with db connection
+            return new Page<>(new ArrayList<>(), null);
+        } finally {
+            pool.release();
+        }
+        if(items.size() <= limit)
+            return new Page<>(items, null);
+        items.remove(limit);
+        return new Page<>(items, id.of(items.get(limit - 1)));
+    }
+
+    // a cursor over the whole table on one read connection, read FETCH_SIZE rows at a time; the rows handed out
+    // are not kept
+    private static <T> boolean stream(String sql, Listing.RowReader<T> reader, Consumer<? super T> action) {
+        Connection conn = pool.acquire();
+        try {
+            PreparedStatement st = conn.prepareStatement(sql);
+            st.setFetchSize(FETCH_SIZE);
+            try(ResultSet rs = st.executeQuery()) {
+                while(rs.next())
+                    action.accept(reader.read(rs));
             }
+            return true;
+        } catch (SQLException e) {
+            // problems with db connection: the consumer has what was read so far, and is told it is not all
+            return false;
+        } finally {
+            pool.release();
         }
-        return this.customerList;
+    }
+
+    private static MyCustomer customer(ResultSet rs) throws SQLException {
+        return new MyCustomer(
+                rs.getInt("id"),
+                rs.getString("customerName"),
+                rs.getString("loyaltyCardId"),
+                rs.getInt("points"));
+    }
+
+    private static MyProductType productType(ResultSet rs) throws SQLException {
+        return MyProductType.ofCents(
+                rs.getInt("id"),
+                rs.getString("productCode"),
+                rs.getString("description"),
+                rs.getLong("pricePerUnit"),
+                rs.getInt("quantity"),
+                rs.getString("notes"),
+                rs.getString("position"));
+    }
+
+    private static MyOrder order(ResultSet rs) throws SQLException {
+        return MyOrder.ofCents(
+                rs.getInt("id"),
+                rs.getString("productCode"),
+                rs.getLong("pricePerUnit"),
+                rs.getInt("quantity"),
+                rs.getString("status"));
+    }
+
+    private static MyUser user(ResultSet rs) throws SQLException {
+        return new MyUser(rs.getInt("id"),
+                rs.getString("username"),
+                rs.getString("password"),
+                rs.getString("role"));
+    }
+
+    // the listings hand these out, the caller may change its own
+    // a product as the catalog reports it, from every listing: the units on hand less those held by the open sales
+    private static ProductType available(ProductType p) {
+        return withQuantity(p, -catalog.getReserved(p.getId()));
+    }
+
+    private static Order copy(Order o) {
+        return MyOrder.ofCents(o.getOrderId(), o.getProductCode(), ((MyOrder) o).getPriceCents(), o.getQuantity(), o.getStatus());
+    }
+
+    private static Customer copy(Customer c) {
+        return new MyCustomer(c.getId(), c.getCustomerName(), c.getCustomerCard(), c.getPoints());
+    }
+
+    private static User copy(User u) {
+        return new MyUser(u.getId(), u.getUsername(), u.getPassword(), u.getRole());
     }
 
     @Override
     public String createCard() throws UnauthorizedException {
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        else{
+        Connection conn = pool.begin();
+        try {
+            authorize(Permission.CHECKOUT);
             String nextId;
             int temp;
             try {
@@ -1229,139 +1559,159 @@ public class EZShop implements EZShopInterface{
             } catch (SQLException e) {
                 return "";
             }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public boolean attachCardToCustomer(String customerCard, Integer customerId) throws InvalidCustomerIdException, InvalidCustomerCardException, UnauthorizedException {
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //else if (customerCard==null || customerCard.length()!=10 || !customerCard.matches("[0-9]+") ) {
-        else if (customerCard == null || !customerCard.matches("^[0-9]{10}$")) {
-            throw new InvalidCustomerCardException("Invalid customer card.");
-        }
-        else if (customerId == null || customerId <= 0) {
-            throw new InvalidCustomerIdException("Invalid customer id.");
-        }
-        else {
-            try{
-                //Card already assigned
-                String sql1 = "SELECT loyaltyCardId FROM customer WHERE loyaltyCardId=?";
-                PreparedStatement st1 = conn.prepareStatement(sql1);
-                st1.setString(1,customerCard);
-                ResultSet rs1 = st1.executeQuery();
-                //conn.commit();
-                if(rs1.next())
-                    return false;
-
-            } catch(SQLException e) {
-                return false;
+        Connection conn = pool.begin();
+        try {
+            authorize(Permission.CHECKOUT);
+            //else if (customerCard==null || customerCard.length()!=10 || !customerCard.matches("[0-9]+") ) {
+            if (customerCard == null || !customerCard.matches("^[0-9]{10}$")) {
+                throw new InvalidCustomerCardException("Invalid customer card.");
             }
-
-            try {
-                //No customer
-                String sql2 = "SELECT id FROM customer WHERE id=?";
-                PreparedStatement st2 = conn.prepareStatement(sql2);
-                st2.setInt(1,customerId);
-                ResultSet rs2 = st2.executeQuery();
-                //conn.commit();
-                if(!rs2.next())
-                    return false;
-            } catch (SQLException e) {
-                return false;
+            else if (customerId == null || customerId <= 0) {
+                throw new InvalidCustomerIdException("Invalid customer id.");
             }
+            else {
+                try{
+                    //Card already assigned
+                    String sql1 = "SELECT loyaltyCardId FROM customer WHERE loyaltyCardId=?";
+                    PreparedStatement st1 = conn.prepareStatement(sql1);
+                    st1.setString(1,customerCard);
+                    ResultSet rs1 = st1.executeQuery();
+                    //conn.commit();
+                    if(rs1.next())
+                        return false;
 
-            try {
-                String sql3 = "UPDATE customer SET loyaltyCardId=? WHERE id=?";
-                PreparedStatement st3 = conn.prepareStatement(sql3);
-                st3.setString(1,customerCard);
-                st3.setInt(2,customerId);
-                int updatedRows = st3.executeUpdate();
+                } catch(SQLException e) {
+                    return false;
+                }
 
-                if(updatedRows == 0) {
+                try {
+                    //No customer
+                    String sql2 = "SELECT id FROM customer WHERE id=?";
+                    PreparedStatement st2 = conn.prepareStatement(sql2);
+                    st2.setInt(1,customerId);
+                    ResultSet rs2 = st2.executeQuery();
+                    //conn.commit();
+                    if(!rs2.next())
+                        return false;
+                } catch (SQLException e) {
                     return false;
                 }
 
-                this.isCustomerListUpdated = false;
+                try {
+                    String sql3 = "UPDATE customer SET loyaltyCardId=? WHERE id=?";
+                    PreparedStatement st3 = conn.prepareStatement(sql3);
+                    st3.setString(1,customerCard);
+                    st3.setInt(2,customerId);
+                    int updatedRows = st3.executeUpdate();
 
-            } catch (SQLException e) {
-                return false;
+                    if(updatedRows == 0) {
+                        return false;
+                    }
+
+                    customers.refresh(conn, customerId);
+
+                } catch (SQLException e) {
+                    return false;
+                }
+                return true;
             }
-            return true;
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public boolean modifyPointsOnCard(String customerCard, int pointsToBeAdded) throws InvalidCustomerCardException, UnauthorizedException {
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //else if (customerCard==null || customerCard.equals("") || customerCard.length()!=10 || !customerCard.matches("[0-9]+") ) {
-        else if (customerCard==null || !customerCard.matches("^[0-9]{10}$")) {
-            throw new InvalidCustomerCardException();
-        }
-        else {
-            try {
-                String sql1 = "SELECT points FROM loyaltyCard WHERE id=?";
-                PreparedStatement st1 = conn.prepareStatement(sql1);
-                st1.setString(1, customerCard);
-                ResultSet rs1 = st1.executeQuery();
-                if(rs1.next()) {
-                    if(pointsToBeAdded<0 && rs1.getInt("points")+pointsToBeAdded<0) {
+        Connection conn = pool.begin();
+        try {
+            authorize(Permission.CHECKOUT);
+            //else if (customerCard==null || customerCard.equals("") || customerCard.length()!=10 || !customerCard.matches("[0-9]+") ) {
+            if (customerCard==null || !customerCard.matches("^[0-9]{10}$")) {
+                throw new InvalidCustomerCardException();
+            }
+            else {
+                try {
+                    String sql1 = "SELECT points FROM loyaltyCard WHERE id=?";
+                    PreparedStatement st1 = conn.prepareStatement(sql1);
+                    st1.setString(1, customerCard);
+                    ResultSet rs1 = st1.executeQuery();
+                    if(rs1.next()) {
+                        if(pointsToBeAdded<0 && rs1.getInt("points")+pointsToBeAdded<0) {
+                            return false;
+                        }
+                    }
+                    else
+                        return false;
+
+                    String sql2 = "UPDATE loyaltyCard SET points = points + ? WHERE id=? ";
+                    PreparedStatement st2 = conn.prepareStatement(sql2);
+                    st2.setInt(1,pointsToBeAdded);
+                    st2.setString(2,customerCard);
+                    int updatedRows = st2.executeUpdate();
+                    //conn.commit();
+                    if(updatedRows == 0) {
                         return false;
                     }
-                }
-                else
-                    return false;
 
-                String sql2 = "UPDATE loyaltyCard SET points = points + ? WHERE id=? ";
-                PreparedStatement st2 = conn.prepareStatement(sql2);
-                st2.setInt(1,pointsToBeAdded);
-                st2.setString(2,customerCard);
-                int updatedRows = st2.executeUpdate();
-                //conn.commit();
-                if(updatedRows == 0) {
+                    // the customer holding the card shows its points
+                    String sql3 = "SELECT id FROM customer WHERE loyaltyCardId=?";
+                    PreparedStatement st3 = conn.prepareStatement(sql3);
+                    st3.setString(1, customerCard);
+                    ResultSet rs3 = st3.executeQuery();
+                    if(rs3.next())
+                        customers.refresh(conn, rs3.getInt("id"));
+                    return true;
+                } catch(SQLException e) {
                     return false;
                 }
-
-                this.isCustomerListUpdated = false;
-                return true;
-            } catch(SQLException e) {
-                return false;
             }
-        }
 
+        } finally {
+            pool.release();
+        }
     }
 
     @Override
     public Integer startSaleTransaction() throws UnauthorizedException {
         // check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        int tempId=2;
+        authorize(Permission.CHECKOUT);
+        int tempId;
         try {
-            String sql = "SELECT id FROM saleTransaction ORDER BY id DESC LIMIT 1";
-            PreparedStatement st = conn.prepareStatement(sql);
-            ResultSet rs = st.executeQuery();
-            if(rs.isBeforeFirst()) {
-                rs.next();
-                tempId = rs.getInt("id") + 2;
-            }
-
-            String sql2 = "INSERT INTO saleTransaction (id, discountRate, total, status) VALUES (?,0.0,0.0,'OPEN')";
-            PreparedStatement st2 = conn.prepareStatement(sql2);
-            st2.setInt(1, tempId);
-            st2.executeUpdate();
-            return st2.getGeneratedKeys().getInt(1);
-        }catch(SQLException e){
+            // taken before the unit of work, a new block is reserved in a transaction of its own
+            tempId = ids.nextSaleId();
+        } catch (SQLException e) {
             return -1;
         }
+        Connection conn = pool.begin();
+        try {
+            try {
+                String sql = "INSERT INTO saleTransaction (id, discountRate, total, status) VALUES (?,0.0,0.0,'OPEN')";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1, tempId);
+                st.executeUpdate();
+                // its lines are kept in memory until it ends
+                if(!carts.open(tempId, 0.0))
+                    return rollback(-1);
+                return tempId;
+            }catch(SQLException e){
+                return -1;
+            }
+        } finally {
+            pool.release();
+        }
     }
 
     @Override
     public boolean addProductToSale(Integer transactionId, String productCode, int amount) throws InvalidTransactionIdException, InvalidProductCodeException, InvalidQuantityException, UnauthorizedException {
         //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
+        authorize(Permission.CHECKOUT);
         //check id
         if(transactionId == null || transactionId <= 0)
             throw new InvalidTransactionIdException();
@@ -1378,94 +1728,48 @@ public class EZShop implements EZShopInterface{
             throw new InvalidProductCodeException();
         }
 
-        ProductType product;
-
-        //check transaction status
         try {
-            String sql = "SELECT id from SaleTransaction WHERE id=? AND status='OPEN'";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,transactionId);
-            ResultSet rs=st.executeQuery();
-            rs.next();
-            if(rs.getInt("id")!=transactionId){
-                return false;
-            }
-        }catch(SQLException e){
-            // transactionId not an existing or open transaction
+            MyProductType product = catalog.getByBarCode(productCode);
+            // the units are reserved for the open cart, the stock is decreased when the sale ends
+            return product != null && carts.add(transactionId, product.getId(), productCode, product.getPriceCents(), amount);
+        } catch (SQLException e) {
             return false;
         }
+    }
 
-        String actualRole = loggedUser.getRole();
-        //check presence of the product;
-        try {
-            loggedUser.setRole("Administrator");
-            product = getProductTypeByBarCode(productCode);
-            if(product == null) {
-                loggedUser.setRole(actualRole);
-                return false;
-            }
-        } catch(Exception e) {
-            loggedUser.setRole(actualRole);
-            return false;
-        }
-        // check availability of the product
-        try {
-            loggedUser.setRole("Administrator");
-            // eventually decrease amount of product if available
-            if (!this.updateQuantity(product.getId(),-amount)){
-                loggedUser.setRole(actualRole);
-                return false;
-            }
-            isInventoryUpdated = false;
-        } catch(Exception e){
-            loggedUser.setRole(actualRole);
-            return false;
-        }
+    @Override
+    public Map<String, Boolean> addProductsToSale(Integer transactionId, Map<String, Integer> products) throws InvalidTransactionIdException, InvalidProductCodeException, InvalidQuantityException, UnauthorizedException {
+        //check authorization
+        authorize(Permission.CHECKOUT);
+        //check id
+        if(transactionId == null || transactionId <= 0)
+            throw new InvalidTransactionIdException();
+        if(products == null)
+            throw new InvalidProductCodeException();
 
-        loggedUser.setRole(actualRole);
+        // every line is checked before any of them is added
+        for(Map.Entry<String, Integer> line : products.entrySet()) {
+            if(line.getKey() == null || line.getKey().equals("") || !validateProductCode(line.getKey()))
+                throw new InvalidProductCodeException();
+            if(line.getValue() == null || line.getValue() < 0)
+                throw new InvalidQuantityException();
+        }
 
-        // insert a new product entry for a new sale transaction
         try {
-            String sql2 = "INSERT INTO productEntry (transactionId, barcode, amount) VALUES (?,?,?)";
-            PreparedStatement st = conn.prepareStatement(sql2);
-            st.setInt(1, transactionId);
-            st.setString(2, productCode);
-            st.setInt(3, amount);
-            int updatedRows = st.executeUpdate();
-
-            return !(updatedRows == 0);
-        } catch(SQLException e) {
-            // update an existing product entry for an existing sale transaction
-            try{
-                String sql3 = "UPDATE ProductEntry SET amount=amount+? WHERE transactionId=? AND barcode=?";
-                PreparedStatement st3= conn.prepareStatement(sql3);
-                st3.setInt(1,amount);
-                st3.setInt(2,transactionId);
-                st3.setString(3, productCode);
-                int updatedRows = st3.executeUpdate();
-
-                return !(updatedRows == 0);
-            } catch (SQLException e2) {
-                return false;
-//                try {
-//                    loggedUser.setRole("Administrator");
-//                    this.updateQuantity(product.getId(),amount);
-//                    isInventoryUpdated = false;
-//                    loggedUser.setRole(actualRole);
-//                } catch(Exception e3){
-//                    loggedUser.setRole(actualRole);
-//                    throw new InvalidQuantityException();
-//                }
-            }
-            //return false;
+            // one pass over the cart, one journal flush
+            return carts.addAll(transactionId, products);
+        } catch (SQLException e) {
+            Map<String, Boolean> outcome = new LinkedHashMap<>();
+            for(String productCode : products.keySet())
+                outcome.put(productCode, false);
+            return outcome;
         }
     }
 
     @Override
     public boolean addProductToSaleRFID(Integer transactionId, String RFID) throws InvalidTransactionIdException, InvalidRFIDException, InvalidQuantityException, UnauthorizedException {
         //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
+        authorize(Permission.CHECKOUT);
         //check id
         if(transactionId == null || transactionId <= 0)
             throw new InvalidTransactionIdException();
@@ -1474,87 +1778,59 @@ public class EZShop implements EZShopInterface{
             throw new InvalidRFIDException();
         }
 
-        String productCode;
+        long rfid = RfidIndex.parse(RFID);
         try {
-            String sql = "SELECT barcode FROM product WHERE RFID=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setString(1, RFID);
-            ResultSet rs = st.executeQuery();
-            if(!rs.isBeforeFirst())
-                // no barcode found
+            // resolved in memory by the RFID range index
+            String productCode = rfids.getBarCode(rfid);
+            if(productCode == null)
                 return false;
-            rs.next();
-
-            productCode = rs.getString("barcode");
-        } catch (Exception e) {
+            MyProductType product = catalog.getByBarCode(productCode);
+            // false as well if the item is sold or in another open cart
+            return product != null && carts.addTag(transactionId, product.getId(), productCode, product.getPriceCents(), rfid);
+        } catch (SQLException e) {
             return false;
         }
+    }
 
-        ProductType product;
+    @Override
+    public Map<String, Boolean> addProductsToSaleRFID(Integer transactionId, Collection<String> RFIDs) throws InvalidTransactionIdException, InvalidRFIDException, UnauthorizedException {
+        //check authorization
+        authorize(Permission.CHECKOUT);
+        //check id
+        if(transactionId == null || transactionId <= 0)
+            throw new InvalidTransactionIdException();
+        if(RFIDs == null)
+            throw new InvalidRFIDException();
 
-        //check transaction status
-        try {
-            String sql = "SELECT id from SaleTransaction WHERE id=? AND status='OPEN'";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,transactionId);
-            ResultSet rs=st.executeQuery();
-            if(!rs.isBeforeFirst())
-                return false;
-        }catch(SQLException e){
-            // transactionId not an existing or open transaction
-            return false;
+        // a tag read twice by the tunnel counts once
+        Map<String, Boolean> outcome = new LinkedHashMap<>();
+        for(String RFID : RFIDs) {
+            if(RfidIndex.parse(RFID) < 0)
+                throw new InvalidRFIDException();
+            outcome.put(RFID, false);
         }
 
-        String actualRole = loggedUser.getRole();
-        //check presence of the product;
-        try {
-            loggedUser.setRole("Administrator");
-            product = getProductTypeByBarCode(productCode);
-            if(product == null) {
-                loggedUser.setRole(actualRole);
-                return false;
-            }
-        } catch(Exception e) {
-            loggedUser.setRole(actualRole);
-            return false;
-        }
-        // check availability of the product
         try {
-            loggedUser.setRole("Administrator");
-            // eventually decrease amount of product if available
-            if (!this.updateQuantity(product.getId(),-1)){
-                loggedUser.setRole(actualRole);
-                return false;
+            // resolved in memory by the RFID range index and grouped by product
+            Map<String, List<Long>> byBarCode = new LinkedHashMap<>();
+            for(String RFID : outcome.keySet()) {
+                long rfid = RfidIndex.parse(RFID);
+                String productCode = rfids.getBarCode(rfid);
+                if(productCode != null)
+                    byBarCode.computeIfAbsent(productCode, k -> new ArrayList<>()).add(rfid);
             }
-            isInventoryUpdated = false;
-        } catch(Exception e){
-            loggedUser.setRole(actualRole);
-            return false;
-        }
-
-        loggedUser.setRole(actualRole);
-
-        // insert a new product entry for a new sale transaction
-        try {
-            String sql2 = "INSERT INTO productEntry (transactionId, barcode, amount, RFID) VALUES (?,?,?,?)";
-            PreparedStatement st = conn.prepareStatement(sql2);
-            st.setInt(1, transactionId);
-            st.setString(2, productCode);
-            st.setInt(3, 1);
-            st.setString(4, RFID);
-            int updatedRows = st.executeUpdate();
-
-            return !(updatedRows == 0);
-        } catch(SQLException e) {
-            return false;
+            for(long rfid : carts.addTags(transactionId, byBarCode))
+                outcome.put(RfidIndex.format(rfid), true);
+        } catch (SQLException e) {
+            // nothing added
         }
+        return outcome;
     }
 
     @Override
     public boolean deleteProductFromSale(Integer transactionId, String productCode, int amount) throws InvalidTransactionIdException, InvalidProductCodeException, InvalidQuantityException, UnauthorizedException {
         //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
+        authorize(Permission.CHECKOUT);
         //check id
         if(transactionId == null || transactionId <= 0)
             throw new InvalidTransactionIdException();
@@ -1571,94 +1847,14 @@ public class EZShop implements EZShopInterface{
             throw new InvalidProductCodeException();
         }
 
-        ProductType product;
-
-        //check transaction status
-        try {
-            String sql = "SELECT id, status from SaleTransaction WHERE id=? AND status='OPEN'";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,transactionId);
-            ResultSet rs = st.executeQuery();
-            if(!rs.next())
-                return false;
-//            if(rs.getInt("id") != transactionId){
-//                return false;
-//            }
-        }catch(SQLException e){
-            // transactionId not an existing or open transaction
-            return false;
-        }
-
-        String actualRole = loggedUser.getRole();
-        //check presence of the product;
-        try {
-            loggedUser.setRole("Administrator");
-            product = getProductTypeByBarCode(productCode);
-            if(product == null) {
-                loggedUser.setRole(actualRole);
-                return false;
-            }
-        } catch(Exception e) {
-            loggedUser.setRole(actualRole);
-            return false;
-        }
-
-        loggedUser.setRole(actualRole);
-
-        //update quantity
-        try {
-            String sql2 = "UPDATE productEntry SET amount=amount-? WHERE transactionId=? AND barcode=?";
-            PreparedStatement st = conn.prepareStatement(sql2);
-            st.setInt(1,amount);
-            st.setInt(2,transactionId);
-            st.setString(3,productCode);
-            int updatedRows = st.executeUpdate();
-
-            if(updatedRows == 0)
-                return false;
-            // check availability of the product
-            try {
-                loggedUser.setRole("Administrator");
-                // eventually increase amount of product available
-                if (!this.updateQuantity(product.getId(), amount)){
-                    loggedUser.setRole(actualRole);
-                    isInventoryUpdated = false;
-                    return false;
-                }
-                isInventoryUpdated = false;
-            } catch(Exception e) {
-                loggedUser.setRole(actualRole);
-                return false;
-            }
-
-            // delete row if productentry amount is 0
-            String sql3 = "DELETE FROM productEntry WHERE amount=0 AND transactionId=? AND barcode=?";
-            PreparedStatement st2 = conn.prepareStatement(sql3);
-            st2.setInt(1,transactionId);
-            st2.setString(2,productCode);
-            st2.executeUpdate();
-
-            return true;
-//            String oldRole= loggedUser.getRole();
-//            try {
-//                loggedUser.setRole("Administrator");
-//                ProductType product = this.getProductTypeByBarCode(productCode);
-//                this.updateQuantity(product.getId(), amount);
-//                loggedUser.setRole(oldRole);
-//            }catch (Exception e2) {
-//                loggedUser.setRole(oldRole);
-//                return false;
-//            }
-        }catch(SQLException e){
-            return false;
-        }
+        // false if the sale is not open or has fewer units of the product
+        return carts.remove(transactionId, productCode, amount);
     }
 
     @Override
     public boolean deleteProductFromSaleRFID(Integer transactionId, String RFID) throws InvalidTransactionIdException, InvalidRFIDException, InvalidQuantityException, UnauthorizedException {
         //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
+        authorize(Permission.CHECKOUT);
         //check id
         if(transactionId == null || transactionId <= 0)
             throw new InvalidTransactionIdException();
@@ -1667,78 +1863,12 @@ public class EZShop implements EZShopInterface{
             throw new InvalidRFIDException();
         }
 
-        String productCode;
-        try {
-            String sql = "SELECT barcode FROM product WHERE RFID=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setString(1, RFID);
-            ResultSet rs = st.executeQuery();
-            if(!rs.isBeforeFirst())
-                // no barcode found
-                return false;
-            rs.next();
-
-            productCode = rs.getString("barcode");
-        } catch (Exception e) {
-            return false;
-        }
-
-        ProductType product;
-
-        //check transaction status
-        try {
-            String sql = "SELECT id, status from SaleTransaction WHERE id=? AND status='OPEN'";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,transactionId);
-            ResultSet rs = st.executeQuery();
-            if(!rs.next())
-                return false;
-//            if(rs.getInt("id") != transactionId){
-//                return false;
-//            }
-        }catch(SQLException e){
-            // transactionId not an existing or open transaction
-            return false;
-        }
-
-        String actualRole = loggedUser.getRole();
-        //check presence of the product;
-        try {
-            loggedUser.setRole("Administrator");
-            product = getProductTypeByBarCode(productCode);
-            if(product == null) {
-                loggedUser.setRole(actualRole);
-                return false;
-            }
-        } catch(Exception e) {
-            loggedUser.setRole(actualRole);
-            return false;
-        }
-
-        loggedUser.setRole(actualRole);
-
-        //update quantity
+        long rfid = RfidIndex.parse(RFID);
         try {
-            // delete row if productEntry amount is 0
-            String sql3 = "DELETE FROM productEntry WHERE transactionId=? AND barcode=? AND RFID=?";
-            PreparedStatement st2 = conn.prepareStatement(sql3);
-            st2.setInt(1,transactionId);
-            st2.setString(2,productCode);
-            st2.setString(3,RFID);
-            st2.executeUpdate();
-
-            loggedUser.setRole("Administrator");
-            // eventually increase amount of product available in inventory
-            if (!this.updateQuantity(product.getId(), 1)){
-                loggedUser.setRole(actualRole);
-                isInventoryUpdated = false;
-                return false;
-            }
-            isInventoryUpdated = false;
-            return true;
-
-        }catch(Exception e){
-            loggedUser.setRole(actualRole);
+            // resolved in memory by the RFID range index
+            String productCode = rfids.getBarCode(rfid);
+            return productCode != null && carts.removeTag(transactionId, productCode, rfid);
+        } catch (SQLException e) {
             return false;
         }
     }
@@ -1746,8 +1876,7 @@ public class EZShop implements EZShopInterface{
     @Override
     public boolean applyDiscountRateToProduct(Integer transactionId, String productCode, double discountRate) throws InvalidTransactionIdException, InvalidProductCodeException, InvalidDiscountRateException, UnauthorizedException {
         //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
+        authorize(Permission.CHECKOUT);
         //check id
         if(transactionId == null || transactionId <= 0)
             throw new InvalidTransactionIdException();
@@ -1764,1140 +1893,1345 @@ public class EZShop implements EZShopInterface{
             throw new InvalidProductCodeException();
         }
 
-        ProductType product;
-
-        //check transaction status
-        try {
-            String sql = "SELECT status FROM SaleTransaction WHERE id=? AND status='OPEN'";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1, transactionId);
-            ResultSet rs = st.executeQuery();
-
-            if(!rs.isBeforeFirst())
-                // no transaction id open
-                return false;
-            //if(!rs.getString("status").equals("OPEN"))
-            //    return false;
-        }catch (SQLException e) {
-            return false;
-        }
-
-//        //check productCode
-//        String sql1 = "SELECT barcode from productEntry WHERE transactionId=? AND barcode=?";
-//        try {
-//            PreparedStatement st = conn.prepareStatement(sql1);
-//            st.setInt(1,transactionId);
-//            st.setString(2,productCode);
-//            ResultSet rs=st.executeQuery();
-//            if(!rs.getString("barcode").equals(productCode)){
-//                return false;
-//            }
-//
-//        }catch(SQLException e){
-//            return false;
-//        }
-
-        String actualRole = loggedUser.getRole();
-        //check presence of the product;
-        try {
-            loggedUser.setRole("Administrator");
-            product = getProductTypeByBarCode(productCode);
-            if(product == null) {
-                loggedUser.setRole(actualRole);
-                return false;
-            }
-        } catch(Exception e) {
-            loggedUser.setRole(actualRole);
-            return false;
-        }
-
-        try {
-            String sql2 ="UPDATE productEntry SET discountRate=? WHERE transactionId=? AND barcode=?";
-            PreparedStatement st = conn.prepareStatement(sql2);
-            st.setDouble(1,discountRate);
-            st.setInt(2,transactionId);
-            st.setString(3,productCode);
-            int updatedRows = st.executeUpdate();
-
-            return !(updatedRows == 0);
-        }catch(SQLException e){
-            return false;
-        }
+        // false if the sale is not open or the product is not in it
+        return carts.setDiscountRate(transactionId, productCode, discountRate);
     }
 
     @Override
     public boolean applyDiscountRateToSale(Integer transactionId, double discountRate) throws InvalidTransactionIdException, InvalidDiscountRateException, UnauthorizedException {
-        // check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        // check id
-        if(transactionId==null||transactionId<=0)
-            throw new InvalidTransactionIdException();
-        // check discountRate
-        if(discountRate>=1.0||discountRate<0.0)
-            throw new InvalidDiscountRateException();
+        Connection conn = pool.begin();
+        try {
+            // check authorization
+            authorize(Permission.CHECKOUT);
+            // check id
+            if(transactionId==null||transactionId<=0)
+                throw new InvalidTransactionIdException();
+            // check discountRate
+            if(discountRate>=1.0||discountRate<0.0)
+                throw new InvalidDiscountRateException();
+
+            // open sale: only its cart changes
+            if(carts.setDiscountRate(transactionId, discountRate))
+                return true;
 
-        // check sale status
-        try {
-            String sql = "SELECT status FROM saleTransaction WHERE id=? AND status!='PAYED'";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1, transactionId);
-            ResultSet rs = st.executeQuery();
-//            if(rs.getString("status").equals("PAYED"))
-//                return false;
-            if(!rs.isBeforeFirst())
+            // check sale status
+            long subtotal;
+            try {
+                String sql = "SELECT subtotal FROM saleTransaction WHERE id=? AND status!='PAYED'";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1, transactionId);
+                ResultSet rs = st.executeQuery();
+    //            if(rs.getString("status").equals("PAYED"))
+    //                return false;
+                if(!rs.next())
+                    return false;
+                subtotal = rs.getLong("subtotal");
+            } catch (SQLException e) {
                 return false;
-        } catch (SQLException e) {
-            return false;
-        }
+            }
 
-        try {
-            String sql2 ="UPDATE saleTransaction SET discountRate=? WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql2);
-            st.setDouble(1, discountRate);
-            st.setInt(2, transactionId);
-            int updatedRows = st.executeUpdate();
-
-            return !(updatedRows == 0);
-        } catch(SQLException e) {
-            // transaction does not exist
-            return false;
+            // closed sale: the total follows the new rate, the lines are not read again
+            try {
+                String sql2 ="UPDATE saleTransaction SET discountRate=?, total=? WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql2);
+                st.setDouble(1, discountRate);
+                st.setLong(2, Money.discounted(subtotal, discountRate));
+                st.setInt(3, transactionId);
+                int updatedRows = st.executeUpdate();
+                tickets.invalidate(transactionId);
+
+                return !(updatedRows == 0);
+            } catch(SQLException e) {
+                // transaction does not exist
+                return false;
+            }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public int computePointsForSale(Integer transactionId) throws InvalidTransactionIdException, UnauthorizedException {
-        //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //check id
-        if(transactionId == null || transactionId<=0)
-            throw new InvalidTransactionIdException();
-        try {
-            String sql = "SELECT PE.amount AS amount, PE.discountRate AS PEdiscountRate, PT.pricePerUnit AS pricePerUnit, ST.discountRate AS STdiscountRate FROM productEntry PE,saleTransaction ST, productType PT WHERE ST.id=PE.transactionId AND ST.id=? AND PE.barcode=PT.productCode";
-            double priceWithoutSaleDiscount=0.0;
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1, transactionId);
-            ResultSet rs = st.executeQuery();
-            double discountRate=0.0;
-
-            if(rs.isClosed())
+        Connection conn = pool.acquire();
+        try {
+            //check authorization
+            authorize(Permission.CHECKOUT);
+            //check id
+            if(transactionId == null || transactionId<=0)
+                throw new InvalidTransactionIdException();
+            // open sale: the cart keeps its total
+            SaleCarts.Cart cart = carts.get(transactionId);
+            if(cart != null)
+                return Money.points(cart.getTotalCents());
+            // closed sale: the total written when it ended
+            try {
+                String sql = "SELECT total FROM saleTransaction WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1, transactionId);
+                ResultSet rs = st.executeQuery();
+                if(!rs.next())
+                    return -1;
+                return Money.points(rs.getLong("total")); // points
+            }catch(SQLException e){
                 return -1;
-
-            while(rs.next()){
-                discountRate = rs.getDouble("STdiscountRate");
-                priceWithoutSaleDiscount+=rs.getInt("amount")*rs.getDouble("pricePerUnit")
-                        -(rs.getInt("amount")*rs.getDouble("pricePerUnit"))*rs.getDouble("PEdiscountRate");
             }
-            double finalPrice = priceWithoutSaleDiscount - priceWithoutSaleDiscount*discountRate;
-            return (int) (finalPrice/10); // points
-        }catch(SQLException e){
-            return -1;
-        }
 
+        } finally {
+            pool.release();
+        }
     }
 
     @Override
     public boolean endSaleTransaction(Integer transactionId) throws InvalidTransactionIdException, UnauthorizedException {
-        //check authorization 
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //check id
-        if(transactionId == null || transactionId <= 0)
-            throw new InvalidTransactionIdException();
-
-        // check sale status
+        Connection conn = pool.begin();
         try {
-            String sql2 = "SELECT id FROM saleTransaction WHERE id=? AND status='OPEN'";
-            PreparedStatement st2 = conn.prepareStatement(sql2);
-            st2.setInt(1, transactionId);
-            ResultSet rs2 = st2.executeQuery();
+            //check authorization 
+            authorize(Permission.CHECKOUT);
+            //check id
+            if(transactionId == null || transactionId <= 0)
+                throw new InvalidTransactionIdException();
 
-//            while(rs2.next()) {
-//                if(rs2.getString("status").equals("PAYED") || rs2.getString("status").equals("CLOSED"))
-//                    return false;
-//            }
-            if(!rs2.isBeforeFirst())
+            // the sale must be open: its cart leaves the open sales, no more scans from now on
+            SaleCarts.Cart cart = carts.close(transactionId);
+            if(cart == null)
                 return false;
 
-        } catch (SQLException e) {
-            return false;
-        }
-        
-        //compute total price
-        double total;
-        try {
-            String sql = "SELECT PE.amount, PE.discountRate AS PEDiscountRate, PT.pricePerUnit, ST.discountRate AS saleDiscountRate, ST.status FROM productEntry PE,saleTransaction ST, productType PT WHERE ST.id=PE.transactionId AND ST.id=? AND PE.barcode=PT.productCode";
-            double priceWithoutSaleDiscount = 0.0;
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,transactionId);
-            ResultSet rs = st.executeQuery();
-//            if(rs.getString("status").equals("PAYED") || rs.getString("status").equals("CLOSED"))
-//                return false;
-            double stDiscountR = 0;
-            while(rs.next()){
-                stDiscountR = rs.getDouble("saleDiscountRate");
-                priceWithoutSaleDiscount += rs.getInt("amount")*rs.getDouble("pricePerUnit")
-                        - (rs.getInt("amount")*rs.getDouble("pricePerUnit"))*rs.getDouble("PEDiscountRate");
+            // lines, stock and sold items in one batch, with the total kept by the cart
+            if(!writeCart(conn, cart)) {
+                carts.reopen(cart);
+                return rollback(false);
             }
-            total = priceWithoutSaleDiscount - priceWithoutSaleDiscount*stDiscountR;
-
-        }catch(SQLException e){
-            return false;
-        }
-        
-        // update transaction by setting the status and its total
-        try {
-            String sql3 = "UPDATE saleTransaction SET status='CLOSED', total=? WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql3);
-            st.setDouble(1,total);
-            st.setInt(2,transactionId);
-            int updatedRows = st.executeUpdate();
-
-            return !(updatedRows == 0);
-        } catch(SQLException e) {
-            return false;
+            carts.settle(cart);
+            for(SaleCarts.Line line : cart.getLines())
+                if(line.getUnits() > 0)
+                    productTypes.patch(line.getProductId(), p -> withQuantity(p, -line.getUnits()));
+            return true;
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public boolean deleteSaleTransaction(Integer saleNumber) throws InvalidTransactionIdException, UnauthorizedException {
-        //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //check id
-        if(saleNumber==null||saleNumber<=0)
-            throw new InvalidTransactionIdException();
-
-        //check status
-        try {
-            String sql="SELECT status FROM saleTransaction WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1, saleNumber);
-            ResultSet rs = st.executeQuery();
-            while(rs.next()) {
-                if(rs.getString("status").equals("PAYED"))
-                    return false;
-            }
-        } catch(SQLException e) {
-            return false;
-        }
-
-        //restore quantity
-        String oldRole = loggedUser.getRole();
+        Connection conn = pool.begin();
         try {
-            String sql3 = "SELECT amount, barcode FROM productEntry WHERE transactionId=?";
-            PreparedStatement st = conn.prepareStatement(sql3);
-            st.setInt(1, saleNumber);
-            ResultSet rs = st.executeQuery();
+            //check authorization
+            authorize(Permission.CHECKOUT);
+            //check id
+            if(saleNumber==null||saleNumber<=0)
+                throw new InvalidTransactionIdException();
 
-            loggedUser.setRole("Administrator");
-            while(rs.next()){
+            // open sale: nothing but its row is in the database
+            if(carts.isOpen(saleNumber)) {
                 try {
-                    if (!this.updateQuantity(this.getProductTypeByBarCode(rs.getString("barcode")).getId(), rs.getInt("amount"))) {
-                        loggedUser.setRole(oldRole);
-                        return false;
-                    }
-                } catch(Exception e) {
-                    loggedUser.setRole(oldRole);
-                    return false;
+                    String sql = "DELETE FROM saleTransaction WHERE id=?";
+                    PreparedStatement st = conn.prepareStatement(sql);
+                    st.setInt(1, saleNumber);
+                    if(st.executeUpdate() == 0 || !carts.discard(saleNumber))
+                        return rollback(false);
+                    return true;
+                } catch (SQLException e) {
+                    return rollback(false);
                 }
             }
-            loggedUser.setRole(oldRole);
-        } catch(SQLException e) {
-            loggedUser.setRole(oldRole);
-            return false;
-        }
-
-        // delete transaction
-        try {
-            String sql2="DELETE FROM saleTransaction WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql2);
-            st.setInt(1,saleNumber);
-            int deletedRows = st.executeUpdate();
 
-            if(deletedRows == 0)
+            //check status
+            try {
+                String sql="SELECT status FROM saleTransaction WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1, saleNumber);
+                ResultSet rs = st.executeQuery();
+                while(rs.next()) {
+                    if(rs.getString("status").equals("PAYED"))
+                        return false;
+                }
+            } catch(SQLException e) {
                 return false;
+            }
 
-        }catch(SQLException e){
-            return false;
-        }
+            //restore quantity: the units of the sale per product, then one UPDATE for all of them
+            Map<Integer, Integer> restock = new LinkedHashMap<>();
+            try {
+                String sql3 = "SELECT PT.id AS productId, SUM(PE.amount) AS amount FROM productEntry PE LEFT JOIN productType PT ON PT.productCode=PE.barcode WHERE PE.transactionId=? GROUP BY PE.barcode";
+                PreparedStatement st = conn.prepareStatement(sql3);
+                st.setInt(1, saleNumber);
+                ResultSet rs = st.executeQuery();
+                while(rs.next()) {
+                    // product deleted since the sale
+                    if(rs.getObject("productId") == null)
+                        return rollback(false);
+                    restock.merge(rs.getInt("productId"), rs.getInt("amount"), Integer::sum);
+                }
 
-        // delete productentry for transaction
-        try {
-            String sql4 = "DELETE FROM productEntry WHERE transactionId=?";
-            PreparedStatement st = conn.prepareStatement(sql4);
-            st.setInt(1,saleNumber);
-            st.executeUpdate();
-            //int deletedRows = st.executeUpdate();
+                // loaded before the UPDATE: loaded after it, the catalog would already hold the units given back
+                for(Integer productId : restock.keySet())
+                    catalog.getById(productId);
+                if(!restock.isEmpty()) {
+                    String sql5 = "UPDATE productType SET quantity=quantity+(SELECT SUM(PE.amount) FROM productEntry PE WHERE PE.transactionId=? AND PE.barcode=productType.productCode) "
+                            + "WHERE productCode IN (SELECT barcode FROM productEntry WHERE transactionId=?) AND position IS NOT NULL";
+                    PreparedStatement st5 = conn.prepareStatement(sql5);
+                    st5.setInt(1, saleNumber);
+                    st5.setInt(2, saleNumber);
+                    // a product without a location cannot take its units back
+                    if(st5.executeUpdate() != restock.size())
+                        return rollback(false);
+                }
+            } catch(SQLException e) {
+                return rollback(false);
+            }
 
-            //if(deletedRows == 0)
-            // no error needed if there are no products to delete
-            //    return false;
+            // delete transaction
+            try {
+                String sql2="DELETE FROM saleTransaction WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql2);
+                st.setInt(1,saleNumber);
+                int deletedRows = st.executeUpdate();
 
-        }catch(SQLException e){
-            return false;
-        }
-        return true;
-    }
+                if(deletedRows == 0)
+                    return rollback(false);
+                tickets.invalidate(saleNumber);
 
-    @Override
-    public SaleTransaction getSaleTransaction(Integer transactionId) throws InvalidTransactionIdException, UnauthorizedException {
-        //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //check id
-        if(transactionId == null || transactionId <= 0)
-            throw new InvalidTransactionIdException();
+            }catch(SQLException e){
+                return rollback(false);
+            }
 
-        List<TicketEntry> entries = new ArrayList<>();
+            // the tagged items of the sale are back on the shelf
+            if(!releaseItems(conn, saleNumber))
+                return rollback(false);
+
+            // delete productentry for transaction
+            try {
+                String sql4 = "DELETE FROM productEntry WHERE transactionId=?";
+                PreparedStatement st = conn.prepareStatement(sql4);
+                st.setInt(1,saleNumber);
+                st.executeUpdate();
+                //int deletedRows = st.executeUpdate();
+
+                //if(deletedRows == 0)
+                // no error needed if there are no products to delete
+                //    return rollback(false);
+
+            }catch(SQLException e){
+                return rollback(false);
+            }
+            for(Map.Entry<Integer, Integer> product : restock.entrySet()) {
+                catalog.addQuantity(product.getKey(), product.getValue());
+                productTypes.patch(product.getKey(), p -> withQuantity(p, product.getValue()));
+            }
+            return true;
+        } finally {
+            pool.release();
+        }
+    }
+
+    @Override
+    public SaleTransaction getSaleTransaction(Integer transactionId) throws InvalidTransactionIdException, UnauthorizedException {
+        Connection conn = pool.acquire();
         try {
-            // create the saleTransaction, only if it is CLOSED (or PAYED in case of returnTransaction)
-            //if(rs.isClosed())
-            String sql2 = "SELECT ST.id, ST.discountRate, ST.total FROM saleTransaction ST WHERE ST.id=? AND status!='OPEN'";
-            PreparedStatement st2 = conn.prepareStatement(sql2);
-            st2.setInt(1, transactionId);
-            ResultSet rs2 = st2.executeQuery();
-            if(!rs2.next())
+            //check authorization
+            authorize(Permission.CHECKOUT);
+            //check id
+            if(transactionId == null || transactionId <= 0)
+                throw new InvalidTransactionIdException();
+
+            try {
+                return ticket(conn, transactionId);
+            } catch(SQLException e) {
                 return null;
-            int id = rs2.getInt("id");
-            double discountRate = rs2.getDouble("discountRate");
-            double total = rs2.getDouble("total");
+            }
+        } finally {
+            pool.release();
+        }
+    }
 
-            // create the list of ticketEntries to put inside saleTransaction
-            String sql="SELECT ST.id, ST.discountRate AS STDiscountRate, ST.total, PE.barcode AS barcode, PE.amount, PE.discountRate AS PEDiscountRate, PT.description AS description, PT.pricePerUnit AS pricePerUnit FROM saleTransaction ST, productEntry PE, productType PT WHERE PE.transactionId=ST.id AND ST.id=? AND PE.barcode=PT.productCode";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1, transactionId);
-            ResultSet rs = st.executeQuery();
-            //if(!rs.isBeforeFirst())
-                //return null;
-            while(rs.next()){
-                entries.add(new MyTicketEntry(
-                        rs.getString("barcode"),
-                        rs.getString("description"),
-                        rs.getInt("amount"),
-                        rs.getDouble("pricePerUnit"),
-                        rs.getDouble("PEDiscountRate")
-                ));
-            }
-
-            //rs2.next();
-            //if (rs.isClosed()) {
-            // if no product entry is found, return a saleTransaction with empty "entries" list
-            return new MySaleTransaction(id, entries, discountRate, total);
-            //}
-        } catch(SQLException e) {
+    // the ticket of an ended sale, from the cache or materialized and cached; null if the sale is open or missing
+    private static MySaleTransaction ticket(Connection conn, int transactionId) throws SQLException {
+        MySaleTransaction cached = tickets.get(transactionId);
+        if(cached != null)
+            return cached;
+        long stamp = tickets.stamp();
+
+        // create the saleTransaction, only if it is CLOSED (or PAYED in case of returnTransaction)
+        String sql2 = "SELECT ST.id, ST.discountRate, ST.total FROM saleTransaction ST WHERE ST.id=? AND status!='OPEN'";
+        PreparedStatement st2 = conn.prepareStatement(sql2);
+        st2.setInt(1, transactionId);
+        ResultSet rs2 = st2.executeQuery();
+        if(!rs2.next())
             return null;
+        int id = rs2.getInt("id");
+        double discountRate = rs2.getDouble("discountRate");
+        long total = rs2.getLong("total");
+
+        // create the list of ticketEntries to put inside saleTransaction
+        List<TicketEntry> entries = new ArrayList<>();
+        String sql="SELECT ST.id, ST.discountRate AS STDiscountRate, ST.total, PE.barcode AS barcode, PE.amount, PE.discountRate AS PEDiscountRate, PT.description AS description, PT.pricePerUnit AS pricePerUnit FROM saleTransaction ST, productEntry PE, productType PT WHERE PE.transactionId=ST.id AND ST.id=? AND PE.barcode=PT.productCode";
+        PreparedStatement st = conn.prepareStatement(sql);
+        st.setInt(1, transactionId);
+        ResultSet rs = st.executeQuery();
+        while(rs.next()){
+            entries.add(MyTicketEntry.ofCents(
+                    rs.getString("barcode"),
+                    rs.getString("description"),
+                    rs.getInt("amount"),
+                    rs.getLong("pricePerUnit"),
+                    rs.getDouble("PEDiscountRate")
+            ));
         }
+
+        // if no product entry is found, return a saleTransaction with empty "entries" list
+        MySaleTransaction sale = MySaleTransaction.ofCents(id, entries, discountRate, total);
+        tickets.put(sale, stamp);
+        return sale;
     }
 
     @Override
     public Integer startReturnTransaction(Integer saleNumber) throws /*InvalidTicketNumberException,*/InvalidTransactionIdException, UnauthorizedException {
         //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
+        authorize(Permission.CHECKOUT);
         //check id
         if(saleNumber == null || saleNumber <= 0)
             throw new InvalidTransactionIdException();
-        //int res;
-        int tempId=1;
-        //check existence of a payed SaleTransaction
+        int tempId;
         try {
-            String sql2 = "SELECT id FROM saleTransaction WHERE id=? AND status='PAYED'";
-            PreparedStatement st2 = conn.prepareStatement(sql2);
-            st2.setInt(1,saleNumber);
-            ResultSet rs2 = st2.executeQuery();
-            if(!rs2.isBeforeFirst()){
-                return -1;
-            }
-        } catch(SQLException e) {
+            // taken before the unit of work, a new block is reserved in a transaction of its own
+            tempId = ids.nextReturnId();
+        } catch (SQLException e) {
             return -1;
         }
-
-        // create a new and empty return transaction
+        Connection conn = pool.begin();
         try {
-            String sql = "SELECT id FROM returnTransaction ORDER BY id DESC LIMIT 1";
-            PreparedStatement st = conn.prepareStatement(sql);
-            ResultSet rs = st.executeQuery();
-            if(rs.isBeforeFirst())
-            {
-                rs.next();
-                tempId=rs.getInt("id")+2;
+            //check existence of a payed SaleTransaction
+            try {
+                String sql2 = "SELECT id FROM saleTransaction WHERE id=? AND status='PAYED'";
+                PreparedStatement st2 = conn.prepareStatement(sql2);
+                st2.setInt(1,saleNumber);
+                ResultSet rs2 = st2.executeQuery();
+                if(!rs2.isBeforeFirst()){
+                    return -1;
+                }
+            } catch(SQLException e) {
+                return -1;
             }
-            String sql2 = "INSERT INTO returnTransaction (id, saleTransactionId,discountRate,total,status) VALUES (?,?,0.0,0.0,'OPEN')";
-            PreparedStatement st2 = conn.prepareStatement(sql2);
-            st2.setInt(1,tempId);
-            st2.setInt(2,saleNumber);
-            st2.executeUpdate();
-            //res= st.getGeneratedKeys().getInt(1);
-            return st2.getGeneratedKeys().getInt(1);
-        }catch(SQLException e){
-            return -1;
+
+            // create a new and empty return transaction
+            try {
+                String sql2 = "INSERT INTO returnTransaction (id, saleTransactionId,discountRate,total,status) VALUES (?,?,0.0,0.0,'OPEN')";
+                PreparedStatement st2 = conn.prepareStatement(sql2);
+                st2.setInt(1,tempId);
+                st2.setInt(2,saleNumber);
+                st2.executeUpdate();
+                return tempId;
+            }catch(SQLException e){
+                return -1;
+            }
+        } finally {
+            pool.release();
         }
-        //return res;
     }
 
     @Override
     public boolean returnProduct(Integer returnId, String productCode, int amount) throws InvalidTransactionIdException, InvalidProductCodeException, InvalidQuantityException, UnauthorizedException{
-        //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //check id
-        if(returnId == null || returnId <= 0)
-            throw new InvalidTransactionIdException();
-        //check quantity
-        if(amount <= 0)
-            throw new InvalidQuantityException();
-
-        // productCode not null, not empty
-        if(productCode == null || productCode.equals("") )
-            throw new InvalidProductCodeException();
-
-        // check if productCode is valid
-        if(!validateProductCode(productCode)) {
-            throw new InvalidProductCodeException();
-        }
-
-        // check if return transaction exists and returns its saleTransactionId
-        int saleTransactionId;
-        try {
-            String sql = "SELECT saleTransactionId FROM returnTransaction WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,returnId);
-
-            ResultSet rs = st.executeQuery();
-            if(!rs.next())
-                return false;
-            saleTransactionId = rs.getInt("saleTransactionId");
-
-        } catch(SQLException e) {
-            return false;
-        }
+        Connection conn = pool.begin();
+        try {
+            //check authorization
+            authorize(Permission.CHECKOUT);
+            //check id
+            if(returnId == null || returnId <= 0)
+                throw new InvalidTransactionIdException();
+            //check quantity
+            if(amount <= 0)
+                throw new InvalidQuantityException();
+
+            // productCode not null, not empty
+            if(productCode == null || productCode.equals("") )
+                throw new InvalidProductCodeException();
+
+            // check if productCode is valid
+            if(!validateProductCode(productCode)) {
+                throw new InvalidProductCodeException();
+            }
 
-        // check if there is the product and the proper quantity in the sale transaction
-        double discountOfProduct;
-        int saleAmount;
-        try {
-            String sql3 = "SELECT amount, discountRate FROM productEntry WHERE transactionId=? AND barcode=?";
-            PreparedStatement st3 = conn.prepareStatement(sql3);
-            st3.setInt(1,saleTransactionId);
-            st3.setString(2,productCode);
+            // check if return transaction exists and returns its saleTransactionId
+            int saleTransactionId;
+            try {
+                String sql = "SELECT saleTransactionId FROM returnTransaction WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1,returnId);
 
-            ResultSet rs3 = st3.executeQuery();
+                ResultSet rs = st.executeQuery();
+                if(!rs.next())
+                    return false;
+                saleTransactionId = rs.getInt("saleTransactionId");
 
-            if(!rs3.next())
-                return false;
-            discountOfProduct = rs3.getDouble("discountRate");
-            saleAmount = rs3.getInt("amount");
-            if(amount > saleAmount)
+            } catch(SQLException e) {
                 return false;
-        }catch(SQLException e) {
-            return false;
-        }
+            }
 
-        // check total amount of the return transaction
-        try {
-            String sql5 = "SELECT amount FROM productEntry WHERE transactionId=? AND barcode=?";
-            PreparedStatement st5 = conn.prepareStatement(sql5);
-            st5.setInt(1,returnId);
-            st5.setString(2,productCode);
-            ResultSet rs5 = st5.executeQuery();
-
-            if(rs5.next())
-                if(amount + rs5.getInt("amount") > saleAmount)
+            // check if there is the product and the proper quantity in the sale transaction, on its ticket
+            double discountOfProduct;
+            int saleAmount;
+            try {
+                TicketEntry line = null;
+                MySaleTransaction sale = ticket(conn, saleTransactionId);
+                if(sale != null)
+                    for(TicketEntry e : sale.getEntries())
+                        if(e.getBarCode().equals(productCode)) {
+                            line = e;
+                            break;
+                        }
+                if(line == null)
                     return false;
-        }catch(SQLException e) {
-            return false;
-        }
-
-        // insert a new productEntry for returnTransaction if not yet created
-        try {
-            String sql2 = "INSERT INTO productEntry (transactionId, barcode, amount, discountRate) VALUES (?,?,?,?) ";
-            PreparedStatement st2 = conn.prepareStatement(sql2);
-            st2.setInt(1,returnId);
-            st2.setString(2,productCode);
-            st2.setInt(3,amount);
-            st2.setDouble(4,discountOfProduct);
+                discountOfProduct = line.getDiscountRate();
+                saleAmount = line.getAmount();
+                if(amount > saleAmount)
+                    return false;
+            }catch(SQLException e) {
+                return false;
+            }
 
-            int updatedRows = st2.executeUpdate();
-            return !(updatedRows == 0);
+            // check total amount of the return transaction
+            try {
+                String sql5 = "SELECT amount FROM productEntry WHERE transactionId=? AND barcode=?";
+                PreparedStatement st5 = conn.prepareStatement(sql5);
+                st5.setInt(1,returnId);
+                st5.setString(2,productCode);
+                ResultSet rs5 = st5.executeQuery();
+
+                if(rs5.next())
+                    if(amount + rs5.getInt("amount") > saleAmount)
+                        return false;
+            }catch(SQLException e) {
+                return false;
+            }
 
-        }catch(SQLException e) {
-            // update an existing product entry for an existing return transaction
+            // insert a new productEntry for returnTransaction if not yet created
             try {
-                String sql4 = "UPDATE productEntry SET amount=amount+? WHERE transactionId=? AND barcode=?";
-                PreparedStatement st4 = conn.prepareStatement(sql4);
-                st4.setInt(1,amount);
-                st4.setInt(2,returnId);
-                st4.setString(3,productCode);
-                int updatedRows = st4.executeUpdate();
+                String sql2 = "INSERT INTO productEntry (transactionId, barcode, amount, discountRate) VALUES (?,?,?,?) ";
+                PreparedStatement st2 = conn.prepareStatement(sql2);
+                st2.setInt(1,returnId);
+                st2.setString(2,productCode);
+                st2.setInt(3,amount);
+                st2.setDouble(4,discountOfProduct);
 
+                int updatedRows = st2.executeUpdate();
                 return !(updatedRows == 0);
 
-            } catch(SQLException e2) {
-                    return false;
+            }catch(SQLException e) {
+                // update an existing product entry for an existing return transaction
+                try {
+                    String sql4 = "UPDATE productEntry SET amount=amount+? WHERE transactionId=? AND barcode=?";
+                    PreparedStatement st4 = conn.prepareStatement(sql4);
+                    st4.setInt(1,amount);
+                    st4.setInt(2,returnId);
+                    st4.setString(3,productCode);
+                    int updatedRows = st4.executeUpdate();
+
+                    return !(updatedRows == 0);
+
+                } catch(SQLException e2) {
+                        return false;
+                }
+                //return false;
             }
-            //return false;
-        }
 
+        } finally {
+            pool.release();
+        }
     }
 
     @Override
     public boolean returnProductRFID(Integer returnId, String RFID) throws InvalidTransactionIdException, InvalidRFIDException, UnauthorizedException {
-        //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //check id
-        if(returnId == null || returnId <= 0)
-            throw new InvalidTransactionIdException();
-
-        if(RFID== null || RFID.length()!=12 || !RFID.matches("^[0-9]{12}$")) {
-            throw new InvalidRFIDException();
-        }
-
-        // check if return transaction exists and returns its saleTransactionId
-        int saleTransactionId;
+        Connection conn = pool.begin();
         try {
-            String sql = "SELECT saleTransactionId FROM returnTransaction WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,returnId);
+            //check authorization
+            authorize(Permission.CHECKOUT);
+            //check id
+            if(returnId == null || returnId <= 0)
+                throw new InvalidTransactionIdException();
 
-            ResultSet rs = st.executeQuery();
-            if(!rs.next())
-                return false;
-            saleTransactionId = rs.getInt("saleTransactionId");
+            if(RFID== null || RFID.length()!=12 || !RFID.matches("^[0-9]{12}$")) {
+                throw new InvalidRFIDException();
+            }
 
-        } catch(SQLException e) {
-            return false;
-        }
+            // check if return transaction exists and returns its saleTransactionId
+            int saleTransactionId;
+            try {
+                String sql = "SELECT saleTransactionId FROM returnTransaction WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1,returnId);
 
-        String productCode;
-        try {
-            String sql = "SELECT product.barcode FROM product, productEntry WHERE product.RFID=? AND productEntry.transactionId=? AND product.RFID=productEntry.RFID";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setString(1, RFID);
-            st.setInt(2,saleTransactionId);
-            ResultSet rs = st.executeQuery();
-            if(!rs.isBeforeFirst())
-                // no barcode found
+                ResultSet rs = st.executeQuery();
+                if(!rs.next())
+                    return false;
+                saleTransactionId = rs.getInt("saleTransactionId");
+
+            } catch(SQLException e) {
                 return false;
-            rs.next();
+            }
 
-            productCode = rs.getString("barcode");
-        } catch (Exception e) {
-            return false;
-        }
+            String productCode;
+            try {
+                // resolved in memory, the query below checks that the item was sold in the sale transaction
+                productCode = rfids.getBarCode(RfidIndex.parse(RFID));
+                if(productCode == null)
+                    // no barcode found
+                    return false;
+            } catch (Exception e) {
+                return false;
+            }
 
-        // check if there is the product and the proper quantity in the sale transaction
-        double discountOfProduct;
-        try {
-            String sql3 = "SELECT discountRate FROM productEntry WHERE transactionId=? AND barcode=? AND RFID=?";
-            PreparedStatement st3 = conn.prepareStatement(sql3);
-            st3.setInt(1,saleTransactionId);
-            st3.setString(2,productCode);
-            st3.setString(3,RFID);
-            ResultSet rs3 = st3.executeQuery();
+            // check if there is the product and the proper quantity in the sale transaction
+            double discountOfProduct;
+            try {
+                String sql3 = "SELECT discountRate FROM productEntry WHERE transactionId=? AND barcode=? AND RFID=?";
+                PreparedStatement st3 = conn.prepareStatement(sql3);
+                st3.setInt(1,saleTransactionId);
+                st3.setString(2,productCode);
+                st3.setString(3,RFID);
+                ResultSet rs3 = st3.executeQuery();
 
-            if(!rs3.isBeforeFirst())
+                if(!rs3.isBeforeFirst())
+                    return false;
+                rs3.next();
+                discountOfProduct = rs3.getDouble("discountRate");
+            }catch(SQLException e) {
                 return false;
-            rs3.next();
-            discountOfProduct = rs3.getDouble("discountRate");
-        }catch(SQLException e) {
-            return false;
-        }
+            }
 
-        // insert a new productEntry for returnTransaction if not yet created
-        try {
-            String sql2 = "INSERT INTO productEntry (transactionId, barcode, amount, discountRate, RFID) VALUES (?,?,?,?,?)";
-            PreparedStatement st2 = conn.prepareStatement(sql2);
-            st2.setInt(1,returnId);
-            st2.setString(2,productCode);
-            st2.setInt(3,1);
-            st2.setDouble(4,discountOfProduct);
-            st2.setString(5, RFID);
+            // insert a new productEntry for returnTransaction if not yet created
+            try {
+                String sql2 = "INSERT INTO productEntry (transactionId, barcode, amount, discountRate, RFID) VALUES (?,?,?,?,?)";
+                PreparedStatement st2 = conn.prepareStatement(sql2);
+                st2.setInt(1,returnId);
+                st2.setString(2,productCode);
+                st2.setInt(3,1);
+                st2.setDouble(4,discountOfProduct);
+                st2.setString(5, RFID);
 
-            int updatedRows = st2.executeUpdate();
-            return !(updatedRows == 0);
+                int updatedRows = st2.executeUpdate();
+                return !(updatedRows == 0);
 
-        }catch(SQLException e) {
-            return false;
+            }catch(SQLException e) {
+                return false;
+            }
+        } finally {
+            pool.release();
         }
     }
 
     @Override
     public boolean endReturnTransaction(Integer returnId, boolean commit) throws InvalidTransactionIdException, UnauthorizedException {
-        //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //check id
-        if(returnId==null||returnId<=0)
-            throw new InvalidTransactionIdException();
-
-        if(!commit){
-            return this.deleteReturnTransaction(returnId);
-        }
-
-        //check status
-
-        String productCode;
-        int amount=0;
-        int idSaleTransaction;
-        ProductType product=null;
-        String oldRole=loggedUser.getRole();
+        Connection conn = pool.begin();
         try {
-            String sql5="SELECT PE.barcode AS barcode, amount, RT.saleTransactionId AS saleTransactionId FROM returnTransaction RT, productEntry PE WHERE RT.id=? AND PE.transactionId=RT.id AND status='OPEN'";
-            PreparedStatement st5 = conn.prepareStatement(sql5);
-            st5.setInt(1, returnId);
-            ResultSet rs5 = st5.executeQuery();
+            //check authorization
+            authorize(Permission.CHECKOUT);
+            //check id
+            if(returnId==null||returnId<=0)
+                throw new InvalidTransactionIdException();
 
-            if(!rs5.isBeforeFirst())
-                return false;
+            if(!commit){
+                return this.deleteReturnTransaction(returnId);
+            }
 
-            while(rs5.next()) {
-                productCode = rs5.getString("barcode");
-                amount = rs5.getInt("amount");
-                idSaleTransaction = rs5.getInt("saleTransactionId");
-                loggedUser.setRole("Administrator");
-                if ((product = this.getProductTypeByBarCode(productCode)) == null) {
-                    loggedUser.setRole(oldRole);
-                    return false;
+            // the returned lines, with what is needed to put them back: one read, then batches whatever the size
+            int idSaleTransaction = -1;
+            double discountOfSale = 0.0;
+            long total = 0;
+            // units returned by barcode, the tagged items apart: barcode and RFID
+            Map<String, Integer> returned = new LinkedHashMap<>();
+            List<String[]> returnedTags = new ArrayList<>();
+            Map<Integer, Integer> restock = new LinkedHashMap<>();
+            try {
+                String sql = "SELECT PE.barcode AS barcode, PE.amount AS amount, PE.discountRate AS discountRate, PE.RFID AS RFID, PT.id AS productId, PT.pricePerUnit AS pricePerUnit, "
+                        + "RT.saleTransactionId AS saleTransactionId, ST.discountRate AS saleDiscountRate FROM returnTransaction RT "
+                        + "JOIN productEntry PE ON PE.transactionId=RT.id JOIN saleTransaction ST ON ST.id=RT.saleTransactionId "
+                        + "LEFT JOIN productType PT ON PT.productCode=PE.barcode WHERE RT.id=? AND RT.status='OPEN'";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1, returnId);
+                ResultSet rs = st.executeQuery();
+                while(rs.next()) {
+                    // product deleted since the sale
+                    if(rs.getObject("productId") == null)
+                        return rollback(false);
+                    idSaleTransaction = rs.getInt("saleTransactionId");
+                    discountOfSale = rs.getDouble("saleDiscountRate");
+                    int amount = rs.getInt("amount");
+                    if(rs.getString("RFID") == null)
+                        returned.merge(rs.getString("barcode"), amount, Integer::sum);
+                    else
+                        returnedTags.add(new String[]{rs.getString("barcode"), rs.getString("RFID")});
+                    restock.merge(rs.getInt("productId"), amount, Integer::sum);
+                    // discounted like the sale was: the line first, then the whole sale
+                    long line = Money.discounted(Money.times(rs.getLong("pricePerUnit"), amount), rs.getDouble("discountRate"));
+                    total += Money.discounted(line, discountOfSale);
                 }
+            } catch(SQLException e) {
+                return rollback(false);
+            }
+            if(restock.isEmpty())
+                return false;
 
-                String sql9 = "UPDATE ProductEntry SET amount=amount-? WHERE transactionId=? AND barcode=?";
-                PreparedStatement st6 = conn.prepareStatement(sql9);
-                st6.setInt(1, amount);
-                st6.setInt(2, idSaleTransaction);
-                st6.setString(3, productCode);
-                int updatedRows = st6.executeUpdate();
-                if (updatedRows == 0) {
-                    loggedUser.setRole(oldRole);
-                    return false;
+            try {
+                // the sale keeps what has not been returned: a tagged item is a row of its own, one per RFID
+                String sql2 = "UPDATE productEntry SET amount=amount-? WHERE transactionId=? AND barcode=? AND RFID IS ?";
+                PreparedStatement entries = conn.prepareStatement(sql2);
+                for(String[] tag : returnedTags) {
+                    entries.setInt(1, 1);
+                    entries.setInt(2, idSaleTransaction);
+                    entries.setString(3, tag[0]);
+                    entries.setString(4, tag[1]);
+                    entries.addBatch();
+                }
+                if(!returnedTags.isEmpty())
+                    for(int updatedRows : entries.executeBatch())
+                        if(updatedRows == 0)
+                            return rollback(false);
+
+                // the other units are taken from the rows left of their barcode, the untagged one first: one read
+                if(!returned.isEmpty()) {
+                    String sqlRows = "SELECT barcode, RFID, amount FROM productEntry WHERE transactionId=? AND amount>0 "
+                            + "AND barcode IN (SELECT barcode FROM productEntry WHERE transactionId=? AND RFID IS NULL) ORDER BY barcode, RFID IS NOT NULL, RFID";
+                    PreparedStatement rows = conn.prepareStatement(sqlRows);
+                    rows.setInt(1, idSaleTransaction);
+                    rows.setInt(2, returnId);
+                    Map<String, Integer> left = new HashMap<>(returned);
+                    ResultSet rs = rows.executeQuery();
+                    while(rs.next()) {
+                        String barCode = rs.getString("barcode");
+                        int taken = Math.min(left.get(barCode), rs.getInt("amount"));
+                        if(taken == 0)
+                            continue;
+                        entries.setInt(1, taken);
+                        entries.setInt(2, idSaleTransaction);
+                        entries.setString(3, barCode);
+                        entries.setString(4, rs.getString("RFID"));
+                        entries.addBatch();
+                        left.put(barCode, left.get(barCode) - taken);
+                    }
+                    rs.close();
+                    // more than the sale holds
+                    for(int units : left.values())
+                        if(units > 0)
+                            return rollback(false);
+                    for(int updatedRows : entries.executeBatch())
+                        if(updatedRows == 0)
+                            return rollback(false);
                 }
 
-                if (!this.updateQuantity(product.getId(), amount)) {
-                    loggedUser.setRole(oldRole);
-                    return false;
+                String sql3 = "DELETE FROM productEntry WHERE transactionId=? AND amount=0 AND barcode IN (SELECT barcode FROM productEntry WHERE transactionId=?)";
+                PreparedStatement empty = conn.prepareStatement(sql3);
+                empty.setInt(1, idSaleTransaction);
+                empty.setInt(2, returnId);
+                empty.executeUpdate();
+
+                // the units go back on the shelf
+                String sql4 = "UPDATE productType SET quantity=quantity+? WHERE id=? AND position IS NOT NULL";
+                PreparedStatement stock = conn.prepareStatement(sql4);
+                for(Map.Entry<Integer, Integer> product : restock.entrySet()) {
+                    // loaded before the UPDATE, so that it does not read the new quantity and add it again
+                    catalog.getById(product.getKey());
+                    stock.setInt(1, product.getValue());
+                    stock.setInt(2, product.getKey());
+                    stock.addBatch();
                 }
+                for(int updatedRows : stock.executeBatch())
+                    if(updatedRows == 0)
+                        // productType has not an assigned location
+                        return rollback(false);
+            } catch(SQLException e) {
+                return rollback(false);
+            }
+            tickets.invalidate(idSaleTransaction);
 
-                // delete row if productentry amount is 0
-                String sql7 = "DELETE FROM productEntry WHERE amount=0 AND transactionId=? AND barcode=?";
-                PreparedStatement st7 = conn.prepareStatement(sql7);
-                st7.setInt(1, idSaleTransaction);
-                st7.setString(2, productCode);
-                st7.executeUpdate();
+            // the returned tagged items are back on the shelf
+            if(!releaseItems(conn, returnId))
+                return rollback(false);
 
-                isInventoryUpdated = false;
-                loggedUser.setRole(oldRole);
+            // update transaction by setting the status
+            try{
+                String sql5 = "UPDATE returnTransaction SET status='CLOSED', total=?, discountRate=?  WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql5);
+                st.setLong(1, total);
+                st.setDouble(2, discountOfSale);
+                st.setInt(3,returnId);
+                int updatedRows = st.executeUpdate();
+                if(updatedRows == 0)
+                    return rollback(false);
+            }catch(SQLException e){
+                // the quantities given back to the inventory are rolled back as well
+                return rollback(false);
             }
-        } catch(Exception e){
-            loggedUser.setRole(oldRole);
-            return false;
+            // in memory only once every statement has succeeded
+            for(Map.Entry<Integer, Integer> product : restock.entrySet()) {
+                catalog.addQuantity(product.getKey(), product.getValue());
+                productTypes.patch(product.getKey(), p -> withQuantity(p, product.getValue()));
+            }
+            return true;
+        } finally {
+            pool.release();
         }
+    }
 
-//        ProductType product;
-//        String oldRole=loggedUser.getRole();
-//        try {
-//            loggedUser.setRole("Administrator");
-//            product = this.getProductTypeByBarCode(productCode);
-//            loggedUser.setRole(oldRole);
-//        }catch(Exception e) {
-//            loggedUser.setRole(oldRole);
-//            return false;
-//        }
-//
-//        try{
-//            loggedUser.setRole("Administrator");
-//
-//            //decrease productEntry of sale
-//            String sql9 = "UPDATE ProductEntry SET amount=amount-? WHERE transactionId=? AND barcode=?";
-//            try{
-//                PreparedStatement st5 = conn.prepareStatement(sql9);
-//                st5.setInt(1,amount);
-//                st5.setInt(2,idSaleTransaction);
-//                st5.setString(3,productCode);
-//                st5.executeUpdate();
-//
-//                this.updateQuantity(product.getId(),amount);
-//            }catch (SQLException e){e.printStackTrace();}
-//            loggedUser.setRole(oldRole);
-//        }catch(Exception e) {
-//            loggedUser.setRole(oldRole);
-//            return false;
-//        }
-
-        double discountOfSale;
-        //get discountRate of sale
-        try{
-            String sql4="SELECT ST.discountRate AS rate FROM returnTransaction RT, saleTransaction ST WHERE ST.id=RT.saleTransactionId AND RT.id=?";
-            PreparedStatement st = conn.prepareStatement(sql4);
-            st.setInt(1,returnId);
-            ResultSet rs = st.executeQuery();
+    @Override
+    public boolean deleteReturnTransaction(Integer returnId) throws InvalidTransactionIdException, UnauthorizedException {
+        Connection conn = pool.begin();
+        try {
+            //check authorization
+            authorize(Permission.CHECKOUT);
+            //check id
+            if(returnId==null||returnId<=0)
+                throw new InvalidTransactionIdException();
 
-            if(!rs.next())
+            //check status
+            try {
+                String sql = "SELECT status FROM returnTransaction WHERE id=? AND status!='PAYED'";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1,returnId);
+                ResultSet rs = st.executeQuery();
+                if(!rs.isBeforeFirst())
+                    return false;
+            }catch(SQLException e){
                 return false;
+            }
 
-            discountOfSale=rs.getDouble("rate");
-        }catch(SQLException e){
-            return false;
-        }
+            try {
+                String sql="DELETE FROM productEntry WHERE transactionId=?";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1,returnId);
+                st.executeUpdate();
 
-        //discount rate products
-        double total=0;
-        try{
-            String sql3="SELECT PE.amount AS amount, PT.pricePerUnit AS pricePerUnit, PE.discountRate AS discountRate FROM productEntry PE, productType PT WHERE PE.barcode=PT.productCode AND PE.transactionId=?";
-            PreparedStatement st = conn.prepareStatement(sql3);
-            st.setInt(1,returnId);
-            ResultSet rs = st.executeQuery();
-            while(rs.next()){
-                double price = rs.getDouble("pricePerUnit");
-                price = price - price*discountOfSale;
-                total+=rs.getInt("amount")* price  - (price* (rs.getDouble("discountRate"))*rs.getInt("amount"));
+            }catch(SQLException e){
+                return false;
             }
 
-        }catch(SQLException e){
-            return false;
-        }
+            try {
+                String sql="DELETE FROM returnTransaction WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1,returnId);
+                st.executeUpdate();
 
-        // update transaction by setting the status
-        try{
-            String sql2 = "UPDATE returnTransaction SET status='CLOSED', total=?, discountRate=?  WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql2);
-            st.setDouble(1, total);
-            st.setDouble(2, discountOfSale);
-            st.setInt(3,returnId);
-            int updatedRows = st.executeUpdate();
-            return !(updatedRows == 0);
-        }catch(SQLException e){
-            try{
-                loggedUser.setRole("Administrator");
-                if(product != null)
-                    this.updateQuantity(product.getId(),-amount);
-                loggedUser.setRole(oldRole);
-                return false;
-            }catch(Exception ee){
-                loggedUser.setRole(oldRole);
-                return false;
+            }catch(SQLException e){
+                return rollback(false);
             }
+
+            return true;
+
+        } finally {
+            pool.release();
         }
     }
 
     @Override
-    public boolean deleteReturnTransaction(Integer returnId) throws InvalidTransactionIdException, UnauthorizedException {
-        //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //check id
-        if(returnId==null||returnId<=0)
-            throw new InvalidTransactionIdException();
+    public double receiveCashPayment(Integer transactionId, double cash) throws InvalidTransactionIdException, InvalidPaymentException, UnauthorizedException {
+        Connection conn = pool.begin();
+        try {
+            //check authorization
+            authorize(Permission.CHECKOUT);
+            //check id
+            if(transactionId==null||transactionId<=0)
+                throw new InvalidTransactionIdException("Invalid Transaction Id");
+            //check cash
+            if(cash <= 0)
+                throw new InvalidPaymentException("Invalid Payment");
+
+            long total;
+            try {
+                String sql="SELECT total FROM saleTransaction WHERE id=? AND status='CLOSED'";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1,transactionId);
+                ResultSet rs = st.executeQuery();
+                rs.next();
+                total = rs.getLong("total");
+            }catch(SQLException e){
+                return -1.0;
+            }
 
-        //check status
-        try {
-            String sql = "SELECT status FROM returnTransaction WHERE id=? AND status!='PAYED'";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,returnId);
-            ResultSet rs = st.executeQuery();
-            if(!rs.isBeforeFirst())
-                return false;
-        }catch(SQLException e){
-            return false;
+            if(total>Money.cents(cash)){
+                return -1.0;
+            }else{
+                if(!this.recordBalance(total))
+                    return rollback(-1.0);
+                // update transaction by setting the status
+                try{
+                    String sql2 = "UPDATE saleTransaction SET status='PAYED' WHERE id=?";
+                    PreparedStatement st = conn.prepareStatement(sql2);
+                    st.setInt(1,transactionId);
+                    int updatedRows = st.executeUpdate();
+
+                    if (updatedRows>0)
+                        return Money.toDouble(Money.cents(cash)-total);
+
+                }catch(SQLException e) {
+                    return rollback(-1.0);
+                }
+                return rollback(-1.0);
+            }
+        } finally {
+            pool.release();
         }
+    }
 
+    @Override
+    public boolean receiveCreditCardPayment(Integer transactionId, String creditCard) throws InvalidTransactionIdException, InvalidCreditCardException, UnauthorizedException {
+        Connection conn = pool.begin();
         try {
-            String sql="DELETE FROM productEntry WHERE transactionId=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,returnId);
-            st.executeUpdate();
+            authorize(Permission.CHECKOUT);
+            //check id
+            if(transactionId==null||transactionId<=0)
+                throw new InvalidTransactionIdException();
+            if(creditCard==null || creditCard.isEmpty() || !MyCreditCard.validateWithLuhn(creditCard))
+                throw new InvalidCreditCardException();
 
-        }catch(SQLException e){
-            return false;
-        }
+            long total;
+            try {
+                String sql="SELECT total FROM saleTransaction WHERE id=? AND status='CLOSED'";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1,transactionId);
+                ResultSet rs = st.executeQuery();
 
-        try {
-            String sql="DELETE FROM returnTransaction WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,returnId);
-            st.executeUpdate();
+                if(!rs.next())
+                    return false;
+                total = rs.getLong("total");
+            }catch(SQLException e){
+                return false;
+            }
+    /*
+            String sql2="SELECT balance FROM creditCard WHERE cardNumber=?";
+            try {
+                PreparedStatement st = conn.prepareStatement(sql2);
+                st.setString(1,creditCard);
+                ResultSet rs = st.executeQuery();
+                if(rs.getDouble("balance")<total)
+                    return false;
+            }catch(SQLException e){
+                return false;
+            }
 
-        }catch(SQLException e){
-            return false;
-        }
+            String sql3 ="UPDATE creditCard SET balance=balance-? WHERE cardNumber=?";
+            try {
+                PreparedStatement st = conn.prepareStatement(sql3);
+                st.setDouble(1,total);
+                st.setString(2,creditCard);
+                int updatedRows = st.executeUpdate();
 
-        return true;
+                if(updatedRows == 0)
+                    return false;
 
+            }catch(SQLException e){
+                return false;
+            }
+    */
+            try{
+                String sql4 = "UPDATE saleTransaction SET status='PAYED' WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql4);
+                st.setInt(1,transactionId);
+                int updatedRows = st.executeUpdate();
+
+                if(updatedRows == 0)
+                    return false;
+            }catch(SQLException e) {
+                return false;
+            }
+            if(!this.recordBalance(total))
+                return rollback(false);
+            return true;
+        } finally {
+            pool.release();
+        }
     }
 
     @Override
-    public double receiveCashPayment(Integer transactionId, double cash) throws InvalidTransactionIdException, InvalidPaymentException, UnauthorizedException {
-        //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //check id
-        if(transactionId==null||transactionId<=0)
-            throw new InvalidTransactionIdException("Invalid Transaction Id");
-        //check cash
-        if(cash <= 0)
-            throw new InvalidPaymentException("Invalid Payment");
-
-        double total;
+    public double returnCashPayment(Integer returnId) throws InvalidTransactionIdException, UnauthorizedException {
+        Connection conn = pool.begin();
         try {
-            String sql="SELECT total FROM saleTransaction WHERE id=? AND status='CLOSED'";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,transactionId);
-            ResultSet rs = st.executeQuery();
-            rs.next();
-            total = rs.getDouble("total");
-        }catch(SQLException e){
-            return -1.0;
-        }
-
-        if(total>cash){
-            return -1.0;
-        }else{
-            String actualRole= loggedUser.getRole();
-            loggedUser.setRole("Administrator");
-            this.recordBalanceUpdate(total);
-            loggedUser.setRole(actualRole);
+            //check authorization
+            authorize(Permission.CHECKOUT);
+            //check id
+            if(returnId==null||returnId<=0)
+                throw new InvalidTransactionIdException();
+
+
+            long total;
+            try {
+                String sql="SELECT total FROM returnTransaction WHERE id=? AND status='CLOSED'";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1,returnId);
+                ResultSet rs = st.executeQuery();
+
+                if(!rs.next())
+                    return -1.0;
+
+                total = rs.getLong("total");
+
+            }catch(SQLException e){
+                return -1.0;
+            }
+
+            // not more than there is in the till
+            if(!this.recordBalance(-total))
+                return rollback(-1.0);
+
             // update transaction by setting the status
             try{
-                String sql2 = "UPDATE saleTransaction SET status='PAYED' WHERE id=?";
+                String sql2 = "UPDATE returnTransaction SET status='PAYED' WHERE id=?";
                 PreparedStatement st = conn.prepareStatement(sql2);
-                st.setInt(1,transactionId);
+                st.setInt(1,returnId);
                 int updatedRows = st.executeUpdate();
 
-                if (updatedRows>0)
-                    return cash-total;
-
+                if(updatedRows == 0)
+                    return rollback(-1.0);
+                return Money.toDouble(total);
             }catch(SQLException e) {
-                return -1.0;
+                return rollback(-1.0);
             }
+
+        } finally {
+            pool.release();
         }
-        return -1.0;
     }
 
     @Override
-    public boolean receiveCreditCardPayment(Integer transactionId, String creditCard) throws InvalidTransactionIdException, InvalidCreditCardException, UnauthorizedException {
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //check id
-        if(transactionId==null||transactionId<=0)
-            throw new InvalidTransactionIdException();
-        if(creditCard==null || creditCard.isEmpty() || !MyCreditCard.validateWithLuhn(creditCard))
-            throw new InvalidCreditCardException();
-
-        double total;
+    public double returnCreditCardPayment(Integer returnId, String creditCard) throws InvalidTransactionIdException, InvalidCreditCardException, UnauthorizedException {
+        Connection conn = pool.begin();
         try {
-            String sql="SELECT total FROM saleTransaction WHERE id=? AND status='CLOSED'";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,transactionId);
-            ResultSet rs = st.executeQuery();
+            authorize(Permission.CHECKOUT);
+            //check id
+            if(returnId==null||returnId<=0)
+                throw new InvalidTransactionIdException();
+            if(creditCard==null || creditCard.isEmpty() || !MyCreditCard.validateWithLuhn(creditCard))
+                throw new InvalidCreditCardException("Invalid credit card.");
 
-            if(!rs.next())
-                return false;
-            total = rs.getDouble("total");
-        }catch(SQLException e){
-            return false;
-        }
-/*
-        String sql2="SELECT balance FROM creditCard WHERE cardNumber=?";
-        try {
-            PreparedStatement st = conn.prepareStatement(sql2);
-            st.setString(1,creditCard);
-            ResultSet rs = st.executeQuery();
-            if(rs.getDouble("balance")<total)
-                return false;
-        }catch(SQLException e){
-            return false;
-        }
+            long total;
+            try {
+                String sql="SELECT total FROM returnTransaction WHERE id=? AND status='CLOSED'";
+                PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1,returnId);
+                ResultSet rs = st.executeQuery();
 
-        String sql3 ="UPDATE creditCard SET balance=balance-? WHERE cardNumber=?";
-        try {
-            PreparedStatement st = conn.prepareStatement(sql3);
-            st.setDouble(1,total);
-            st.setString(2,creditCard);
-            int updatedRows = st.executeUpdate();
+                if(!rs.next())
+                    return -1.0;
 
-            if(updatedRows == 0)
-                return false;
+                total = rs.getLong("total");
 
-        }catch(SQLException e){
-            return false;
-        }
-*/
-        try{
-            String sql4 = "UPDATE saleTransaction SET status='PAYED' WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql4);
-            st.setInt(1,transactionId);
-            int updatedRows = st.executeUpdate();
+            }catch(SQLException e){
+                return -1.0;
+            }
+    /*
+            String sql3 ="UPDATE creditCard SET balance=balance+? WHERE cardNumber=?";
+            try {
+                PreparedStatement st = conn.prepareStatement(sql3);
+                st.setDouble(1,total);
+                st.setString(2,creditCard);
+                st.executeUpdate();
 
-            if(updatedRows == 0)
-                return false;
-        }catch(SQLException e) {
-            return false;
+            }catch(SQLException e){
+                return -1.0;
+            }
+    */
+            try{
+                String sql4 = "UPDATE returnTransaction SET status='PAYED' WHERE id=?";
+                PreparedStatement st = conn.prepareStatement(sql4);
+                st.setInt(1,returnId);
+                int updatedRows = st.executeUpdate();
+                if (updatedRows == 0)
+                    return -1.0;
+            }catch(SQLException e) {
+                return -1.0;
+            }
+
+            if(!this.recordBalance(-total))
+                return rollback(-1.0);
+
+            return Money.toDouble(total);
+        } finally {
+            pool.release();
         }
-        String oldRole=loggedUser.getRole();
-        loggedUser.setRole("Administrator");
-        this.recordBalanceUpdate(total);
-        loggedUser.setRole(oldRole);
-        return true;
     }
 
     @Override
-    public double returnCashPayment(Integer returnId) throws InvalidTransactionIdException, UnauthorizedException {
-        //check authorization
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //check id
-        if(returnId==null||returnId<=0)
-            throw new InvalidTransactionIdException();
+    public boolean recordBalanceUpdate(double toBeAdded) throws UnauthorizedException {
+        authorize(Permission.MANAGE_SHOP);
+        return recordBalance(Money.cents(toBeAdded));
+    }
 
+    // privileged path for the payments, which are recorded on behalf of the cashier
+    private boolean recordBalance(long toBeAdded) {
+        Connection conn = pool.begin();
+        try {
+            String type;
+            if(toBeAdded<0)
+                type="DEBIT";
+            else
+                type ="CREDIT";
+            try{
+                // the running balance is updated by a trigger in the same transaction as the insert
+                if (readBalance(conn)+toBeAdded<0)
+                    return false;
+
+                String sql2 = "INSERT INTO balanceOperation(date,money,type) VALUES (?,?,?) ";
+                PreparedStatement st2 = conn.prepareStatement(sql2);
+                st2.setDate(1, java.sql.Date.valueOf(LocalDate.of(LocalDate.now().getYear(),LocalDate.now().getMonthValue(),LocalDate.now().getDayOfMonth())));
+                st2.setLong(2,toBeAdded);
+                st2.setString(3,type);
+                int updatedRows = st2.executeUpdate();
+
+                return !(updatedRows == 0);
+            }catch (SQLException e) {
+                return false;
+            }
+        } finally {
+            pool.release();
+        }
+    }
 
-        double total;
+    @Override
+    public List<BalanceOperation> getCreditsAndDebits(LocalDate from, LocalDate to) throws UnauthorizedException {
+        Connection conn = pool.acquire();
         try {
-            String sql="SELECT total FROM returnTransaction WHERE id=? AND status='CLOSED'";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,returnId);
-            ResultSet rs = st.executeQuery();
+            List<BalanceOperation> l = new ArrayList<>();
+            ResultSet rs;
+            authorize(Permission.MANAGE_SHOP);
+            if (to!=null && from!=null)
+            {
+                LocalDate realFrom=from, realTo=to;
+                if (to.isBefore(from))
+                {
+                    realFrom = to;
+                    realTo=from;
+                }
 
-            if(!rs.next())
-                return -1.0;
+                try {
+                    String sql = "SELECT id, date, money, type FROM balanceOperation WHERE date >= ? AND date <= ?";
+                    PreparedStatement st = conn.prepareStatement(sql);
+                    st.setDate(1, java.sql.Date.valueOf(realFrom));
+                    st.setDate(2, java.sql.Date.valueOf(realTo));
+                    rs=st.executeQuery();
+                    while (rs.next())
+                    {
+                        l.add(
+                                MyBalanceOperation.ofCents(
+                                        rs.getInt("id"),
+                                        Instant.ofEpochMilli(Long.parseLong(rs.getString("date"))).atZone(ZoneId.systemDefault()).toLocalDate(),
+                                        rs.getLong("money"),
+                                        rs.getString("type")
+                                )
+                        );
+                    }
+                } catch (SQLException ignored) {
 
-            total = rs.getDouble("total");
+                }
+            }
+            else if(from==null && to!=null) {
+                try {
+                    String sql = "SELECT id, date, money, type FROM balanceOperation WHERE date <= ?";
+                    PreparedStatement st = conn.prepareStatement(sql);
+                    st.setDate(1,java.sql.Date.valueOf(to));
+                    rs = st.executeQuery();
+                    while (rs.next())
+                    {
+                        l.add(
+                                MyBalanceOperation.ofCents(
+                                        rs.getInt("id"),
+                                        Instant.ofEpochMilli(Long.parseLong(rs.getString("date"))).atZone(ZoneId.systemDefault()).toLocalDate(),
+                                        rs.getLong("money"),
+                                        rs.getString("type")
+                                )
+                        );
+                    }
+                } catch (SQLException ignored) {
 
-        }catch(SQLException e){
-            return -1.0;
-        }
+                }
+            }
+            else if(from!=null)
+            {
+                try {
+                    String sql = "SELECT id, date, money, type FROM balanceOperation WHERE date >= ?";
+                    PreparedStatement st = conn.prepareStatement(sql);
+                    st.setDate(1, java.sql.Date.valueOf(from));
 
-        String oldRole=loggedUser.getRole();
-        loggedUser.setRole("Administrator");
-        this.recordBalanceUpdate(-total);
-        loggedUser.setRole(oldRole);
+                    rs = st.executeQuery();
+                    while (rs.next())
+                    {
+                        l.add(
+                                MyBalanceOperation.ofCents(
+                                        rs.getInt("id"),
+                                        Instant.ofEpochMilli(Long.parseLong(rs.getString("date"))).atZone(ZoneId.systemDefault()).toLocalDate(),
+                                        rs.getLong("money"),
+                                        rs.getString("type")
+                                )
+                        );
+                    }
+                } catch (SQLException ignored) {
 
-        // update transaction by setting the status
-        try{
-            String sql2 = "UPDATE returnTransaction SET status='PAYED' WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql2);
-            st.setInt(1,returnId);
-            int updatedRows = st.executeUpdate();
+                }
+            }else {
+                try {
+                    String sql = "SELECT id, date, money, type FROM balanceOperation";
+                    PreparedStatement st = conn.prepareStatement(sql);
+                    rs = st.executeQuery();
 
-            if(updatedRows == 0)
-                return -1.0;
-            return total;
-        }catch(SQLException e) {
-            return -1.0;
+                    while (rs.next())
+                    {
+                        l.add(
+                                MyBalanceOperation.ofCents(
+                                        rs.getInt("id"),
+                                        Instant.ofEpochMilli(Long.parseLong(rs.getString("date"))).atZone(ZoneId.systemDefault()).toLocalDate(),
+                                        rs.getLong("money"),
+                                        rs.getString("type")
+                                )
+                        );
+                    }
+                    return l;
+                }catch (SQLException ignored){
+                }
+            }
+            return l;
+        } finally {
+            pool.release();
         }
-
     }
 
     @Override
-    public double returnCreditCardPayment(Integer returnId, String creditCard) throws InvalidTransactionIdException, InvalidCreditCardException, UnauthorizedException {
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager") && !loggedUser.getRole().equals("Cashier")))
-            throw new UnauthorizedException();
-        //check id
-        if(returnId==null||returnId<=0)
-            throw new InvalidTransactionIdException();
-        if(creditCard==null || creditCard.isEmpty() || !MyCreditCard.validateWithLuhn(creditCard))
-            throw new InvalidCreditCardException("Invalid credit card.");
-
-        double total;
+    public double computeBalance() throws UnauthorizedException {
+        Connection conn = pool.acquire();
         try {
-            String sql="SELECT total FROM returnTransaction WHERE id=? AND status='CLOSED'";
-            PreparedStatement st = conn.prepareStatement(sql);
-            st.setInt(1,returnId);
-            ResultSet rs = st.executeQuery();
-
-            if(!rs.next())
-                return -1.0;
+            authorize(Permission.MANAGE_SHOP);
+            try {
+                return Money.toDouble(readBalance(conn));
+            } catch (SQLException e) {
+                return 0.0;
+            }
+        } finally {
+            pool.release();
+        }
+    }
 
-            total = rs.getDouble("total");
+    // writes the lines of an ending sale, takes its units from the stock, marks its tagged items as sold and
+    // closes it with the total kept by the cart
+    private static boolean writeCart(Connection conn, SaleCarts.Cart cart) {
+        try {
+            String sql = "INSERT INTO productEntry (transactionId, barcode, amount, discountRate, RFID) VALUES (?,?,?,?,?)";
+            PreparedStatement entries = conn.prepareStatement(sql);
+            String sql2 = "UPDATE productType SET quantity=quantity-? WHERE id=?";
+            PreparedStatement stock = conn.prepareStatement(sql2);
+            List<Long> items = new ArrayList<>();
+            for(SaleCarts.Line line : cart.getLines()) {
+                if(line.getAmount() > 0 || line.getTags().isEmpty())
+                    addEntry(entries, cart.getId(), line, line.getAmount(), null);
+                for(long rfid : line.getTags()) {
+                    addEntry(entries, cart.getId(), line, 1, RfidIndex.format(rfid));
+                    items.add(rfid);
+                }
+                if(line.getUnits() > 0) {
+                    stock.setInt(1, line.getUnits());
+                    stock.setInt(2, line.getProductId());
+                    stock.addBatch();
+                }
+            }
+            if(!items.isEmpty() && !markSold(conn, items, true))
+                return false;
+            entries.executeBatch();
+            for(int updatedRows : stock.executeBatch()) {
+                if(updatedRows == 0)
+                    // product deleted while the sale was open
+                    return false;
+            }
 
-        }catch(SQLException e){
-            return -1.0;
-        }
-/*
-        String sql3 ="UPDATE creditCard SET balance=balance+? WHERE cardNumber=?";
-        try {
+            String sql3 = "UPDATE saleTransaction SET status='CLOSED', discountRate=?, total=?, subtotal=? WHERE id=? AND status='OPEN'";
             PreparedStatement st = conn.prepareStatement(sql3);
-            st.setDouble(1,total);
-            st.setString(2,creditCard);
-            st.executeUpdate();
-
-        }catch(SQLException e){
-            return -1.0;
-        }
-*/
-        try{
-            String sql4 = "UPDATE returnTransaction SET status='PAYED' WHERE id=?";
-            PreparedStatement st = conn.prepareStatement(sql4);
-            st.setInt(1,returnId);
-            int updatedRows = st.executeUpdate();
-            if (updatedRows == 0)
-                return -1.0;
-        }catch(SQLException e) {
-            return -1.0;
+            st.setDouble(1, cart.getDiscountRate());
+            st.setLong(2, cart.getTotalCents());
+            st.setLong(3, cart.getSubtotalCents());
+            st.setInt(4, cart.getId());
+            return st.executeUpdate() > 0;
+        } catch (SQLException e) {
+            return false;
         }
+    }
 
-        String oldRole=loggedUser.getRole();
-        loggedUser.setRole("Administrator");
-        this.recordBalanceUpdate(-total);
-        loggedUser.setRole(oldRole);
-
-        return total;
+    private static void addEntry(PreparedStatement entries, int transactionId, SaleCarts.Line line, int amount, String RFID) throws SQLException {
+        entries.setInt(1, transactionId);
+        entries.setString(2, line.getBarCode());
+        entries.setInt(3, amount);
+        entries.setDouble(4, line.getDiscountRate());
+        entries.setString(5, RFID);
+        entries.addBatch();
     }
 
-    @Override
-    public boolean recordBalanceUpdate(double toBeAdded) throws UnauthorizedException {
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager")))
-            throw new UnauthorizedException();
-        String type;
-        double sum = 0.0;
-        if(toBeAdded<0)
-            type="DEBIT";
-        else
-            type ="CREDIT";
-        try{
-            String sql = "SELECT money FROM balanceOperation";
+    // the open sales are rebuilt in memory from the cart journal. Lines that an open sale wrote to productEntry
+    // before carts were kept in memory go back to the stock and into its cart
+    private static void recoverOpenSales() throws SQLException, IOException {
+        Map<Integer, Double> open = new HashMap<>();
+        // transactionId, barcode, amount, discountRate, RFID
+        List<Object[]> entries = new ArrayList<>();
+        Connection conn = pool.begin();
+        try {
+            String sql = "SELECT id, discountRate FROM saleTransaction WHERE status='OPEN'";
             PreparedStatement st = conn.prepareStatement(sql);
             ResultSet rs = st.executeQuery();
             while(rs.next())
-            {
-                sum+=rs.getDouble("money");
-            }
-            if (sum+toBeAdded<0)
-                return false;
+                open.put(rs.getInt("id"), rs.getDouble("discountRate"));
 
-            String sql2 = "INSERT INTO balanceOperation(date,money,type) VALUES (?,?,?) ";
+            String sql2 = "SELECT PE.transactionId, PE.barcode, PE.amount, PE.discountRate, PE.RFID FROM productEntry PE, saleTransaction ST WHERE PE.transactionId=ST.id AND ST.status='OPEN'";
             PreparedStatement st2 = conn.prepareStatement(sql2);
-            st2.setDate(1, java.sql.Date.valueOf(LocalDate.of(LocalDate.now().getYear(),LocalDate.now().getMonthValue(),LocalDate.now().getDayOfMonth())));
-            st2.setDouble(2,toBeAdded);
-            st2.setString(3,type);
-            int updatedRows = st2.executeUpdate();
+            ResultSet rs2 = st2.executeQuery();
+            while(rs2.next())
+                entries.add(new Object[]{rs2.getInt("transactionId"), rs2.getString("barcode"), rs2.getInt("amount"),
+                        rs2.getDouble("discountRate"), rs2.getString("RFID")});
 
-            return !(updatedRows == 0);
-        }catch (SQLException e) {
-            return false;
+            String sql3 = "UPDATE productType SET quantity=quantity+? WHERE productCode=?";
+            PreparedStatement st3 = conn.prepareStatement(sql3);
+            for(Object[] entry : entries) {
+                st3.setInt(1, (Integer) entry[2]);
+                st3.setString(2, (String) entry[1]);
+                st3.executeUpdate();
+                if(entry[4] != null)
+                    markSold(conn, RfidIndex.parse((String) entry[4]), false);
+            }
+            if(!entries.isEmpty()) {
+                String sql4 = "DELETE FROM productEntry WHERE transactionId IN (SELECT id FROM saleTransaction WHERE status='OPEN')";
+                PreparedStatement st4 = conn.prepareStatement(sql4);
+                st4.executeUpdate();
+            }
+        } catch (SQLException e) {
+            pool.setRollbackOnly();
+            throw e;
+        } finally {
+            pool.release();
+        }
+        catalog.invalidate();
+
+        carts.recover(open);
+        for(Object[] entry : entries) {
+            int id = (Integer) entry[0];
+            String barCode = (String) entry[1];
+            MyProductType product = catalog.getByBarCode(barCode);
+            if(product == null)
+                continue;
+            if(entry[4] == null)
+                carts.add(id, product.getId(), barCode, product.getPriceCents(), (Integer) entry[2]);
+            else
+                carts.addTag(id, product.getId(), barCode, product.getPriceCents(), RfidIndex.parse((String) entry[4]));
+            if((Double) entry[3] != 0.0)
+                carts.setDiscountRate(id, barCode, (Double) entry[3]);
         }
     }
 
-    @Override
-    public List<BalanceOperation> getCreditsAndDebits(LocalDate from, LocalDate to) throws UnauthorizedException {
-        List<BalanceOperation> l = new ArrayList<>();
-        ResultSet rs;
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager")))
-            throw new UnauthorizedException();
-        if (to!=null && from!=null)
-        {
-            LocalDate realFrom=from, realTo=to;
-            if (to.isBefore(from))
-            {
-                realFrom = to;
-                realTo=from;
-            }
-
-            try {
-                String sql = "SELECT id, date, money, type FROM balanceOperation WHERE date >= ? AND date <= ?";
-                PreparedStatement st = conn.prepareStatement(sql);
-                st.setDate(1, java.sql.Date.valueOf(realFrom));
-                st.setDate(2, java.sql.Date.valueOf(realTo));
-                rs=st.executeQuery();
-                while (rs.next())
-                {
-                    l.add(
-                            new MyBalanceOperation(
-                                    rs.getInt("id"),
-                                    Instant.ofEpochMilli(Long.parseLong(rs.getString("date"))).atZone(ZoneId.systemDefault()).toLocalDate(),
-                                    rs.getDouble("money"),
-                                    rs.getString("type")
-                            )
-                    );
-                }
-            } catch (SQLException ignored) {
+    // flips the sold bit of a tagged item and persists the bitmap of its range
+    private static boolean markSold(Connection conn, long rfid, boolean sold) throws SQLException {
+        return markSold(conn, Collections.singletonList(rfid), sold);
+    }
 
-            }
+    // same for several items: the bitmap of each range they belong to is written once
+    private static boolean markSold(Connection conn, Collection<Long> items, boolean sold) throws SQLException {
+        Set<RfidIndex.Range> ranges = new LinkedHashSet<>();
+        for(long rfid : items) {
+            RfidIndex.Range range = rfids.setSold(rfid, sold);
+            if(range == null)
+                return false;
+            ranges.add(range);
         }
-        else if(from==null && to!=null) {
-            try {
-                String sql = "SELECT id, date, money, type FROM balanceOperation WHERE date <= ?";
-                PreparedStatement st = conn.prepareStatement(sql);
-                st.setDate(1,java.sql.Date.valueOf(to));
-                rs = st.executeQuery();
-                while (rs.next())
-                {
-                    l.add(
-                            new MyBalanceOperation(
-                                    rs.getInt("id"),
-                                    Instant.ofEpochMilli(Long.parseLong(rs.getString("date"))).atZone(ZoneId.systemDefault()).toLocalDate(),
-                                    rs.getDouble("money"),
-                                    rs.getString("type")
-                            )
-                    );
-                }
-            } catch (SQLException ignored) {
+        String sql = "UPDATE productRange SET sold=COALESCE(?, X'') WHERE first=?";
+        PreparedStatement st = conn.prepareStatement(sql);
+        for(RfidIndex.Range range : ranges) {
+            st.setBytes(1, range.soldBitmap());
+            st.setLong(2, range.first);
+            st.addBatch();
+        }
+        for(int updatedRows : st.executeBatch()) {
+            if(updatedRows == 0)
+                return false;
+        }
+        return true;
+    }
 
-            }
+    // marks as not sold the tagged items of a sale or return transaction
+    private static boolean releaseItems(Connection conn, int transactionId) {
+        try {
+            String sql = "SELECT RFID FROM productEntry WHERE transactionId=? AND RFID IS NOT NULL";
+            PreparedStatement st = conn.prepareStatement(sql);
+            st.setInt(1, transactionId);
+            ResultSet rs = st.executeQuery();
+            List<Long> items = new ArrayList<>();
+            while(rs.next())
+                items.add(RfidIndex.parse(rs.getString("RFID")));
+            return items.isEmpty() || markSold(conn, items, false);
+        } catch (SQLException e) {
+            return false;
         }
-        else if(from!=null)
-        {
-            try {
-                String sql = "SELECT id, date, money, type FROM balanceOperation WHERE date >= ?";
-                PreparedStatement st = conn.prepareStatement(sql);
-                st.setDate(1, java.sql.Date.valueOf(from));
+    }
 
-                rs = st.executeQuery();
-                while (rs.next())
-                {
-                    l.add(
-                            new MyBalanceOperation(
-                                    rs.getInt("id"),
-                                    Instant.ofEpochMilli(Long.parseLong(rs.getString("date"))).atZone(ZoneId.systemDefault()).toLocalDate(),
-                                    rs.getDouble("money"),
-                                    rs.getString("type")
-                            )
-                    );
-                }
-            } catch (SQLException ignored) {
+    private static long readBalance(Connection conn) throws SQLException {
+        String sql = "SELECT total FROM balance WHERE id=1";
+        PreparedStatement st = conn.prepareStatement(sql);
+        ResultSet rs = st.executeQuery();
+        return rs.next() ? rs.getLong("total") : Money.ZERO;
+    }
 
-            }
-        }else {
+    // recomputes the running balance from the balance operations, in insertion order like the triggers do,
+    // and overwrites it if it drifted. Returns true if the stored balance was already correct
+    public boolean verifyBalance() throws UnauthorizedException {
+        Connection conn = pool.begin();
+        try {
+            authorize(Permission.ADMINISTER);
             try {
-                String sql = "SELECT id, date, money, type FROM balanceOperation";
+                long sum = Money.ZERO;
+                String sql = "SELECT money FROM balanceOperation ORDER BY id";
                 PreparedStatement st = conn.prepareStatement(sql);
-                rs = st.executeQuery();
-
-                while (rs.next())
-                {
-                    l.add(
-                            new MyBalanceOperation(
-                                    rs.getInt("id"),
-                                    Instant.ofEpochMilli(Long.parseLong(rs.getString("date"))).atZone(ZoneId.systemDefault()).toLocalDate(),
-                                    rs.getDouble("money"),
-                                    rs.getString("type")
-                            )
-                    );
+                ResultSet rs = st.executeQuery();
+                while (rs.next()) {
+                    sum+=rs.getLong("money");
                 }
-                return l;
-            }catch (SQLException ignored){
+                if(sum == readBalance(conn))
+                    return true;
+
+                String sql2 = "UPDATE balance SET total=? WHERE id=1";
+                PreparedStatement st2 = conn.prepareStatement(sql2);
+                st2.setLong(1, sum);
+                st2.executeUpdate();
+                return false;
+            } catch (SQLException e) {
+                return rollback(false);
             }
+        } finally {
+            pool.release();
         }
-        return l;
     }
 
-    @Override
-    public double computeBalance() throws UnauthorizedException {
-        if(loggedUser == null || (!loggedUser.getRole().equals("Administrator") && !loggedUser.getRole().equals("ShopManager")))
-            throw new UnauthorizedException();
-        else {
-            double sum = 0.0;
+    // verification mode for the totals kept incrementally: recomputes the sale from its lines with the join over
+    // productEntry, saleTransaction and productType and compares it with the stored subtotal and total. Nothing
+    // is overwritten, since the lines do not keep their price and the join prices them at today's prices
+    public boolean verifySaleTotal(Integer transactionId) throws InvalidTransactionIdException, UnauthorizedException {
+        Connection conn = pool.acquire();
+        try {
+            authorize(Permission.ADMINISTER);
+            if(transactionId == null || transactionId <= 0)
+                throw new InvalidTransactionIdException();
             try {
-                String sql = "SELECT money FROM balanceOperation";
+                String sql = "SELECT subtotal, total, discountRate FROM saleTransaction WHERE id=? AND status!='OPEN'";
                 PreparedStatement st = conn.prepareStatement(sql);
+                st.setInt(1, transactionId);
                 ResultSet rs = st.executeQuery();
-                while (rs.next()) {
-                    sum+=rs.getDouble("money");
-                }
-                return sum;
+                if(!rs.next())
+                    return false;
+                long subtotal = rs.getLong("subtotal");
+                long total = rs.getLong("total");
+                double discountRate = rs.getDouble("discountRate");
+
+                // the entries of a line (its untagged units and each tagged item) share its discount
+                String sql2 = "SELECT SUM(PE.amount) AS units, MAX(PE.discountRate) AS PEdiscountRate, PT.pricePerUnit AS pricePerUnit FROM productEntry PE, productType PT WHERE PE.transactionId=? AND PE.barcode=PT.productCode GROUP BY PE.barcode";
+                PreparedStatement st2 = conn.prepareStatement(sql2);
+                st2.setInt(1, transactionId);
+                ResultSet rs2 = st2.executeQuery();
+                long recomputed = 0;
+                while(rs2.next())
+                    recomputed += Money.discounted(Money.times(rs2.getLong("pricePerUnit"), rs2.getInt("units")), rs2.getDouble("PEdiscountRate"));
+                return recomputed == subtotal && Money.discounted(recomputed, discountRate) == total;
             } catch (SQLException e) {
-                return 0.0;
+                return false;
             }
+        } finally {
+            pool.release();
         }
     }
 }
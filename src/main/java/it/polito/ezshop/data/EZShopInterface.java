@@ -3,7 +3,9 @@ package it.polito.ezshop.data;
 import it.polito.ezshop.exceptions.*;
 
 import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /* version 1.3 5 june 2021 
 changes: added functions to support RFID in each product 
@@ -535,6 +537,27 @@ public interface EZShopInterface {
      * @throws UnauthorizedException if there is no logged user or if it has not the rights to perform the operation
      */
     public boolean addProductToSale(Integer transactionId, String productCode, int amount) throws InvalidTransactionIdException, InvalidProductCodeException, InvalidQuantityException, UnauthorizedException;
+
+    /**
+     * This method adds several products to a sale transaction at once, receiving for each barcode the quantity to be added,
+     * decreasing the temporary amount of those products available on the shelves for other customers. Every line succeeds
+     * or fails on its own, as if addProductToSale were called for it.
+     * It can be invoked only after a user with role "Administrator", "ShopManager" or "Cashier" is logged in.
+     *
+     * @param transactionId the id of the Sale transaction
+     * @param products the quantity to be added for each barcode
+     * @return  the outcome of each line, by barcode: true if the product has been added,
+     *          false   if the product code does not exist,
+     *                  if the quantity of product cannot satisfy the request,
+     *                  if the transaction id does not identify a started and open transaction.
+     *
+     * @throws InvalidTransactionIdException if the transaction id less than or equal to 0 or if it is null
+     * @throws InvalidProductCodeException if the map is null or one of the product codes is empty, null or invalid
+     * @throws InvalidQuantityException if one of the quantities is less than 0 or null
+     * @throws UnauthorizedException if there is no logged user or if it has not the rights to perform the operation
+     */
+    public Map<String, Boolean> addProductsToSale(Integer transactionId, Map<String, Integer> products) throws InvalidTransactionIdException, InvalidProductCodeException, InvalidQuantityException, UnauthorizedException;
+
     /**
      * This method adds a product to a sale transaction receiving  its RFID, decreasing the temporary amount of product available on the
      * shelves for other customers.
@@ -551,6 +574,27 @@ public interface EZShopInterface {
      * @throws UnauthorizedException if there is no logged user or if it has not the rights to perform the operation
      */
     public boolean addProductToSaleRFID(Integer transactionId, String RFID) throws InvalidTransactionIdException, InvalidRFIDException, InvalidQuantityException, UnauthorizedException;
+
+    /**
+     * This method adds a basket of products to a sale transaction receiving their RFIDs, as read together by an RFID
+     * tunnel, decreasing the temporary amount of those products available on the shelves for other customers. An RFID
+     * repeated in the collection is added once. Every RFID succeeds or fails on its own, as if addProductToSaleRFID
+     * were called for it.
+     * It can be invoked only after a user with role "Administrator", "ShopManager" or "Cashier" is logged in.
+     *
+     * @param transactionId the id of the Sale transaction
+     * @param RFIDs the RFIDs of the products to be added
+     * @return  the outcome of each RFID: true if the product has been added,
+     *          false   if the RFID does not exist or the product has already been sold,
+     *                  if the quantity of product cannot satisfy the request,
+     *                  if the transaction id does not identify a started and open transaction.
+     *
+     * @throws InvalidTransactionIdException if the transaction id less than or equal to 0 or if it is null
+     * @throws InvalidRFIDException if the collection is null or one of the RFIDs is empty, null or invalid
+     * @throws UnauthorizedException if there is no logged user or if it has not the rights to perform the operation
+     */
+    public Map<String, Boolean> addProductsToSaleRFID(Integer transactionId, Collection<String> RFIDs) throws InvalidTransactionIdException, InvalidRFIDException, UnauthorizedException;
+
       /**
      * This method deletes a product from a sale transaction , receiving its barcode, increasing the temporary amount of product available on the
      * shelves for other customers.
@@ -0,0 +1,107 @@
+package it.polito.ezshop.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Ids of new sale (even) and return (odd) transactions. Each kind has a high-water mark in the idBlock table:
+// a block of BLOCK_SIZE ids is reserved by moving the mark forward in a transaction of its own, then the ids
+// of the block are handed out by an atomic counter with no query at all. Ids left in a block when the
+// process stops are skipped, never reused; reset() does not touch the marks, so ids keep growing.
+// Call next() outside any unit of work, otherwise the reservation is committed (or rolled back) with it.
+public class IdAllocator {
+    static final int BLOCK_SIZE = 64;
+    static final String SALE = "saleTransaction";
+    static final String RETURN = "returnTransaction";
+
+    private final Sequence sales;
+    private final Sequence returns;
+
+    public IdAllocator(ConnectionPool pool) {
+        this(pool, BLOCK_SIZE);
+    }
+
+    IdAllocator(ConnectionPool pool, int blockSize) {
+        this.sales = new Sequence(pool, SALE, blockSize);
+        this.returns = new Sequence(pool, RETURN, blockSize);
+    }
+
+    public int nextSaleId() throws SQLException {
+        return sales.next();
+    }
+
+    public int nextReturnId() throws SQLException {
+        return returns.next();
+    }
+
+    // blocks reserved in the database so far
+    public long getReservations() {
+        return sales.reservations.get() + returns.reservations.get();
+    }
+
+    private static final class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        private Block(long first, long end) {
+            this.next = new AtomicLong(first);
+            this.end = end;
+        }
+    }
+
+    private static final class Sequence {
+        private final ConnectionPool pool;
+        private final String kind;
+        private final int blockSize;
+        private final AtomicReference<Block> block = new AtomicReference<>(new Block(0, 0));
+        private final AtomicLong reservations = new AtomicLong();
+
+        private Sequence(ConnectionPool pool, String kind, int blockSize) {
+            this.pool = pool;
+            this.kind = kind;
+            this.blockSize = blockSize;
+        }
+
+        private int next() throws SQLException {
+            while(true) {
+                Block current = block.get();
+                long id = current.next.getAndAdd(2);
+                if(id < current.end)
+                    return (int) id;
+                // only the thread that finds the block exhausted first goes to the database
+                synchronized(this) {
+                    if(block.get() == current)
+                        block.set(reserve());
+                }
+            }
+        }
+
+        private Block reserve() throws SQLException {
+            long first;
+            Connection conn = pool.begin();
+            try {
+                PreparedStatement st = conn.prepareStatement("UPDATE idBlock SET next=next+? WHERE kind=?");
+                st.setLong(1, 2L * blockSize);
+                st.setString(2, kind);
+                if(st.executeUpdate() != 1)
+                    throw new SQLException("No id block for " + kind);
+                PreparedStatement st2 = conn.prepareStatement("SELECT next FROM idBlock WHERE kind=?");
+                st2.setString(1, kind);
+                ResultSet rs = st2.executeQuery();
+                rs.next();
+                first = rs.getLong("next") - 2L * blockSize;
+            } catch (SQLException e) {
+                pool.setRollbackOnly();
+                throw e;
+            } finally {
+                pool.release();
+            }
+            // handed out only once the new mark has been committed
+            reservations.incrementAndGet();
+            return new Block(first, first + 2L * blockSize);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package it.polito.ezshop.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
+
+// In-memory copy of a listing query (every product type, order, customer or user), shared by every EZShop
+// instance, keyed by id. It is loaded as a whole on first use, in a write transaction like the ProductCatalog,
+// then every write patches the entries it touched, inside its unit of work: an entry is replaced, never
+// changed. getAll() hands out copies of the entries, as the ProductCatalog does, that the caller may change;
+// within the package, getSnapshot() gives the last published Snapshot through a volatile reference.
+// The patches of a unit of work are kept apart until it commits, then published as one new version of the
+// committed entries and these patches only (at once outside a unit of work). Publishing does not copy the
+// listing: the Snapshot of a version is built by the first reader that asks for it, then every reader gets
+// that one without locking, so a run of writes with no listing in between costs no copy at all.
+// Writers hold the database lock while they patch, so the patches are stamped in commit order, and a commit
+// published late cannot put back an entry older than the one published by the writer after it. A rolled back
+// unit of work that patched the listing drops it, before the database lock is released, and the next listing
+// reloads it.
+public class Listing<T> {
+    interface RowReader<T> {
+        T read(ResultSet rs) throws SQLException;
+    }
+
+    interface IdOf<T> {
+        Integer of(T item);
+    }
+
+    interface Copier<T> {
+        T copy(T item);
+    }
+
+    // the entry written by a unit of work, null if it removed it
+    private static final class Patch<T> {
+        private final long stamp;
+        private final T item;
+
+        private Patch(long stamp, T item) {
+            this.stamp = stamp;
+            this.item = item;
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final String sql;
+    private final String idColumn;
+    private final RowReader<T> reader;
+    private final IdOf<T> idOf;
+    private final Copier<T> copier;
+    // the last entries written, those of the running unit of work included: what the next patch starts from
+    private final TreeMap<Integer, T> items = new TreeMap<>();
+    // the entries published, with the stamp of the patch that wrote them
+    private final TreeMap<Integer, T> committed = new TreeMap<>();
+    private final Map<Integer, Long> stamps = new HashMap<>();
+    private long clock;
+    // stamp of the last load, every patch before it was committed and read by it
+    private long loadedAt;
+    // null until a reader builds the last version published
+    private volatile Snapshot<T> published;
+    private long version;
+    private boolean loaded;
+    // patches of the unit of work of the calling thread, by id
+    private final ThreadLocal<Map<Integer, Patch<T>>> pending = ThreadLocal.withInitial(LinkedHashMap::new);
+    // the unit of work of the calling thread loaded the listing after writing
+    private final ThreadLocal<Boolean> dirty = ThreadLocal.withInitial(() -> false);
+    private long loads;
+
+    // entries that cannot be changed, handed out as they are
+    Listing(ConnectionPool pool, String sql, String idColumn, RowReader<T> reader, IdOf<T> idOf) {
+        this(pool, sql, idColumn, reader, idOf, item -> item);
+    }
+
+    Listing(ConnectionPool pool, String sql, String idColumn, RowReader<T> reader, IdOf<T> idOf, Copier<T> copier) {
+        this.pool = pool;
+        this.sql = sql;
+        this.idColumn = idColumn;
+        this.reader = reader;
+        this.idOf = idOf;
+        this.copier = copier;
+        pool.addCommitListener(() -> {
+            Map<Integer, Patch<T>> patches = pending.get();
+            if(!patches.isEmpty())
+                publish(patches);
+            patches.clear();
+            dirty.set(false);
+        });
+        pool.addRollbackListener(() -> {
+            Map<Integer, Patch<T>> patches = pending.get();
+            if(!patches.isEmpty() || dirty.get())
+                invalidate();
+            patches.clear();
+            dirty.set(false);
+        });
+    }
+
+    // a list of its own for the caller, an ArrayList as the listings have always returned
+    public List<T> getAll() throws SQLException {
+        Snapshot<T> snapshot = getSnapshot();
+        List<T> list = new ArrayList<>(snapshot.size());
+        for(T item : snapshot)
+            list.add(copier.copy(item));
+        return list;
+    }
+
+    Snapshot<T> getSnapshot() throws SQLException {
+        while(true) {
+            Snapshot<T> current = published;
+            if(current != null)
+                return current;
+            current = build();
+            if(current != null)
+                return current;
+            load();
+        }
+    }
+
+    // null if the listing has to be loaded first
+    private synchronized Snapshot<T> build() {
+        if(!loaded)
+            return null;
+        if(published == null)
+            published = new Snapshot<>(committed.values(), version);
+        return published;
+    }
+
+    // times the whole query has been run
+    public synchronized long getLoads() {
+        return loads;
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    synchronized void put(T item) {
+        if(!loaded)
+            return;
+        Integer id = idOf.of(item);
+        items.put(id, item);
+        changed(id, item);
+    }
+
+    synchronized void remove(int id) {
+        if(!loaded)
+            return;
+        items.remove(id);
+        changed(id, null);
+    }
+
+    // replaces the entry with a changed copy
+    synchronized void patch(int id, UnaryOperator<T> change) {
+        if(!loaded)
+            return;
+        T item = items.get(id);
+        if(item == null)
+            return;
+        item = change.apply(item);
+        items.put(id, item);
+        changed(id, item);
+    }
+
+    // reads the row again, on the connection of the writer that changed it
+    void refresh(Connection conn, int id) throws SQLException {
+        if(!isLoaded())
+            return;
+        PreparedStatement st = conn.prepareStatement(sql + " WHERE " + idColumn + "=?");
+        st.setInt(1, id);
+        ResultSet rs = st.executeQuery();
+        T item = rs.next() ? reader.read(rs) : null;
+        if(item == null)
+            remove(id);
+        else
+            put(item);
+    }
+
+    synchronized void invalidate() {
+        loaded = false;
+        items.clear();
+        committed.clear();
+        stamps.clear();
+        published = null;
+    }
+
+    private void changed(Integer id, T item) {
+        Patch<T> patch = new Patch<>(++clock, item);
+        if(pool.inUnitOfWork()) {
+            pending.get().put(id, patch);
+        } else {
+            Map<Integer, Patch<T>> patches = new HashMap<>();
+            patches.put(id, patch);
+            publish(patches);
+        }
+    }
+
+    // a patch older than the entry published, or than the last load, is already in
+    private synchronized void publish(Map<Integer, Patch<T>> patches) {
+        if(!loaded)
+            return;
+        for(Map.Entry<Integer, Patch<T>> p : patches.entrySet()) {
+            Patch<T> patch = p.getValue();
+            if(patch.stamp <= stamps.getOrDefault(p.getKey(), loadedAt))
+                continue;
+            stamps.put(p.getKey(), patch.stamp);
+            if(patch.item == null)
+                committed.remove(p.getKey());
+            else
+                committed.put(p.getKey(), patch.item);
+        }
+        version++;
+        published = null;
+    }
+
+    // the monitor is never held while waiting for the database, as in the ProductCatalog
+    private void load() throws SQLException {
+        Connection conn = pool.begin();
+        try {
+            synchronized (this) {
+                if(loaded)
+                    return;
+                loads++;
+                PreparedStatement st = conn.prepareStatement(sql);
+                ResultSet rs = st.executeQuery();
+                while(rs.next()) {
+                    T item = reader.read(rs);
+                    items.put(idOf.of(item), item);
+                }
+                committed.putAll(items);
+                loadedAt = clock;
+                loaded = true;
+                // it has read what the unit of work wrote so far
+                if(pool.hasWritten())
+                    dirty.set(true);
+                version++;
+                published = null;
+            }
+        } catch (SQLException e) {
+            invalidate();
+            throw e;
+        } finally {
+            pool.release();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package it.polito.ezshop.data;
+
+// Amounts of money as a long number of cents, the way they are stored (INTEGER columns) and computed inside
+// the application. Doubles only appear at the EZShopInterface boundary: cents(...) when an amount comes in,
+// toDouble(...) when it goes out; cents/100.0 is the double closest to the decimal amount, so 24.9 comes back
+// as 24.9. Discount rates stay doubles (they are ratios, not money) and are applied in parts per million with
+// integer arithmetic, rounding half up to the cent once per line and once per sale. Nothing here allocates.
+public final class Money {
+    public static final long ZERO = 0L;
+    private static final long PPM = 1_000_000L;
+
+    private Money() {
+    }
+
+    // the amount rounded to the nearest cent, halves away from zero
+    public static long cents(double amount) {
+        // Math.round takes halves up, -0.005 would give 0
+        return amount >= 0 ? Math.round(amount * 100.0) : -Math.round(-amount * 100.0);
+    }
+
+    public static double toDouble(long cents) {
+        return cents / 100.0;
+    }
+
+    // price of a number of units
+    public static long times(long cents, int units) {
+        return Math.multiplyExact(cents, (long) units);
+    }
+
+    // the part taken off by a discount rate in [0, 1), rounded half up to the cent
+    public static long discountOf(long cents, double rate) {
+        long ppm = Math.round(rate * PPM);
+        if(ppm == 0 || cents == 0)
+            return 0;
+        long product = Math.multiplyExact(cents, ppm);
+        return product >= 0 ? (product + PPM / 2) / PPM : -((-product + PPM / 2) / PPM);
+    }
+
+    // the amount left once the discount has been taken off
+    public static long discounted(long cents, double rate) {
+        return cents - discountOf(cents, rate);
+    }
+
+    // a loyalty point every 10 units of currency
+    public static int points(long cents) {
+        return (int) (cents / 1000);
+    }
+}
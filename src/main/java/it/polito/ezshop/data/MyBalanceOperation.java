@@ -6,23 +6,30 @@ public class MyBalanceOperation implements it.polito.ezshop.data.BalanceOperatio
 
     private int balanceId;
     private LocalDate date;
-    private double money;
+    // cents, converted at the interface
+    private long money;
     private String type;
 
     public MyBalanceOperation(){
         this.balanceId=0;
         this.date=null;
-        this.money=0.0;
+        this.money=Money.ZERO;
         this.type="";
     }
 
     public MyBalanceOperation(int balanceId, LocalDate date, double money, String type) {
         this.balanceId=balanceId;
         this.date=date;
-        this.money=money;
+        this.money=Money.cents(money);
         this.type=type;
     }
 
+    static MyBalanceOperation ofCents(int balanceId, LocalDate date, long moneyCents, String type) {
+        MyBalanceOperation op = new MyBalanceOperation(balanceId, date, 0.0, type);
+        op.money = moneyCents;
+        return op;
+    }
+
     @Override
     public int getBalanceId() {
         return balanceId;
@@ -45,12 +52,16 @@ public class MyBalanceOperation implements it.polito.ezshop.data.BalanceOperatio
 
     @Override
     public double getMoney() {
-        return money;
+        return Money.toDouble(money);
     }
 
     @Override
     public void setMoney(double money) {
-        this.money=money;
+        this.money=Money.cents(money);
+    }
+
+    public long getMoneyCents() {
+        return money;
     }
 
     @Override
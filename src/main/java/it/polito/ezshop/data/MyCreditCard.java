@@ -2,11 +2,12 @@ package it.polito.ezshop.data;
 
 public class MyCreditCard {
     private String cardNumber;
-    private double balance;
+    // cents
+    private long balance;
 
     public MyCreditCard(String cardNumber, double balance) {
         this.cardNumber = cardNumber;
-        this.balance = balance;
+        this.balance = Money.cents(balance);
     }
 
     public String getCardNumber() {
@@ -18,11 +19,15 @@ public class MyCreditCard {
     }
 
     public double getBalance() {
-        return balance;
+        return Money.toDouble(balance);
     }
 
     public void setBalance(double balance) {
-        this.balance = balance;
+        this.balance = Money.cents(balance);
+    }
+
+    public long getBalanceCents() {
+        return balance;
     }
 
     public static boolean validateWithLuhn(String creditCard) {
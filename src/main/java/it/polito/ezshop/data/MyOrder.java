@@ -4,7 +4,8 @@ public class MyOrder implements it.polito.ezshop.data.Order{
 
     private Integer id;
     private String productCode;
-    private double pricePerUnit;
+    // cents, converted at the interface
+    private long pricePerUnit;
     private Integer quantity;
     private String status;
     private Integer balanceId;
@@ -17,12 +18,18 @@ public class MyOrder implements it.polito.ezshop.data.Order{
     public MyOrder(Integer id, String productCode, double pricePerUnit, Integer quantity, String status){
         this.id = id;
         this.productCode = productCode;
-        this.pricePerUnit = pricePerUnit;
+        this.pricePerUnit = Money.cents(pricePerUnit);
         this.quantity = quantity;
         this.status = status;
         this.balanceId = 0;
     }
 
+    static MyOrder ofCents(Integer id, String productCode, long priceCents, Integer quantity, String status) {
+        MyOrder order = new MyOrder(id, productCode, 0.0, quantity, status);
+        order.pricePerUnit = priceCents;
+        return order;
+    }
+
     @Override
     public Integer getBalanceId(){
          return this.balanceId;
@@ -45,12 +52,16 @@ public class MyOrder implements it.polito.ezshop.data.Order{
 
     @Override
     public double getPricePerUnit() {
-        return this.pricePerUnit;
+        return Money.toDouble(this.pricePerUnit);
     }
 
     @Override
     public void setPricePerUnit(double pricePerUnit) {
-        this.pricePerUnit=pricePerUnit;
+        this.pricePerUnit=Money.cents(pricePerUnit);
+    }
+
+    public long getPriceCents() {
+        return this.pricePerUnit;
     }
 
     @Override
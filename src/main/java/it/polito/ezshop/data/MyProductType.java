@@ -4,7 +4,8 @@ public class MyProductType implements it.polito.ezshop.data.ProductType{
     private Integer id;
     private String productCode;
     private String description;
-    private double pricePerUnit;
+    // cents, converted at the interface
+    private long pricePerUnit;
     private Integer quantity;
     private String notes;
     private String location;
@@ -13,7 +14,7 @@ public class MyProductType implements it.polito.ezshop.data.ProductType{
         this.id = id;
         this.productCode = productCode;
         this.description = description;
-        this.pricePerUnit = pricePerUnit;
+        this.pricePerUnit = Money.cents(pricePerUnit);
         this.quantity = quantity;
         this.notes = notes;
         this.location = location;
@@ -71,12 +72,26 @@ public class MyProductType implements it.polito.ezshop.data.ProductType{
 
     @Override
     public Double getPricePerUnit() {
-        return this.pricePerUnit;
+        return Money.toDouble(this.pricePerUnit);
     }
 
     @Override
     public void setPricePerUnit(Double pricePerUnit) {
-        this.pricePerUnit=pricePerUnit;
+        this.pricePerUnit=Money.cents(pricePerUnit);
+    }
+
+    public long getPriceCents() {
+        return this.pricePerUnit;
+    }
+
+    void setPriceCents(long priceCents) {
+        this.pricePerUnit = priceCents;
+    }
+
+    static MyProductType ofCents(Integer id, String productCode, String description, long priceCents, Integer quantity, String notes, String location) {
+        MyProductType p = new MyProductType(id, productCode, description, 0.0, quantity, notes, location);
+        p.pricePerUnit = priceCents;
+        return p;
     }
 
     @Override
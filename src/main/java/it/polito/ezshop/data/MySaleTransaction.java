@@ -6,14 +6,21 @@ public class MySaleTransaction extends MyBalanceOperation implements it.polito.e
     private Integer transactionId;
     private List<TicketEntry> entries;
     private double discountRate;
-    private double price;
+    // cents, converted at the interface
+    private long price;
 
     public MySaleTransaction(Integer transactionId, List<TicketEntry> entries, double discountRate, double price) {
         super();
         this.transactionId=transactionId;
         this.entries=entries;
         this.discountRate=discountRate;
-        this.price=price;
+        this.price=Money.cents(price);
+    }
+
+    static MySaleTransaction ofCents(Integer transactionId, List<TicketEntry> entries, double discountRate, long priceCents) {
+        MySaleTransaction sale = new MySaleTransaction(transactionId, entries, discountRate, 0.0);
+        sale.price = priceCents;
+        return sale;
     }
 
     @Override
@@ -49,11 +56,15 @@ public class MySaleTransaction extends MyBalanceOperation implements it.polito.e
 
     @Override
     public double getPrice() {
-        return price;
+        return Money.toDouble(price);
     }
 
     @Override
     public void setPrice(double price) {
-        this.price=price;
+        this.price=Money.cents(price);
+    }
+
+    public long getPriceCents() {
+        return price;
     }
 }
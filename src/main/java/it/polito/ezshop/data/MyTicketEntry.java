@@ -4,17 +4,24 @@ public class MyTicketEntry implements it.polito.ezshop.data.TicketEntry{
     private String barCode;
     private String productDescription;
     private int amount;
-    private double pricePerUnit;
+    // cents, converted at the interface
+    private long pricePerUnit;
     private double discountRate;
 
     public MyTicketEntry(String barCode, String productDescription, int amount, double pricePerUnit, double discountRate) {
         this.barCode=barCode;
         this.productDescription=productDescription;
         this.amount=amount;
-        this.pricePerUnit=pricePerUnit;
+        this.pricePerUnit=Money.cents(pricePerUnit);
         this.discountRate=discountRate;
     }
 
+    static MyTicketEntry ofCents(String barCode, String productDescription, int amount, long priceCents, double discountRate) {
+        MyTicketEntry e = new MyTicketEntry(barCode, productDescription, amount, 0.0, discountRate);
+        e.pricePerUnit = priceCents;
+        return e;
+    }
+
     @Override
     public String getBarCode() {
         return barCode;
@@ -47,12 +54,16 @@ public class MyTicketEntry implements it.polito.ezshop.data.TicketEntry{
 
     @Override
     public double getPricePerUnit() {
-        return pricePerUnit;
+        return Money.toDouble(pricePerUnit);
     }
 
     @Override
     public void setPricePerUnit(double pricePerUnit) {
-        this.pricePerUnit=pricePerUnit;
+        this.pricePerUnit=Money.cents(pricePerUnit);
+    }
+
+    public long getPriceCents() {
+        return pricePerUnit;
     }
 
     @Override
@@ -0,0 +1,29 @@
+package it.polito.ezshop.data;
+
+import java.util.List;
+
+// One page of a listing in id order. The token of the next page is the id of the last item: the next page is
+// read from the primary key after it (keyset pagination), so a page costs the same wherever it is and rows added
+// or removed meanwhile do not shift the pages.
+public class Page<T> {
+    private final List<T> items;
+    private final Integer next;
+
+    Page(List<T> items, Integer next) {
+        this.items = items;
+        this.next = next;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    // to be passed back for the next page, null on the last one
+    public Integer getNextToken() {
+        return next;
+    }
+
+    public boolean hasNext() {
+        return next != null;
+    }
+}
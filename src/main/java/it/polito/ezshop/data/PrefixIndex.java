@@ -0,0 +1,103 @@
+package it.polito.ezshop.data;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+// Keys with the id of their product, in a pair of parallel arrays sorted by key then id: the keys starting with
+// a prefix are a contiguous run found by binary search, and the first k of them cost k steps. Built in one sort
+// when the catalog loads, then kept sorted by inserting and removing in place, which moves part of the arrays
+// but allocates nothing. Kept by the ProductCatalog under its monitor.
+public class PrefixIndex {
+    private String[] keys = new String[16];
+    private int[] ids = new int[16];
+    private int size;
+
+    // a product and its key, for the bulk build
+    static final class Entry {
+        private final String key;
+        private final int id;
+
+        Entry(String key, int id) {
+            this.key = key;
+            this.id = id;
+        }
+    }
+
+    void build(Collection<Entry> entries) {
+        Entry[] sorted = entries.toArray(new Entry[0]);
+        Arrays.sort(sorted, Comparator.<Entry, String>comparing(e -> e.key).thenComparingInt(e -> e.id));
+        size = sorted.length;
+        keys = new String[Math.max(16, size)];
+        ids = new int[keys.length];
+        for(int i = 0; i < size; i++) {
+            keys[i] = sorted[i].key;
+            ids[i] = sorted[i].id;
+        }
+    }
+
+    void add(String key, int id) {
+        int at = find(key, id);
+        if(at >= 0)
+            return;
+        at = -at - 1;
+        if(size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        System.arraycopy(keys, at, keys, at + 1, size - at);
+        System.arraycopy(ids, at, ids, at + 1, size - at);
+        keys[at] = key;
+        ids[at] = id;
+        size++;
+    }
+
+    void remove(String key, int id) {
+        int at = find(key, id);
+        if(at < 0)
+            return;
+        System.arraycopy(keys, at + 1, keys, at, size - at - 1);
+        System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+        size--;
+        keys[size] = null;
+    }
+
+    void clear() {
+        keys = new String[16];
+        ids = new int[16];
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // ids of the first keys starting with the prefix, in key order, at most into.length of them; how many
+    int first(String prefix, int[] into) {
+        int at = find(prefix, Integer.MIN_VALUE);
+        at = at < 0 ? -at - 1 : at;
+        int n = 0;
+        while(n < into.length && at < size && keys[at].startsWith(prefix))
+            into[n++] = ids[at++];
+        return n;
+    }
+
+    // position of the key and id, or -(insertion point) - 1
+    private int find(String key, int id) {
+        int low = 0;
+        int high = size - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = keys[mid].compareTo(key);
+            if(c == 0)
+                c = Integer.compare(ids[mid], id);
+            if(c < 0)
+                low = mid + 1;
+            else if(c > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+}
@@ -0,0 +1,311 @@
+package it.polito.ezshop.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// In-memory copy of the productType table, shared by every EZShop instance, keyed by barcode with id and
+// position secondary maps. It is loaded as a whole on first use, then kept coherent by the methods that
+// write productType (write-through, inside their unit of work); a rolled back unit of work that wrote through
+// to it, or loaded it after writing, drops it and the next lookup reloads it. Other rollbacks leave it alone.
+// Loading runs in a write transaction so that it cannot interleave with a writer whose changes would then be
+// lost. Lookups return copies, callers cannot modify the cached products.
+// Quantities are kept by a StockLedger with a lock per stripe of product ids, not under the catalog monitor:
+// units held by the open sales are reserved there rather than taken from productType, so the quantity reported
+// is what is left to sell; reservations are not in the database and survive reloads.
+// Descriptions are searched through a DescriptionIndex of short grams, and barcode and description prefixes through
+// two PrefixIndex for the typeahead, all kept in step with the maps.
+public class ProductCatalog {
+    private final ConnectionPool pool;
+    private final Map<String, MyProductType> byBarCode = new HashMap<>();
+    private final Map<Integer, MyProductType> byId = new HashMap<>();
+    private final Map<String, MyProductType> byPosition = new HashMap<>();
+    private final StockLedger stock = new StockLedger();
+    private final DescriptionIndex descriptions = new DescriptionIndex();
+    private final PrefixIndex barCodePrefixes = new PrefixIndex();
+    private final PrefixIndex descriptionPrefixes = new PrefixIndex();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private boolean loaded;
+    // written through by the unit of work of the calling thread
+    private final ThreadLocal<Boolean> written = ThreadLocal.withInitial(() -> false);
+
+    ProductCatalog(ConnectionPool pool) {
+        this.pool = pool;
+        pool.addCommitListener(() -> written.set(false));
+        pool.addRollbackListener(() -> {
+            if(written.get())
+                invalidate();
+            written.set(false);
+        });
+    }
+
+    public MyProductType getByBarCode(String barCode) throws SQLException {
+        return read(() -> copy(byBarCode.get(barCode)));
+    }
+
+    public MyProductType getById(int id) throws SQLException {
+        return read(() -> copy(byId.get(id)));
+    }
+
+    public MyProductType getByPosition(String position) throws SQLException {
+        return read(() -> copy(byPosition.get(position)));
+    }
+
+    public List<ProductType> getAll() throws SQLException {
+        return read(() -> {
+            List<ProductType> list = new ArrayList<>(byId.size());
+            for(MyProductType p : byId.values())
+                list.add(copy(p));
+            return list;
+        });
+    }
+
+    // the products whose description contains the text, as description LIKE '%text%', by id
+    public List<ProductType> getByDescription(String text) throws SQLException {
+        return read(() -> copies(descriptions.matches(text)));
+    }
+
+    // at most limit products whose description contains the text, best matches first
+    public List<ProductType> search(String text, int limit) throws SQLException {
+        return read(() -> copies(descriptions.search(text, limit)));
+    }
+
+    // at most limit products whose barcode, when the prefix is all digits, or description starts with the prefix,
+    // barcodes first, then in description order
+    public List<ProductSuggestion> suggest(String prefix, int limit) throws SQLException {
+        if(prefix == null || prefix.isEmpty() || limit <= 0)
+            return new ArrayList<>();
+        return read(() -> {
+            int[] found = new int[limit];
+            List<ProductSuggestion> list = new ArrayList<>(limit);
+            if(prefix.chars().allMatch(c -> c >= '0' && c <= '9'))
+                add(list, found, barCodePrefixes.first(prefix, found));
+            if(list.size() < limit)
+                add(list, found, descriptionPrefixes.first(DescriptionIndex.fold(prefix), found));
+            return list;
+        });
+    }
+
+    private void add(List<ProductSuggestion> list, int[] found, int n) {
+        candidates:
+        for(int i = 0; i < n && list.size() < found.length; i++) {
+            for(ProductSuggestion s : list)
+                if(s.getId() == found[i])
+                    continue candidates;
+            MyProductType p = byId.get(found[i]);
+            list.add(new ProductSuggestion(p.getId(), p.getBarCode(), p.getProductDescription()));
+        }
+    }
+
+    public DescriptionIndex getDescriptionIndex() {
+        return descriptions;
+    }
+
+    // lookups answered from memory
+    public long getHits() {
+        return hits.sum();
+    }
+
+    // lookups that had to load the catalog from the database
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    synchronized void put(MyProductType product) {
+        if(!loaded)
+            return;
+        wrote();
+        remove(product.getId());
+        index(product);
+        barCodePrefixes.add(product.getBarCode(), product.getId());
+        descriptionPrefixes.add(prefixKey(product), product.getId());
+    }
+
+    public StockLedger getStockLedger() {
+        return stock;
+    }
+
+    synchronized void update(int id, String barCode, String description, long priceCents, String note) {
+        MyProductType p = byId.get(id);
+        if(p == null)
+            return;
+        wrote();
+        byBarCode.remove(p.getBarCode());
+        barCodePrefixes.remove(p.getBarCode(), id);
+        descriptionPrefixes.remove(prefixKey(p), id);
+        p.setBarCode(barCode);
+        p.setProductDescription(description);
+        p.setPriceCents(priceCents);
+        p.setNote(note);
+        byBarCode.put(barCode, p);
+        descriptions.put(id, description);
+        barCodePrefixes.add(barCode, id);
+        descriptionPrefixes.add(prefixKey(p), id);
+    }
+
+    // false if the stock would fall below the units reserved by the open sales
+    boolean addQuantity(int id, int toBeAdded) {
+        wrote();
+        return stock.adjust(id, toBeAdded);
+    }
+
+    // holds units of a product for an open sale, false if fewer are left or the product has no position
+    boolean reserve(int id, int amount) throws SQLException {
+        boolean positioned = read(() -> {
+            MyProductType p = byId.get(id);
+            return p != null && p.getLocation() != null;
+        });
+        return positioned && stock.reserve(id, amount);
+    }
+
+    void release(int id, int amount) {
+        stock.release(id, amount);
+    }
+
+    // reserved units that have been sold: written to productType by the caller, in its unit of work
+    void sell(int id, int amount) {
+        wrote();
+        stock.commit(id, amount);
+    }
+
+    public int getReserved(int id) {
+        return stock.getReserved(id);
+    }
+
+    synchronized void setPosition(int id, String position) {
+        MyProductType p = byId.get(id);
+        if(p == null)
+            return;
+        wrote();
+        if(p.getLocation() != null)
+            byPosition.remove(p.getLocation());
+        p.setLocation(position);
+        if(position != null && !position.isEmpty())
+            byPosition.put(position, p);
+    }
+
+    synchronized void remove(int id) {
+        MyProductType p = byId.remove(id);
+        if(p == null)
+            return;
+        wrote();
+        stock.remove(id);
+        descriptions.remove(id);
+        barCodePrefixes.remove(p.getBarCode(), id);
+        descriptionPrefixes.remove(prefixKey(p), id);
+        byBarCode.remove(p.getBarCode());
+        if(p.getLocation() != null)
+            byPosition.remove(p.getLocation());
+    }
+
+    synchronized void invalidate() {
+        loaded = false;
+        byBarCode.clear();
+        byId.clear();
+        byPosition.clear();
+        descriptions.clear();
+        barCodePrefixes.clear();
+        descriptionPrefixes.clear();
+    }
+
+    // the monitor is never held while waiting for the database: writers take the database lock first,
+    // then the monitor to write through
+    private <T> T read(Supplier<T> lookup) throws SQLException {
+        while(true) {
+            synchronized (this) {
+                if(loaded) {
+                    hits.increment();
+                    return lookup.get();
+                }
+            }
+            load();
+        }
+    }
+
+    private void load() throws SQLException {
+        misses.increment();
+        Connection conn = pool.begin();
+        try {
+            synchronized (this) {
+                if(loaded)
+                    return;
+                String sql = "SELECT id, productCode, description, pricePerUnit, quantity, notes, position FROM productType";
+                PreparedStatement st = conn.prepareStatement(sql);
+                ResultSet rs = st.executeQuery();
+                while (rs.next()) {
+                    index(MyProductType.ofCents(
+                            rs.getInt("id"),
+                            rs.getString("productCode"),
+                            rs.getString("description"),
+                            rs.getLong("pricePerUnit"),
+                            rs.getInt("quantity"),
+                            rs.getString("notes"),
+                            rs.getString("position")
+                    ));
+                }
+                // sorted once rather than inserted one by one
+                List<PrefixIndex.Entry> codes = new ArrayList<>(byId.size());
+                List<PrefixIndex.Entry> texts = new ArrayList<>(byId.size());
+                for(MyProductType p : byId.values()) {
+                    codes.add(new PrefixIndex.Entry(p.getBarCode(), p.getId()));
+                    texts.add(new PrefixIndex.Entry(prefixKey(p), p.getId()));
+                }
+                barCodePrefixes.build(codes);
+                descriptionPrefixes.build(texts);
+                loaded = true;
+                // it has read what the unit of work wrote so far
+                if(pool.hasWritten())
+                    wrote();
+            }
+        } catch (SQLException e) {
+            invalidate();
+            throw e;
+        } finally {
+            pool.release();
+        }
+    }
+
+    private void wrote() {
+        if(pool.inUnitOfWork())
+            written.set(true);
+    }
+
+    private void index(MyProductType p) {
+        stock.setOnHand(p.getId(), p.getQuantity());
+        byBarCode.put(p.getBarCode(), p);
+        byId.put(p.getId(), p);
+        descriptions.put(p.getId(), p.getProductDescription());
+        if(p.getLocation() != null && !p.getLocation().isEmpty())
+            byPosition.put(p.getLocation(), p);
+    }
+
+    private static String prefixKey(MyProductType p) {
+        return DescriptionIndex.fold(p.getProductDescription() == null ? "" : p.getProductDescription());
+    }
+
+    private List<ProductType> copies(List<Integer> ids) {
+        List<ProductType> list = new ArrayList<>(ids.size());
+        for(int id : ids)
+            list.add(copy(byId.get(id)));
+        return list;
+    }
+
+    private MyProductType copy(MyProductType p) {
+        if(p == null)
+            return null;
+        return MyProductType.ofCents(p.getId(), p.getBarCode(), p.getProductDescription(), p.getPriceCents(),
+                stock.getAvailable(p.getId()), p.getNote(), p.getLocation());
+    }
+}
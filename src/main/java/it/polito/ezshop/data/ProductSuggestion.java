@@ -0,0 +1,31 @@
+package it.polito.ezshop.data;
+
+// A typeahead match: what the search box shows, without the price, quantity and position of a ProductType.
+public class ProductSuggestion {
+    private final int id;
+    private final String barCode;
+    private final String description;
+
+    ProductSuggestion(int id, String barCode, String description) {
+        this.id = id;
+        this.barCode = barCode;
+        this.description = description;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getBarCode() {
+        return barCode;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public String toString() {
+        return barCode + " " + description;
+    }
+}
@@ -0,0 +1,209 @@
+package it.polito.ezshop.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// In-memory index of the RFID ranges recorded by recordOrderArrivalRFID (table productRange: first tag, number
+// of tags, barcode, bitmap of the items currently sold), shared by every EZShop instance. Ranges never overlap,
+// so they are kept sorted by first tag in primitive arrays and a tag is resolved by binary search for the last
+// range starting at or before it. Loaded at startup; like the product catalog it is dropped when a unit of
+// work that changed it is rolled back, and reloaded on the next lookup.
+public class RfidIndex {
+    public static final long MAX_RFID = 999_999_999_999L;
+
+    private final ConnectionPool pool;
+    private long[] firsts = new long[16];
+    private Range[] ranges = new Range[16];
+    private int size;
+    private boolean loaded;
+    private long loads;
+    // ranges added or items flipped by the unit of work of the calling thread
+    private final ThreadLocal<Boolean> written = ThreadLocal.withInitial(() -> false);
+
+    RfidIndex(ConnectionPool pool) {
+        this.pool = pool;
+        pool.addCommitListener(() -> written.set(false));
+        pool.addRollbackListener(() -> {
+            if(written.get())
+                invalidate();
+            written.set(false);
+        });
+    }
+
+    // barcode the tagged item arrived with, null if the tag has never been recorded
+    public String getBarCode(long rfid) throws SQLException {
+        while(true) {
+            synchronized (this) {
+                if(loaded) {
+                    Range r = find(rfid);
+                    return r == null ? null : r.barcode;
+                }
+            }
+            load();
+        }
+    }
+
+    public boolean isSold(long rfid) throws SQLException {
+        while(true) {
+            synchronized (this) {
+                if(loaded) {
+                    Range r = find(rfid);
+                    return r != null && r.sold.get((int) (rfid - r.first));
+                }
+            }
+            load();
+        }
+    }
+
+    // whether any tag from first to last (included) has already been recorded
+    public boolean overlaps(long first, long last) throws SQLException {
+        while(true) {
+            synchronized (this) {
+                if(loaded) {
+                    int i = floor(last);
+                    return i >= 0 && firsts[i] + ranges[i].length > first;
+                }
+            }
+            load();
+        }
+    }
+
+    public synchronized int getRangeCount() {
+        return size;
+    }
+
+    // times the ranges have been read from the database
+    public synchronized long getLoads() {
+        return loads;
+    }
+
+    synchronized void add(long first, int length, String barcode) {
+        if(!loaded)
+            return;
+        wrote();
+        insert(new Range(first, length, barcode, new BitSet()));
+    }
+
+    // flips the sold state of an item and returns its range, null if the tag is unknown. Called inside the
+    // unit of work that persists the bitmap, writers are serialized by the database lock
+    synchronized Range setSold(long rfid, boolean sold) {
+        Range r = find(rfid);
+        if(r != null) {
+            wrote();
+            r.sold.set((int) (rfid - r.first), sold);
+        }
+        return r;
+    }
+
+    synchronized void invalidate() {
+        loaded = false;
+        Arrays.fill(ranges, 0, size, null);
+        size = 0;
+    }
+
+    void load() throws SQLException {
+        Connection conn = pool.begin();
+        try {
+            synchronized (this) {
+                if(loaded)
+                    return;
+                loads++;
+                String sql = "SELECT first, length, barcode, sold FROM productRange ORDER BY first";
+                PreparedStatement st = conn.prepareStatement(sql);
+                ResultSet rs = st.executeQuery();
+                while (rs.next()) {
+                    byte[] sold = rs.getBytes("sold");
+                    insert(new Range(rs.getLong("first"), rs.getInt("length"), rs.getString("barcode"),
+                            sold == null ? new BitSet() : BitSet.valueOf(sold)));
+                }
+                loaded = true;
+                // it has read what the unit of work wrote so far
+                if(pool.hasWritten())
+                    wrote();
+            }
+        } catch (SQLException e) {
+            invalidate();
+            throw e;
+        } finally {
+            pool.release();
+        }
+    }
+
+    private void wrote() {
+        if(pool.inUnitOfWork())
+            written.set(true);
+    }
+
+    private Range find(long rfid) {
+        int i = floor(rfid);
+        if(i < 0 || rfid >= firsts[i] + ranges[i].length)
+            return null;
+        return ranges[i];
+    }
+
+    // index of the last range starting at or before rfid, -1 if none
+    private int floor(long rfid) {
+        int i = Arrays.binarySearch(firsts, 0, size, rfid);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private void insert(Range r) {
+        if(size == firsts.length) {
+            firsts = Arrays.copyOf(firsts, size * 2);
+            ranges = Arrays.copyOf(ranges, size * 2);
+        }
+        int i = floor(r.first) + 1;
+        System.arraycopy(firsts, i, firsts, i + 1, size - i);
+        System.arraycopy(ranges, i, ranges, i + 1, size - i);
+        firsts[i] = r.first;
+        ranges[i] = r;
+        size++;
+    }
+
+    // the 12-digit, zero-padded form of a tag
+    static String format(long rfid) {
+        char[] digits = new char[12];
+        for(int i = 11; i >= 0; i--) {
+            digits[i] = (char) ('0' + rfid % 10);
+            rfid /= 10;
+        }
+        return new String(digits);
+    }
+
+    // -1 if the string is not a valid RFID
+    static long parse(String rfid) {
+        if(rfid == null || rfid.length() != 12)
+            return -1;
+        long value = 0;
+        for(int i = 0; i < 12; i++) {
+            char c = rfid.charAt(i);
+            if(c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    static final class Range {
+        final long first;
+        final int length;
+        final String barcode;
+        private final BitSet sold;
+
+        private Range(long first, int length, String barcode, BitSet sold) {
+            this.first = first;
+            this.length = length;
+            this.barcode = barcode;
+            this.sold = sold;
+        }
+
+        // bit i set if item first+i is sold, trailing zero bytes omitted
+        byte[] soldBitmap() {
+            return sold.toByteArray();
+        }
+    }
+}
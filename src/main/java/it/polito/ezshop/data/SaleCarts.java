@@ -0,0 +1,594 @@
+package it.polito.ezshop.data;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The open sale transactions, shared by every EZShop instance. Lines, discounts and the running total of an
+// open sale live only here: scans neither write productEntry nor touch productType, endSaleTransaction writes
+// the whole cart in one unit of work. Units in a cart are reserved in the product catalog, so two tills cannot
+// sell the same stock, and tagged items are held in a set shared by all carts. Every change is recorded in a
+// CartJournal first and the carts are rebuilt from it at startup.
+// Lock order: the database lock, then this monitor, then the catalog and the journal. The catalog may have to
+// load from the database, so reservations are taken before entering this monitor.
+public class SaleCarts {
+    // rewrite the journal once it holds this many records more than the open carts need
+    private static final int COMPACT_THRESHOLD = 10_000;
+
+    private final ProductCatalog catalog;
+    private final RfidIndex rfids;
+    private final CartJournal journal;
+    private final Map<Integer, Cart> carts = new HashMap<>();
+    private final Set<Long> tags = ConcurrentHashMap.newKeySet();
+    private boolean replaying;
+    // why the open sales could not be recovered at startup, null if they were
+    private Exception recoveryFailure;
+
+    SaleCarts(ProductCatalog catalog, RfidIndex rfids, CartJournal journal) {
+        this.catalog = catalog;
+        this.rfids = rfids;
+        this.journal = journal;
+    }
+
+    // the open sale with the given id, null if there is none
+    public synchronized Cart get(int id) {
+        Cart cart = carts.get(id);
+        return cart == null ? null : cart.copy();
+    }
+
+    public synchronized boolean isOpen(int id) {
+        return carts.containsKey(id);
+    }
+
+    public synchronized int size() {
+        return carts.size();
+    }
+
+    public synchronized Exception getRecoveryFailure() {
+        return recoveryFailure;
+    }
+
+    synchronized void recoveryFailed(Exception e) {
+        recoveryFailure = e;
+    }
+
+    // whether a tagged item is in one of the open carts
+    public boolean isHeld(long rfid) {
+        return tags.contains(rfid);
+    }
+
+    // called inside the unit of work that inserts the sale: every cart closed so far has been committed, so
+    // this is where the journal is compacted
+    synchronized boolean open(int id, double discountRate) {
+        try {
+            if(!replaying) {
+                if(carts.isEmpty())
+                    journal.rewrite(Collections.emptyList());
+                else if(journal.getRecords() > COMPACT_THRESHOLD)
+                    journal.rewrite(snapshot());
+                journal.append("O", id, discountRate);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        carts.put(id, new Cart(id, discountRate));
+        return true;
+    }
+
+    boolean add(int id, int productId, String barCode, long priceCents, int amount) throws SQLException {
+        if(!catalog.reserve(productId, amount))
+            return false;
+        synchronized (this) {
+            Cart cart = carts.get(id);
+            if(cart == null || !log("A", id, barCode, amount, priceCents)) {
+                catalog.release(productId, amount);
+                return false;
+            }
+            cart.line(productId, barCode, priceCents).add(cart, amount);
+            return true;
+        }
+    }
+
+    // adds several products at once (barcode -> amount): each line succeeds or fails on its own, false if the
+    // product does not exist or there is not enough stock for it. The lines that succeed are journaled together
+    Map<String, Boolean> addAll(int id, Map<String, Integer> amounts) throws SQLException {
+        Map<String, Boolean> outcome = new LinkedHashMap<>();
+        List<MyProductType> reserved = new ArrayList<>();
+        if(isOpen(id)) {
+            try {
+                for(Map.Entry<String, Integer> e : amounts.entrySet()) {
+                    MyProductType product = catalog.getByBarCode(e.getKey());
+                    boolean ok = product != null && catalog.reserve(product.getId(), e.getValue());
+                    if(ok)
+                        reserved.add(product);
+                    outcome.put(e.getKey(), ok);
+                }
+            } catch (SQLException e) {
+                for(MyProductType product : reserved)
+                    catalog.release(product.getId(), amounts.get(product.getBarCode()));
+                throw e;
+            }
+        }
+        synchronized (this) {
+            Cart cart = carts.get(id);
+            List<Object[]> records = new ArrayList<>();
+            for(MyProductType product : reserved)
+                records.add(new Object[]{"A", id, product.getBarCode(), amounts.get(product.getBarCode()), product.getPriceCents()});
+            if(cart == null || !log(records)) {
+                for(MyProductType product : reserved)
+                    catalog.release(product.getId(), amounts.get(product.getBarCode()));
+                for(String barCode : amounts.keySet())
+                    outcome.put(barCode, false);
+                return outcome;
+            }
+            for(MyProductType product : reserved)
+                cart.line(product.getId(), product.getBarCode(), product.getPriceCents()).add(cart, amounts.get(product.getBarCode()));
+            return outcome;
+        }
+    }
+
+    // false if the item is already in a cart, already sold or there is no stock left for it
+    boolean addTag(int id, int productId, String barCode, long priceCents, long rfid) throws SQLException {
+        if(!tags.add(rfid))
+            return false;
+        try {
+            // checked once the item is held: a sale that ends marks its items sold before letting them go
+            if(rfids.isSold(rfid) || !catalog.reserve(productId, 1)) {
+                tags.remove(rfid);
+                return false;
+            }
+        } catch (SQLException e) {
+            tags.remove(rfid);
+            throw e;
+        }
+        synchronized (this) {
+            Cart cart = carts.get(id);
+            if(cart == null || !log("T", id, barCode, rfid, priceCents)) {
+                catalog.release(productId, 1);
+                tags.remove(rfid);
+                return false;
+            }
+            cart.line(productId, barCode, priceCents).addTag(cart, rfid);
+            return true;
+        }
+    }
+
+    // adds a basket of tagged items grouped by barcode: the stock of each product is reserved once for all its
+    // items, all of them are journaled with one flush. Returns the items added
+    List<Long> addTags(int id, Map<String, List<Long>> byBarCode) throws SQLException {
+        List<Long> held = new ArrayList<>();
+        // product -> its items, held and reserved
+        Map<MyProductType, List<Long>> reserved = new LinkedHashMap<>();
+        try {
+            for(Map.Entry<String, List<Long>> e : byBarCode.entrySet()) {
+                MyProductType product = catalog.getByBarCode(e.getKey());
+                if(product == null || !isOpen(id))
+                    continue;
+                List<Long> items = new ArrayList<>();
+                for(long rfid : e.getValue()) {
+                    if(tags.add(rfid)) {
+                        held.add(rfid);
+                        // checked once the item is held, as in addTag
+                        if(!rfids.isSold(rfid))
+                            items.add(rfid);
+                    }
+                }
+                if(!items.isEmpty() && catalog.reserve(product.getId(), items.size()))
+                    reserved.put(product, items);
+            }
+        } catch (SQLException e) {
+            release(reserved, held);
+            throw e;
+        }
+
+        synchronized (this) {
+            Cart cart = carts.get(id);
+            List<Object[]> records = new ArrayList<>();
+            for(Map.Entry<MyProductType, List<Long>> e : reserved.entrySet()) {
+                for(long rfid : e.getValue())
+                    records.add(new Object[]{"T", id, e.getKey().getBarCode(), rfid, e.getKey().getPriceCents()});
+            }
+            if(cart == null || !log(records)) {
+                release(reserved, held);
+                return Collections.emptyList();
+            }
+            List<Long> added = new ArrayList<>();
+            for(Map.Entry<MyProductType, List<Long>> e : reserved.entrySet()) {
+                MyProductType product = e.getKey();
+                Line line = cart.line(product.getId(), product.getBarCode(), product.getPriceCents());
+                line.addTags(cart, e.getValue());
+                added.addAll(e.getValue());
+            }
+            // items sold or without stock are let go
+            held.removeAll(added);
+            tags.removeAll(held);
+            return added;
+        }
+    }
+
+    // units scanned by barcode only, tagged items are removed one by one
+    synchronized boolean remove(int id, String barCode, int amount) {
+        Cart cart = carts.get(id);
+        Line line = cart == null ? null : cart.lines.get(barCode);
+        if(line == null || line.amount < amount || !log("D", id, barCode, amount))
+            return false;
+        line.add(cart, -amount);
+        if(line.getUnits() == 0)
+            cart.lines.remove(barCode);
+        catalog.release(line.productId, amount);
+        return true;
+    }
+
+    synchronized boolean removeTag(int id, String barCode, long rfid) {
+        Cart cart = carts.get(id);
+        Line line = cart == null ? null : cart.lines.get(barCode);
+        if(line == null || !line.tags.contains(rfid) || !log("U", id, barCode, rfid))
+            return false;
+        line.removeTag(cart, rfid);
+        if(line.getUnits() == 0)
+            cart.lines.remove(barCode);
+        catalog.release(line.productId, 1);
+        tags.remove(rfid);
+        return true;
+    }
+
+    synchronized boolean setDiscountRate(int id, String barCode, double discountRate) {
+        Cart cart = carts.get(id);
+        Line line = cart == null ? null : cart.lines.get(barCode);
+        if(line == null || !log("L", id, barCode, discountRate))
+            return false;
+        line.setDiscountRate(cart, discountRate);
+        return true;
+    }
+
+    synchronized boolean setDiscountRate(int id, double discountRate) {
+        Cart cart = carts.get(id);
+        if(cart == null || !log("S", id, discountRate))
+            return false;
+        cart.setDiscountRate(discountRate);
+        return true;
+    }
+
+    // takes the cart out of the open sales while endSaleTransaction writes it: scans fail from now on
+    synchronized Cart close(int id) {
+        return carts.remove(id);
+    }
+
+    // puts back a cart whose unit of work failed
+    synchronized void reopen(Cart cart) {
+        carts.put(cart.id, cart);
+    }
+
+    // the cart has been written: its units leave the stock for good and its tagged items are sold
+    synchronized void settle(Cart cart) {
+        for(Line line : cart.lines.values()) {
+            catalog.sell(line.productId, line.getUnits());
+            tags.removeAll(line.tags);
+        }
+    }
+
+    // deleted sale: its units and tagged items go back on the shelf
+    synchronized boolean discard(int id) {
+        Cart cart = carts.remove(id);
+        if(cart == null)
+            return false;
+        release(cart);
+        return true;
+    }
+
+    synchronized void clear() {
+        for(Cart cart : carts.values())
+            release(cart);
+        carts.clear();
+        try {
+            journal.rewrite(Collections.emptyList());
+        } catch (IOException e) {
+            // the sales are gone from the database, their records are skipped at the next startup
+        }
+    }
+
+    // rebuilds the carts of the sales still open in the database (id -> discount rate) from the journal, then
+    // rewrites it with just what they hold
+    void recover(Map<Integer, Double> open) throws IOException, SQLException {
+        try {
+            replayJournal(open);
+        } catch (IOException | SQLException e) {
+            recoveryFailed(e);
+            throw e;
+        }
+    }
+
+    private void replayJournal(Map<Integer, Double> open) throws IOException, SQLException {
+        Map<Integer, List<String[]>> records = new HashMap<>();
+        for(String[] r : journal.read()) {
+            if(r.length < 2)
+                continue;
+            try {
+                int id = Integer.parseInt(r[1]);
+                // the IdAllocator never hands out an id twice, but a journal left by a version that reused the
+                // ids of deleted sales may open one again: only the records after the last opening count
+                if(r[0].equals("O"))
+                    records.put(id, new ArrayList<>());
+                records.computeIfAbsent(id, k -> new ArrayList<>()).add(r);
+            } catch (NumberFormatException e) {
+                // cut by a crash while it was written
+            }
+        }
+
+        synchronized (this) {
+            replaying = true;
+        }
+        try {
+            for(Map.Entry<Integer, Double> sale : open.entrySet()) {
+                int id = sale.getKey();
+                if(get(id) != null)
+                    continue;
+                open(id, sale.getValue());
+                for(String[] r : records.getOrDefault(id, Collections.emptyList()))
+                    replay(id, r);
+            }
+        } finally {
+            synchronized (this) {
+                replaying = false;
+                journal.rewrite(snapshot());
+            }
+        }
+    }
+
+    private void replay(int id, String[] r) throws SQLException {
+        try {
+            switch (r[0]) {
+                case "O":
+                    setDiscountRate(id, Double.parseDouble(r[2]));
+                    break;
+                case "A":
+                case "T": {
+                    ProductType product = catalog.getByBarCode(r[2]);
+                    if(product == null)
+                        break;
+                    if(r[0].equals("A"))
+                        add(id, product.getId(), r[2], parsePrice(r[4]), Integer.parseInt(r[3]));
+                    else
+                        addTag(id, product.getId(), r[2], parsePrice(r[4]), Long.parseLong(r[3]));
+                    break;
+                }
+                case "D":
+                    remove(id, r[2], Integer.parseInt(r[3]));
+                    break;
+                case "U":
+                    removeTag(id, r[2], Long.parseLong(r[3]));
+                    break;
+                case "L":
+                    setDiscountRate(id, r[2], Double.parseDouble(r[3]));
+                    break;
+                case "S":
+                    setDiscountRate(id, Double.parseDouble(r[2]));
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // cut by a crash while it was written
+        }
+    }
+
+    // prices are journaled in cents; a journal left by a version that wrote them as decimals is still read
+    private static long parsePrice(String price) {
+        return price.indexOf('.') < 0 ? Long.parseLong(price) : Money.cents(Double.parseDouble(price));
+    }
+
+    private boolean log(Object... fields) {
+        return log(Collections.singletonList(fields));
+    }
+
+    private boolean log(List<Object[]> records) {
+        if(replaying || records.isEmpty())
+            return true;
+        try {
+            journal.append(records);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void release(Map<MyProductType, List<Long>> reserved, List<Long> held) {
+        for(Map.Entry<MyProductType, List<Long>> e : reserved.entrySet())
+            catalog.release(e.getKey().getId(), e.getValue().size());
+        tags.removeAll(held);
+    }
+
+    private void release(Cart cart) {
+        for(Line line : cart.lines.values()) {
+            catalog.release(line.productId, line.getUnits());
+            tags.removeAll(line.tags);
+        }
+    }
+
+    private List<Object[]> snapshot() {
+        List<Object[]> list = new ArrayList<>();
+        for(Cart cart : carts.values()) {
+            list.add(new Object[]{"O", cart.id, cart.discountRate});
+            for(Line line : cart.lines.values()) {
+                if(line.amount > 0 || line.tags.isEmpty())
+                    list.add(new Object[]{"A", cart.id, line.barCode, line.amount, line.pricePerUnit});
+                for(long rfid : line.tags)
+                    list.add(new Object[]{"T", cart.id, line.barCode, rfid, line.pricePerUnit});
+                if(line.discountRate != 0.0)
+                    list.add(new Object[]{"L", cart.id, line.barCode, line.discountRate});
+            }
+        }
+        return list;
+    }
+
+    public static final class Cart {
+        private final int id;
+        private double discountRate;
+        private final Map<String, Line> lines = new LinkedHashMap<>();
+        // sum of the line totals in cents, kept up to date by every change to a line
+        private long subtotal;
+        // subtotal less the sale discount, kept up to date with it
+        private long total;
+
+        private Cart(int id, double discountRate) {
+            this.id = id;
+            this.discountRate = discountRate;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public double getDiscountRate() {
+            return discountRate;
+        }
+
+        public double getTotal() {
+            return Money.toDouble(getTotalCents());
+        }
+
+        public long getTotalCents() {
+            return total;
+        }
+
+        public long getSubtotalCents() {
+            return subtotal;
+        }
+
+        private void setDiscountRate(double discountRate) {
+            this.discountRate = discountRate;
+            total = Money.discounted(subtotal, discountRate);
+        }
+
+        // a line total changed
+        private void add(long delta) {
+            subtotal += delta;
+            total = Money.discounted(subtotal, discountRate);
+        }
+
+        public List<Line> getLines() {
+            return Collections.unmodifiableList(new ArrayList<>(lines.values()));
+        }
+
+        private Line line(int productId, String barCode, long priceCents) {
+            return lines.computeIfAbsent(barCode, k -> new Line(productId, barCode, priceCents));
+        }
+
+        private Cart copy() {
+            Cart cart = new Cart(id, discountRate);
+            for(Line line : lines.values())
+                cart.lines.put(line.barCode, line.copy());
+            cart.subtotal = subtotal;
+            cart.total = total;
+            return cart;
+        }
+    }
+
+    public static final class Line {
+        private final int productId;
+        private final String barCode;
+        // price in cents when the product was first scanned in the sale
+        private final long pricePerUnit;
+        // units scanned by barcode
+        private int amount;
+        private final TreeSet<Long> tags = new TreeSet<>();
+        private double discountRate;
+        // units times price less the line discount, in cents
+        private long total;
+
+        private Line(int productId, String barCode, long pricePerUnit) {
+            this.productId = productId;
+            this.barCode = barCode;
+            this.pricePerUnit = pricePerUnit;
+        }
+
+        public int getProductId() {
+            return productId;
+        }
+
+        public String getBarCode() {
+            return barCode;
+        }
+
+        public double getPricePerUnit() {
+            return Money.toDouble(pricePerUnit);
+        }
+
+        public long getPriceCents() {
+            return pricePerUnit;
+        }
+
+        public int getAmount() {
+            return amount;
+        }
+
+        public Set<Long> getTags() {
+            return Collections.unmodifiableSet(tags);
+        }
+
+        public double getDiscountRate() {
+            return discountRate;
+        }
+
+        public int getUnits() {
+            return amount + tags.size();
+        }
+
+        public double getTotal() {
+            return Money.toDouble(getTotalCents());
+        }
+
+        public long getTotalCents() {
+            return total;
+        }
+
+        // called after every change to the units or the discount
+        private void retotal(Cart cart) {
+            long updated = Money.discounted(Money.times(pricePerUnit, getUnits()), discountRate);
+            cart.add(updated - total);
+            total = updated;
+        }
+
+        private void add(Cart cart, int units) {
+            amount += units;
+            retotal(cart);
+        }
+
+        private void addTag(Cart cart, long rfid) {
+            tags.add(rfid);
+            retotal(cart);
+        }
+
+        private void addTags(Cart cart, List<Long> items) {
+            tags.addAll(items);
+            retotal(cart);
+        }
+
+        private void removeTag(Cart cart, long rfid) {
+            tags.remove(rfid);
+            retotal(cart);
+        }
+
+        private void setDiscountRate(Cart cart, double discountRate) {
+            this.discountRate = discountRate;
+            retotal(cart);
+        }
+
+        private Line copy() {
+            Line line = new Line(productId, barCode, pricePerUnit);
+            line.amount = amount;
+            line.tags.addAll(tags);
+            line.discountRate = discountRate;
+            line.total = total;
+            return line;
+        }
+    }
+}
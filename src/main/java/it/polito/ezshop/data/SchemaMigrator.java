@@ -0,0 +1,327 @@
+package it.polito.ezshop.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Versioned schema changes. The version of a database is stored in PRAGMA user_version (0 for the
+// original ezshop_db.sqlite); at startup every migration newer than it is applied, in order, inside the
+// caller's transaction, and the version is bumped after each one. Migrations are append-only: never
+// edit one that has been released, add a new one with the next version instead.
+public class SchemaMigrator {
+    static final List<Migration> MIGRATIONS = Collections.unmodifiableList(Arrays.asList(
+            sql(1, "indexes for RFID, product entry, balance date and loyalty card lookups",
+                    "CREATE INDEX IF NOT EXISTS product_RFID ON product(RFID)",
+                    "CREATE INDEX IF NOT EXISTS productEntry_barcode ON productEntry(barcode)",
+                    "CREATE INDEX IF NOT EXISTS balanceOperation_date ON balanceOperation(date)",
+                    "CREATE INDEX IF NOT EXISTS customer_loyaltyCardId ON customer(loyaltyCardId)"),
+            sql(2, "running balance kept by triggers on balanceOperation",
+                    "CREATE TABLE balance(id INTEGER PRIMARY KEY CHECK (id = 1), total REAL NOT NULL)",
+                    "INSERT INTO balance(id, total) VALUES (1, (SELECT COALESCE(SUM(money), 0.0) FROM balanceOperation))",
+                    "CREATE TRIGGER balance_insert AFTER INSERT ON balanceOperation BEGIN "
+                            + "UPDATE balance SET total = total + NEW.money WHERE id = 1; END",
+                    "CREATE TRIGGER balance_delete AFTER DELETE ON balanceOperation BEGIN "
+                            + "UPDATE balance SET total = total - OLD.money WHERE id = 1; END",
+                    "CREATE TRIGGER balance_update AFTER UPDATE OF money ON balanceOperation BEGIN "
+                            + "UPDATE balance SET total = total - OLD.money + NEW.money WHERE id = 1; END"),
+            new Migration(3, "RFID ranges with a sold bitmap instead of one product row per item") {
+                @Override
+                public void apply(Connection conn) throws SQLException {
+                    compactProducts(conn);
+                }
+            },
+            sql(4, "high-water marks of the sale (even) and return (odd) transaction ids",
+                    "CREATE TABLE idBlock(kind TEXT PRIMARY KEY, next INTEGER NOT NULL)",
+                    "INSERT INTO idBlock(kind, next) VALUES ('saleTransaction', "
+                            + "(SELECT (COALESCE(MAX(id), 0) / 2 + 1) * 2 FROM saleTransaction))",
+                    "INSERT INTO idBlock(kind, next) VALUES ('returnTransaction', "
+                            + "(SELECT ((COALESCE(MAX(id), -1) + 1) / 2) * 2 + 1 FROM returnTransaction))"),
+            new Migration(5, "prices, totals and balances stored as INTEGER cents") {
+                @Override
+                public void apply(Connection conn) throws SQLException {
+                    moneyToCents(conn);
+                }
+            },
+            new Migration(6, "subtotal of the sale lines kept next to the sale total") {
+                @Override
+                public void apply(Connection conn) throws SQLException {
+                    saleSubtotals(conn);
+                }
+            }
+    ));
+
+    private final List<Migration> migrations;
+
+    public SchemaMigrator() {
+        this(MIGRATIONS);
+    }
+
+    SchemaMigrator(List<Migration> migrations) {
+        for(int i = 0; i < migrations.size(); i++) {
+            if(migrations.get(i).getVersion() != i + 1)
+                throw new IllegalArgumentException("Migration " + (i + 1) + " missing or out of order");
+        }
+        this.migrations = migrations;
+    }
+
+    public int getLatestVersion() {
+        return migrations.size();
+    }
+
+    // returns the migrations that have been applied
+    public List<Migration> migrate(Connection conn) throws SQLException {
+        int current = getVersion(conn);
+        if(current > getLatestVersion())
+            throw new IllegalStateException("Database schema version " + current + " is newer than this application (" + getLatestVersion() + ")");
+
+        List<Migration> applied = new ArrayList<>();
+        for(Migration m : migrations.subList(current, migrations.size())) {
+            m.apply(conn);
+            setVersion(conn, m.getVersion());
+            applied.add(m);
+        }
+        return applied;
+    }
+
+    public static int getVersion(Connection conn) throws SQLException {
+        try(Statement st = conn.createStatement();
+            ResultSet rs = st.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static void setVersion(Connection conn, int version) throws SQLException {
+        try(Statement st = conn.createStatement()) {
+            st.executeUpdate("PRAGMA user_version = " + version);
+        }
+    }
+
+    // runs of consecutive tags with the same barcode become one productRange row; an item is sold if the last
+    // sale it is in has not been followed by a closed return of it. Sale and return ids are not comparable, but
+    // a return comes after the sale it refers to, and an item is sold again only in a later sale
+    private static void compactProducts(Connection conn) throws SQLException {
+        try(Statement st = conn.createStatement()) {
+            st.executeUpdate("CREATE TABLE productRange(first INTEGER PRIMARY KEY, length INTEGER NOT NULL CHECK (length > 0), "
+                    + "barcode TEXT NOT NULL, sold BLOB NOT NULL DEFAULT X'')");
+
+            // last sale of every item, then the last sale it has been returned from
+            Map<Long, Integer> lastSale = new HashMap<>();
+            try(ResultSet rs = st.executeQuery("SELECT PE.RFID AS RFID, MAX(ST.id) AS sale FROM productEntry PE, saleTransaction ST "
+                    + "WHERE PE.transactionId=ST.id AND PE.RFID IS NOT NULL GROUP BY PE.RFID")) {
+                while(rs.next())
+                    lastSale.put(RfidIndex.parse(rs.getString("RFID")), rs.getInt("sale"));
+            }
+            try(ResultSet rs = st.executeQuery("SELECT PE.RFID AS RFID, MAX(RT.saleTransactionId) AS sale FROM productEntry PE, returnTransaction RT "
+                    + "WHERE PE.transactionId=RT.id AND RT.status!='OPEN' AND PE.RFID IS NOT NULL GROUP BY PE.RFID")) {
+                while(rs.next()) {
+                    long rfid = RfidIndex.parse(rs.getString("RFID"));
+                    Integer sale = lastSale.get(rfid);
+                    if(sale != null && sale <= rs.getInt("sale"))
+                        lastSale.remove(rfid);
+                }
+            }
+            Set<Long> sold = lastSale.keySet();
+
+            try(PreparedStatement insert = conn.prepareStatement("INSERT INTO productRange(first, length, barcode, sold) VALUES (?,?,?,COALESCE(?, X''))");
+                ResultSet rs = st.executeQuery("SELECT RFID, barcode FROM product ORDER BY RFID")) {
+                long first = -1;
+                long last = -1;
+                String barcode = null;
+                BitSet bits = new BitSet();
+                while(rs.next()) {
+                    long rfid = RfidIndex.parse(rs.getString("RFID"));
+                    String code = rs.getString("barcode");
+                    if(rfid < 0 || code == null || rfid == last)
+                        continue;
+                    if(first >= 0 && (rfid != last + 1 || !code.equals(barcode))) {
+                        addRange(insert, first, last, barcode, bits);
+                        bits = new BitSet();
+                        first = -1;
+                    }
+                    if(first < 0) {
+                        first = rfid;
+                        barcode = code;
+                    }
+                    last = rfid;
+                    if(sold.contains(rfid))
+                        bits.set((int) (rfid - first));
+                }
+                if(first >= 0)
+                    addRange(insert, first, last, barcode, bits);
+                insert.executeBatch();
+            }
+            st.executeUpdate("DELETE FROM product");
+        }
+    }
+
+    // SQLite cannot change the type of a column: every table with money in it is rebuilt with INTEGER columns,
+    // amounts rounded to the nearest cent. Prices are kept positive, as their CHECK requires
+    private static void moneyToCents(Connection conn) throws SQLException {
+        rebuild(conn, "productType", "(\"id\" INTEGER, "
+                        + "\"productCode\" TEXT NOT NULL CHECK(length(\"productCode\") >= 12 AND length(\"productCode\") <= 14) UNIQUE, "
+                        + "\"description\" TEXT NOT NULL, \"pricePerUnit\" INTEGER NOT NULL CHECK(\"pricePerUnit\" > 0), "
+                        + "\"quantity\" INTEGER NOT NULL DEFAULT 0 CHECK(\"quantity\" >= 0), \"discountRate\" REAL NOT NULL DEFAULT 0, "
+                        + "\"notes\" TEXT NOT NULL DEFAULT '', \"position\" TEXT DEFAULT NULL UNIQUE, PRIMARY KEY(\"id\" AUTOINCREMENT))",
+                "id, productCode, description, pricePerUnit, quantity, discountRate, notes, position",
+                "id, productCode, description, MAX(1, CAST(ROUND(pricePerUnit * 100) AS INTEGER)), quantity, discountRate, notes, position");
+        rebuild(conn, "order", "(\"id\" INTEGER, \"productCode\" TEXT NOT NULL, "
+                        + "\"pricePerUnit\" INTEGER CHECK(\"pricePerUnit\" > 0), \"quantity\" INTEGER NOT NULL CHECK(\"quantity\" > 0), "
+                        + "\"status\" TEXT CHECK(\"status\" IN ('ISSUED', 'PAYED', 'COMPLETED')), "
+                        + "FOREIGN KEY(\"productCode\") REFERENCES \"productType\"(\"productCode\") ON DELETE NO ACTION ON UPDATE CASCADE, "
+                        + "PRIMARY KEY(\"id\" AUTOINCREMENT))",
+                "id, productCode, pricePerUnit, quantity, status",
+                "id, productCode, MAX(1, CAST(ROUND(pricePerUnit * 100) AS INTEGER)), quantity, status");
+        rebuild(conn, "saleTransaction", "(\"id\" INTEGER, \"discountRate\" REAL DEFAULT (0), "
+                        + "\"status\" TEXT CHECK(\"status\" IN ('OPEN', 'CLOSED', 'PAYED')), \"total\" INTEGER DEFAULT (0), "
+                        + "PRIMARY KEY(\"id\" AUTOINCREMENT))",
+                "id, discountRate, status, total",
+                "id, discountRate, status, CAST(ROUND(total * 100) AS INTEGER)");
+        rebuild(conn, "returnTransaction", "(\"id\" INTEGER, \"saleTransactionId\" INTEGER NOT NULL, "
+                        + "\"discountRate\" REAL NOT NULL, \"status\" TEXT NOT NULL CHECK(\"status\" IN ('OPEN', 'CLOSED', 'PAYED')), "
+                        + "\"total\" INTEGER NOT NULL, FOREIGN KEY(\"saleTransactionId\") REFERENCES \"saleTransaction\"(\"id\"), "
+                        + "PRIMARY KEY(\"id\" AUTOINCREMENT))",
+                "id, saleTransactionId, discountRate, status, total",
+                "id, saleTransactionId, discountRate, status, CAST(ROUND(total * 100) AS INTEGER)");
+        rebuild(conn, "creditCard", "(\"cardNumber\" TEXT, \"balance\" INTEGER, PRIMARY KEY(\"cardNumber\"))",
+                "cardNumber, balance",
+                "cardNumber, CAST(ROUND(balance * 100) AS INTEGER)");
+        // dropping balanceOperation drops its triggers too: they are created again, with the balance in cents
+        rebuild(conn, "balanceOperation", "(\"id\" INTEGER, \"date\" TEXT NOT NULL, \"money\" INTEGER NOT NULL, "
+                        + "\"type\" TEXT NOT NULL, PRIMARY KEY(\"id\" AUTOINCREMENT))",
+                "id, date, money, type",
+                "id, date, CAST(ROUND(money * 100) AS INTEGER), type");
+        try(Statement st = conn.createStatement()) {
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS balanceOperation_date ON balanceOperation(date)");
+            st.executeUpdate("DROP TABLE balance");
+            st.executeUpdate("CREATE TABLE balance(id INTEGER PRIMARY KEY CHECK (id = 1), total INTEGER NOT NULL)");
+            st.executeUpdate("INSERT INTO balance(id, total) VALUES (1, (SELECT COALESCE(SUM(money), 0) FROM balanceOperation))");
+            st.executeUpdate("CREATE TRIGGER balance_insert AFTER INSERT ON balanceOperation BEGIN "
+                    + "UPDATE balance SET total = total + NEW.money WHERE id = 1; END");
+            st.executeUpdate("CREATE TRIGGER balance_delete AFTER DELETE ON balanceOperation BEGIN "
+                    + "UPDATE balance SET total = total - OLD.money WHERE id = 1; END");
+            st.executeUpdate("CREATE TRIGGER balance_update AFTER UPDATE OF money ON balanceOperation BEGIN "
+                    + "UPDATE balance SET total = total - OLD.money + NEW.money WHERE id = 1; END");
+        }
+    }
+
+    // the subtotal of the sales already closed comes from their lines (the entries of a barcode), rounded like the carts do
+    private static void saleSubtotals(Connection conn) throws SQLException {
+        try(Statement st = conn.createStatement()) {
+            st.executeUpdate("ALTER TABLE saleTransaction ADD COLUMN subtotal INTEGER NOT NULL DEFAULT 0");
+            try(PreparedStatement update = conn.prepareStatement("UPDATE saleTransaction SET subtotal=? WHERE id=?");
+                ResultSet rs = st.executeQuery("SELECT PE.transactionId AS id, SUM(PE.amount) AS amount, MAX(PE.discountRate) AS discountRate, "
+                        + "PT.pricePerUnit AS pricePerUnit FROM productEntry PE, saleTransaction ST, productType PT "
+                        + "WHERE PE.transactionId=ST.id AND PE.barcode=PT.productCode GROUP BY PE.transactionId, PE.barcode ORDER BY PE.transactionId")) {
+                int id = -1;
+                long subtotal = 0;
+                while(rs.next()) {
+                    if(rs.getInt("id") != id) {
+                        if(id >= 0)
+                            addSubtotal(update, id, subtotal);
+                        id = rs.getInt("id");
+                        subtotal = 0;
+                    }
+                    subtotal += Money.discounted(Money.times(rs.getLong("pricePerUnit"), rs.getInt("amount")), rs.getDouble("discountRate"));
+                }
+                if(id >= 0)
+                    addSubtotal(update, id, subtotal);
+                update.executeBatch();
+            }
+        }
+    }
+
+    private static void addSubtotal(PreparedStatement update, int id, long subtotal) throws SQLException {
+        update.setLong(1, subtotal);
+        update.setInt(2, id);
+        update.addBatch();
+    }
+
+    // copies the table into a new one with the given definition, then takes its place; the AUTOINCREMENT
+    // sequence is carried over so that ids of deleted rows are not handed out again
+    private static void rebuild(Connection conn, String table, String definition, String columns, String select) throws SQLException {
+        Long seq = null;
+        try(PreparedStatement st = conn.prepareStatement("SELECT seq FROM sqlite_sequence WHERE name=?")) {
+            st.setString(1, table);
+            try(ResultSet rs = st.executeQuery()) {
+                if(rs.next())
+                    seq = rs.getLong("seq");
+            }
+        }
+        String rebuilt = table + "_cents";
+        try(Statement st = conn.createStatement()) {
+            st.executeUpdate("CREATE TABLE \"" + rebuilt + "\" " + definition);
+            st.executeUpdate("INSERT INTO \"" + rebuilt + "\"(" + columns + ") SELECT " + select + " FROM \"" + table + "\"");
+            st.executeUpdate("DROP TABLE \"" + table + "\"");
+            st.executeUpdate("ALTER TABLE \"" + rebuilt + "\" RENAME TO \"" + table + "\"");
+        }
+        if(seq == null)
+            return;
+        try(PreparedStatement st = conn.prepareStatement("UPDATE sqlite_sequence SET seq=? WHERE name=?")) {
+            st.setLong(1, seq);
+            st.setString(2, table);
+            if(st.executeUpdate() > 0)
+                return;
+        }
+        try(PreparedStatement st = conn.prepareStatement("INSERT INTO sqlite_sequence(name, seq) VALUES (?, ?)")) {
+            st.setString(1, table);
+            st.setLong(2, seq);
+            st.executeUpdate();
+        }
+    }
+
+    private static void addRange(PreparedStatement insert, long first, long last, String barcode, BitSet sold) throws SQLException {
+        insert.setLong(1, first);
+        insert.setLong(2, last - first + 1);
+        insert.setString(3, barcode);
+        insert.setBytes(4, sold.toByteArray());
+        insert.addBatch();
+    }
+
+    static Migration sql(int version, String description, String... statements) {
+        return new Migration(version, description) {
+            @Override
+            public void apply(Connection conn) throws SQLException {
+                try(Statement st = conn.createStatement()) {
+                    for(String sql : statements)
+                        st.executeUpdate(sql);
+                }
+            }
+        };
+    }
+
+    // one schema change; plain SQL ones are built with sql(...), data conversions override apply()
+    public abstract static class Migration {
+        private final int version;
+        private final String description;
+
+        protected Migration(int version, String description) {
+            this.version = version;
+            this.description = description;
+        }
+
+        public abstract void apply(Connection conn) throws SQLException;
+
+        public int getVersion() {
+            return version;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        @Override
+        public String toString() {
+            return version + ": " + description;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package it.polito.ezshop.data;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+// The user logged in at one till and what their role allows, fixed at login. Immutable, so a session can be
+// read by any thread and handed to another EZShop (one per till) sharing the same database.
+public final class Session {
+    public enum Permission {
+        // sales, returns, payments and customers
+        CHECKOUT,
+        // products, orders and the balance
+        MANAGE_SHOP,
+        // user accounts and maintenance
+        ADMINISTER
+    }
+
+    private final Integer userId;
+    private final String username;
+    private final String role;
+    private final Set<Permission> permissions;
+
+    private Session(Integer userId, String username, String role, Set<Permission> permissions) {
+        this.userId = userId;
+        this.username = username;
+        this.role = role;
+        this.permissions = Collections.unmodifiableSet(permissions);
+    }
+
+    public static Session of(User user) {
+        return new Session(user.getId(), user.getUsername(), user.getRole(), permissionsOf(user.getRole()));
+    }
+
+    static Set<Permission> permissionsOf(String role) {
+        if(role == null)
+            return EnumSet.noneOf(Permission.class);
+        switch(role) {
+            case "Administrator":
+                return EnumSet.allOf(Permission.class);
+            case "ShopManager":
+                return EnumSet.of(Permission.CHECKOUT, Permission.MANAGE_SHOP);
+            case "Cashier":
+                return EnumSet.of(Permission.CHECKOUT);
+            default:
+                return EnumSet.noneOf(Permission.class);
+        }
+    }
+
+    public boolean has(Permission permission) {
+        return permissions.contains(permission);
+    }
+
+    public Integer getUserId() {
+        return userId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public Set<Permission> getPermissions() {
+        return permissions;
+    }
+
+    @Override
+    public String toString() {
+        return username + " (" + role + ")";
+    }
+}
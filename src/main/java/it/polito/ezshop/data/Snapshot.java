@@ -0,0 +1,33 @@
+package it.polito.ezshop.data;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+// A listing as it was at one version, over an array of its own that cannot be changed, so the same one can be
+// handed to every caller, on any thread, until a newer version is published.
+public final class Snapshot<T> extends AbstractList<T> implements RandomAccess {
+    private final Object[] items;
+    private final long version;
+
+    Snapshot(Collection<? extends T> items, long version) {
+        this.items = items.toArray();
+        this.version = version;
+    }
+
+    // grows with every change of the listing: a caller holding an older one knows it has to list again
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        return (T) items[index];
+    }
+
+    @Override
+    public int size() {
+        return items.length;
+    }
+}
@@ -0,0 +1,211 @@
+package it.polito.ezshop.data;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Prepared statements of one physical connection, keyed by their SQL text: each query is prepared once
+// and then reused by every operation that runs on the connection. Callers get a view of the statement
+// whose close() only resets it (open cursors closed, parameters cleared); the pool also resets every
+// statement used by an operation when the operation releases the connection. A statement whose cursor is
+// still open is not reset under the caller iterating it: the same SQL asked again meanwhile gets a statement
+// of its own, outside the cache, closed when the operation is over.
+class StatementCache {
+    private static final int MAX_STATEMENTS = 256;
+
+    private final Connection connection;
+    private final StatementStats stats;
+    private final Map<String, CachedStatement> statements = new LinkedHashMap<>(64, 0.75f, true);
+    private final List<CachedStatement> used = new ArrayList<>();
+    private boolean transaction;
+    private boolean written;
+
+    StatementCache(Connection connection, StatementStats stats) {
+        this.connection = connection;
+        this.stats = stats;
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        CachedStatement cached = statements.get(sql);
+        if(cached == null) {
+            StatementStats.Entry entry = stats.entry(sql);
+            entry.prepared();
+            cached = new CachedStatement(this, connection.prepareStatement(sql), entry);
+            statements.put(sql, cached);
+            evict();
+        }
+        else if(cached.isReading()) {
+            StatementStats.Entry entry = cached.entry;
+            entry.prepared();
+            cached = new CachedStatement(this, connection.prepareStatement(sql), entry);
+            cached.uncached = true;
+        }
+        else {
+            cached.entry.hit();
+            cached.reset();
+        }
+
+        if(!cached.inUse) {
+            cached.inUse = true;
+            used.add(cached);
+        }
+        return cached.view;
+    }
+
+    // called when the operation that leased the connection is over
+    void release() {
+        for(CachedStatement cached : used) {
+            cached.reset();
+            cached.inUse = false;
+            if(cached.uncached) {
+                try {
+                    cached.statement.close();
+                } catch (SQLException ignored) {
+
+                }
+            }
+        }
+        used.clear();
+    }
+
+    void close() {
+        release();
+        for(CachedStatement cached : statements.values()) {
+            try {
+                cached.statement.close();
+            } catch (SQLException ignored) {
+
+            }
+        }
+        statements.clear();
+    }
+
+    boolean inTransaction() {
+        return transaction;
+    }
+
+    // outside of a transaction every write executed through the cache is committed on its own
+    void setInTransaction(boolean transaction) {
+        this.transaction = transaction;
+        this.written = false;
+    }
+
+    // whether the running transaction has executed any write
+    boolean isWritten() {
+        return written;
+    }
+
+    int size() {
+        return statements.size();
+    }
+
+    private void evict() {
+        Iterator<CachedStatement> it = statements.values().iterator();
+        while(statements.size() > MAX_STATEMENTS && it.hasNext()) {
+            CachedStatement eldest = it.next();
+            // statements used by the running operation may still have an open cursor
+            if(eldest.inUse)
+                continue;
+            it.remove();
+            try {
+                eldest.statement.close();
+            } catch (SQLException ignored) {
+
+            }
+        }
+    }
+
+    private static final class CachedStatement implements InvocationHandler {
+        private final StatementCache cache;
+        private final PreparedStatement statement;
+        private final PreparedStatement view;
+        private final StatementStats.Entry entry;
+        private final List<ResultSet> results = new ArrayList<>();
+        private boolean inUse;
+        // handed out while the cached one was reading, closed on release
+        private boolean uncached;
+
+        private CachedStatement(StatementCache cache, PreparedStatement statement, StatementStats.Entry entry) {
+            this.cache = cache;
+            this.statement = statement;
+            this.entry = entry;
+            this.view = (PreparedStatement) Proxy.newProxyInstance(
+                    PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    this);
+        }
+
+        // a cursor of the running operation that has not been read to the end nor closed
+        private boolean isReading() {
+            if(!inUse)
+                return false;
+            for(ResultSet rs : results) {
+                try {
+                    if(!rs.isClosed())
+                        return true;
+                } catch (SQLException ignored) {
+
+                }
+            }
+            return false;
+        }
+
+        private void reset() {
+            for(ResultSet rs : results) {
+                try {
+                    rs.close();
+                } catch (SQLException ignored) {
+
+                }
+            }
+            results.clear();
+            try {
+                statement.clearParameters();
+                statement.clearBatch();
+            } catch (SQLException ignored) {
+
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if(name.equals("close")) {
+                reset();
+                return null;
+            }
+
+            boolean execution = name.startsWith("execute");
+            long start = execution ? System.nanoTime() : 0;
+            Object result;
+            try {
+                result = method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if(execution)
+                    entry.executed(System.nanoTime() - start);
+            }
+
+            if(result instanceof ResultSet)
+                results.add((ResultSet) result);
+            else if(execution && !name.equals("executeQuery")) {
+                if(cache.transaction)
+                    cache.written = true;
+                else
+                    cache.stats.autoCommitted();
+            }
+            return result;
+        }
+    }
+}
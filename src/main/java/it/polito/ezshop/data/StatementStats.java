@@ -0,0 +1,114 @@
+package it.polito.ezshop.data;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Usage counters of the statements prepared through the connection pool, aggregated over all connections
+public class StatementStats {
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder autoCommits = new LongAdder();
+
+    Entry entry(String sql) {
+        return entries.computeIfAbsent(sql, Entry::new);
+    }
+
+    void autoCommitted() {
+        autoCommits.increment();
+    }
+
+    // writes that were executed outside of a unit of work, each one in its own implicit transaction
+    public long getAutoCommits() {
+        return autoCommits.sum();
+    }
+
+    public Entry get(String sql) {
+        return entries.get(sql);
+    }
+
+    public List<Entry> getEntries() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        list.sort(Comparator.comparingLong(Entry::getTotalNanos).reversed());
+        return list;
+    }
+
+    // counters are reset in place: cached statements keep a reference to their entry
+    public void clear() {
+        for(Entry e : entries.values())
+            e.reset();
+        autoCommits.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%10s %10s %12s %10s  %s%n", "prepares", "hits", "executions", "avg(us)", "sql"));
+        for(Entry e : getEntries()) {
+            if(e.getPrepares() + e.getHits() == 0)
+                continue;
+            sb.append(String.format("%10d %10d %12d %10.1f  %s%n",
+                    e.getPrepares(), e.getHits(), e.getExecutions(), e.getAverageNanos() / 1000.0, e.getSql()));
+        }
+        return sb.toString();
+    }
+
+    public static class Entry {
+        private final String sql;
+        private final LongAdder prepares = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder executions = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        private Entry(String sql) {
+            this.sql = sql;
+        }
+
+        void prepared() {
+            prepares.increment();
+        }
+
+        void hit() {
+            hits.increment();
+        }
+
+        void executed(long elapsedNanos) {
+            executions.increment();
+            nanos.add(elapsedNanos);
+        }
+
+        private void reset() {
+            prepares.reset();
+            hits.reset();
+            executions.reset();
+            nanos.reset();
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getPrepares() {
+            return prepares.sum();
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getExecutions() {
+            return executions.sum();
+        }
+
+        public long getTotalNanos() {
+            return nanos.sum();
+        }
+
+        public double getAverageNanos() {
+            long n = executions.sum();
+            return n == 0 ? 0 : (double) nanos.sum() / n;
+        }
+    }
+}
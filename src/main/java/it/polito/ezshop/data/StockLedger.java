@@ -0,0 +1,109 @@
+package it.polito.ezshop.data;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Units on hand and units reserved by the open sales, per product id. Every check-and-update runs under the
+// monitor of the product's stripe, so two tills scanning the same product cannot both take the last unit,
+// while tills selling different products rarely wait for each other (and never for the catalog monitor).
+// On hand mirrors productType.quantity: it is set when the catalog loads and changed by the writers of
+// productType inside their unit of work. Reservations are memory only and survive reloads.
+public class StockLedger {
+    static final int STRIPES = 64;
+
+    private final Object[] stripes = new Object[STRIPES];
+    private final Map<Integer, Stock> stock = new ConcurrentHashMap<>();
+
+    public StockLedger() {
+        for(int i = 0; i < STRIPES; i++)
+            stripes[i] = new Object();
+    }
+
+    private static final class Stock {
+        private int onHand;
+        private int reserved;
+    }
+
+    private Object stripe(int id) {
+        // spread consecutive ids, which is how productType assigns them, over different stripes
+        int h = id * 0x9E3779B9;
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private Stock stock(int id) {
+        return stock.computeIfAbsent(id, k -> new Stock());
+    }
+
+    // quantity read from the database; what is reserved is kept
+    void setOnHand(int id, int quantity) {
+        synchronized(stripe(id)) {
+            stock(id).onHand = quantity;
+        }
+    }
+
+    // false if the units on hand would fall below the reserved ones
+    boolean adjust(int id, int delta) {
+        synchronized(stripe(id)) {
+            Stock s = stock(id);
+            if(delta < 0 && s.onHand - s.reserved < -delta)
+                return false;
+            s.onHand += delta;
+            return true;
+        }
+    }
+
+    // false if fewer units are left to sell
+    boolean reserve(int id, int amount) {
+        synchronized(stripe(id)) {
+            Stock s = stock(id);
+            if(s.onHand - s.reserved < amount)
+                return false;
+            s.reserved += amount;
+            return true;
+        }
+    }
+
+    void release(int id, int amount) {
+        synchronized(stripe(id)) {
+            Stock s = stock.get(id);
+            if(s != null)
+                s.reserved = Math.max(0, s.reserved - amount);
+        }
+    }
+
+    // reserved units that have been sold leave the shelf
+    void commit(int id, int amount) {
+        synchronized(stripe(id)) {
+            Stock s = stock(id);
+            s.reserved = Math.max(0, s.reserved - amount);
+            s.onHand -= amount;
+        }
+    }
+
+    // a deleted product; units still reserved by open carts are kept until they are released
+    void remove(int id) {
+        synchronized(stripe(id)) {
+            Stock s = stock.get(id);
+            if(s == null)
+                return;
+            if(s.reserved == 0)
+                stock.remove(id);
+            else
+                s.onHand = 0;
+        }
+    }
+
+    public int getAvailable(int id) {
+        synchronized(stripe(id)) {
+            Stock s = stock.get(id);
+            return s == null ? 0 : s.onHand - s.reserved;
+        }
+    }
+
+    public int getReserved(int id) {
+        synchronized(stripe(id)) {
+            Stock s = stock.get(id);
+            return s == null ? 0 : s.reserved;
+        }
+    }
+}
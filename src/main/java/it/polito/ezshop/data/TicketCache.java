@@ -0,0 +1,143 @@
+package it.polito.ezshop.data;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+// Tickets of the sales that have ended (CLOSED or PAYED), materialized once and handed out as copies. A ticket
+// only changes when a return is committed or deleted, when the sale discount changes or when a product on it
+// is edited, and the writers doing that invalidate it. Bounded by the number of ticket lines, the least
+// recently used tickets are evicted first.
+// A reader caches what it read only if nothing has been invalidated since it started, and every invalidation
+// is repeated once the writer has committed, so a reader working on the snapshot before the commit cannot
+// put the old ticket back.
+public class TicketCache {
+    static final int DEFAULT_CAPACITY = 20_000;
+    // invalidation of every ticket, ids start from 1
+    private static final int ALL = 0;
+
+    private final int capacity;
+    private final LinkedHashMap<Integer, MySaleTransaction> tickets = new LinkedHashMap<>(16, 0.75f, true);
+    private int weight;
+    private long generation;
+    // invalidated by the unit of work of the calling thread, to evict again when it ends
+    private final ThreadLocal<Set<Integer>> pending = ThreadLocal.withInitial(HashSet::new);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    TicketCache(ConnectionPool pool) {
+        this(pool, DEFAULT_CAPACITY);
+    }
+
+    TicketCache(ConnectionPool pool, int capacity) {
+        this.capacity = capacity;
+        pool.addCommitListener(this::settle);
+        pool.addRollbackListener(this::settle);
+    }
+
+    synchronized MySaleTransaction get(int id) {
+        MySaleTransaction sale = tickets.get(id);
+        if(sale == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return copy(sale);
+    }
+
+    // taken before reading a ticket from the database
+    synchronized long stamp() {
+        return generation;
+    }
+
+    synchronized void put(MySaleTransaction sale, long stamp) {
+        if(stamp != generation)
+            return;
+        MySaleTransaction old = tickets.put(sale.getTicketNumber(), copy(sale));
+        if(old != null)
+            weight -= weight(old);
+        weight += weight(sale);
+        Iterator<MySaleTransaction> lru = tickets.values().iterator();
+        while(weight > capacity && lru.hasNext()) {
+            weight -= weight(lru.next());
+            lru.remove();
+        }
+    }
+
+    synchronized void invalidate(int id) {
+        evict(id);
+        pending.get().add(id);
+    }
+
+    synchronized void invalidateAll() {
+        evict(ALL);
+        pending.get().add(ALL);
+    }
+
+    private synchronized void evict(int id) {
+        generation++;
+        if(id == ALL) {
+            tickets.clear();
+            weight = 0;
+            return;
+        }
+        MySaleTransaction old = tickets.remove(id);
+        if(old != null)
+            weight -= weight(old);
+    }
+
+    // end of the unit of work of the calling thread
+    private void settle() {
+        Set<Integer> ids = pending.get();
+        if(ids.isEmpty())
+            return;
+        synchronized(this) {
+            if(ids.contains(ALL))
+                evict(ALL);
+            else
+                for(int id : ids)
+                    evict(id);
+        }
+        ids.clear();
+    }
+
+    private static int weight(MySaleTransaction sale) {
+        return 1 + sale.getEntries().size();
+    }
+
+    private static MySaleTransaction copy(MySaleTransaction sale) {
+        List<TicketEntry> entries = new ArrayList<>(sale.getEntries().size());
+        for(TicketEntry e : sale.getEntries()) {
+            MyTicketEntry entry = (MyTicketEntry) e;
+            entries.add(MyTicketEntry.ofCents(entry.getBarCode(), entry.getProductDescription(), entry.getAmount(),
+                    entry.getPriceCents(), entry.getDiscountRate()));
+        }
+        return MySaleTransaction.ofCents(sale.getTicketNumber(), entries, sale.getDiscountRate(), sale.getPriceCents());
+    }
+
+    public synchronized int size() {
+        return tickets.size();
+    }
+
+    public synchronized int getWeight() {
+        return weight;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+}
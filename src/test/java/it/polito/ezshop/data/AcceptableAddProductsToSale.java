@@ -0,0 +1,101 @@
+package it.polito.ezshop.data;
+
+import it.polito.ezshop.exceptions.InvalidProductCodeException;
+import it.polito.ezshop.exceptions.InvalidQuantityException;
+import it.polito.ezshop.exceptions.InvalidTransactionIdException;
+import it.polito.ezshop.exceptions.UnauthorizedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class AcceptableAddProductsToSale {
+    EZShop shop;
+    Map<String, Integer> lines;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.createUser("23","12345","Cashier");
+        shop.login("admin","ciao");
+        Integer id = shop.createProductType("Vino","2424242424239",10.0,"Buono");
+        shop.updatePosition(id,"14-Boh-15");
+        shop.updateQuantity(id,10);
+        id = shop.createProductType("Pane","4006381333931",2.0,"");
+        shop.updatePosition(id,"14-Boh-16");
+        shop.updateQuantity(id,5);
+        shop.logout();
+        shop.login("23","12345");
+
+        lines = new LinkedHashMap<>();
+        lines.put("2424242424239",3);
+        lines.put("4006381333931",6);
+        lines.put("3456243422340",1);
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    @Test
+    public void authTest() throws Exception
+    {
+        shop.logout();
+        assertThrows(UnauthorizedException.class, () -> shop.addProductsToSale(1,lines));
+        shop.login("23","12345");
+    }
+
+    @Test
+    public void invalidTransactionId()
+    {
+        assertThrows(InvalidTransactionIdException.class, () -> shop.addProductsToSale(0,lines));
+        assertThrows(InvalidTransactionIdException.class, () -> shop.addProductsToSale(null,lines));
+    }
+
+    @Test
+    public void invalidLines() throws Exception
+    {
+        Integer id = shop.startSaleTransaction();
+        assertThrows(InvalidProductCodeException.class, () -> shop.addProductsToSale(id,null));
+        lines.put("2121",1);
+        assertThrows(InvalidProductCodeException.class, () -> shop.addProductsToSale(id,lines));
+        lines.remove("2121");
+        lines.put("9788804668237",-1);
+        assertThrows(InvalidQuantityException.class, () -> shop.addProductsToSale(id,lines));
+        // nothing added before the error
+        shop.endSaleTransaction(id);
+        shop.logout();
+        shop.login("admin","ciao");
+        assertEquals(10, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+    }
+
+    @Test
+    public void outcomePerLine() throws Exception
+    {
+        Integer id = shop.startSaleTransaction();
+        Map<String, Boolean> outcome = shop.addProductsToSale(id,lines);
+        assertEquals(3, outcome.size());
+        assertTrue(outcome.get("2424242424239"));
+        // not enough stock, unknown product
+        assertFalse(outcome.get("4006381333931"));
+        assertFalse(outcome.get("3456243422340"));
+        assertEquals(30.0, shop.getSaleCarts().get(id).getTotal(), 1e-9);
+
+        assertTrue(shop.addProductsToSale(id,Collections.singletonMap("2424242424239",2)).get("2424242424239"));
+        assertTrue(shop.endSaleTransaction(id));
+        assertEquals(50.0, shop.getSaleTransaction(id).getPrice(), 1e-9);
+        assertEquals(5, shop.getSaleTransaction(id).getEntries().get(0).getAmount());
+        assertFalse(shop.addProductsToSale(id,lines).get("2424242424239"));
+    }
+}
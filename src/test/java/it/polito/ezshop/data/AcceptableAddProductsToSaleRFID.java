@@ -0,0 +1,100 @@
+package it.polito.ezshop.data;
+
+import it.polito.ezshop.exceptions.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class AcceptableAddProductsToSaleRFID {
+    EZShop shop;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.createUser("23","12345","Cashier");
+        shop.login("admin","ciao");
+        shop.recordBalanceUpdate(1000.0);
+        Integer id = shop.createProductType("Vino","2424242424239",10.0,"Buono");
+        shop.updatePosition(id,"14-Boh-15");
+        Integer idOrder = shop.issueOrder("2424242424239",5,1.0);
+        shop.payOrder(idOrder);
+        shop.recordOrderArrivalRFID(idOrder,"000000000010");
+        id = shop.createProductType("Pane","4006381333931",2.0,"");
+        shop.updatePosition(id,"14-Boh-16");
+        idOrder = shop.issueOrder("4006381333931",5,1.0);
+        shop.payOrder(idOrder);
+        shop.recordOrderArrivalRFID(idOrder,"000000000100");
+        shop.logout();
+        shop.login("23","12345");
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    @Test
+    public void authTest() throws Exception
+    {
+        shop.logout();
+        assertThrows(UnauthorizedException.class, () -> shop.addProductsToSaleRFID(1,Arrays.asList("000000000010")));
+        shop.login("23","12345");
+    }
+
+    @Test
+    public void invalidArguments() throws Exception
+    {
+        assertThrows(InvalidTransactionIdException.class, () -> shop.addProductsToSaleRFID(0,Arrays.asList("000000000010")));
+        assertThrows(InvalidTransactionIdException.class, () -> shop.addProductsToSaleRFID(null,Arrays.asList("000000000010")));
+        Integer id = shop.startSaleTransaction();
+        assertThrows(InvalidRFIDException.class, () -> shop.addProductsToSaleRFID(id,null));
+        assertThrows(InvalidRFIDException.class, () -> shop.addProductsToSaleRFID(id,Arrays.asList("000000000010","00000000001")));
+        assertThrows(InvalidRFIDException.class, () -> shop.addProductsToSaleRFID(id,Arrays.asList("000000000010",null)));
+        assertEquals(0, shop.getSaleCarts().get(id).getLines().size());
+    }
+
+    @Test
+    public void basket() throws Exception
+    {
+        Integer other = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSaleRFID(other,"000000000012"));
+
+        Integer id = shop.startSaleTransaction();
+        List<String> basket = Arrays.asList("000000000010","000000000011","000000000010","000000000100",
+                "000000000012","000000000999","000000000104");
+        Map<String, Boolean> outcome = shop.addProductsToSaleRFID(id,basket);
+        // read twice, counted once
+        assertEquals(6, outcome.size());
+        assertTrue(outcome.get("000000000010"));
+        assertTrue(outcome.get("000000000011"));
+        assertTrue(outcome.get("000000000100"));
+        assertTrue(outcome.get("000000000104"));
+        // in another cart, never arrived
+        assertFalse(outcome.get("000000000012"));
+        assertFalse(outcome.get("000000000999"));
+        assertFalse(shop.getSaleCarts().isHeld(999L));
+
+        SaleCarts.Cart cart = shop.getSaleCarts().get(id);
+        assertEquals(2, cart.getLines().size());
+        assertEquals(24.0, cart.getTotal(), 1e-9);
+        assertFalse(shop.addProductsToSaleRFID(id,Arrays.asList("000000000011")).get("000000000011"));
+
+        assertTrue(shop.endSaleTransaction(id));
+        assertEquals(4, shop.getSaleTransaction(id).getEntries().size());
+        assertTrue(shop.getRfidIndex().isSold(11L));
+        assertTrue(shop.getRfidIndex().isSold(104L));
+        assertTrue(shop.deleteSaleTransaction(other));
+        assertTrue(shop.addProductsToSaleRFID(shop.startSaleTransaction(),Arrays.asList("000000000012")).get("000000000012"));
+    }
+}
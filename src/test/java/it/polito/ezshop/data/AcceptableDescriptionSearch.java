@@ -0,0 +1,163 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AcceptableDescriptionSearch {
+    static final String[] WORDS = {"Vino", "rosso", "bianco", "Pane", "integrale", "latte", "BIO", "olio", "oliva",
+            "caffè", "Caffe", "pasta", "salsa", "di", "pomodoro", "ABC", "abcabc"};
+
+    EZShop shop;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    List<String> codes(List<ProductType> products)
+    {
+        List<String> codes = new ArrayList<>();
+        for(ProductType p : products)
+            codes.add(p.getBarCode());
+        return codes;
+    }
+
+    // what the table scan finds
+    List<String> like(String text) throws Exception
+    {
+        List<String> codes = new ArrayList<>();
+        try(Connection conn = DriverManager.getConnection("jdbc:sqlite:" + System.getProperty("ezshop.db", "ezshop_db.sqlite"));
+            PreparedStatement st = conn.prepareStatement("SELECT productCode FROM productType WHERE description LIKE ? ORDER BY id")) {
+            st.setString(1, '%' + text + '%');
+            ResultSet rs = st.executeQuery();
+            while(rs.next())
+                codes.add(rs.getString("productCode"));
+        }
+        return codes;
+    }
+
+    @Test
+    public void sameAsTheTableScan() throws Exception
+    {
+        Random random = new Random(7);
+        for(int i = 0; i < 300; i++) {
+            StringBuilder description = new StringBuilder();
+            for(int w = 1 + random.nextInt(4); w > 0; w--)
+                description.append(WORDS[random.nextInt(WORDS.length)]).append(i % 3 == 0 ? "-" : " ");
+            shop.createProductType(description.toString().trim(), AcceptableReturnCommit.barCode(i), 1.0, "");
+        }
+        for(String text : Arrays.asList("", "v", "VI", "vino", "VINO ROSSO", "o r", "abc", "bcab", "abcabcabc",
+                "caffè", "CAFFÈ", "caff", "di pomodoro", "-", "zzz", "olio-oliva"))
+            assertEquals(text, like(text), codes(shop.getProductTypesByDescription(text)));
+        assertEquals(like(""), codes(shop.getProductTypesByDescription(null)));
+        // wildcards still go to the table
+        assertEquals(like("v_no"), codes(shop.getProductTypesByDescription("v_no")));
+        assertEquals(like("pane%bio"), codes(shop.getProductTypesByDescription("pane%bio")));
+    }
+
+    @Test
+    public void repeatedCharacters() throws Exception
+    {
+        shop.createProductType("Vite 000", AcceptableReturnCommit.barCode(1), 1.0, "");
+        shop.createProductType("Vite 0000", AcceptableReturnCommit.barCode(2), 1.0, "");
+        shop.createProductType("aaa", AcceptableReturnCommit.barCode(3), 1.0, "");
+        // one distinct trigram, but longer than it
+        for(String text : Arrays.asList("000", "0000", "00000", "aaa", "AAAA"))
+            assertEquals(text, like(text), codes(shop.getProductTypesByDescription(text)));
+        assertEquals(Arrays.asList(AcceptableReturnCommit.barCode(2)), codes(shop.getProductTypesByDescription("0000")));
+        assertTrue(shop.searchProductTypes("aaaa", 10).isEmpty());
+    }
+
+    @Test
+    public void shortTextsAreIndexed() throws Exception
+    {
+        DescriptionIndex index = new DescriptionIndex();
+        index.put(1, "ab");
+        // a, b and ab
+        assertEquals(3, index.getGrams());
+        index.put(2, "Olio");
+        index.put(3, "Pane");
+        assertEquals(Arrays.asList(1, 3), index.matches("A"));
+        assertEquals(Arrays.asList(2), index.matches("li"));
+        assertTrue(index.matches("ba").isEmpty());
+        assertEquals(Arrays.asList(1, 2, 3), index.matches(""));
+
+        index.put(2, "Aceto");
+        assertEquals(Arrays.asList(1, 2, 3), index.matches("a"));
+        assertTrue(index.matches("li").isEmpty());
+        index.remove(1);
+        assertEquals(Arrays.asList(2, 3), index.matches("a"));
+        assertEquals(Arrays.asList(3), index.search("pa", 10));
+    }
+
+    @Test
+    public void followsTheCatalog() throws Exception
+    {
+        Integer vino = shop.createProductType("Vino rosso", "2424242424239", 10.0, "");
+        Integer pane = shop.createProductType("Pane", "123456789012", 2.5, "");
+        assertEquals(Arrays.asList("2424242424239"), codes(shop.getProductTypesByDescription("rosso")));
+
+        assertTrue(shop.updateProduct(vino, "Vino bianco", "2424242424239", 10.0, ""));
+        assertTrue(shop.getProductTypesByDescription("rosso").isEmpty());
+        assertEquals(1, shop.getProductTypesByDescription("bianco").size());
+
+        assertTrue(shop.deleteProductType(pane));
+        assertTrue(shop.getProductTypesByDescription("pane").isEmpty());
+        assertEquals(1, shop.getProductCatalog().getDescriptionIndex().size());
+    }
+
+    @Test
+    public void rankedAndLimited() throws Exception
+    {
+        shop.createProductType("Succo di mela", AcceptableReturnCommit.barCode(1), 1.0, "");
+        shop.createProductType("Melanzane grigliate", AcceptableReturnCommit.barCode(2), 1.0, "");
+        shop.createProductType("Caramelle", AcceptableReturnCommit.barCode(3), 1.0, "");
+        shop.createProductType("Mela", AcceptableReturnCommit.barCode(4), 1.0, "");
+        shop.createProductType("Torta di mele", AcceptableReturnCommit.barCode(5), 1.0, "");
+
+        // starting with the text, then at a word, then anywhere; shorter first
+        assertEquals(Arrays.asList(AcceptableReturnCommit.barCode(4), AcceptableReturnCommit.barCode(2),
+                AcceptableReturnCommit.barCode(1), AcceptableReturnCommit.barCode(5), AcceptableReturnCommit.barCode(3)),
+                codes(shop.searchProductTypes("MEL", 10)));
+        assertEquals(Arrays.asList(AcceptableReturnCommit.barCode(4), AcceptableReturnCommit.barCode(2)),
+                codes(shop.searchProductTypes("mel", 2)));
+        assertTrue(shop.searchProductTypes("mel", 0).isEmpty());
+        assertTrue(shop.searchProductTypes("pera", 10).isEmpty());
+    }
+
+    @Test
+    public void answeredFromMemory() throws Exception
+    {
+        for(int i = 0; i < 50; i++)
+            shop.createProductType("prodotto " + i, AcceptableReturnCommit.barCode(i), 1.0, "");
+        shop.getProductTypesByDescription("prodotto");
+        shop.getStatementStats().clear();
+        assertEquals(11, shop.getProductTypesByDescription("prodotto 4").size());
+        assertEquals(5, shop.searchProductTypes("PRODOTTO", 5).size());
+        for(StatementStats.Entry e : shop.getStatementStats().getEntries())
+            assertEquals(e.getSql(), 0, e.getExecutions());
+    }
+}
@@ -0,0 +1,110 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class AcceptableIdAllocator {
+    EZShop shop;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    @Test
+    public void noQueryPerStart() throws Exception
+    {
+        shop.startSaleTransaction();
+        shop.getStatementStats().clear();
+        long reservations = shop.getIdAllocator().getReservations();
+        int last = 0;
+        for(int i = 0; i < IdAllocator.BLOCK_SIZE; i++) {
+            int id = shop.startSaleTransaction();
+            assertEquals(0, id % 2);
+            assertTrue(id > last);
+            last = id;
+        }
+        // one block reserved at most, the rest from memory
+        assertTrue(shop.getIdAllocator().getReservations() <= reservations + 1);
+        for(StatementStats.Entry e : shop.getStatementStats().getEntries())
+            assertFalse(e.getSql(), e.getSql().contains("FROM saleTransaction ORDER BY"));
+    }
+
+    @Test
+    public void survivesResetAndRestart() throws Exception
+    {
+        int sale = shop.startSaleTransaction();
+        assertTrue(shop.endSaleTransaction(sale));
+        assertTrue(shop.receiveCashPayment(sale, 1.0) >= 0);
+        int ret = shop.startReturnTransaction(sale);
+        assertEquals(1, ret % 2);
+
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+        assertTrue(shop.startSaleTransaction() > sale);
+
+        // a new process starts from the persisted mark, past the ids handed out by this one
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + System.getProperty("ezshop.db", "ezshop_db.sqlite"));
+        try {
+            IdAllocator restarted = new IdAllocator(pool, 4);
+            int next = restarted.nextSaleId();
+            assertEquals(0, next % 2);
+            assertTrue(next > shop.startSaleTransaction());
+            assertTrue(restarted.nextReturnId() > ret);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void distinctAcrossTills() throws Exception
+    {
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + System.getProperty("ezshop.db", "ezshop_db.sqlite"));
+        IdAllocator ids = new IdAllocator(pool, 8);
+        Set<Integer> seen = ConcurrentHashMap.newKeySet();
+        ExecutorService tills = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for(int t = 0; t < 8; t++) {
+                done.add(tills.submit(() -> {
+                    for(int i = 0; i < 500; i++) {
+                        assertTrue(seen.add(ids.nextSaleId()));
+                        assertTrue(seen.add(ids.nextReturnId()));
+                    }
+                    return null;
+                }));
+            }
+            for(Future<?> f : done)
+                f.get();
+        } finally {
+            tills.shutdown();
+            pool.close();
+        }
+        assertEquals(8000, seen.size());
+        // 4000 ids of each kind in blocks of 8
+        assertEquals(1000, ids.getReservations());
+    }
+}
@@ -0,0 +1,243 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AcceptableListingDeltas {
+    EZShop shop;
+    Integer vino;
+    Integer pane;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+        vino = shop.createProductType("Vino","2424242424239",10.0,"Buono");
+        shop.updatePosition(vino,"14-Boh-15");
+        pane = shop.createProductType("Pane","123456789012",2.5,"");
+        shop.updatePosition(pane,"14-Boh-16");
+        shop.recordBalanceUpdate(1000.0);
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    ProductType find(List<ProductType> products, Integer id)
+    {
+        for(ProductType p : products)
+            if(p.getId().equals(id))
+                return p;
+        return null;
+    }
+
+    @Test
+    public void stockChangePatchesOneEntry() throws Exception
+    {
+        List<ProductType> before = shop.getProductTypeListing().getSnapshot();
+        long loads = shop.getProductTypeListing().getLoads();
+        assertTrue(shop.updateQuantity(vino, 10));
+
+        List<ProductType> after = shop.getProductTypeListing().getSnapshot();
+        assertEquals(loads, shop.getProductTypeListing().getLoads());
+        assertEquals(10, (int) find(after, vino).getQuantity());
+        assertEquals(10, (int) find(shop.getAllProductTypes(), vino).getQuantity());
+        // the other entry is the same object, the snapshot published before is unchanged
+        assertSame(find(before, pane), find(after, pane));
+        assertEquals(0, (int) find(before, vino).getQuantity());
+        // no change, same snapshot
+        assertSame(after, shop.getProductTypeListing().getSnapshot());
+    }
+
+    @Test
+    public void everyProductWriteIsFollowed() throws Exception
+    {
+        shop.getAllProductTypes();
+        long loads = shop.getProductTypeListing().getLoads();
+        assertTrue(shop.updateQuantity(pane, 20));
+        assertTrue(shop.updateProduct(vino,"Vino rosso","2424242424239",12.0,"Buono"));
+        assertTrue(shop.updatePosition(vino,"14-Boh-17"));
+        Integer latte = shop.createProductType("Latte",AcceptableReturnCommit.barCode(9),1.0,"");
+
+        Integer sale = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(sale,"123456789012",3));
+        assertTrue(shop.endSaleTransaction(sale));
+        assertTrue(shop.receiveCashPayment(sale, 100.0) >= 0);
+        Integer ret = shop.startReturnTransaction(sale);
+        assertTrue(shop.returnProduct(ret,"123456789012",1));
+        assertTrue(shop.endReturnTransaction(ret, true));
+        Integer voided = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(voided,"123456789012",2));
+        assertTrue(shop.endSaleTransaction(voided));
+        assertTrue(shop.deleteSaleTransaction(voided));
+        assertTrue(shop.deleteProductType(latte));
+
+        List<ProductType> list = shop.getAllProductTypes();
+        assertEquals(loads, shop.getProductTypeListing().getLoads());
+        assertEquals(18, (int) find(list, pane).getQuantity());
+        assertEquals("Vino rosso", find(list, vino).getProductDescription());
+        assertEquals(12.0, find(list, vino).getPricePerUnit(), 0.0);
+        assertEquals("14-Boh-17", find(list, vino).getLocation());
+        assertNull(find(list, latte));
+        assertEquals(2, list.size());
+
+        // what the table holds
+        shop.getProductTypeListing().invalidate();
+        List<ProductType> reloaded = shop.getAllProductTypes();
+        for(ProductType p : reloaded) {
+            assertEquals(p.getQuantity(), find(list, p.getId()).getQuantity());
+            assertEquals(p.getLocation(), find(list, p.getId()).getLocation());
+        }
+    }
+
+    @Test
+    public void sharedByEveryTill() throws Exception
+    {
+        EZShop other = new EZShop(shop.getSession());
+        assertEquals(0, (int) find(other.getAllProductTypes(), vino).getQuantity());
+        assertTrue(shop.updateQuantity(vino, 5));
+        // the other till does not keep a stale list of its own
+        assertEquals(5, (int) find(other.getAllProductTypes(), vino).getQuantity());
+    }
+
+    @Test
+    public void scannedUnitsLeaveEveryListing() throws Exception
+    {
+        assertTrue(shop.updateQuantity(vino, 10));
+        shop.getAllProductTypes();
+        Integer sale = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(sale,"2424242424239",3));
+        // the listing reports what the catalog reports
+        assertEquals(7, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+        assertEquals(7, (int) find(shop.getAllProductTypes(), vino).getQuantity());
+        assertEquals(7, (int) find(shop.getProductTypesPage(null, 10).getItems(), vino).getQuantity());
+        List<ProductType> streamed = new ArrayList<>();
+        assertTrue(shop.forEachProductType(streamed::add));
+        assertEquals(7, (int) find(streamed, vino).getQuantity());
+
+        assertTrue(shop.deleteProductFromSale(sale,"2424242424239",1));
+        assertEquals(8, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+        assertEquals(8, (int) find(shop.getAllProductTypes(), vino).getQuantity());
+        assertTrue(shop.endSaleTransaction(sale));
+        assertEquals(8, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+        assertEquals(8, (int) find(shop.getAllProductTypes(), vino).getQuantity());
+    }
+
+    @Test
+    public void ordersCustomersAndUsers() throws Exception
+    {
+        assertTrue(shop.getAllOrders().isEmpty());
+        assertEquals(1, shop.getAllUsers().size());
+        assertTrue(shop.getAllCustomers().isEmpty());
+        long loads = shop.getOrderListing().getLoads() + shop.getUserListing().getLoads() + shop.getCustomerListing().getLoads();
+
+        Integer order = shop.issueOrder("2424242424239", 5, 1.0);
+        assertEquals("ISSUED", shop.getAllOrders().get(0).getStatus());
+        assertTrue(shop.payOrder(order));
+        assertEquals("PAYED", shop.getAllOrders().get(0).getStatus());
+        assertTrue(shop.recordOrderArrival(order));
+        assertEquals("COMPLETED", shop.getAllOrders().get(0).getStatus());
+        assertEquals(5, (int) find(shop.getAllProductTypes(), vino).getQuantity());
+
+        Integer cassa = shop.createUser("cassa","ciao","Cashier");
+        assertTrue(shop.updateUserRights(cassa, "ShopManager"));
+        assertEquals("ShopManager", shop.getAllUsers().get(1).getRole());
+        assertTrue(shop.deleteUser(cassa));
+        assertEquals(1, shop.getAllUsers().size());
+
+        Integer mario = shop.defineCustomer("Mario");
+        String card = shop.createCard();
+        assertTrue(shop.attachCardToCustomer(card, mario));
+        assertEquals(card, shop.getAllCustomers().get(0).getCustomerCard());
+        assertTrue(shop.modifyPointsOnCard(card, 15));
+        assertEquals(15, (int) shop.getAllCustomers().get(0).getPoints());
+        assertTrue(shop.modifyCustomer(mario, "Mario Rossi", null));
+        assertEquals("Mario Rossi", shop.getAllCustomers().get(0).getCustomerName());
+        assertTrue(shop.deleteCustomer(mario));
+        assertTrue(shop.getAllCustomers().isEmpty());
+
+        assertEquals(loads, shop.getOrderListing().getLoads() + shop.getUserListing().getLoads() + shop.getCustomerListing().getLoads());
+    }
+
+    @Test
+    public void listsAreTheCallersOwn() throws Exception
+    {
+        List<ProductType> list = shop.getAllProductTypes();
+        list.remove(0);
+        assertEquals(2, shop.getAllProductTypes().size());
+    }
+
+    @Test
+    public void entriesAreCopies() throws Exception
+    {
+        shop.issueOrder("2424242424239",10,1.0);
+        shop.defineCustomer("Mario");
+        ProductType product = find(shop.getAllProductTypes(), vino);
+        product.setQuantity(1000);
+        assertEquals(1000, (int) product.getQuantity());
+        Order order = shop.getAllOrders().get(0);
+        order.setStatus("COMPLETED");
+        assertEquals("COMPLETED", order.getStatus());
+        shop.getAllCustomers().get(0).setPoints(1000);
+        shop.getAllUsers().get(0).setRole("Cashier");
+        assertEquals(0, (int) find(shop.getAllProductTypes(), vino).getQuantity());
+        assertEquals("ISSUED", shop.getAllOrders().get(0).getStatus());
+        assertEquals(0, (int) shop.getAllCustomers().get(0).getPoints());
+        assertEquals("Administrator", shop.getAllUsers().get(0).getRole());
+
+        // the catalog and the pages hand out objects of their own
+        ProductType copy = shop.getProductTypeByBarCode("2424242424239");
+        copy.setQuantity(1000);
+        shop.getProductTypesPage(null, 10).getItems().get(0).setQuantity(1000);
+        assertEquals(0, (int) find(shop.getAllProductTypes(), vino).getQuantity());
+    }
+
+    @Test
+    public void rolledBackPatchesAreDropped() throws Exception
+    {
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite::memory:", 1);
+        Connection conn = pool.begin();
+        try(Statement st = conn.createStatement()) {
+            st.executeUpdate("CREATE TABLE item(id INTEGER PRIMARY KEY, name TEXT)");
+            st.executeUpdate("INSERT INTO item VALUES (1, 'one')");
+        } finally {
+            pool.release();
+        }
+        Listing<String> listing = new Listing<>(pool, "SELECT id, name FROM item", "id", rs -> rs.getInt("id") + rs.getString("name"), s -> Integer.valueOf(s.substring(0, 1)));
+        assertEquals(1, listing.getAll().size());
+
+        conn = pool.begin();
+        try(Statement st = conn.createStatement()) {
+            st.executeUpdate("INSERT INTO item VALUES (2, 'two')");
+            listing.refresh(conn, 2);
+            // published once committed
+            assertEquals(1, listing.getAll().size());
+            pool.setRollbackOnly();
+        } finally {
+            pool.release();
+        }
+        assertFalse(listing.isLoaded());
+        assertEquals(1, listing.getAll().size());
+
+        // a rollback elsewhere that did not patch it keeps it
+        conn = pool.begin();
+        pool.setRollbackOnly();
+        pool.release();
+        assertTrue(listing.isLoaded());
+        pool.close();
+    }
+}
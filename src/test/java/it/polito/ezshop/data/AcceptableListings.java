@@ -0,0 +1,129 @@
+package it.polito.ezshop.data;
+
+import it.polito.ezshop.exceptions.UnauthorizedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AcceptableListings {
+    static final int PRODUCTS = 250;
+
+    EZShop shop;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+        for(int i = 0; i < PRODUCTS; i++)
+            shop.createProductType("product " + i, AcceptableReturnCommit.barCode(i), 1.0 + i, "");
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    List<Integer> ids(List<ProductType> products)
+    {
+        List<Integer> ids = new ArrayList<>();
+        for(ProductType p : products)
+            ids.add(p.getId());
+        return ids;
+    }
+
+    @Test
+    public void pagesCoverTheTable() throws Exception
+    {
+        List<Integer> paged = new ArrayList<>();
+        Integer token = null;
+        int pages = 0;
+        do {
+            Page<ProductType> page = shop.getProductTypesPage(token, 100);
+            assertTrue(page.getItems().size() <= 100);
+            paged.addAll(ids(page.getItems()));
+            token = page.getNextToken();
+            pages++;
+        } while(token != null);
+        assertEquals(3, pages);
+        assertEquals(ids(shop.getAllProductTypes()), paged);
+
+        // exactly one page: no token
+        Page<ProductType> all = shop.getProductTypesPage(null, PRODUCTS);
+        assertEquals(PRODUCTS, all.getItems().size());
+        assertFalse(all.hasNext());
+        assertTrue(shop.getProductTypesPage(null, 0).getItems().isEmpty());
+        // capped, not overflowing
+        assertEquals(PRODUCTS, shop.getProductTypesPage(null, Integer.MAX_VALUE).getItems().size());
+    }
+
+    @Test
+    public void pagesDoNotShift() throws Exception
+    {
+        Page<ProductType> first = shop.getProductTypesPage(null, 10);
+        // rows removed before the token and added after it while the listing is read
+        assertTrue(shop.deleteProductType(first.getItems().get(0).getId()));
+        Integer added = shop.createProductType("new", AcceptableReturnCommit.barCode(PRODUCTS), 1.0, "");
+        Page<ProductType> second = shop.getProductTypesPage(first.getNextToken(), 10);
+        assertEquals(first.getItems().get(9).getId() + 1, (int) second.getItems().get(0).getId());
+
+        List<Integer> rest = new ArrayList<>();
+        shop.forEachProductType(p -> {
+            if(p.getId() > first.getNextToken())
+                rest.add(p.getId());
+        });
+        assertEquals(PRODUCTS - 10 + 1, rest.size());
+        assertEquals(added, rest.get(rest.size() - 1));
+    }
+
+    @Test
+    public void streamsEveryListing() throws Exception
+    {
+        shop.defineCustomer("Mario");
+        shop.defineCustomer("Anna");
+        shop.createUser("cassa","ciao","Cashier");
+        shop.recordBalanceUpdate(1000.0);
+        shop.issueOrder(AcceptableReturnCommit.barCode(1), 5, 1.0);
+        shop.issueOrder(AcceptableReturnCommit.barCode(2), 5, 1.0);
+
+        int[] seen = new int[4];
+        // read to the end
+        assertTrue(shop.forEachProductType(p -> seen[0]++));
+        assertTrue(shop.forEachCustomer(c -> seen[1]++));
+        assertTrue(shop.forEachOrder(o -> seen[2]++));
+        assertTrue(shop.forEachUser(u -> seen[3]++));
+        assertArrayEquals(new int[]{PRODUCTS, 2, 2, 2}, seen);
+
+        Page<Customer> customers = shop.getCustomersPage(null, 1);
+        assertEquals("Mario", customers.getItems().get(0).getCustomerName());
+        assertEquals("Anna", shop.getCustomersPage(customers.getNextToken(), 1).getItems().get(0).getCustomerName());
+        assertEquals(2, shop.getOrdersPage(null, 10).getItems().size());
+        assertEquals("cassa", shop.getUsersPage(shop.getUsersPage(null, 1).getNextToken(), 5).getItems().get(0).getUsername());
+    }
+
+    @Test
+    public void sameRolesAsTheFullListings() throws Exception
+    {
+        shop.createUser("cassa","ciao","Cashier");
+        shop.logout();
+        shop.login("cassa","ciao");
+        assertEquals(10, shop.getProductTypesPage(null, 10).getItems().size());
+        try {
+            shop.getUsersPage(null, 10);
+            fail();
+        } catch(UnauthorizedException e) { }
+        try {
+            shop.forEachOrder(o -> { });
+            fail();
+        } catch(UnauthorizedException e) { }
+    }
+}
@@ -0,0 +1,105 @@
+package it.polito.ezshop.data;
+
+import it.polito.ezshop.exceptions.InvalidPricePerUnitException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AcceptableMoney {
+    EZShop shop;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+        Integer id = shop.createProductType("Vino","2424242424239",19.99,"Buono");
+        shop.updatePosition(id,"14-Boh-15");
+        shop.updateQuantity(id,100);
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    @Test
+    public void exactCents()
+    {
+        assertEquals(1999, Money.cents(19.99));
+        assertEquals(-4050, Money.cents(-40.5));
+        // halves away from zero
+        assertEquals(1, Money.cents(0.005));
+        assertEquals(-1, Money.cents(-0.005));
+        assertEquals(-13, Money.cents(-0.125));
+        assertEquals(30, Money.cents(0.1) + Money.cents(0.2));
+        assertEquals(0.3, Money.toDouble(Money.cents(0.1) + Money.cents(0.2)), 0.0);
+        assertEquals(5997, Money.times(1999, 3));
+        assertThrows(ArithmeticException.class, () -> Money.times(Long.MAX_VALUE / 2, 3));
+    }
+
+    @Test
+    public void pricesBelowHalfACentRefused() throws Exception
+    {
+        assertThrows(InvalidPricePerUnitException.class, () -> shop.createProductType("Chiodo","4006381333931",0.004,""));
+        Integer id = shop.createProductType("Chiodo","4006381333931",0.005,"");
+        assertEquals(0.01, shop.getProductTypeByBarCode("4006381333931").getPricePerUnit(), 0.0);
+        assertThrows(InvalidPricePerUnitException.class, () -> shop.updateProduct(id,"Chiodo","4006381333931",0.001,""));
+        assertThrows(InvalidPricePerUnitException.class, () -> shop.issueOrder("4006381333931",10,0.004));
+        assertThrows(InvalidPricePerUnitException.class, () -> shop.payOrderFor("4006381333931",10,0.004));
+    }
+
+    @Test
+    public void discountsRoundHalfUp()
+    {
+        // 59.97 * 15% = 8.9955
+        assertEquals(900, Money.discountOf(5997, 0.15));
+        assertEquals(5097, Money.discounted(5997, 0.15));
+        // 0.25 * 10% = 0.025
+        assertEquals(3, Money.discountOf(25, 0.1));
+        assertEquals(-3, Money.discountOf(-25, 0.1));
+        assertEquals(1999, Money.discounted(1999, 0.0));
+        assertEquals(5, Money.points(5097));
+        assertEquals(0, Money.points(999));
+    }
+
+    @Test
+    public void saleTotalsInCents() throws Exception
+    {
+        Integer sale = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(sale,"2424242424239",3));
+        assertTrue(shop.applyDiscountRateToSale(sale,0.15));
+        assertEquals(5, shop.computePointsForSale(sale));
+        assertTrue(shop.endSaleTransaction(sale));
+        assertEquals(50.97, shop.getSaleTransaction(sale).getPrice(), 0.0);
+        assertEquals(5, shop.computePointsForSale(sale));
+        assertEquals(9.03, shop.receiveCashPayment(sale,60.0), 0.0);
+
+        Integer ret = shop.startReturnTransaction(sale);
+        assertTrue(shop.returnProduct(ret,"2424242424239",1));
+        assertTrue(shop.endReturnTransaction(ret,true));
+        // 19.99 - 15% = 16.9915
+        assertEquals(16.99, shop.returnCashPayment(ret), 0.0);
+        assertEquals(33.98, shop.computeBalance(), 0.0);
+        assertTrue(shop.verifyBalance());
+    }
+
+    @Test
+    public void manySmallAmountsDoNotDrift() throws Exception
+    {
+        for(int i = 0; i < 100; i++)
+            assertTrue(shop.recordBalanceUpdate(0.1));
+        assertEquals(10.0, shop.computeBalance(), 0.0);
+        double sum = 0.0;
+        for(BalanceOperation op : shop.getCreditsAndDebits(null,null))
+            sum += op.getMoney();
+        // the doubles handed out still add up with their usual error
+        assertEquals(10.0, sum, 1e-9);
+    }
+}
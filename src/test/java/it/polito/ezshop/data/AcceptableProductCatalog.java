@@ -0,0 +1,131 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+public class AcceptableProductCatalog {
+    EZShop shop;
+    Integer idProduct;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+        idProduct = shop.createProductType("Vino","2424242424239",10.0,"Buono");
+        shop.updatePosition(idProduct,"14-Boh-15");
+        shop.updateQuantity(idProduct,70);
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    @Test
+    public void scanWithoutDatabaseRead() throws Exception
+    {
+        assertNotNull(shop.getProductTypeByBarCode("2424242424239"));
+        shop.getStatementStats().clear();
+        long hits = shop.getProductCatalog().getHits();
+        long misses = shop.getProductCatalog().getMisses();
+
+        Integer id = shop.startSaleTransaction();
+        for(int i = 0; i < 5; i++)
+            assertTrue(shop.addProductToSale(id,"2424242424239",1));
+        assertNull(shop.getProductTypeByBarCode("4006381333931"));
+
+        for(StatementStats.Entry e : shop.getStatementStats().getEntries())
+            assertFalse(e.getSql(), e.getExecutions() > 0 && e.getSql().startsWith("SELECT") && e.getSql().contains("FROM productType"));
+        // a lookup and a reservation per scan
+        assertEquals(hits + 11, shop.getProductCatalog().getHits());
+        assertEquals(misses, shop.getProductCatalog().getMisses());
+    }
+
+    @Test
+    public void coherentWithWrites() throws Exception
+    {
+        ProductCatalog catalog = shop.getProductCatalog();
+        assertEquals(70, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+
+        assertTrue(shop.updateQuantity(idProduct,-20));
+        assertEquals(50, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+
+        assertTrue(shop.updateProduct(idProduct,"Vino rosso","4006381333931",12.0,"Ottimo"));
+        assertNull(shop.getProductTypeByBarCode("2424242424239"));
+        ProductType p = shop.getProductTypeByBarCode("4006381333931");
+        assertEquals("Vino rosso", p.getProductDescription());
+        assertEquals(12.0, p.getPricePerUnit(), 0.0);
+        assertEquals(50, (int) p.getQuantity());
+
+        assertTrue(shop.updatePosition(idProduct,"1-A-1"));
+        assertNull(catalog.getByPosition("14-Boh-15"));
+        assertEquals(idProduct, catalog.getByPosition("1-A-1").getId());
+        assertEquals("4006381333931", catalog.getById(idProduct).getBarCode());
+
+        Integer other = shop.createProductType("Pane","2424242424239",1.0,null);
+        assertEquals(other, shop.getProductTypeByBarCode("2424242424239").getId());
+        assertEquals(2, catalog.getAll().size());
+
+        assertTrue(shop.deleteProductType(idProduct));
+        assertNull(shop.getProductTypeByBarCode("4006381333931"));
+        assertNull(catalog.getById(idProduct));
+        assertEquals(1, catalog.size());
+    }
+
+    @Test
+    public void returnsCopies() throws Exception
+    {
+        shop.getProductTypeByBarCode("2424242424239").setQuantity(1000);
+        assertEquals(70, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+    }
+
+    @Test
+    public void keptAfterRollback() throws Exception
+    {
+        shop.getProductTypeByBarCode("2424242424239");
+        long misses = shop.getProductCatalog().getMisses();
+        shop.recordBalanceUpdate(1000.0);
+        Integer idOrder = shop.issueOrder("2424242424239",10,1.0);
+        shop.payOrder(idOrder);
+        shop.recordOrderArrivalRFID(idOrder,"000000001000");
+        Integer id = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSaleRFID(id,"000000001000"));
+        assertEquals(79, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+        // the range disappears behind the index: marking the item sold fails once the stock is decreased
+        try(Connection conn = DriverManager.getConnection("jdbc:sqlite:" + System.getProperty("ezshop.db", "ezshop_db.sqlite"));
+            Statement st = conn.createStatement()) {
+            st.executeUpdate("DELETE FROM productRange");
+        }
+        // rolled back before the stock decrease reaches the catalog: it is kept, the cart stays open
+        assertFalse(shop.endSaleTransaction(id));
+        assertTrue(shop.getSaleCarts().isOpen(id));
+        assertEquals(79, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+        assertEquals(misses, shop.getProductCatalog().getMisses());
+    }
+
+    @Test
+    public void reloadedAfterWriteThroughRollback() throws Exception
+    {
+        Integer id = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(id,"2424242424239",60));
+        long misses = shop.getProductCatalog().getMisses();
+        // the UPDATE goes through, then the ledger refuses to take reserved units: the catalog goes with the rollback
+        assertFalse(shop.updateQuantity(idProduct,-20));
+        assertEquals(10, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+        assertEquals(misses + 1, shop.getProductCatalog().getMisses());
+        assertTrue(shop.endSaleTransaction(id));
+        assertEquals(10, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+    }
+}
@@ -0,0 +1,172 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+public class AcceptableReturnCommit {
+    static final int LINES = 120;
+
+    EZShop shop;
+
+    // GTIN-13 with a valid check digit
+    static String barCode(int n)
+    {
+        String digits = String.format("800%09d", n);
+        int sum = 0;
+        for(int i = 0; i < 12; i++)
+            sum += (digits.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        return digits + (10 - sum % 10) % 10;
+    }
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+        for(int i = 0; i < LINES; i++) {
+            Integer id = shop.createProductType("product " + i, barCode(i), 1.0 + i, "");
+            shop.updatePosition(id, i + "-A-1");
+            shop.updateQuantity(id, 10);
+        }
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    Integer paidSale() throws Exception
+    {
+        Integer sale = shop.startSaleTransaction();
+        for(int i = 0; i < LINES; i++)
+            assertTrue(shop.addProductToSale(sale, barCode(i), 3));
+        assertTrue(shop.applyDiscountRateToProduct(sale, barCode(0), 0.5));
+        assertTrue(shop.applyDiscountRateToSale(sale, 0.1));
+        assertTrue(shop.endSaleTransaction(sale));
+        assertTrue(shop.receiveCashPayment(sale, 100_000.0) >= 0);
+        return sale;
+    }
+
+    @Test
+    public void bigReturnInFewStatements() throws Exception
+    {
+        Integer sale = paidSale();
+        Integer ret = shop.startReturnTransaction(sale);
+        for(int i = 0; i < LINES; i++)
+            assertTrue(shop.returnProduct(ret, barCode(i), i % 2 == 0 ? 3 : 1));
+
+        shop.getStatementStats().clear();
+        long commits = shop.getCommitCount();
+        assertTrue(shop.endReturnTransaction(ret, true));
+        long executions = 0;
+        for(StatementStats.Entry e : shop.getStatementStats().getEntries())
+            executions += e.getExecutions();
+        // not a handful of statements per line
+        assertTrue(executions + " statements", executions < 10);
+        assertEquals(commits + 1, shop.getCommitCount());
+
+        for(int i = 0; i < LINES; i++)
+            assertEquals(i % 2 == 0 ? 10 : 8, (int) shop.getProductTypeByBarCode(barCode(i)).getQuantity());
+        // the lines returned in full are gone from the ticket
+        assertEquals(LINES / 2, shop.getSaleTransaction(sale).getEntries().size());
+
+        // 3 x 1.00 at 50%, then every line at full price, less 10% on the whole
+        long expected = Money.discounted(150, 0.1);
+        for(int i = 1; i < LINES; i++)
+            expected += Money.discounted(Money.cents(1.0 + i) * (i % 2 == 0 ? 3 : 1), 0.1);
+        assertEquals(Money.toDouble(expected), shop.returnCashPayment(ret), 0.0);
+    }
+
+    @Test
+    public void failedReturnLeavesNothingBehind() throws Exception
+    {
+        Integer sale = paidSale();
+        Integer ret = shop.startReturnTransaction(sale);
+        assertTrue(shop.returnProduct(ret, barCode(0), 3));
+        assertTrue(shop.returnProduct(ret, barCode(LINES - 1), 2));
+        // the last product has been deleted meanwhile: it cannot go back on the shelf
+        assertTrue(shop.deleteProductType(shop.getProductTypeByBarCode(barCode(LINES - 1)).getId()));
+
+        assertFalse(shop.endReturnTransaction(ret, true));
+        assertEquals(7, (int) shop.getProductTypeByBarCode(barCode(0)).getQuantity());
+        assertEquals(LINES - 1, shop.getSaleTransaction(sale).getEntries().size());
+        assertEquals(3, shop.getSaleTransaction(sale).getEntries().get(0).getAmount());
+        assertEquals(-1.0, shop.returnCashPayment(ret), 0.0);
+    }
+
+    @Test
+    public void failedRestockLeavesTheStockAlone() throws Exception
+    {
+        Integer sale = paidSale();
+        Integer ret = shop.startReturnTransaction(sale);
+        assertTrue(shop.returnProduct(ret, barCode(0), 3));
+        assertTrue(shop.returnProduct(ret, barCode(1), 2));
+        // the second product has lost its location behind the catalog: its units cannot go back on the shelf
+        try(Connection conn = DriverManager.getConnection("jdbc:sqlite:" + System.getProperty("ezshop.db", "ezshop_db.sqlite"));
+            Statement st = conn.createStatement()) {
+            st.executeUpdate("UPDATE productType SET position=NULL WHERE productCode='" + barCode(1) + "'");
+        }
+
+        assertFalse(shop.endReturnTransaction(ret, true));
+        assertEquals(7, (int) shop.getProductTypeByBarCode(barCode(0)).getQuantity());
+        assertEquals(7, shop.getProductCatalog().getStockLedger().getAvailable(shop.getProductTypeByBarCode(barCode(0)).getId()));
+    }
+
+    @Test
+    public void taggedItemsAreReturnedRowByRow() throws Exception
+    {
+        assertTrue(shop.recordBalanceUpdate(1000.0));
+        Integer order = shop.payOrderFor(barCode(0), 3, 1.0);
+        assertTrue(shop.recordOrderArrivalRFID(order, "000000000010"));
+        Integer sale = shop.startSaleTransaction();
+        for(String rfid : new String[]{"000000000010", "000000000011", "000000000012"})
+            assertTrue(shop.addProductToSaleRFID(sale, rfid));
+        assertTrue(shop.addProductToSale(sale, barCode(0), 2));
+        assertTrue(shop.endSaleTransaction(sale));
+        assertTrue(shop.receiveCashPayment(sale, 100.0) >= 0);
+        assertEquals(8, (int) shop.getProductTypeByBarCode(barCode(0)).getQuantity());
+
+        // one row per tag in the sale: each gives back its own unit
+        Integer ret = shop.startReturnTransaction(sale);
+        assertTrue(shop.returnProductRFID(ret, "000000000010"));
+        assertTrue(shop.returnProductRFID(ret, "000000000011"));
+        assertTrue(shop.endReturnTransaction(ret, true));
+        assertEquals(10, (int) shop.getProductTypeByBarCode(barCode(0)).getQuantity());
+        int left = 0;
+        for(TicketEntry e : shop.getSaleTransaction(sale).getEntries())
+            left += e.getAmount();
+        assertEquals(3, left);
+
+        // by barcode and by RFID in the same return
+        ret = shop.startReturnTransaction(sale);
+        assertTrue(shop.returnProduct(ret, barCode(0), 2));
+        assertTrue(shop.returnProductRFID(ret, "000000000012"));
+        assertTrue(shop.endReturnTransaction(ret, true));
+        assertEquals(13, (int) shop.getProductTypeByBarCode(barCode(0)).getQuantity());
+        assertTrue(shop.getSaleTransaction(sale).getEntries().isEmpty());
+    }
+
+    @Test
+    public void onlyOpenReturnsCommit() throws Exception
+    {
+        Integer sale = paidSale();
+        Integer ret = shop.startReturnTransaction(sale);
+        // nothing returned
+        assertFalse(shop.endReturnTransaction(ret, true));
+        assertTrue(shop.returnProduct(ret, barCode(1), 1));
+        assertTrue(shop.endReturnTransaction(ret, true));
+        assertFalse(shop.endReturnTransaction(ret, true));
+        assertEquals(8, (int) shop.getProductTypeByBarCode(barCode(1)).getQuantity());
+    }
+}
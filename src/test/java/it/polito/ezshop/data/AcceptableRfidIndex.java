@@ -0,0 +1,175 @@
+package it.polito.ezshop.data;
+
+import it.polito.ezshop.exceptions.InvalidRFIDException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+public class AcceptableRfidIndex {
+    EZShop shop;
+    Integer idProduct;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+        idProduct = shop.createProductType("Vino","2424242424239",10.0,"Buono");
+        shop.updatePosition(idProduct,"14-Boh-15");
+        shop.recordBalanceUpdate(1000.0);
+        Integer idOrder = shop.issueOrder("2424242424239",10,1.0);
+        shop.payOrder(idOrder);
+        assertTrue(shop.recordOrderArrivalRFID(idOrder,"000000001000"));
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    @Test
+    public void saleAndReturnByTag() throws Exception
+    {
+        shop.getStatementStats().clear();
+        Integer id = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSaleRFID(id,"000000001000"));
+        assertTrue(shop.addProductToSaleRFID(id,"000000001009"));
+        assertFalse(shop.addProductToSaleRFID(id,"000000001010"));
+        assertTrue(shop.deleteProductFromSaleRFID(id,"000000001009"));
+        for(StatementStats.Entry e : shop.getStatementStats().getEntries())
+            assertFalse(e.getSql(), e.getExecutions() > 0 && e.getSql().contains("FROM product WHERE RFID"));
+
+        assertTrue(shop.endSaleTransaction(id));
+        assertTrue(shop.receiveCashPayment(id,100.0) >= 0);
+        Integer returnId = shop.startReturnTransaction(id);
+        assertFalse(shop.returnProductRFID(returnId,"000000001001"));
+        assertTrue(shop.returnProductRFID(returnId,"000000001000"));
+    }
+
+    @Test
+    public void followsProductBarcode() throws Exception
+    {
+        Integer id = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSaleRFID(id,"000000001001"));
+        // items are recorded with the barcode they arrived with
+        assertTrue(shop.updateProduct(idProduct,"Vino","4006381333931",10.0,""));
+        assertFalse(shop.addProductToSaleRFID(id,"000000001002"));
+        assertTrue(shop.updateProduct(idProduct,"Vino","2424242424239",10.0,""));
+        assertTrue(shop.addProductToSaleRFID(id,"000000001002"));
+
+        assertTrue(shop.deleteProductType(idProduct));
+        assertFalse(shop.addProductToSaleRFID(id,"000000001003"));
+    }
+
+    @Test
+    public void soldItemsUntilReleased() throws Exception
+    {
+        Integer id = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSaleRFID(id,"000000001000"));
+        assertTrue(shop.addProductToSaleRFID(id,"000000001001"));
+        assertTrue(shop.addProductToSaleRFID(id,"000000001002"));
+        assertFalse(shop.addProductToSaleRFID(id,"000000001000"));
+        // held by the open cart, sold when the sale ends
+        assertTrue(shop.getSaleCarts().isHeld(1000L));
+        assertFalse(shop.getRfidIndex().isSold(1000L));
+        assertTrue(shop.deleteProductFromSaleRFID(id,"000000001000"));
+        assertFalse(shop.getSaleCarts().isHeld(1000L));
+
+        Integer other = shop.startSaleTransaction();
+        assertFalse(shop.addProductToSaleRFID(other,"000000001001"));
+        assertTrue(shop.addProductToSaleRFID(other,"000000001000"));
+        assertTrue(shop.deleteSaleTransaction(other));
+        assertFalse(shop.getSaleCarts().isHeld(1000L));
+
+        assertTrue(shop.endSaleTransaction(id));
+        assertFalse(shop.getSaleCarts().isHeld(1001L));
+        assertTrue(shop.getRfidIndex().isSold(1001L));
+        assertFalse(shop.getRfidIndex().isSold(1000L));
+        assertTrue(shop.receiveCashPayment(id,100.0) >= 0);
+        Integer returnId = shop.startReturnTransaction(id);
+        assertTrue(shop.returnProductRFID(returnId,"000000001001"));
+        assertTrue(shop.getRfidIndex().isSold(1001L));
+        assertTrue(shop.endReturnTransaction(returnId,true));
+        assertFalse(shop.getRfidIndex().isSold(1001L));
+        assertTrue(shop.getRfidIndex().isSold(1002L));
+
+        // the bitmap survives a reload from the database
+        shop.getRfidIndex().invalidate();
+        assertFalse(shop.getRfidIndex().isSold(1001L));
+        assertTrue(shop.getRfidIndex().isSold(1002L));
+        Integer third = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSaleRFID(third,"000000001001"));
+        assertFalse(shop.addProductToSaleRFID(third,"000000001002"));
+    }
+
+    @Test
+    public void droppedOnlyWhenChangedByTheRollback() throws Exception
+    {
+        RfidIndex index = shop.getRfidIndex();
+        Integer id = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSaleRFID(id,"000000001000"));
+        long loads = index.getLoads();
+        // rolled back without touching the tags: the index stays
+        assertFalse(shop.updateQuantity(idProduct,-10));
+        assertEquals(1, index.getRangeCount());
+        assertEquals(loads, index.getLoads());
+
+        // the range disappears behind the index: the sold bit is flipped in memory, then its UPDATE fails
+        try(Connection conn = DriverManager.getConnection("jdbc:sqlite:" + System.getProperty("ezshop.db", "ezshop_db.sqlite"));
+            Statement st = conn.createStatement()) {
+            st.executeUpdate("DELETE FROM productRange");
+        }
+        assertFalse(shop.endSaleTransaction(id));
+        assertNull(index.getBarCode(1000L));
+        assertEquals(loads + 1, index.getLoads());
+    }
+
+    @Test
+    public void palletArrival() throws Exception
+    {
+        Integer idOrder = shop.issueOrder("2424242424239",5000,0.1);
+        assertTrue(shop.payOrder(idOrder));
+        shop.getStatementStats().clear();
+        // past Integer.MAX_VALUE
+        assertTrue(shop.recordOrderArrivalRFID(idOrder,"900000000000"));
+        // one row for the whole pallet
+        assertEquals(1, shop.getStatementStats().get("INSERT INTO productRange(first, length, barcode) VALUES (?,?,?)").getExecutions());
+        assertEquals(2, shop.getRfidIndex().getRangeCount());
+        assertEquals(5010, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+
+        Integer id = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSaleRFID(id,"900000004999"));
+        assertFalse(shop.addProductToSaleRFID(id,"900000005000"));
+
+        // overlaps the last tag of the pallet
+        Integer idOrder2 = shop.issueOrder("2424242424239",10,0.1);
+        assertTrue(shop.payOrder(idOrder2));
+        assertThrows(InvalidRFIDException.class, () -> shop.recordOrderArrivalRFID(idOrder2,"900000004999"));
+        // would go past 999999999999
+        assertThrows(InvalidRFIDException.class, () -> shop.recordOrderArrivalRFID(idOrder2,"999999999991"));
+        assertTrue(shop.recordOrderArrivalRFID(idOrder2,"999999999990"));
+        assertTrue(shop.addProductToSaleRFID(id,"999999999999"));
+    }
+
+    @Test
+    public void parseAndFormat()
+    {
+        assertEquals("000000001000", RfidIndex.format(1000L));
+        assertEquals("999999999999", RfidIndex.format(RfidIndex.MAX_RFID));
+        assertEquals(1000L, RfidIndex.parse("000000001000"));
+        assertEquals(999999999999L, RfidIndex.parse("999999999999"));
+        assertEquals(-1L, RfidIndex.parse("00000000100"));
+        assertEquals(-1L, RfidIndex.parse("00000000100a"));
+        assertEquals(-1L, RfidIndex.parse(null));
+    }
+}
@@ -0,0 +1,78 @@
+package it.polito.ezshop.data;
+
+import it.polito.ezshop.exceptions.UnauthorizedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+public class AcceptableRunningBalance {
+    EZShop shop;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.createUser("manager","ciao","ShopManager");
+        shop.login("admin","ciao");
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    @Test
+    public void balanceFollowsOperations() throws Exception
+    {
+        assertEquals(0.0, shop.computeBalance(), 0.0);
+        assertTrue(shop.recordBalanceUpdate(100.0));
+        assertTrue(shop.recordBalanceUpdate(-40.5));
+        assertFalse(shop.recordBalanceUpdate(-60.0));
+        assertEquals(59.5, shop.computeBalance(), 0.0);
+        assertEquals(2, shop.getCreditsAndDebits(null,null).size());
+        assertTrue(shop.verifyBalance());
+
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+        assertEquals(0.0, shop.computeBalance(), 0.0);
+    }
+
+    @Test
+    public void verifyRebuildsFromLedger() throws Exception
+    {
+        shop.recordBalanceUpdate(10.0);
+        shop.recordBalanceUpdate(0.1);
+        shop.recordBalanceUpdate(0.2);
+        // kept in cents, so no drift: 10.0 + 0.1 + 0.2 would be 10.299999999999999 in doubles
+        double expected = 10.3;
+        assertEquals(expected, shop.computeBalance(), 0.0);
+
+        try(Connection conn = DriverManager.getConnection("jdbc:sqlite:" + System.getProperty("ezshop.db", "ezshop_db.sqlite"));
+            Statement st = conn.createStatement()) {
+            st.executeUpdate("UPDATE balance SET total=100000 WHERE id=1");
+        }
+        assertEquals(1000.0, shop.computeBalance(), 0.0);
+        assertFalse(shop.verifyBalance());
+        assertEquals(expected, shop.computeBalance(), 0.0);
+        assertTrue(shop.verifyBalance());
+    }
+
+    @Test(expected = UnauthorizedException.class)
+    public void verifyAdministratorOnly() throws Exception
+    {
+        shop.logout();
+        shop.login("manager","ciao");
+        shop.verifyBalance();
+    }
+}
@@ -0,0 +1,147 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class AcceptableSaleCarts {
+    EZShop shop;
+    Integer idProduct;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+        idProduct = shop.createProductType("Vino","2424242424239",10.0,"Buono");
+        shop.updatePosition(idProduct,"14-Boh-15");
+        shop.updateQuantity(idProduct,10);
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    @Test
+    public void scansStayInMemory() throws Exception
+    {
+        Integer id = shop.startSaleTransaction();
+        shop.getStatementStats().clear();
+        long commits = shop.getCommitCount();
+        assertTrue(shop.addProductToSale(id,"2424242424239",3));
+        assertTrue(shop.addProductToSale(id,"2424242424239",2));
+        assertTrue(shop.deleteProductFromSale(id,"2424242424239",1));
+        assertTrue(shop.applyDiscountRateToProduct(id,"2424242424239",0.5));
+        assertTrue(shop.applyDiscountRateToSale(id,0.1));
+        assertEquals(1, shop.computePointsForSale(id));
+        for(StatementStats.Entry e : shop.getStatementStats().getEntries())
+            assertEquals(e.getSql(), 0, e.getExecutions());
+        assertEquals(commits, shop.getCommitCount());
+
+        SaleCarts.Cart cart = shop.getSaleCarts().get(id);
+        assertEquals(1, cart.getLines().size());
+        assertEquals(4, cart.getLines().get(0).getUnits());
+        assertEquals(18.0, cart.getTotal(), 1e-9);
+        assertNull(shop.getSaleTransaction(id));
+
+        // written in one unit of work
+        assertTrue(shop.endSaleTransaction(id));
+        assertEquals(commits + 1, shop.getCommitCount());
+        assertFalse(shop.getSaleCarts().isOpen(id));
+        SaleTransaction sale = shop.getSaleTransaction(id);
+        assertEquals(18.0, sale.getPrice(), 1e-9);
+        assertEquals(0.1, sale.getDiscountRate(), 0.0);
+        assertEquals(4, sale.getEntries().get(0).getAmount());
+        assertEquals(0.5, sale.getEntries().get(0).getDiscountRate(), 0.0);
+        assertEquals(6, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+        assertFalse(shop.addProductToSale(id,"2424242424239",1));
+    }
+
+    @Test
+    public void stockReservedAcrossTills() throws Exception
+    {
+        Integer first = shop.startSaleTransaction();
+        Integer second = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(first,"2424242424239",7));
+        assertFalse(shop.addProductToSale(second,"2424242424239",4));
+        assertTrue(shop.addProductToSale(second,"2424242424239",3));
+        assertEquals(0, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+        assertEquals(10, shop.getProductCatalog().getReserved(idProduct));
+        // the stock cannot be taken from under the open carts
+        assertFalse(shop.updateQuantity(idProduct,-1));
+
+        assertTrue(shop.deleteSaleTransaction(first));
+        assertEquals(7, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+        assertTrue(shop.endSaleTransaction(second));
+        assertEquals(0, shop.getProductCatalog().getReserved(idProduct));
+        assertEquals(7, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+        shop.getProductCatalog().invalidate();
+        assertEquals(7, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+    }
+
+    @Test
+    public void recoveredFromJournal() throws Exception
+    {
+        File file = File.createTempFile("ezshop", ".carts");
+        file.deleteOnExit();
+        ProductCatalog catalog = shop.getProductCatalog();
+        SaleCarts till = new SaleCarts(catalog, shop.getRfidIndex(), new CartJournal(file));
+        assertTrue(till.open(2, 0.0));
+        assertTrue(till.add(2, idProduct, "2424242424239", 1000, 3));
+        assertTrue(till.remove(2, "2424242424239", 1));
+        assertTrue(till.setDiscountRate(2, "2424242424239", 0.5));
+        assertTrue(till.setDiscountRate(2, 0.1));
+        assertTrue(till.open(4, 0.0));
+        assertTrue(till.add(4, idProduct, "2424242424239", 1000, 1));
+        // the process dies while writing a record
+        try(FileWriter w = new FileWriter(file, true)) {
+            w.write("A\t2\t24242");
+        }
+        till.discard(2);
+        till.discard(4);
+        assertEquals(0, catalog.getReserved(idProduct));
+
+        // sale 4 has been ended in the meantime
+        SaleCarts recovered = new SaleCarts(catalog, shop.getRfidIndex(), new CartJournal(file));
+        recovered.recover(Collections.singletonMap(2, 0.0));
+        assertFalse(recovered.isOpen(4));
+        SaleCarts.Cart cart = recovered.get(2);
+        assertEquals(2, cart.getLines().get(0).getAmount());
+        assertEquals(0.1, cart.getDiscountRate(), 0.0);
+        assertEquals(9.0, cart.getTotal(), 1e-9);
+        assertEquals(2, catalog.getReserved(idProduct));
+        recovered.discard(2);
+
+        // rewritten with just the open cart
+        SaleCarts again = new SaleCarts(catalog, shop.getRfidIndex(), new CartJournal(file));
+        again.recover(Collections.singletonMap(2, 0.0));
+        assertEquals(9.0, again.get(2).getTotal(), 1e-9);
+        again.discard(2);
+    }
+
+    @Test
+    public void failedRecoveryIsRecorded() throws Exception
+    {
+        assertNull(shop.getSaleCarts().getRecoveryFailure());
+        // a journal that cannot be read
+        File dir = File.createTempFile("ezshop", ".carts");
+        assertTrue(dir.delete() && dir.mkdir());
+        dir.deleteOnExit();
+        SaleCarts carts = new SaleCarts(shop.getProductCatalog(), shop.getRfidIndex(), new CartJournal(dir));
+        assertThrows(IOException.class, () -> carts.recover(Collections.singletonMap(2, 0.0)));
+        assertTrue(carts.getRecoveryFailure() instanceof IOException);
+        assertFalse(carts.isOpen(2));
+    }
+}
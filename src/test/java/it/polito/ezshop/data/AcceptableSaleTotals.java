@@ -0,0 +1,112 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AcceptableSaleTotals {
+    EZShop shop;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+        Integer id = shop.createProductType("Vino","2424242424239",19.99,"Buono");
+        shop.updatePosition(id,"14-Boh-15");
+        shop.updateQuantity(id,100);
+        id = shop.createProductType("Pane","123456789012",2.5,"");
+        shop.updatePosition(id,"14-Boh-16");
+        shop.updateQuantity(id,100);
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    long total(int sale)
+    {
+        return shop.getSaleCarts().get(sale).getTotalCents();
+    }
+
+    long subtotal(int sale)
+    {
+        return shop.getSaleCarts().get(sale).getSubtotalCents();
+    }
+
+    @Test
+    public void totalsFollowEveryChange() throws Exception
+    {
+        Integer sale = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(sale,"2424242424239",3));
+        assertEquals(5997, total(sale));
+        assertTrue(shop.addProductToSale(sale,"123456789012",4));
+        assertEquals(6997, total(sale));
+        assertTrue(shop.applyDiscountRateToProduct(sale,"123456789012",0.1));
+        assertEquals(6897, subtotal(sale));
+        assertTrue(shop.deleteProductFromSale(sale,"2424242424239",1));
+        assertEquals(4898, subtotal(sale));
+        assertTrue(shop.applyDiscountRateToSale(sale,0.2));
+        // 48.98 - 9.796
+        assertEquals(3918, total(sale));
+        assertEquals(3, shop.computePointsForSale(sale));
+
+        assertTrue(shop.endSaleTransaction(sale));
+        assertEquals(39.18, shop.getSaleTransaction(sale).getPrice(), 0.0);
+        assertEquals(3, shop.computePointsForSale(sale));
+        assertTrue(shop.verifySaleTotal(sale));
+    }
+
+    @Test
+    public void discountOnClosedSale() throws Exception
+    {
+        Integer sale = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(sale,"2424242424239",3));
+        assertTrue(shop.endSaleTransaction(sale));
+        assertEquals(5, shop.computePointsForSale(sale));
+
+        // the stored total follows the rate, and so does the payment
+        assertTrue(shop.applyDiscountRateToSale(sale,0.5));
+        assertEquals(29.98, shop.getSaleTransaction(sale).getPrice(), 0.0);
+        assertEquals(2, shop.computePointsForSale(sale));
+        assertTrue(shop.verifySaleTotal(sale));
+        assertEquals(0.02, shop.receiveCashPayment(sale,30.0), 0.0);
+        assertFalse(shop.applyDiscountRateToSale(sale,0.1));
+        assertEquals(29.98, shop.computeBalance(), 0.0);
+    }
+
+    @Test
+    public void pointsWithoutTheJoin() throws Exception
+    {
+        Integer sale = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(sale,"2424242424239",1));
+        assertTrue(shop.endSaleTransaction(sale));
+        shop.getStatementStats().clear();
+        assertEquals(1, shop.computePointsForSale(sale));
+        assertTrue(shop.applyDiscountRateToSale(sale,0.5));
+        assertEquals(0, shop.computePointsForSale(sale));
+        for(StatementStats.Entry e : shop.getStatementStats().getEntries())
+            assertTrue(e.getSql(), e.getExecutions() == 0 || !e.getSql().contains("productEntry"));
+        assertEquals(-1, shop.computePointsForSale(sale + 2));
+    }
+
+    @Test
+    public void verificationSeesDrift() throws Exception
+    {
+        Integer sale = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(sale,"2424242424239",2));
+        assertTrue(shop.endSaleTransaction(sale));
+        assertTrue(shop.verifySaleTotal(sale));
+        // priced again by the join at today's price
+        assertTrue(shop.updateProduct(shop.getProductTypeByBarCode("2424242424239").getId(),"Vino","2424242424239",20.0,"Buono"));
+        assertFalse(shop.verifySaleTotal(sale));
+        assertEquals(39.98, shop.getSaleTransaction(sale).getPrice(), 0.0);
+    }
+}
@@ -0,0 +1,126 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AcceptableSaleVoid {
+    static final int LINES = 150;
+
+    EZShop shop;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+        for(int i = 0; i < LINES; i++) {
+            Integer id = shop.createProductType("product " + i, AcceptableReturnCommit.barCode(i), 1.0 + i, "");
+            shop.updatePosition(id, i + "-A-1");
+            shop.updateQuantity(id, 10);
+        }
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    Integer closedSale() throws Exception
+    {
+        Integer sale = shop.startSaleTransaction();
+        for(int i = 0; i < LINES; i++)
+            assertTrue(shop.addProductToSale(sale, AcceptableReturnCommit.barCode(i), 1 + i % 3));
+        assertTrue(shop.endSaleTransaction(sale));
+        return sale;
+    }
+
+    int quantityIn(List<ProductType> inventory, String barCode)
+    {
+        for(ProductType p : inventory)
+            if(p.getBarCode().equals(barCode))
+                return p.getQuantity();
+        return -1;
+    }
+
+    @Test
+    public void bigVoidInFewStatements() throws Exception
+    {
+        Integer sale = closedSale();
+        shop.getStatementStats().clear();
+        long commits = shop.getCommitCount();
+        assertTrue(shop.deleteSaleTransaction(sale));
+        long executions = 0;
+        for(StatementStats.Entry e : shop.getStatementStats().getEntries())
+            executions += e.getExecutions();
+        // not a lookup and an UPDATE per line
+        assertTrue(executions + " statements", executions < 10);
+        assertEquals(commits + 1, shop.getCommitCount());
+
+        for(int i = 0; i < LINES; i++)
+            assertEquals(10, (int) shop.getProductTypeByBarCode(AcceptableReturnCommit.barCode(i)).getQuantity());
+        assertNull(shop.getSaleTransaction(sale));
+        assertFalse(shop.deleteSaleTransaction(sale));
+    }
+
+    @Test
+    public void inventoryFollowsWithoutReload() throws Exception
+    {
+        Integer sale = closedSale();
+        List<ProductType> inventory = shop.getAllProductTypes();
+        assertEquals(9, quantityIn(inventory, AcceptableReturnCommit.barCode(0)));
+        assertTrue(shop.deleteSaleTransaction(sale));
+
+        shop.getStatementStats().clear();
+        inventory = shop.getAllProductTypes();
+        for(StatementStats.Entry e : shop.getStatementStats().getEntries())
+            assertEquals(e.getSql(), 0, e.getExecutions());
+        for(int i = 0; i < LINES; i++)
+            assertEquals(10, quantityIn(inventory, AcceptableReturnCommit.barCode(i)));
+    }
+
+    @Test
+    public void voidAfterReloadRestocksOnce() throws Exception
+    {
+        Integer sale = closedSale();
+        // as after a restart or a rollback: the void loads the catalog itself
+        shop.getProductCatalog().invalidate();
+        assertTrue(shop.deleteSaleTransaction(sale));
+        for(int i = 0; i < LINES; i++)
+            assertEquals(10, (int) shop.getProductTypeByBarCode(AcceptableReturnCommit.barCode(i)).getQuantity());
+        shop.getProductCatalog().invalidate();
+        assertEquals(10, (int) shop.getProductTypeByBarCode(AcceptableReturnCommit.barCode(LINES - 1)).getQuantity());
+    }
+
+    @Test
+    public void failedVoidLeavesNothingBehind() throws Exception
+    {
+        Integer sale = closedSale();
+        List<ProductType> inventory = shop.getAllProductTypes();
+        // the last product has been deleted meanwhile: it cannot go back on the shelf
+        assertTrue(shop.deleteProductType(shop.getProductTypeByBarCode(AcceptableReturnCommit.barCode(LINES - 1)).getId()));
+
+        assertFalse(shop.deleteSaleTransaction(sale));
+        assertEquals(9, (int) shop.getProductTypeByBarCode(AcceptableReturnCommit.barCode(0)).getQuantity());
+        assertEquals(9, quantityIn(shop.getAllProductTypes(), AcceptableReturnCommit.barCode(0)));
+        // still there, less the line of the deleted product the ticket cannot describe
+        assertEquals(LINES - 1, shop.getSaleTransaction(sale).getEntries().size());
+    }
+
+    @Test
+    public void paidSalesAreNotVoided() throws Exception
+    {
+        Integer sale = closedSale();
+        assertTrue(shop.receiveCashPayment(sale, 100_000.0) >= 0);
+        assertFalse(shop.deleteSaleTransaction(sale));
+        assertEquals(9, (int) shop.getProductTypeByBarCode(AcceptableReturnCommit.barCode(0)).getQuantity());
+    }
+}
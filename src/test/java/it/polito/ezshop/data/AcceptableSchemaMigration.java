@@ -0,0 +1,230 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AcceptableSchemaMigration {
+    // queries on the hot paths (RFID scans, sale lines, loyalty cards, balance ranges): none of them may scan a whole table
+    static final List<String> HOT_QUERIES = Arrays.asList(
+            "UPDATE idBlock SET next=next+? WHERE kind=?",
+            "UPDATE productRange SET sold=COALESCE(?, X'') WHERE first=?",
+            "SELECT RFID FROM productEntry WHERE transactionId=? AND RFID IS NOT NULL",
+            "SELECT id FROM customer WHERE loyaltyCardId=?",
+            "SELECT loyaltyCardId FROM customer WHERE loyaltyCardId=?",
+            "SELECT id, productCode, description, pricePerUnit, quantity, notes, position FROM productType WHERE productCode=?",
+            "SELECT amount, discountRate FROM productEntry WHERE transactionId=? AND barcode=?",
+            "SELECT PE.barcode AS barcode, PE.amount AS amount, PE.discountRate AS discountRate, PT.id AS productId, PT.pricePerUnit AS pricePerUnit, "
+                    + "RT.saleTransactionId AS saleTransactionId, ST.discountRate AS saleDiscountRate FROM returnTransaction RT "
+                    + "JOIN productEntry PE ON PE.transactionId=RT.id JOIN saleTransaction ST ON ST.id=RT.saleTransactionId "
+                    + "LEFT JOIN productType PT ON PT.productCode=PE.barcode WHERE RT.id=? AND RT.status='OPEN'",
+            "UPDATE productEntry SET amount=amount-? WHERE transactionId=? AND barcode=?",
+            "DELETE FROM productEntry WHERE transactionId=? AND amount=0 AND barcode IN (SELECT barcode FROM productEntry WHERE transactionId=?)",
+            "SELECT PT.id AS productId, SUM(PE.amount) AS amount FROM productEntry PE LEFT JOIN productType PT ON PT.productCode=PE.barcode WHERE PE.transactionId=? GROUP BY PE.barcode",
+            "UPDATE productType SET quantity=quantity+(SELECT SUM(PE.amount) FROM productEntry PE WHERE PE.transactionId=? AND PE.barcode=productType.productCode) "
+                    + "WHERE productCode IN (SELECT barcode FROM productEntry WHERE transactionId=?) AND position IS NOT NULL",
+            "SELECT id, productCode, description, pricePerUnit, quantity, notes, position FROM productType WHERE id > ? ORDER BY id LIMIT ?",
+            "SELECT id, productCode, pricePerUnit, quantity, status FROM 'order' WHERE id > ? ORDER BY id LIMIT ?",
+            "SELECT C.id AS id, customerName, loyaltyCardId, points FROM customer AS C LEFT JOIN loyaltyCard ON loyaltyCard.cardId=C.loyaltyCardId WHERE C.id > ? ORDER BY C.id LIMIT ?",
+            "SELECT id, password, role, username FROM user WHERE id > ? ORDER BY id LIMIT ?",
+            "SELECT PE.amount, PE.discountRate AS PEDiscountRate, PT.pricePerUnit, ST.discountRate AS saleDiscountRate, ST.status FROM productEntry PE,saleTransaction ST, productType PT WHERE ST.id=PE.transactionId AND ST.id=? AND PE.barcode=PT.productCode",
+            "SELECT id, date, money, type FROM balanceOperation WHERE date >= ? AND date <= ?",
+            "SELECT id, date, money, type FROM balanceOperation WHERE date <= ?",
+            "SELECT id, date, money, type FROM balanceOperation WHERE date >= ?"
+    );
+
+    Connection conn;
+
+    @Before
+    public void before() throws Exception
+    {
+        new EZShop();
+        conn = DriverManager.getConnection("jdbc:sqlite:" + System.getProperty("ezshop.db", "ezshop_db.sqlite"));
+    }
+
+    @After
+    public void after() throws Exception
+    {
+        conn.close();
+    }
+
+    @Test
+    public void schemaUpToDate() throws Exception
+    {
+        SchemaMigrator migrator = new SchemaMigrator();
+        assertEquals(migrator.getLatestVersion(), SchemaMigrator.getVersion(conn));
+        assertTrue(migrator.migrate(conn).isEmpty());
+    }
+
+    @Test
+    public void noFullScanOnHotQueries() throws Exception
+    {
+        try(Statement st = conn.createStatement()) {
+            for(String sql : HOT_QUERIES) {
+                try(ResultSet rs = st.executeQuery("EXPLAIN QUERY PLAN " + sql.replace("?", "NULL"))) {
+                    while(rs.next()) {
+                        String detail = rs.getString("detail");
+                        assertFalse(sql + " -> " + detail, detail.startsWith("SCAN"));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void productsCompactedIntoRanges() throws Exception
+    {
+        try(Connection mem = DriverManager.getConnection("jdbc:sqlite::memory:");
+            Statement st = mem.createStatement()) {
+            st.executeUpdate("CREATE TABLE product(RFID TEXT PRIMARY KEY, barcode TEXT)");
+            st.executeUpdate("CREATE TABLE productEntry(transactionId INTEGER, barcode TEXT, RFID TEXT)");
+            st.executeUpdate("CREATE TABLE saleTransaction(id INTEGER PRIMARY KEY)");
+            st.executeUpdate("CREATE TABLE returnTransaction(id INTEGER PRIMARY KEY, saleTransactionId INTEGER, status TEXT)");
+            st.executeUpdate("INSERT INTO product VALUES ('000000000010','A'),('000000000011','A'),('000000000012','A'),"
+                    + "('000000000013','B'),('000000000020','B'),('000000000021','B')");
+            st.executeUpdate("INSERT INTO saleTransaction VALUES (1)");
+            st.executeUpdate("INSERT INTO returnTransaction VALUES (2,1,'CLOSED'),(3,1,'OPEN')");
+            st.executeUpdate("INSERT INTO productEntry VALUES (1,'A','000000000011'),(1,'A','000000000012'),"
+                    + "(1,'B','000000000021'),(2,'A','000000000012'),(3,'B','000000000021')");
+            st.executeUpdate("PRAGMA user_version = 2");
+
+            // up to the id blocks, the fixture has no money tables
+            assertEquals(2, new SchemaMigrator(SchemaMigrator.MIGRATIONS.subList(0, 4)).migrate(mem).size());
+            try(ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM product")) {
+                assertEquals(0, rs.getInt(1));
+            }
+            try(ResultSet rs = st.executeQuery("SELECT first, length, barcode, sold FROM productRange ORDER BY first")) {
+                assertTrue(rs.next());
+                assertEquals(10, rs.getLong("first"));
+                assertEquals(3, rs.getInt("length"));
+                assertEquals("A", rs.getString("barcode"));
+                // 11 still sold, 12 returned
+                assertArrayEquals(new byte[]{0b10}, rs.getBytes("sold"));
+                assertTrue(rs.next());
+                assertEquals(13, rs.getLong("first"));
+                assertEquals(1, rs.getInt("length"));
+                assertEquals(0, rs.getBytes("sold").length);
+                assertTrue(rs.next());
+                assertEquals(20, rs.getLong("first"));
+                assertEquals(2, rs.getInt("length"));
+                // the return of 21 is still open
+                assertArrayEquals(new byte[]{0b10}, rs.getBytes("sold"));
+                assertFalse(rs.next());
+            }
+            // next ids above the existing ones, sales even and returns odd
+            try(ResultSet rs = st.executeQuery("SELECT kind, next FROM idBlock ORDER BY kind")) {
+                assertTrue(rs.next());
+                assertEquals(5, rs.getLong("next"));
+                assertTrue(rs.next());
+                assertEquals(2, rs.getLong("next"));
+            }
+        }
+    }
+
+    @Test
+    public void resoldItemsStaySold() throws Exception
+    {
+        try(Connection mem = DriverManager.getConnection("jdbc:sqlite::memory:");
+            Statement st = mem.createStatement()) {
+            st.executeUpdate("CREATE TABLE product(RFID TEXT PRIMARY KEY, barcode TEXT)");
+            st.executeUpdate("CREATE TABLE productEntry(transactionId INTEGER, barcode TEXT, RFID TEXT)");
+            st.executeUpdate("CREATE TABLE saleTransaction(id INTEGER PRIMARY KEY)");
+            st.executeUpdate("CREATE TABLE returnTransaction(id INTEGER PRIMARY KEY, saleTransactionId INTEGER, status TEXT)");
+            st.executeUpdate("INSERT INTO product VALUES ('000000000010','A'),('000000000011','A'),('000000000012','A')");
+            // return ids are lower than the sale they refer to, as they come from another sequence
+            st.executeUpdate("INSERT INTO saleTransaction VALUES (20),(40)");
+            st.executeUpdate("INSERT INTO returnTransaction VALUES (1,20,'PAYED'),(3,40,'CLOSED')");
+            // 10 sold, returned and sold again; 11 sold and returned; 12 sold, returned, sold and returned again
+            st.executeUpdate("INSERT INTO productEntry VALUES (20,'A','000000000010'),(1,'A','000000000010'),(40,'A','000000000010'),"
+                    + "(20,'A','000000000011'),(1,'A','000000000011'),"
+                    + "(20,'A','000000000012'),(1,'A','000000000012'),(40,'A','000000000012'),(3,'A','000000000012')");
+            st.executeUpdate("PRAGMA user_version = 2");
+
+            new SchemaMigrator(SchemaMigrator.MIGRATIONS.subList(0, 3)).migrate(mem);
+            try(ResultSet rs = st.executeQuery("SELECT first, length, sold FROM productRange")) {
+                assertTrue(rs.next());
+                assertEquals(10, rs.getLong("first"));
+                assertEquals(3, rs.getInt("length"));
+                assertArrayEquals(new byte[]{0b1}, rs.getBytes("sold"));
+                assertFalse(rs.next());
+            }
+        }
+    }
+
+    @Test
+    public void moneyConvertedToCents() throws Exception
+    {
+        try(Connection mem = DriverManager.getConnection("jdbc:sqlite::memory:");
+            Statement st = mem.createStatement()) {
+            st.executeUpdate("CREATE TABLE productType(id INTEGER PRIMARY KEY AUTOINCREMENT, productCode TEXT, description TEXT, "
+                    + "pricePerUnit REAL, quantity INTEGER, discountRate REAL, notes TEXT, position TEXT)");
+            st.executeUpdate("CREATE TABLE 'order'(id INTEGER PRIMARY KEY AUTOINCREMENT, productCode TEXT, pricePerUnit REAL, quantity INTEGER, status TEXT)");
+            st.executeUpdate("CREATE TABLE saleTransaction(id INTEGER PRIMARY KEY AUTOINCREMENT, discountRate REAL, status TEXT, total REAL)");
+            st.executeUpdate("CREATE TABLE returnTransaction(id INTEGER PRIMARY KEY AUTOINCREMENT, saleTransactionId INTEGER, discountRate REAL, status TEXT, total REAL)");
+            st.executeUpdate("CREATE TABLE productEntry(transactionId INTEGER, barcode TEXT, amount INTEGER, discountRate REAL, RFID TEXT)");
+            st.executeUpdate("CREATE TABLE creditCard(cardNumber TEXT PRIMARY KEY, balance REAL)");
+            st.executeUpdate("CREATE TABLE balanceOperation(id INTEGER PRIMARY KEY AUTOINCREMENT, date TEXT, money REAL, type TEXT)");
+            st.executeUpdate("CREATE TABLE balance(id INTEGER PRIMARY KEY, total REAL)");
+            st.executeUpdate("INSERT INTO productType VALUES (1,'2424242424239','Vino',19.99,3,0,'',NULL),(2,'123456789012','Pane',0.001,1,0,'',NULL)");
+            st.executeUpdate("INSERT INTO 'order' VALUES (1,'2424242424239',9.99,10,'PAYED')");
+            st.executeUpdate("INSERT INTO saleTransaction VALUES (2,0.15,'PAYED',50.974500000000006)");
+            st.executeUpdate("INSERT INTO productEntry VALUES (2,'2424242424239',2,0,NULL),(2,'2424242424239',1,0,'000000000010')");
+            st.executeUpdate("INSERT INTO returnTransaction VALUES (3,2,0.15,'PAYED',16.99)");
+            st.executeUpdate("INSERT INTO creditCard VALUES ('4485370086510891',150.0)");
+            st.executeUpdate("INSERT INTO balanceOperation VALUES (1,'0',-99.95,'DEBIT'),(2,'0',50.97,'CREDIT'),(4,'0',-16.99,'DEBIT')");
+            st.executeUpdate("DELETE FROM balanceOperation WHERE id=4");
+            st.executeUpdate("INSERT INTO balance VALUES (1,-48.980000000000004)");
+            st.executeUpdate("PRAGMA user_version = 4");
+
+            assertEquals(2, new SchemaMigrator().migrate(mem).size());
+            try(ResultSet rs = st.executeQuery("SELECT pricePerUnit, typeof(pricePerUnit) AS type FROM productType ORDER BY id")) {
+                assertTrue(rs.next());
+                assertEquals(1999, rs.getLong("pricePerUnit"));
+                assertEquals("integer", rs.getString("type"));
+                // a price cannot be rounded down to nothing
+                assertTrue(rs.next());
+                assertEquals(1, rs.getLong("pricePerUnit"));
+            }
+            try(ResultSet rs = st.executeQuery("SELECT (SELECT pricePerUnit FROM 'order') AS price, (SELECT total FROM saleTransaction) AS sale, "
+                    + "(SELECT total FROM returnTransaction) AS ret, (SELECT balance FROM creditCard) AS card, (SELECT total FROM balance) AS balance")) {
+                assertEquals(999, rs.getLong("price"));
+                assertEquals(5097, rs.getLong("sale"));
+                assertEquals(1699, rs.getLong("ret"));
+                assertEquals(15000, rs.getLong("card"));
+                assertEquals(-4898, rs.getLong("balance"));
+            }
+            // 3 x 19.99, the sale discount is on top of it
+            try(ResultSet rs = st.executeQuery("SELECT subtotal FROM saleTransaction WHERE id=2")) {
+                assertEquals(5997, rs.getLong("subtotal"));
+            }
+            // the triggers keep the balance in cents, and deleted ids are not handed out again
+            st.executeUpdate("INSERT INTO balanceOperation(date, money, type) VALUES ('0', 1, 'CREDIT')");
+            try(ResultSet rs = st.executeQuery("SELECT (SELECT MAX(id) FROM balanceOperation) AS id, (SELECT total FROM balance) AS balance")) {
+                assertEquals(5, rs.getInt("id"));
+                assertEquals(-4897, rs.getLong("balance"));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void migrationsOutOfOrder()
+    {
+        new SchemaMigrator(Collections.singletonList(SchemaMigrator.sql(2, "skips version 1", "SELECT 1")));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void databaseNewerThanApplication() throws Exception
+    {
+        new SchemaMigrator(Collections.emptyList()).migrate(conn);
+    }
+}
@@ -0,0 +1,145 @@
+package it.polito.ezshop.data;
+
+import it.polito.ezshop.exceptions.UnauthorizedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class AcceptableSession {
+    static final int TILLS = 4;
+    static final int SALES_PER_TILL = 10;
+
+    EZShop shop;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        for(int i = 0; i < TILLS; i++)
+            shop.createUser("cashier" + i,"12345","Cashier");
+        shop.login("admin","ciao");
+        Integer id = shop.createProductType("Vino","2424242424239",10.0,"Buono");
+        shop.updatePosition(id,"14-Boh-15");
+        shop.updateQuantity(id,TILLS * SALES_PER_TILL);
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    @Test
+    public void permissionsByRole()
+    {
+        assertEquals(3, Session.permissionsOf("Administrator").size());
+        assertTrue(Session.permissionsOf("ShopManager").contains(Session.Permission.MANAGE_SHOP));
+        assertFalse(Session.permissionsOf("ShopManager").contains(Session.Permission.ADMINISTER));
+        assertEquals(1, Session.permissionsOf("Cashier").size());
+        assertTrue(Session.permissionsOf("Guest").isEmpty());
+        assertTrue(Session.permissionsOf(null).isEmpty());
+
+        Session session = shop.getSession();
+        assertEquals("admin", session.getUsername());
+        assertThrows(UnsupportedOperationException.class, () -> session.getPermissions().remove(Session.Permission.ADMINISTER));
+    }
+
+    @Test
+    public void paymentsDoNotTouchTheRole() throws Exception
+    {
+        shop.logout();
+        User cashier = shop.login("cashier0","12345");
+        Session session = shop.getSession();
+        Integer sale = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(sale,"2424242424239",2));
+        assertTrue(shop.endSaleTransaction(sale));
+        assertEquals(0.0, shop.receiveCashPayment(sale,20.0), 1e-9);
+        Integer ret = shop.startReturnTransaction(sale);
+        assertTrue(shop.returnProduct(ret,"2424242424239",1));
+        assertTrue(shop.endReturnTransaction(ret,true));
+        assertEquals(10.0, shop.returnCashPayment(ret), 1e-9);
+
+        // the balance was recorded on behalf of the cashier, who still cannot do it directly
+        assertSame(session, shop.getSession());
+        assertEquals("Cashier", cashier.getRole());
+        assertThrows(UnauthorizedException.class, () -> shop.recordBalanceUpdate(1.0));
+        assertThrows(UnauthorizedException.class, () -> shop.computeBalance());
+        shop.logout();
+        shop.login("admin","ciao");
+        assertEquals(10.0, shop.computeBalance(), 1e-9);
+        assertEquals(TILLS * SALES_PER_TILL - 1, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+    }
+
+    @Test
+    public void oneLoginPerTill() throws Exception
+    {
+        EZShop till = new EZShop();
+        ExecutorService threads = Executors.newFixedThreadPool(TILLS);
+        try {
+            List<Future<User>> logins = new ArrayList<>();
+            for(int i = 0; i < TILLS; i++) {
+                String username = "cashier" + i;
+                logins.add(threads.submit(() -> till.login(username,"12345")));
+            }
+            int loggedIn = 0;
+            for(Future<User> f : logins)
+                if(f.get() != null)
+                    loggedIn++;
+            assertEquals(1, loggedIn);
+        } finally {
+            threads.shutdown();
+        }
+        assertTrue(till.logout());
+        assertFalse(till.logout());
+        // the other tills are not logged out
+        assertNotNull(shop.getSession());
+    }
+
+    @Test
+    public void tillsSellConcurrently() throws Exception
+    {
+        List<Callable<Double>> tills = new ArrayList<>();
+        for(int i = 0; i < TILLS; i++) {
+            String username = "cashier" + i;
+            tills.add(() -> {
+                EZShop till = new EZShop();
+                assertNotNull(till.login(username,"12345"));
+                double cashed = 0.0;
+                for(int s = 0; s < SALES_PER_TILL; s++) {
+                    Integer sale = till.startSaleTransaction();
+                    assertTrue(till.addProductToSale(sale,"2424242424239",1));
+                    assertTrue(till.endSaleTransaction(sale));
+                    assertTrue(till.receiveCashPayment(sale,10.0) >= 0);
+                    cashed += 10.0;
+                    assertEquals(username, till.getSession().getUsername());
+                }
+                till.logout();
+                return cashed;
+            });
+        }
+        ExecutorService threads = Executors.newFixedThreadPool(TILLS);
+        double cashed = 0.0;
+        try {
+            for(Future<Double> f : threads.invokeAll(tills))
+                cashed += f.get();
+        } finally {
+            threads.shutdown();
+        }
+        assertEquals(TILLS * SALES_PER_TILL * 10.0, cashed, 1e-9);
+        assertEquals(cashed, shop.computeBalance(), 1e-9);
+        assertEquals(0, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+        assertEquals("admin", shop.getSession().getUsername());
+    }
+}
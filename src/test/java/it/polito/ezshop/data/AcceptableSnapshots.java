@@ -0,0 +1,252 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AcceptableSnapshots {
+    ConnectionPool pool;
+    Listing<String> listing;
+
+    @Before
+    public void before() throws Exception
+    {
+        pool = new ConnectionPool("jdbc:sqlite::memory:", 1);
+        Connection conn = pool.begin();
+        try(Statement st = conn.createStatement()) {
+            st.executeUpdate("CREATE TABLE item(id INTEGER PRIMARY KEY, name TEXT)");
+            st.executeUpdate("INSERT INTO item VALUES (1, 'a'), (2, 'b')");
+        } finally {
+            pool.release();
+        }
+        listing = new Listing<>(pool, "SELECT id, name FROM item", "id", rs -> rs.getInt("id") + rs.getString("name"),
+                s -> Integer.valueOf(s.substring(0, s.length() - 1)));
+    }
+
+    @After
+    public void after()
+    {
+        pool.close();
+    }
+
+    void insert(int id, String name) throws Exception
+    {
+        Connection conn = pool.begin();
+        try(Statement st = conn.createStatement()) {
+            st.executeUpdate("INSERT INTO item VALUES (" + id + ", '" + name + "')");
+            listing.refresh(conn, id);
+        } finally {
+            pool.release();
+        }
+    }
+
+    @Test
+    public void oneVersionPerUnitOfWork() throws Exception
+    {
+        Snapshot<String> first = listing.getSnapshot();
+        assertSame(first, listing.getSnapshot());
+
+        Connection conn = pool.begin();
+        try(Statement st = conn.createStatement()) {
+            st.executeUpdate("INSERT INTO item VALUES (3, 'c'), (4, 'd')");
+            listing.refresh(conn, 3);
+            listing.refresh(conn, 4);
+            listing.patch(1, s -> "1z");
+            // nothing of it until the commit
+            assertSame(first, listing.getSnapshot());
+        } finally {
+            pool.release();
+        }
+        Snapshot<String> second = listing.getSnapshot();
+        assertEquals(first.getVersion() + 1, second.getVersion());
+        assertEquals(4, second.size());
+        assertEquals("1z", second.get(0));
+        // the old version is as it was
+        assertEquals("1a", first.get(0));
+        assertEquals(2, first.size());
+    }
+
+    @Test
+    public void publishedAtOnceOutsideAUnitOfWork() throws Exception
+    {
+        long version = listing.getSnapshot().getVersion();
+        listing.patch(2, s -> "2y");
+        assertEquals(version + 1, listing.getSnapshot().getVersion());
+        assertEquals("2y", listing.getSnapshot().get(1));
+    }
+
+    @Test
+    public void builtOnceForARunOfWrites() throws Exception
+    {
+        Snapshot<String> first = listing.getSnapshot();
+        listing.patch(1, s -> "1x");
+        listing.patch(2, s -> "2x");
+        listing.patch(1, s -> "1y");
+        Snapshot<String> last = listing.getSnapshot();
+        // one Snapshot, of the last version only
+        assertEquals(first.getVersion() + 3, last.getVersion());
+        assertEquals(Arrays.asList("1y", "2x"), last);
+        assertSame(last, listing.getSnapshot());
+        assertTrue(last instanceof RandomAccess);
+    }
+
+    @Test
+    public void readersSeeWholeVersions() throws Exception
+    {
+        listing.getSnapshot();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for(int r = 0; r < 3; r++) {
+            Thread reader = new Thread(() -> {
+                long last = 0;
+                try {
+                    while(!done.get()) {
+                        Snapshot<String> s = listing.getSnapshot();
+                        if(s.getVersion() < last)
+                            failure.set("version went back");
+                        last = s.getVersion();
+                        // every unit of work adds two rows
+                        if(s.size() % 2 != 0)
+                            failure.set("half a unit of work: " + s);
+                        int count = 0;
+                        for(String item : s)
+                            count += item.isEmpty() ? 0 : 1;
+                        if(count != s.size())
+                            failure.set("changed while iterating");
+                    }
+                } catch(Exception e) {
+                    failure.set(e.toString());
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        for(int i = 0; i < 200; i++) {
+            Connection conn = pool.begin();
+            try(Statement st = conn.createStatement()) {
+                int id = 10 + 2 * i;
+                st.executeUpdate("INSERT INTO item VALUES (" + id + ", 'x'), (" + (id + 1) + ", 'y')");
+                listing.refresh(conn, id);
+                listing.refresh(conn, id + 1);
+            } finally {
+                pool.release();
+            }
+        }
+        done.set(true);
+        for(Thread reader : readers)
+            reader.join();
+        assertNull(failure.get());
+        assertEquals(402, listing.getSnapshot().size());
+    }
+
+    @Test
+    public void rollbackDropsTheListing() throws Exception
+    {
+        Snapshot<String> first = listing.getSnapshot();
+        Connection conn = pool.begin();
+        try {
+            listing.patch(1, s -> "1z");
+            pool.setRollbackOnly();
+        } finally {
+            pool.release();
+        }
+        Snapshot<String> reloaded = listing.getSnapshot();
+        assertEquals("1a", reloaded.get(0));
+        assertTrue(reloaded.getVersion() > first.getVersion());
+        insert(5, "e");
+        assertEquals(3, listing.getSnapshot().size());
+    }
+
+    List<String> delayedCommit(boolean laterWriterCommitsFirst) throws Exception
+    {
+        File db = File.createTempFile("ezshop_snapshots", ".sqlite");
+        db.deleteOnExit();
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + db.getAbsolutePath(), 2);
+        CountDownLatch committed = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        AtomicReference<Thread> delayed = new AtomicReference<>();
+        // runs before the listing publishes: holds the first writer between its COMMIT and its publish
+        pool.addCommitListener(() -> {
+            if(Thread.currentThread() != delayed.get())
+                return;
+            committed.countDown();
+            try {
+                resume.await();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            Connection conn = pool.begin();
+            try(Statement st = conn.createStatement()) {
+                st.executeUpdate("CREATE TABLE item(id INTEGER PRIMARY KEY, name TEXT)");
+                st.executeUpdate("INSERT INTO item VALUES (1, 'a'), (2, 'b')");
+            } finally {
+                pool.release();
+            }
+            Listing<String> listing = new Listing<>(pool, "SELECT id, name FROM item", "id", rs -> rs.getInt("id") + rs.getString("name"),
+                    s -> Integer.valueOf(s.substring(0, s.length() - 1)));
+            listing.getSnapshot();
+
+            Thread first = new Thread(() -> {
+                pool.begin();
+                try {
+                    listing.patch(1, s -> "1x");
+                } finally {
+                    pool.release();
+                }
+            });
+            delayed.set(first);
+            first.start();
+            committed.await();
+
+            // the second writer starts once the first has committed, from what it wrote
+            pool.begin();
+            try {
+                listing.patch(1, s -> s + "y");
+                listing.patch(2, s -> "2y");
+                if(!laterWriterCommitsFirst) {
+                    resume.countDown();
+                    first.join();
+                    // the first version, without what is not committed yet
+                    assertEquals(Arrays.asList("1x", "2b"), listing.getSnapshot());
+                }
+            } finally {
+                pool.release();
+            }
+            resume.countDown();
+            first.join();
+            return listing.getSnapshot();
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void publishedInCommitOrder() throws Exception
+    {
+        assertEquals(Arrays.asList("1xy", "2y"), delayedCommit(false));
+        // the first writer publishes last: its entry is older than the one already published
+        assertEquals(Arrays.asList("1xy", "2y"), delayedCommit(true));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void snapshotsCannotBeChanged() throws Exception
+    {
+        listing.getSnapshot().subList(0, 1).clear();
+    }
+}
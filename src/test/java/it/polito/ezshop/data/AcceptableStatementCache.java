@@ -0,0 +1,108 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+public class AcceptableStatementCache {
+    EZShop shop;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    @Test
+    public void statementPreparedOnce() throws Exception
+    {
+        String sql = "INSERT INTO saleTransaction (id, discountRate, total, status) VALUES (?,0.0,0.0,'OPEN')";
+        shop.getStatementStats().clear();
+
+        for(int i = 0; i < 5; i++)
+            assertTrue(shop.startSaleTransaction() > 0);
+
+        StatementStats.Entry entry = shop.getStatementStats().get(sql);
+        assertNotNull(entry);
+        assertTrue(entry.getPrepares() <= 1);
+        assertEquals(5, entry.getPrepares() + entry.getHits());
+        assertEquals(5, entry.getExecutions());
+        assertTrue(entry.getTotalNanos() > 0);
+    }
+
+    @Test
+    public void cursorsClosedAfterOperation() throws Exception
+    {
+        Integer idProduct = shop.createProductType("Vino","2424242424239",10.0,"Buono");
+        assertNotNull(shop.getProductTypeByBarCode("2424242424239"));
+        // a second session must see the write of the first one and be able to write after its read
+        EZShop other = new EZShop();
+        other.login("admin","ciao");
+        assertTrue(other.updatePosition(idProduct,"14-Boh-15"));
+        assertEquals("14-Boh-15", shop.getProductTypeByBarCode("2424242424239").getLocation());
+        other.logout();
+    }
+
+    @Test
+    public void cursorStillReadIsLeftAlone() throws Exception
+    {
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite::memory:", 1);
+        String sql = "SELECT id FROM item ORDER BY id";
+        Connection conn = pool.begin();
+        try(Statement st = conn.createStatement()) {
+            st.executeUpdate("CREATE TABLE item(id INTEGER PRIMARY KEY)");
+            st.executeUpdate("INSERT INTO item VALUES (1), (2), (3)");
+            ResultSet outer = conn.prepareStatement(sql).executeQuery();
+            assertTrue(outer.next());
+            // the same query again while the first cursor is read, as a nested call would
+            ResultSet inner = conn.prepareStatement(sql).executeQuery();
+            int rows = 0;
+            while(inner.next())
+                rows++;
+            assertEquals(3, rows);
+            assertTrue(outer.next());
+            assertEquals(2, outer.getInt("id"));
+            assertTrue(outer.next());
+            assertFalse(outer.next());
+        } finally {
+            pool.release();
+        }
+        StatementStats.Entry entry = pool.getStatementStats().get(sql);
+        assertEquals(2, entry.getPrepares());
+
+        // the cached one is back once the cursors are done with
+        conn = pool.acquire();
+        try {
+            assertTrue(conn.prepareStatement(sql).executeQuery().next());
+        } finally {
+            pool.release();
+        }
+        assertEquals(2, entry.getPrepares());
+        assertEquals(1, entry.getHits());
+        pool.close();
+    }
+
+    @Test
+    public void report() throws Exception
+    {
+        shop.getAllUsers();
+        String report = shop.getStatementStats().toString();
+        assertTrue(report.contains("SELECT id, password, role, username FROM user"));
+    }
+}
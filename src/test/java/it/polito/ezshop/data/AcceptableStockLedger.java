@@ -0,0 +1,96 @@
+package it.polito.ezshop.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class AcceptableStockLedger {
+    @Test
+    public void reservationsLifecycle()
+    {
+        StockLedger ledger = new StockLedger();
+        ledger.setOnHand(1, 10);
+        assertTrue(ledger.reserve(1, 7));
+        assertFalse(ledger.reserve(1, 4));
+        assertEquals(3, ledger.getAvailable(1));
+        // the reserved units cannot be taken off the shelf
+        assertFalse(ledger.adjust(1, -4));
+        assertTrue(ledger.adjust(1, -3));
+        assertEquals(0, ledger.getAvailable(1));
+
+        ledger.commit(1, 5);
+        assertEquals(2, ledger.getReserved(1));
+        assertEquals(0, ledger.getAvailable(1));
+        ledger.release(1, 2);
+        assertEquals(0, ledger.getReserved(1));
+        assertEquals(2, ledger.getAvailable(1));
+
+        // a reload from the database keeps the reservations
+        assertTrue(ledger.reserve(1, 1));
+        ledger.setOnHand(1, 5);
+        assertEquals(1, ledger.getReserved(1));
+        assertEquals(4, ledger.getAvailable(1));
+
+        assertFalse(ledger.reserve(2, 1));
+        ledger.release(2, 1);
+        assertEquals(0, ledger.getReserved(2));
+    }
+
+    @Test
+    public void removedWhileReserved()
+    {
+        StockLedger ledger = new StockLedger();
+        ledger.setOnHand(1, 10);
+        ledger.setOnHand(2, 10);
+        assertTrue(ledger.reserve(1, 3));
+        ledger.remove(1);
+        ledger.remove(2);
+        assertEquals(3, ledger.getReserved(1));
+        assertFalse(ledger.reserve(1, 1));
+        ledger.release(1, 3);
+        assertEquals(0, ledger.getReserved(1));
+        assertEquals(0, ledger.getAvailable(2));
+    }
+
+    @Test
+    public void hotProductNeverOversold() throws Exception
+    {
+        StockLedger ledger = new StockLedger();
+        ledger.setOnHand(1, 1000);
+        ledger.setOnHand(2, 1000);
+        List<Callable<Integer>> tills = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            tills.add(() -> {
+                int taken = 0;
+                for(int i = 0; i < 1000; i++) {
+                    // the neighbour product is scanned and put back meanwhile
+                    if(ledger.reserve(2, 1))
+                        ledger.release(2, 1);
+                    if(ledger.reserve(1, 1))
+                        taken++;
+                }
+                return taken;
+            });
+        }
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        int taken = 0;
+        try {
+            for(Future<Integer> f : threads.invokeAll(tills))
+                taken += f.get();
+        } finally {
+            threads.shutdown();
+        }
+        assertEquals(1000, taken);
+        assertEquals(1000, ledger.getReserved(1));
+        assertEquals(0, ledger.getAvailable(1));
+        assertEquals(0, ledger.getReserved(2));
+        assertEquals(1000, ledger.getAvailable(2));
+    }
+}
@@ -0,0 +1,167 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AcceptableTicketCache {
+    EZShop shop;
+    TicketCache tickets;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+        Integer id = shop.createProductType("Vino","2424242424239",10.0,"Buono");
+        shop.updatePosition(id,"14-Boh-15");
+        shop.updateQuantity(id,100);
+        id = shop.createProductType("Pane","123456789012",2.5,"");
+        shop.updatePosition(id,"14-Boh-16");
+        shop.updateQuantity(id,100);
+        tickets = shop.getTicketCache();
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    Integer paidSale(int units) throws Exception
+    {
+        Integer sale = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(sale,"2424242424239",units));
+        assertTrue(shop.addProductToSale(sale,"123456789012",1));
+        assertTrue(shop.endSaleTransaction(sale));
+        assertTrue(shop.receiveCashPayment(sale,1000.0) >= 0);
+        return sale;
+    }
+
+    int amountOf(SaleTransaction sale, String barCode)
+    {
+        for(TicketEntry e : sale.getEntries())
+            if(e.getBarCode().equals(barCode))
+                return e.getAmount();
+        return 0;
+    }
+
+    @Test
+    public void servedFromMemoryAsCopies() throws Exception
+    {
+        Integer sale = paidSale(3);
+        long hits = tickets.getHits();
+        SaleTransaction ticket = shop.getSaleTransaction(sale);
+        shop.getStatementStats().clear();
+        for(int i = 0; i < 10; i++)
+            assertEquals(32.5, shop.getSaleTransaction(sale).getPrice(), 0.0);
+        assertEquals(hits + 10, tickets.getHits());
+        for(StatementStats.Entry e : shop.getStatementStats().getEntries())
+            assertEquals(e.getSql(), 0, e.getExecutions());
+        assertTrue(tickets.getHitRate() > 0.0);
+
+        // what the caller does with its copy does not reach the cache
+        ticket.getEntries().clear();
+        ticket.setPrice(0.0);
+        assertEquals(2, shop.getSaleTransaction(sale).getEntries().size());
+        assertEquals(32.5, shop.getSaleTransaction(sale).getPrice(), 0.0);
+        assertNull(shop.getSaleTransaction(sale + 2));
+    }
+
+    @Test
+    public void returnInvalidatesItsSaleOnly() throws Exception
+    {
+        Integer sale = paidSale(3);
+        Integer other = paidSale(5);
+        shop.getSaleTransaction(sale);
+        shop.getSaleTransaction(other);
+        assertEquals(2, tickets.size());
+
+        Integer ret = shop.startReturnTransaction(sale);
+        long misses = tickets.getMisses();
+        assertTrue(shop.returnProduct(ret,"2424242424239",1));
+        assertTrue(shop.returnProduct(ret,"2424242424239",1));
+        assertFalse(shop.returnProduct(ret,"2424242424239",4));
+        // the return reads the ticket from memory
+        assertEquals(misses, tickets.getMisses());
+        assertEquals(2, tickets.size());
+
+        assertTrue(shop.endReturnTransaction(ret,true));
+        assertEquals(1, tickets.size());
+        assertEquals(1, amountOf(shop.getSaleTransaction(sale), "2424242424239"));
+        assertEquals(5, amountOf(shop.getSaleTransaction(other), "2424242424239"));
+    }
+
+    @Test
+    public void rolledBackReturnKeepsTicket() throws Exception
+    {
+        Integer sale = paidSale(3);
+        Integer ret = shop.startReturnTransaction(sale);
+        assertTrue(shop.returnProduct(ret,"2424242424239",2));
+        assertTrue(shop.endReturnTransaction(ret,false));
+        assertEquals(3, amountOf(shop.getSaleTransaction(sale), "2424242424239"));
+    }
+
+    @Test
+    public void discountAndProductChangesInvalidate() throws Exception
+    {
+        Integer sale = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(sale,"2424242424239",2));
+        assertTrue(shop.endSaleTransaction(sale));
+        assertEquals(20.0, shop.getSaleTransaction(sale).getPrice(), 0.0);
+        assertTrue(shop.applyDiscountRateToSale(sale,0.5));
+        assertEquals(10.0, shop.getSaleTransaction(sale).getPrice(), 0.0);
+
+        Integer id = shop.getProductTypeByBarCode("2424242424239").getId();
+        assertTrue(shop.updateProduct(id,"Vino rosso","2424242424239",12.0,"Buono"));
+        assertEquals(0, tickets.size());
+        assertEquals("Vino rosso", shop.getSaleTransaction(sale).getEntries().get(0).getProductDescription());
+    }
+
+    @Test
+    public void boundedByLines()
+    {
+        TicketCache cache = new TicketCache(new ConnectionPool("jdbc:sqlite::memory:", 1), 10);
+        for(int id = 2; id <= 8; id += 2)
+            cache.put(ticket(id, 3), cache.stamp());
+        // 4 tickets of 3 lines weigh 16: the least recently used go first
+        assertEquals(2, cache.size());
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(6));
+        cache.put(ticket(10, 1), cache.stamp());
+        assertEquals(10, cache.getWeight());
+        cache.put(ticket(12, 1), cache.stamp());
+        assertNotNull(cache.get(6));
+        assertNull(cache.get(8));
+        assertEquals(8, cache.getWeight());
+    }
+
+    @Test
+    public void staleReadNotCached()
+    {
+        TicketCache cache = new TicketCache(new ConnectionPool("jdbc:sqlite::memory:", 1));
+        long stamp = cache.stamp();
+        // a writer invalidates the ticket while a reader was materializing it
+        cache.invalidate(2);
+        cache.put(ticket(2, 1), stamp);
+        assertNull(cache.get(2));
+        cache.put(ticket(2, 1), cache.stamp());
+        assertNotNull(cache.get(2));
+    }
+
+    static MySaleTransaction ticket(int id, int lines)
+    {
+        List<TicketEntry> entries = new ArrayList<>();
+        for(int i = 0; i < lines; i++)
+            entries.add(MyTicketEntry.ofCents("2424242424239", "Vino", 1, 1000, 0.0));
+        return MySaleTransaction.ofCents(id, entries, 0.0, 1000L * lines);
+    }
+}
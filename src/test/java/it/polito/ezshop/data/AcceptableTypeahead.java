@@ -0,0 +1,126 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AcceptableTypeahead {
+    EZShop shop;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    List<String> descriptions(List<ProductSuggestion> suggestions)
+    {
+        List<String> list = new ArrayList<>();
+        for(ProductSuggestion s : suggestions)
+            list.add(s.getDescription());
+        return list;
+    }
+
+    @Test
+    public void prefixesInOrder() throws Exception
+    {
+        shop.createProductType("Pane integrale", AcceptableReturnCommit.barCode(1), 1.0, "");
+        shop.createProductType("pasta", AcceptableReturnCommit.barCode(2), 1.0, "");
+        shop.createProductType("Panettone", AcceptableReturnCommit.barCode(3), 1.0, "");
+        shop.createProductType("Latte", AcceptableReturnCommit.barCode(4), 1.0, "");
+        shop.createProductType("Pane", AcceptableReturnCommit.barCode(5), 1.0, "");
+
+        assertEquals(Arrays.asList("Pane", "Pane integrale", "Panettone", "pasta"), descriptions(shop.suggestProductTypes("pa", 10)));
+        assertEquals(Arrays.asList("Pane", "Pane integrale"), descriptions(shop.suggestProductTypes("PANE", 2)));
+        assertEquals(Arrays.asList("Latte"), descriptions(shop.suggestProductTypes("l", 10)));
+        // not a prefix
+        assertTrue(shop.suggestProductTypes("tone", 10).isEmpty());
+        assertTrue(shop.suggestProductTypes("", 10).isEmpty());
+        assertTrue(shop.suggestProductTypes(null, 10).isEmpty());
+        assertTrue(shop.suggestProductTypes("pa", 0).isEmpty());
+    }
+
+    @Test
+    public void barCodesFirst() throws Exception
+    {
+        shop.createProductType("800 grammi", "2424242424239", 1.0, "");
+        for(int i = 0; i < 5; i++)
+            shop.createProductType("prodotto " + i, AcceptableReturnCommit.barCode(i), 1.0, "");
+
+        List<ProductSuggestion> found = shop.suggestProductTypes("800", 3);
+        assertEquals(3, found.size());
+        assertEquals(AcceptableReturnCommit.barCode(0), found.get(0).getBarCode());
+        assertEquals(AcceptableReturnCommit.barCode(2), found.get(2).getBarCode());
+        // the description that starts with the digits comes after the barcodes, once
+        assertEquals("800 grammi", shop.suggestProductTypes("800", 10).get(5).getDescription());
+        assertEquals(6, shop.suggestProductTypes("800", 10).size());
+        assertEquals(1, shop.suggestProductTypes("2424", 10).size());
+    }
+
+    @Test
+    public void followsTheCatalog() throws Exception
+    {
+        Integer vino = shop.createProductType("Vino rosso", "2424242424239", 10.0, "");
+        assertEquals(1, shop.suggestProductTypes("vino", 5).size());
+
+        assertTrue(shop.updateProduct(vino, "Birra", "123456789012", 10.0, ""));
+        assertTrue(shop.suggestProductTypes("vino", 5).isEmpty());
+        assertTrue(shop.suggestProductTypes("2424", 5).isEmpty());
+        assertEquals(vino.intValue(), shop.suggestProductTypes("1234", 5).get(0).getId());
+        assertEquals("Birra", shop.suggestProductTypes("bir", 5).get(0).getDescription());
+
+        assertTrue(shop.deleteProductType(vino));
+        assertTrue(shop.suggestProductTypes("bir", 5).isEmpty());
+        assertTrue(shop.suggestProductTypes("1234", 5).isEmpty());
+    }
+
+    @Test
+    public void answeredFromMemory() throws Exception
+    {
+        for(int i = 0; i < 50; i++)
+            shop.createProductType("prodotto " + i, AcceptableReturnCommit.barCode(i), 1.0, "");
+        // loaded in one go
+        shop.getProductCatalog().invalidate();
+        assertEquals(10, shop.suggestProductTypes("prodotto", 10).size());
+        shop.getStatementStats().clear();
+        for(String typed : Arrays.asList("p", "pr", "pro", "prod", "prodotto 4"))
+            assertFalse(shop.suggestProductTypes(typed, 10).isEmpty());
+        assertEquals(11, shop.suggestProductTypes("prodotto 4", 20).size());
+        for(StatementStats.Entry e : shop.getStatementStats().getEntries())
+            assertEquals(e.getSql(), 0, e.getExecutions());
+    }
+
+    @Test
+    public void sortedInPlace()
+    {
+        PrefixIndex index = new PrefixIndex();
+        index.add("b", 2);
+        index.add("a", 1);
+        index.add("ab", 3);
+        index.add("ab", 3);
+        assertEquals(3, index.size());
+        int[] found = new int[2];
+        assertEquals(2, index.first("a", found));
+        assertArrayEquals(new int[]{1, 3}, found);
+        index.remove("a", 1);
+        assertEquals(1, index.first("a", found));
+        assertEquals(3, found[0]);
+        assertEquals(0, index.first("c", found));
+    }
+}
@@ -0,0 +1,120 @@
+package it.polito.ezshop.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+public class AcceptableUnitOfWork {
+    EZShop shop;
+    Integer idProduct;
+
+    @Before
+    public void before() throws Exception
+    {
+        shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin","ciao","Administrator");
+        shop.login("admin","ciao");
+        idProduct = shop.createProductType("Vino","2424242424239",10.0,"Buono");
+        shop.updatePosition(idProduct,"14-Boh-15");
+        shop.updateQuantity(idProduct,70);
+    }
+
+    @After
+    public void after()
+    {
+        shop.logout();
+        shop.reset();
+    }
+
+    @Test
+    public void oneCommitPerOperation() throws Exception
+    {
+        Integer id = shop.startSaleTransaction();
+        long commits = shop.getCommitCount();
+        // the open cart is in memory
+        assertTrue(shop.addProductToSale(id,"2424242424239",2));
+        assertEquals(commits, shop.getCommitCount());
+        // product entries, stock decrease and status change
+        assertTrue(shop.endSaleTransaction(id));
+        assertEquals(commits + 1, shop.getCommitCount());
+        // balance update and status change
+        assertEquals(80.0, shop.receiveCashPayment(id,100.0), 0.0);
+        assertEquals(commits + 2, shop.getCommitCount());
+        assertEquals(20.0, shop.computeBalance(), 0.0);
+    }
+
+    @Test
+    public void failedOperationRolledBack() throws Exception
+    {
+        shop.recordBalanceUpdate(1000.0);
+        Integer idOrder = shop.issueOrder("2424242424239",10,1.0);
+        assertTrue(shop.payOrder(idOrder));
+        assertTrue(shop.recordOrderArrivalRFID(idOrder,"000000001000"));
+        assertEquals(80, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+
+        Integer id = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSaleRFID(id,"000000001000"));
+        assertEquals(79, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+        // the second insert of the same RFID fails: the stock decrease must be undone with it
+        assertFalse(shop.addProductToSaleRFID(id,"000000001000"));
+        assertEquals(79, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+    }
+
+    String statusOf(Integer orderId) throws Exception
+    {
+        for(Order o : shop.getAllOrders())
+            if(o.getOrderId().equals(orderId))
+                return o.getStatus();
+        return null;
+    }
+
+    @Test
+    public void failedNestedCallFailsTheOperation() throws Exception
+    {
+        shop.recordBalanceUpdate(1000.0);
+        Integer idOrder = shop.issueOrder("2424242424239",10,1.0);
+        assertTrue(shop.payOrder(idOrder));
+        // the product has lost its location behind the catalog: the stock update inside the arrival fails
+        try(Connection conn = DriverManager.getConnection("jdbc:sqlite:" + System.getProperty("ezshop.db", "ezshop_db.sqlite"));
+            Statement st = conn.createStatement()) {
+            st.executeUpdate("UPDATE productType SET position=NULL WHERE productCode='2424242424239'");
+        }
+        assertFalse(shop.recordOrderArrival(idOrder));
+        assertEquals("PAYED", statusOf(idOrder));
+        assertTrue(shop.updatePosition(idProduct,"14-Boh-15"));
+        assertTrue(shop.recordOrderArrival(idOrder));
+        assertEquals("COMPLETED", statusOf(idOrder));
+        assertEquals(80, (int) shop.getProductTypeByBarCode("2424242424239").getQuantity());
+
+        Integer id = shop.startSaleTransaction();
+        assertTrue(shop.addProductToSale(id,"2424242424239",2));
+        assertTrue(shop.endSaleTransaction(id));
+        assertEquals(0.0, shop.receiveCashPayment(id,20.0), 0.0);
+        Integer ret = shop.startReturnTransaction(id);
+        assertTrue(shop.returnProduct(ret,"2424242424239",2));
+        assertTrue(shop.endReturnTransaction(ret,true));
+        // the till cannot give back what it does not hold: the return stays to be paid
+        assertTrue(shop.recordBalanceUpdate(-shop.computeBalance()));
+        assertEquals(-1.0, shop.returnCashPayment(ret), 0.0);
+        assertTrue(shop.recordBalanceUpdate(20.0));
+        assertEquals(20.0, shop.returnCashPayment(ret), 0.0);
+        assertEquals(0.0, shop.computeBalance(), 0.0);
+    }
+
+    @Test
+    public void readOnlyOperationsDoNotCommit() throws Exception
+    {
+        long commits = shop.getCommitCount();
+        shop.getAllProductTypes();
+        shop.getProductTypeByBarCode("2424242424239");
+        shop.computeBalance();
+        assertEquals(commits, shop.getCommitCount());
+    }
+}
@@ -0,0 +1,79 @@
+package it.polito.ezshop.data;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Time to scan a 200-tag basket read by an RFID tunnel: one addProductsToSaleRFID call against 200
+// addProductToSaleRFID calls, and the endSaleTransaction that writes the basket.
+// Not a unit test: run its main() after mvn test-compile. It works on a copy of ezshop_db.sqlite,
+// the original database is not touched.
+public class BasketScanBenchmark {
+    private static final int TAGS_PER_BASKET = 200;
+    private static final int BASKETS = 200;
+    private static final String[] BARCODES = {"2424242424239", "4006381333931", "8001120895479", "9788804668237", "5901234123457"};
+    private static final long FIRST_TAG = 100_000_000_000L;
+    private static final int TAGS_PER_PRODUCT = 2 * TAGS_PER_BASKET * BASKETS / 5 + 1000;
+
+    public static void main(String[] args) throws Exception {
+        File db = File.createTempFile("ezshop_bench", ".sqlite");
+        db.deleteOnExit();
+        new File(db.getPath() + "-carts").deleteOnExit();
+        Files.copy(new File("ezshop_db.sqlite").toPath(), db.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.setProperty("ezshop.db", db.getAbsolutePath());
+
+        EZShop shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin", "admin", "Administrator");
+        shop.login("admin", "admin");
+        shop.recordBalanceUpdate(1_000_000_000.0);
+        for(int i = 0; i < BARCODES.length; i++) {
+            Integer id = shop.createProductType("product " + i, BARCODES[i], 1.0 + i, "");
+            shop.updatePosition(id, (i + 1) + "-A-1");
+            Integer order = shop.issueOrder(BARCODES[i], TAGS_PER_PRODUCT, 0.1);
+            shop.payOrder(order);
+            shop.recordOrderArrivalRFID(order, RfidIndex.format(FIRST_TAG + (long) i * TAGS_PER_PRODUCT));
+        }
+
+        // every basket takes fresh items, 40 of each product
+        int next = 0;
+        double bulkMs = 0, singleMs = 0, bulkEndMs = 0, singleEndMs = 0;
+        for(int round = 0; round < BASKETS; round++) {
+            for(boolean bulk : new boolean[]{true, false}) {
+                List<String> basket = new ArrayList<>();
+                for(int i = 0; i < TAGS_PER_BASKET; i++)
+                    basket.add(RfidIndex.format(FIRST_TAG + (long) (i % 5) * TAGS_PER_PRODUCT + next + i / 5));
+                next += TAGS_PER_BASKET / 5;
+
+                Integer id = shop.startSaleTransaction();
+                long start = System.nanoTime();
+                if(bulk)
+                    shop.addProductsToSaleRFID(id, basket);
+                else
+                    for(String rfid : basket)
+                        shop.addProductToSaleRFID(id, rfid);
+                long scanned = System.nanoTime();
+                if(!shop.endSaleTransaction(id))
+                    throw new IllegalStateException("basket " + round + " not written");
+                long ended = System.nanoTime();
+                // the first rounds warm up the JIT
+                if(round < BASKETS / 4)
+                    continue;
+                if(bulk) {
+                    bulkMs += (scanned - start) / 1e6;
+                    bulkEndMs += (ended - scanned) / 1e6;
+                } else {
+                    singleMs += (scanned - start) / 1e6;
+                    singleEndMs += (ended - scanned) / 1e6;
+                }
+            }
+        }
+        int measured = BASKETS - BASKETS / 4;
+        System.out.println("api\tscan ms/basket\tend ms/basket");
+        System.out.printf("addProductsToSaleRFID\t%.2f\t%.2f%n", bulkMs / measured, bulkEndMs / measured);
+        System.out.printf("addProductToSaleRFID x%d\t%.2f\t%.2f%n", TAGS_PER_BASKET, singleMs / measured, singleEndMs / measured);
+        shop.logout();
+    }
+}
@@ -0,0 +1,107 @@
+package it.polito.ezshop.data;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Checkout throughput with 1..N tills working concurrently, each till with its own EZShop session,
+// with every statement autocommitted and with one unit of work per operation.
+// Not a unit test: run its main() after mvn test-compile. It works on a copy of ezshop_db.sqlite,
+// the original database is not touched.
+public class CheckoutThroughputBenchmark {
+    private static final int[] TILLS = {1, 2, 4, 8};
+    private static final long DURATION_MS = 3000;
+    private static final int LINES_PER_SALE = 5;
+    private static final String[] BARCODES = {"2424242424239", "4006381333931", "8001120895479", "9788804668237", "5901234123457"};
+
+    public static void main(String[] args) throws Exception {
+        File db = File.createTempFile("ezshop_bench", ".sqlite");
+        db.deleteOnExit();
+        new File(db.getPath() + "-carts").deleteOnExit();
+        Files.copy(new File("ezshop_db.sqlite").toPath(), db.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.setProperty("ezshop.db", db.getAbsolutePath());
+
+        EZShop admin = new EZShop();
+        admin.reset();
+        admin.createUser("admin", "admin", "Administrator");
+        for(int i = 0; i < TILLS[TILLS.length - 1]; i++)
+            admin.createUser("till" + i, "till", "Cashier");
+        admin.login("admin", "admin");
+        for(int i = 0; i < BARCODES.length; i++) {
+            Integer id = admin.createProductType("product " + i, BARCODES[i], 1.0 + i, "");
+            admin.updatePosition(id, (i + 1) + "-A-1");
+            admin.updateQuantity(id, 10_000_000);
+        }
+        admin.logout();
+
+        for(boolean unitOfWork : new boolean[]{false, true}) {
+            admin.setUnitOfWork(unitOfWork);
+            System.out.println(unitOfWork ? "unit of work" : "autocommit");
+            System.out.println("tills\tcheckouts\tfailed\tcheckouts/s\tcommits/checkout");
+            for(int tills : TILLS) {
+                run(admin, tills);
+            }
+            System.out.println();
+        }
+
+        System.out.println(admin.getStatementStats());
+    }
+
+    private static void run(EZShop admin, int tills) throws InterruptedException {
+        long commits = admin.getCommitCount();
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        long[] deadline = new long[1];
+
+        for(int t = 0; t < tills; t++) {
+            final String username = "till" + t;
+            Thread thread = new Thread(() -> {
+                EZShop shop = new EZShop();
+                try {
+                    shop.login(username, "till");
+                    start.await();
+                    while(System.currentTimeMillis() < deadline[0]) {
+                        if(checkout(shop))
+                            done.incrementAndGet();
+                        else
+                            failed.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    shop.logout();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        deadline[0] = System.currentTimeMillis() + DURATION_MS;
+        start.countDown();
+        for(Thread thread : threads)
+            thread.join();
+
+        int checkouts = done.get() + failed.get();
+        System.out.printf("%d\t%d\t%d\t%.1f\t%.1f%n", tills, done.get(), failed.get(), done.get() * 1000.0 / DURATION_MS,
+                checkouts == 0 ? 0.0 : (double) (admin.getCommitCount() - commits) / checkouts);
+    }
+
+    private static boolean checkout(EZShop shop) throws Exception {
+        Integer id = shop.startSaleTransaction();
+        if(id == null || id <= 0)
+            return false;
+        for(int i = 0; i < LINES_PER_SALE; i++) {
+            if(!shop.addProductToSale(id, BARCODES[i % BARCODES.length], 1))
+                return false;
+        }
+        if(!shop.endSaleTransaction(id))
+            return false;
+        return shop.receiveCashPayment(id, 1000.0) >= 0;
+    }
+}
@@ -0,0 +1,98 @@
+package it.polito.ezshop.data;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Random;
+
+// Cost of a description lookup on a 200k product catalog: description LIKE '%text%', which scans productType,
+// against the DescriptionIndex of the ProductCatalog, for every match and for the best 20. The texts of one and
+// two characters are among the queries: the index holds their id lists too.
+// Not a unit test: run its main() after mvn test-compile.
+public class DescriptionSearchBenchmark {
+    private static final int PRODUCTS = 200_000;
+    private static final String[] WORDS = {"red", "white", "wine", "bread", "milk", "organic", "whole", "cheese",
+            "pasta", "tomato", "sauce", "olive", "oil", "apple", "juice", "coffee", "beans", "rice", "sugar", "salt",
+            "chocolate", "dark", "light", "yogurt", "butter", "fresh", "frozen", "pizza", "margherita", "tuna"};
+    private static final String[] QUERIES = {"wine", "olive oil", "chocolate", "marg", "yogurt 500", "xyz", "co", "z", "k", "e"};
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        File db = File.createTempFile("descriptions", ".sqlite");
+        db.deleteOnExit();
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + db.getPath());
+        Random random = new Random(1);
+        Connection conn = pool.begin();
+        try {
+            try(Statement st = conn.createStatement()) {
+                st.executeUpdate("CREATE TABLE productType(id INTEGER PRIMARY KEY, productCode TEXT, description TEXT, "
+                        + "pricePerUnit INTEGER, quantity INTEGER, notes TEXT, position TEXT)");
+            }
+            PreparedStatement insert = conn.prepareStatement("INSERT INTO productType VALUES (?,?,?,?,?,?,?)");
+            for(int i = 1; i <= PRODUCTS; i++) {
+                StringBuilder description = new StringBuilder();
+                for(int w = 2 + random.nextInt(3); w > 0; w--)
+                    description.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                description.append(random.nextInt(1000)).append('g');
+                insert.setInt(1, i);
+                insert.setString(2, AcceptableReturnCommit.barCode(i));
+                insert.setString(3, description.toString());
+                insert.setLong(4, 100 + i % 1000);
+                insert.setInt(5, 10);
+                insert.setString(6, "");
+                insert.setString(7, null);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        } finally {
+            pool.release();
+        }
+
+        ProductCatalog catalog = new ProductCatalog(pool);
+        long start = System.nanoTime();
+        catalog.size();
+        catalog.getById(1);
+        System.out.printf("%d products, %d grams, loaded and indexed in %.0f ms%n", catalog.size(),
+                catalog.getDescriptionIndex().getGrams(), (System.nanoTime() - start) / 1e6);
+
+        // warm up
+        for(int round = 0; round < ROUNDS; round++)
+            for(String query : QUERIES)
+                catalog.search(query, 20);
+
+        System.out.println("query\tmatches\tLIKE ms\tindex ms\tbest 20 ms");
+        for(String query : QUERIES) {
+            double likeMs = 0, indexMs = 0, bestMs = 0;
+            int matches = 0;
+            for(int round = 0; round < ROUNDS; round++) {
+                start = System.nanoTime();
+                conn = pool.acquire();
+                try {
+                    PreparedStatement st = conn.prepareStatement("SELECT id, productCode, description, pricePerUnit, quantity, notes, position FROM productType WHERE description LIKE ?");
+                    st.setString(1, '%' + query + '%');
+                    matches = 0;
+                    try(ResultSet rs = st.executeQuery()) {
+                        while(rs.next())
+                            matches++;
+                    }
+                } finally {
+                    pool.release();
+                }
+                likeMs += (System.nanoTime() - start) / 1e6;
+
+                start = System.nanoTime();
+                if(catalog.getByDescription(query).size() != matches)
+                    throw new IllegalStateException("index and LIKE disagree on " + query);
+                indexMs += (System.nanoTime() - start) / 1e6;
+
+                start = System.nanoTime();
+                catalog.search(query, 20);
+                bestMs += (System.nanoTime() - start) / 1e6;
+            }
+            System.out.printf("%s\t%d\t%.2f\t%.2f\t%.2f%n", query, matches, likeMs / ROUNDS, indexMs / ROUNDS, bestMs / ROUNDS);
+        }
+        pool.close();
+    }
+}
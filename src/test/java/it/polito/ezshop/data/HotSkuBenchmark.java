@@ -0,0 +1,179 @@
+package it.polito.ezshop.data;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Contention on stock reservations with 1..N threads: every thread on the same product (a hot SKU) or each on
+// its own, with the striped StockLedger and with one monitor for the whole catalog, as before the ledger.
+// Then N tills scanning the hot SKU through EZShop until its last units are gone, to check nothing is oversold.
+// Not a unit test: run its main() after mvn test-compile. It works on a copy of ezshop_db.sqlite,
+// the original database is not touched.
+public class HotSkuBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8};
+    private static final long DURATION_MS = 2000;
+    private static final int HOT_STOCK = 5000;
+
+    interface Reservations {
+        boolean reserve(int id, int amount);
+
+        void release(int id, int amount);
+    }
+
+    // the reservations of ProductCatalog before the ledger: one monitor for every product
+    static final class SingleMonitor implements Reservations {
+        private final Map<Integer, Integer> onHand = new HashMap<>();
+        private final Map<Integer, Integer> reserved = new HashMap<>();
+
+        synchronized void setOnHand(int id, int quantity) {
+            onHand.put(id, quantity);
+        }
+
+        @Override
+        public synchronized boolean reserve(int id, int amount) {
+            if(onHand.getOrDefault(id, 0) - reserved.getOrDefault(id, 0) < amount)
+                return false;
+            reserved.merge(id, amount, Integer::sum);
+            return true;
+        }
+
+        @Override
+        public synchronized void release(int id, int amount) {
+            reserved.computeIfPresent(id, (k, units) -> units > amount ? units - amount : null);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("reservations\tproducts\tthreads\treserve+release/s");
+        for(boolean hot : new boolean[]{true, false}) {
+            for(boolean striped : new boolean[]{false, true}) {
+                for(int threads : THREADS) {
+                    Reservations r;
+                    if(striped) {
+                        StockLedger ledger = new StockLedger();
+                        for(int id = 1; id <= threads; id++)
+                            ledger.setOnHand(id, 1_000_000);
+                        r = new Reservations() {
+                            @Override
+                            public boolean reserve(int id, int amount) {
+                                return ledger.reserve(id, amount);
+                            }
+
+                            @Override
+                            public void release(int id, int amount) {
+                                ledger.release(id, amount);
+                            }
+                        };
+                    } else {
+                        SingleMonitor monitor = new SingleMonitor();
+                        for(int id = 1; id <= threads; id++)
+                            monitor.setOnHand(id, 1_000_000);
+                        r = monitor;
+                    }
+                    // the first round warms up the JIT
+                    run(r, threads, hot);
+                    System.out.printf("%s\t%s\t%d\t%.0f%n", striped ? "striped ledger" : "single monitor",
+                            hot ? "one hot SKU" : "one per thread", threads, run(r, threads, hot));
+                }
+            }
+        }
+        System.out.println();
+        tills();
+    }
+
+    private static double run(Reservations r, int threads, boolean hot) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        long[] deadline = new long[1];
+        for(int t = 0; t < threads; t++) {
+            final int id = hot ? 1 : t + 1;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    long done = 0;
+                    while(System.currentTimeMillis() < deadline[0]) {
+                        for(int i = 0; i < 1000; i++) {
+                            if(r.reserve(id, 1))
+                                r.release(id, 1);
+                        }
+                        done += 1000;
+                    }
+                    ops.add(done);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        deadline[0] = System.currentTimeMillis() + DURATION_MS;
+        start.countDown();
+        for(Thread worker : workers)
+            worker.join();
+        return ops.sum() * 1000.0 / DURATION_MS;
+    }
+
+    // every till scans the hot SKU one unit at a time into its open cart until the stock runs out
+    private static void tills() throws Exception {
+        File db = File.createTempFile("ezshop_bench", ".sqlite");
+        db.deleteOnExit();
+        new File(db.getPath() + "-carts").deleteOnExit();
+        Files.copy(new File("ezshop_db.sqlite").toPath(), db.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.setProperty("ezshop.db", db.getAbsolutePath());
+
+        int tills = THREADS[THREADS.length - 1];
+        EZShop admin = new EZShop();
+        admin.reset();
+        admin.createUser("admin", "admin", "Administrator");
+        for(int i = 0; i < tills; i++)
+            admin.createUser("till" + i, "till", "Cashier");
+        admin.login("admin", "admin");
+        Integer product = admin.createProductType("hot product", "2424242424239", 1.0, "");
+        admin.updatePosition(product, "1-A-1");
+        admin.updateQuantity(product, HOT_STOCK);
+
+        AtomicInteger scanned = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < tills; t++) {
+            final String username = "till" + t;
+            Thread thread = new Thread(() -> {
+                EZShop shop = new EZShop();
+                try {
+                    shop.login(username, "till");
+                    Integer sale = shop.startSaleTransaction();
+                    start.await();
+                    while(shop.addProductToSale(sale, "2424242424239", 1))
+                        scanned.incrementAndGet();
+                    shop.endSaleTransaction(sale);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    shop.logout();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for(Thread thread : threads)
+            thread.join();
+        double ms = (System.nanoTime() - begin) / 1e6;
+
+        System.out.println("tills\tstock\tscanned\tleft\tms");
+        System.out.printf("%d\t%d\t%d\t%d\t%.1f%n", tills, HOT_STOCK, scanned.get(),
+                admin.getProductTypeByBarCode("2424242424239").getQuantity(), ms);
+        if(scanned.get() != HOT_STOCK)
+            throw new IllegalStateException("sold " + scanned.get() + " units out of " + HOT_STOCK);
+        admin.logout();
+    }
+}
@@ -0,0 +1,93 @@
+package it.polito.ezshop.data;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+
+// Listing 200k product types: getAllProductTypes, which keeps the whole table in a list, against the keyset pages
+// and the streaming cursor, in time, bytes allocated and heap still held when the listing is over.
+// Not a unit test: run its main() after mvn test-compile. It works on a copy of ezshop_db.sqlite,
+// the original database is not touched.
+public class ListingBenchmark {
+    private static final int PRODUCTS = 200_000;
+    private static final int PAGE = 500;
+
+    public static void main(String[] args) throws Exception {
+        File db = File.createTempFile("ezshop_bench", ".sqlite");
+        db.deleteOnExit();
+        new File(db.getPath() + "-carts").deleteOnExit();
+        Files.copy(new File("ezshop_db.sqlite").toPath(), db.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.setProperty("ezshop.db", db.getAbsolutePath());
+
+        EZShop shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin", "admin", "Administrator");
+        shop.login("admin", "admin");
+        try(Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db.getAbsolutePath())) {
+            conn.setAutoCommit(false);
+            PreparedStatement insert = conn.prepareStatement("INSERT INTO productType(productCode, description, pricePerUnit, quantity, notes) VALUES (?,?,?,?,?)");
+            for(int i = 0; i < PRODUCTS; i++) {
+                insert.setString(1, AcceptableReturnCommit.barCode(i));
+                insert.setString(2, "product number " + i + " of the benchmark catalog");
+                insert.setLong(3, 100 + i % 1000);
+                insert.setInt(4, 10);
+                insert.setString(5, "note " + i);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            conn.commit();
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        System.out.println("listing\tms\tMB allocated\tMB held after");
+        for(int round = 0; round < 3; round++) {
+            // a new till, whose list is not cached yet; it keeps the list once read
+            EZShop till = new EZShop();
+            till.login("admin", "admin");
+            long base = held();
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            int n = till.getAllProductTypes().size();
+            report("whole list", n, start, threads.getThreadAllocatedBytes(thread) - bytes, held() - base);
+            till.logout();
+            till = null;
+
+            base = held();
+            bytes = threads.getThreadAllocatedBytes(thread);
+            start = System.nanoTime();
+            long[] count = {0};
+            shop.forEachProductType(p -> count[0]++);
+            report("streamed", (int) count[0], start, threads.getThreadAllocatedBytes(thread) - bytes, held() - base);
+
+            base = held();
+            bytes = threads.getThreadAllocatedBytes(thread);
+            start = System.nanoTime();
+            n = 0;
+            Integer token = null;
+            do {
+                Page<ProductType> page = shop.getProductTypesPage(token, PAGE);
+                n += page.getItems().size();
+                token = page.getNextToken();
+            } while(token != null);
+            report("pages of " + PAGE, n, start, threads.getThreadAllocatedBytes(thread) - bytes, held() - base);
+        }
+        shop.logout();
+    }
+
+    private static void report(String listing, int n, long start, long allocated, long held) {
+        System.out.printf("%s (%d)\t%.0f\t%.1f\t%.1f%n", listing, n, (System.nanoTime() - start) / 1e6,
+                allocated / 1e6, held / 1e6);
+    }
+
+    private static long held() {
+        for(int i = 0; i < 3; i++)
+            System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
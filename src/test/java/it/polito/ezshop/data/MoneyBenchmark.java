@@ -0,0 +1,73 @@
+package it.polito.ezshop.data;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+// Totals of a day of sale lines with the old double arithmetic and with Money in cents: time per line and
+// how far each ends up from the exact total, computed with BigDecimal. The cents version does no allocation,
+// so its loop leaves the heap alone (see the "allocated" column, from the thread allocation counter).
+// Not a unit test: run its main() after mvn test-compile.
+public class MoneyBenchmark {
+    private static final int LINES = 1_000_000;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        long[] prices = new long[LINES];
+        int[] amounts = new int[LINES];
+        double[] rates = new double[LINES];
+        for(int i = 0; i < LINES; i++) {
+            prices[i] = 1 + random.nextInt(20000);
+            amounts[i] = 1 + random.nextInt(5);
+            rates[i] = random.nextInt(4) == 0 ? random.nextInt(50) / 100.0 : 0.0;
+        }
+        double[] doublePrices = new double[LINES];
+        for(int i = 0; i < LINES; i++)
+            doublePrices[i] = prices[i] / 100.0;
+
+        BigDecimal exact = BigDecimal.ZERO;
+        for(int i = 0; i < LINES; i++) {
+            BigDecimal line = BigDecimal.valueOf(prices[i] * amounts[i]);
+            BigDecimal discount = line.multiply(BigDecimal.valueOf(rates[i]))
+                    .setScale(0, RoundingMode.HALF_UP);
+            exact = exact.add(line.subtract(discount));
+        }
+
+        System.out.println("arithmetic\tns/line\tallocated\ttotal\terror");
+        for(int round = 0; round <= ROUNDS; round++) {
+            long bytes = allocated();
+            long begin = System.nanoTime();
+            double total = 0.0;
+            for(int i = 0; i < LINES; i++)
+                total += amounts[i] * doublePrices[i] - amounts[i] * doublePrices[i] * rates[i];
+            long doubleNs = System.nanoTime() - begin;
+            long doubleBytes = allocated() - bytes;
+
+            bytes = allocated();
+            begin = System.nanoTime();
+            long cents = Money.ZERO;
+            for(int i = 0; i < LINES; i++)
+                cents += Money.discounted(Money.times(prices[i], amounts[i]), rates[i]);
+            long centsNs = System.nanoTime() - begin;
+            long centsBytes = allocated() - bytes;
+
+            // the first rounds warm up the JIT
+            if(round < ROUNDS)
+                continue;
+            System.out.printf("double\t%.2f\t%d\t%.2f\t%s%n", (double) doubleNs / LINES, doubleBytes, total,
+                    BigDecimal.valueOf(total).movePointRight(2).subtract(exact).toPlainString());
+            System.out.printf("cents\t%.2f\t%d\t%.2f\t%d%n", (double) centsNs / LINES, centsBytes, Money.toDouble(cents),
+                    cents - exact.longValueExact());
+        }
+    }
+
+    private static long allocated() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+}
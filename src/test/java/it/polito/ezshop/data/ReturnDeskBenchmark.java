@@ -0,0 +1,134 @@
+package it.polito.ezshop.data;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// Time to commit a B2B return of 10 to 200 lines with endReturnTransaction, which reads the return once and
+// writes it with batches, against the statements it used to run for every line (product lookup, UPDATE of the
+// sale line, UPDATE of the stock, DELETE of the emptied line) followed by the discount and total queries,
+// both in autocommit mode, as they ran originally, and inside one transaction.
+// Not a unit test: run its main() after mvn test-compile. It works on a copy of ezshop_db.sqlite,
+// the original database is not touched.
+public class ReturnDeskBenchmark {
+    private static final int[] LINES = {10, 50, 100, 200};
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        File db = File.createTempFile("ezshop_bench", ".sqlite");
+        db.deleteOnExit();
+        new File(db.getPath() + "-carts").deleteOnExit();
+        Files.copy(new File("ezshop_db.sqlite").toPath(), db.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.setProperty("ezshop.db", db.getAbsolutePath());
+
+        EZShop shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin", "admin", "Administrator");
+        shop.login("admin", "admin");
+        int products = LINES[LINES.length - 1];
+        for(int i = 0; i < products; i++) {
+            Integer id = shop.createProductType("product " + i, AcceptableReturnCommit.barCode(i), 1.0 + i, "");
+            shop.updatePosition(id, i + "-A-1");
+            shop.updateQuantity(id, 1_000_000);
+        }
+
+        System.out.println("lines\tper line, autocommit ms\tper line, one transaction ms\tset-based ms\tset-based statements");
+        try(Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db.getAbsolutePath())) {
+            for(int lines : LINES) {
+                double autoMs = 0, txMs = 0, setMs = 0;
+                long statements = 0;
+                for(int round = 0; round < ROUNDS; round++) {
+                    Integer ret = openReturn(shop, lines);
+                    long start = System.nanoTime();
+                    perLine(conn, ret);
+                    autoMs += (System.nanoTime() - start) / 1e6;
+
+                    ret = openReturn(shop, lines);
+                    start = System.nanoTime();
+                    conn.setAutoCommit(false);
+                    perLine(conn, ret);
+                    conn.commit();
+                    conn.setAutoCommit(true);
+                    txMs += (System.nanoTime() - start) / 1e6;
+
+                    ret = openReturn(shop, lines);
+                    shop.getStatementStats().clear();
+                    start = System.nanoTime();
+                    if(!shop.endReturnTransaction(ret, true))
+                        throw new IllegalStateException("return " + ret + " not committed");
+                    setMs += (System.nanoTime() - start) / 1e6;
+                    for(StatementStats.Entry e : shop.getStatementStats().getEntries())
+                        statements += e.getExecutions();
+                }
+                System.out.printf("%d\t%.2f\t%.2f\t%.2f\t%d%n", lines, autoMs / ROUNDS, txMs / ROUNDS, setMs / ROUNDS, statements / ROUNDS);
+            }
+        }
+        shop.logout();
+    }
+
+    // a paid sale of one unit per line, every unit of which is being returned
+    private static Integer openReturn(EZShop shop, int lines) throws Exception {
+        Integer sale = shop.startSaleTransaction();
+        for(int i = 0; i < lines; i++)
+            shop.addProductToSale(sale, AcceptableReturnCommit.barCode(i), 1);
+        shop.endSaleTransaction(sale);
+        shop.receiveCashPayment(sale, 1_000_000.0);
+        Integer ret = shop.startReturnTransaction(sale);
+        for(int i = 0; i < lines; i++)
+            shop.returnProduct(ret, AcceptableReturnCommit.barCode(i), 1);
+        return ret;
+    }
+
+    // what endReturnTransaction ran before it was set-based
+    private static void perLine(Connection conn, int returnId) throws SQLException {
+        try(PreparedStatement lines = conn.prepareStatement("SELECT PE.barcode AS barcode, amount, RT.saleTransactionId AS saleTransactionId FROM returnTransaction RT, productEntry PE WHERE RT.id=? AND PE.transactionId=RT.id AND status='OPEN'");
+            PreparedStatement product = conn.prepareStatement("SELECT id FROM productType WHERE productCode=?");
+            PreparedStatement entry = conn.prepareStatement("UPDATE ProductEntry SET amount=amount-? WHERE transactionId=? AND barcode=?");
+            PreparedStatement stock = conn.prepareStatement("UPDATE productType SET quantity=quantity+? WHERE id=? AND position IS NOT NULL");
+            PreparedStatement empty = conn.prepareStatement("DELETE FROM productEntry WHERE amount=0 AND transactionId=? AND barcode=?");
+            PreparedStatement rate = conn.prepareStatement("SELECT ST.discountRate AS rate FROM returnTransaction RT, saleTransaction ST WHERE ST.id=RT.saleTransactionId AND RT.id=?");
+            PreparedStatement total = conn.prepareStatement("SELECT PE.amount AS amount, PT.pricePerUnit AS pricePerUnit, PE.discountRate AS discountRate FROM productEntry PE, productType PT WHERE PE.barcode=PT.productCode AND PE.transactionId=?");
+            PreparedStatement close = conn.prepareStatement("UPDATE returnTransaction SET status='CLOSED', total=?, discountRate=?  WHERE id=?")) {
+            lines.setInt(1, returnId);
+            try(ResultSet rs = lines.executeQuery()) {
+                while(rs.next()) {
+                    product.setString(1, rs.getString("barcode"));
+                    int id;
+                    try(ResultSet p = product.executeQuery()) {
+                        id = p.getInt("id");
+                    }
+                    entry.setInt(1, rs.getInt("amount"));
+                    entry.setInt(2, rs.getInt("saleTransactionId"));
+                    entry.setString(3, rs.getString("barcode"));
+                    entry.executeUpdate();
+                    stock.setInt(1, rs.getInt("amount"));
+                    stock.setInt(2, id);
+                    stock.executeUpdate();
+                    empty.setInt(1, rs.getInt("saleTransactionId"));
+                    empty.setString(2, rs.getString("barcode"));
+                    empty.executeUpdate();
+                }
+            }
+            rate.setInt(1, returnId);
+            double discountRate;
+            try(ResultSet rs = rate.executeQuery()) {
+                discountRate = rs.getDouble("rate");
+            }
+            long sum = 0;
+            total.setInt(1, returnId);
+            try(ResultSet rs = total.executeQuery()) {
+                while(rs.next())
+                    sum += Money.discounted(Money.discounted(Money.times(rs.getLong("pricePerUnit"), rs.getInt("amount")), rs.getDouble("discountRate")), discountRate);
+            }
+            close.setLong(1, sum);
+            close.setDouble(2, discountRate);
+            close.setInt(3, returnId);
+            close.executeUpdate();
+        }
+    }
+}
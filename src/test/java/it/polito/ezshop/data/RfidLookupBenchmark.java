@@ -0,0 +1,83 @@
+package it.polito.ezshop.data;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+// Cost of resolving a tag: RfidIndex (one entry per arrived range, binary search) against a HashMap<String, String>
+// holding one entry per item, as the old product table did. Not a unit test: run its main() after mvn test-compile.
+public class RfidLookupBenchmark {
+    private static final int RANGES = 10_000;
+    private static final int RANGE_LENGTH = 100;
+    private static final int LOOKUPS = 10_000_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        File db = File.createTempFile("rfid", ".sqlite");
+        db.deleteOnExit();
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + db.getPath());
+        long first = 100_000_000_000L;
+
+        Map<String, String> perItem = new HashMap<>();
+        Connection conn = pool.begin();
+        try {
+            try(Statement st = conn.createStatement()) {
+                st.executeUpdate("CREATE TABLE productRange(first INTEGER PRIMARY KEY, length INTEGER NOT NULL, "
+                        + "barcode TEXT NOT NULL, sold BLOB NOT NULL DEFAULT X'')");
+            }
+            PreparedStatement insert = conn.prepareStatement("INSERT INTO productRange(first, length, barcode) VALUES (?,?,?)");
+            for(int r = 0; r < RANGES; r++) {
+                String barcode = String.format("%013d", r % 500);
+                long start = first + (long) r * RANGE_LENGTH;
+                insert.setLong(1, start);
+                insert.setInt(2, RANGE_LENGTH);
+                insert.setString(3, barcode);
+                insert.addBatch();
+                for(int i = 0; i < RANGE_LENGTH; i++)
+                    perItem.put(RfidIndex.format(start + i), barcode);
+            }
+            insert.executeBatch();
+        } finally {
+            pool.release();
+        }
+        RfidIndex index = new RfidIndex(pool);
+        index.load();
+        System.out.printf("%d tags: %d ranges in the index, %d entries in the map%n",
+                RANGES * RANGE_LENGTH, index.getRangeCount(), perItem.size());
+
+        Random random = new Random(1);
+        long[] keys = new long[1 << 16];
+        String[] strings = new String[keys.length];
+        for(int i = 0; i < keys.length; i++) {
+            keys[i] = first + random.nextInt(RANGES * RANGE_LENGTH);
+            strings[i] = RfidIndex.format(keys[i]);
+        }
+        int mask = keys.length - 1;
+
+        System.out.println("round\tranges ns/lookup\tparse+ranges ns/lookup\tper-item map ns/lookup");
+        for(int round = 0; round < ROUNDS; round++) {
+            long sum = 0;
+            long start = System.nanoTime();
+            for(int i = 0; i < LOOKUPS; i++)
+                sum += index.getBarCode(keys[i & mask]).length();
+            double rangeNs = (System.nanoTime() - start) / (double) LOOKUPS;
+
+            start = System.nanoTime();
+            for(int i = 0; i < LOOKUPS; i++)
+                sum += index.getBarCode(RfidIndex.parse(strings[i & mask])).length();
+            double parsedNs = (System.nanoTime() - start) / (double) LOOKUPS;
+
+            start = System.nanoTime();
+            for(int i = 0; i < LOOKUPS; i++)
+                sum += perItem.get(strings[i & mask]).length();
+            double mapNs = (System.nanoTime() - start) / (double) LOOKUPS;
+
+            System.out.printf("%d\t%.1f\t%.1f\t%.1f\t(%d)%n", round, rangeNs, parsedNs, mapNs, sum);
+        }
+        pool.close();
+    }
+}
@@ -0,0 +1,72 @@
+package it.polito.ezshop.data;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+
+// One stock change then the product listing, on 100k product types: the listing patched by the change, against
+// reading the whole table again after every change, as the listing did while it was dropped by any write.
+// Not a unit test: run its main() after mvn test-compile. It works on a copy of ezshop_db.sqlite,
+// the original database is not touched.
+public class StockChangeListingBenchmark {
+    private static final int PRODUCTS = 100_000;
+    private static final int ROUNDS = 50;
+
+    public static void main(String[] args) throws Exception {
+        File db = File.createTempFile("ezshop_bench", ".sqlite");
+        db.deleteOnExit();
+        new File(db.getPath() + "-carts").deleteOnExit();
+        Files.copy(new File("ezshop_db.sqlite").toPath(), db.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.setProperty("ezshop.db", db.getAbsolutePath());
+
+        EZShop shop = new EZShop();
+        shop.reset();
+        shop.createUser("admin", "admin", "Administrator");
+        shop.login("admin", "admin");
+        try(Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db.getAbsolutePath())) {
+            conn.setAutoCommit(false);
+            PreparedStatement insert = conn.prepareStatement("INSERT INTO productType(productCode, description, pricePerUnit, quantity, notes, position) VALUES (?,?,?,?,?,?)");
+            for(int i = 0; i < PRODUCTS; i++) {
+                insert.setString(1, AcceptableReturnCommit.barCode(i));
+                insert.setString(2, "product " + i);
+                insert.setLong(3, 100 + i % 1000);
+                insert.setInt(4, 10);
+                insert.setString(5, "");
+                insert.setString(6, i + "-A-1");
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            conn.commit();
+        }
+        // the catalog and the listing are read once
+        shop.getProductCatalog().invalidate();
+        shop.getAllProductTypes();
+
+        System.out.println("round\tpatched ms\treloaded ms");
+        Listing<ProductType> listing = shop.getProductTypeListing();
+        for(int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for(int i = 0; i < ROUNDS; i++) {
+                shop.updateQuantity(1 + i * 1000, 1);
+                if(shop.getAllProductTypes().size() != PRODUCTS)
+                    throw new IllegalStateException();
+            }
+            double patchedMs = (System.nanoTime() - start) / 1e6 / ROUNDS;
+
+            start = System.nanoTime();
+            for(int i = 0; i < ROUNDS / 10; i++) {
+                shop.updateQuantity(1 + i * 1000, 1);
+                listing.invalidate();
+                if(shop.getAllProductTypes().size() != PRODUCTS)
+                    throw new IllegalStateException();
+            }
+            double reloadedMs = (System.nanoTime() - start) / 1e6 / (ROUNDS / 10);
+            System.out.printf("%d\t%.2f\t%.1f%n", round, patchedMs, reloadedMs);
+        }
+        System.out.println("full loads: " + listing.getLoads());
+        shop.logout();
+    }
+}
@@ -0,0 +1,84 @@
+package it.polito.ezshop.data;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Random;
+
+// Cost of one keystroke in the search box on a 200k product catalog: the prefix lookup of the typeahead, which
+// returns the first 10 suggestions, against the substring search it used to call, which returns every matching
+// product, in time and in bytes allocated. Not a unit test: run its main() after mvn test-compile.
+public class TypeaheadBenchmark {
+    private static final int PRODUCTS = 200_000;
+    private static final String[] WORDS = {"red", "white", "wine", "bread", "milk", "organic", "whole", "cheese",
+            "pasta", "tomato", "sauce", "olive", "oil", "apple", "juice", "coffee", "beans", "rice", "sugar", "salt",
+            "chocolate", "dark", "light", "yogurt", "butter", "fresh", "frozen", "pizza", "margherita", "tuna"};
+    private static final String TYPED = "chocolate dark 5";
+    private static final int ROUNDS = 200;
+
+    public static void main(String[] args) throws Exception {
+        File db = File.createTempFile("typeahead", ".sqlite");
+        db.deleteOnExit();
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + db.getPath());
+        Random random = new Random(1);
+        Connection conn = pool.begin();
+        try {
+            try(Statement st = conn.createStatement()) {
+                st.executeUpdate("CREATE TABLE productType(id INTEGER PRIMARY KEY, productCode TEXT, description TEXT, "
+                        + "pricePerUnit INTEGER, quantity INTEGER, notes TEXT, position TEXT)");
+            }
+            PreparedStatement insert = conn.prepareStatement("INSERT INTO productType VALUES (?,?,?,?,?,?,?)");
+            for(int i = 1; i <= PRODUCTS; i++) {
+                StringBuilder description = new StringBuilder();
+                for(int w = 2 + random.nextInt(3); w > 0; w--)
+                    description.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                description.append(random.nextInt(1000)).append('g');
+                insert.setInt(1, i);
+                insert.setString(2, AcceptableReturnCommit.barCode(i));
+                insert.setString(3, description.toString());
+                insert.setLong(4, 100 + i % 1000);
+                insert.setInt(5, 10);
+                insert.setString(6, "");
+                insert.setString(7, null);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        } finally {
+            pool.release();
+        }
+
+        ProductCatalog catalog = new ProductCatalog(pool);
+        long start = System.nanoTime();
+        catalog.size();
+        catalog.getById(1);
+        System.out.printf("%d products loaded and indexed in %.0f ms%n", catalog.size(), (System.nanoTime() - start) / 1e6);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for(int round = 0; round < ROUNDS; round++)
+            for(int typed = 1; typed <= 4; typed++)
+                catalog.suggest(TYPED.substring(0, typed), 10);
+
+        System.out.println("typed\tmatches\tsubstring ms\tsubstring KB\ttypeahead us\ttypeahead bytes");
+        for(int typed = 1; typed <= TYPED.length(); typed++) {
+            String prefix = TYPED.substring(0, typed);
+            int matches = catalog.getByDescription(prefix).size();
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            start = System.nanoTime();
+            for(int round = 0; round < ROUNDS / 20; round++)
+                catalog.getByDescription(prefix);
+            double substringMs = (System.nanoTime() - start) / 1e6 / (ROUNDS / 20);
+            double substringKb = (threads.getThreadAllocatedBytes(thread) - bytes) / 1024.0 / (ROUNDS / 20);
+
+            bytes = threads.getThreadAllocatedBytes(thread);
+            start = System.nanoTime();
+            for(int round = 0; round < ROUNDS; round++)
+                catalog.suggest(prefix, 10);
+            double typeaheadUs = (System.nanoTime() - start) / 1e3 / ROUNDS;
+            long typeaheadBytes = (threads.getThreadAllocatedBytes(thread) - bytes) / ROUNDS;
+            System.out.printf("%s\t%d\t%.2f\t%.0f\t%.1f\t%d%n", prefix, matches, substringMs, substringKb, typeaheadUs, typeaheadBytes);
+        }
+        pool.close();
+    }
+}